@@ -0,0 +1,275 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Scales images by averaging the source pixels covered by each destination
+ * pixel (box filter), weighted by the covered area. The computation uses
+ * fixed-point integer arithmetic and works on the image data buffers
+ * directly (see {@link PixelRows}), so it doesn't depend on the Java2D
+ * rendering loops available for the image type.
+ * <p/>
+ * The filter is separable: source rows are first reduced horizontally, then
+ * combined vertically. Each destination row only depends on its own source
+ * rows, so distinct destination rows can be computed concurrently.
+ */
+final class AreaAveragingScaler {
+
+    /**
+     * The precision of the weights, in bits. The weights of a destination
+     * pixel sum to <code>1 &lt;&lt; WEIGHT_BITS</code>.
+     */
+    private static final int WEIGHT_BITS = 14;
+
+    /**
+     * The fractional bits kept between the horizontal and the vertical pass.
+     * 8 bits values with 8 fractional bits, multiplied by the vertical weights,
+     * fit in an int.
+     */
+    private static final int FRACTION_BITS = 8;
+
+    /**
+     * The minimum number of rows of a band processed in parallel.
+     */
+    private static final int MIN_ROWS = 16;
+
+    /**
+     * The horizontal weights.
+     */
+    private final Weights m_horizontal;
+
+    /**
+     * The vertical weights.
+     */
+    private final Weights m_vertical;
+
+    /**
+     * The kernels accumulating the rows.
+     */
+    private final PixelKernels m_kernels = PixelKernels.getInstance();
+
+    /**
+     * Creates a scaler from the given source size to the given destination size.
+     * @param sourceWidth the source width
+     * @param sourceHeight the source height
+     * @param width the destination width
+     * @param height the destination height
+     */
+    AreaAveragingScaler(int sourceWidth, int sourceHeight, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Cannot scale the image : invalid size "
+                    + width + "x" + height);
+        }
+        m_horizontal = new Weights(sourceWidth, width);
+        m_vertical = new Weights(sourceHeight, height);
+    }
+
+    /**
+     * Scales the given image. The image must be supported by {@link PixelRows}.
+     * The destination rows are split in bands, each band giving the same
+     * result as when the whole image is scaled at once.
+     * @param image the image
+     * @param width the destination width
+     * @param height the destination height
+     * @param pool the pool used to compute the bands in parallel, <code>null</code>
+     * to compute them in the current thread
+     * @param images the pool of the scaled image, <code>null</code> to allocate it
+     * @return the scaled image, of the same type
+     */
+    static BufferedImage scale(final BufferedImage image, int width, int height, ForkJoinPool pool,
+            ImagePool images) {
+        final BufferedImage result = ImagePool.allocate(images, width, height, image.getType());
+        final AreaAveragingScaler scaler = new AreaAveragingScaler(image.getWidth(), image.getHeight(),
+                width, height);
+        ParallelRows.process(pool, height, MIN_ROWS, new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                scaler.scale(new PixelRows(image), new PixelRows(result), from, to);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Computes the given destination rows.
+     * @param source the source image rows
+     * @param destination the destination image rows
+     * @param from the first destination row (inclusive)
+     * @param to the last destination row (exclusive)
+     */
+    void scale(PixelRows source, PixelRows destination, int from, int to) {
+        int channels = source.getChannels();
+        int[] sourceRow = new int[source.getWidth() * channels];
+        int length = destination.getWidth() * channels;
+        // The last horizontally reduced row is kept, as it's often shared by two destination rows
+        int[] reduced = new int[length];
+        int reducedIndex = -1;
+        int[] accumulator = new int[length];
+
+        int[] weights = m_vertical.m_weights;
+        for (int y = from; y < to; y++) {
+            for (int i = 0; i < length; i++) {
+                accumulator[i] = 0;
+            }
+            int start = m_vertical.m_start[y];
+            int offset = m_vertical.m_offset[y];
+            int count = m_vertical.m_offset[y + 1] - offset;
+            for (int k = 0; k < count; k++) {
+                int sy = start + k;
+                if (sy != reducedIndex) {
+                    source.read(sy, sourceRow);
+                    reduce(sourceRow, reduced, channels);
+                    reducedIndex = sy;
+                }
+                m_kernels.multiplyAdd(reduced, weights[offset + k], accumulator, length);
+            }
+            int shift = WEIGHT_BITS + FRACTION_BITS;
+            int half = 1 << (shift - 1);
+            for (int i = 0; i < length; i++) {
+                accumulator[i] = (accumulator[i] + half) >> shift;
+            }
+            destination.write(y, accumulator);
+        }
+    }
+
+    /**
+     * Reduces a source row horizontally.
+     * @param row the source row
+     * @param reduced the reduced row, with {@link AreaAveragingScaler#FRACTION_BITS}
+     * fractional bits
+     * @param channels the number of channels
+     */
+    private void reduce(int[] row, int[] reduced, int channels) {
+        int[] starts = m_horizontal.m_start;
+        int[] offsets = m_horizontal.m_offset;
+        int[] weights = m_horizontal.m_weights;
+        int width = starts.length;
+        int shift = WEIGHT_BITS - FRACTION_BITS;
+        int half = 1 << (shift - 1);
+        switch (channels) {
+            case 1:
+                for (int x = 0; x < width; x++) {
+                    int s = starts[x];
+                    int v = 0;
+                    for (int k = offsets[x], end = offsets[x + 1]; k < end; k++, s++) {
+                        v += row[s] * weights[k];
+                    }
+                    reduced[x] = (v + half) >> shift;
+                }
+                break;
+            case 3:
+                for (int x = 0, i = 0; x < width; x++, i += 3) {
+                    int s = starts[x] * 3;
+                    int v0 = 0;
+                    int v1 = 0;
+                    int v2 = 0;
+                    for (int k = offsets[x], end = offsets[x + 1]; k < end; k++, s += 3) {
+                        int w = weights[k];
+                        v0 += row[s] * w;
+                        v1 += row[s + 1] * w;
+                        v2 += row[s + 2] * w;
+                    }
+                    reduced[i] = (v0 + half) >> shift;
+                    reduced[i + 1] = (v1 + half) >> shift;
+                    reduced[i + 2] = (v2 + half) >> shift;
+                }
+                break;
+            case 4:
+                for (int x = 0, i = 0; x < width; x++, i += 4) {
+                    int s = starts[x] * 4;
+                    int v0 = 0;
+                    int v1 = 0;
+                    int v2 = 0;
+                    int v3 = 0;
+                    for (int k = offsets[x], end = offsets[x + 1]; k < end; k++, s += 4) {
+                        int w = weights[k];
+                        v0 += row[s] * w;
+                        v1 += row[s + 1] * w;
+                        v2 += row[s + 2] * w;
+                        v3 += row[s + 3] * w;
+                    }
+                    reduced[i] = (v0 + half) >> shift;
+                    reduced[i + 1] = (v1 + half) >> shift;
+                    reduced[i + 2] = (v2 + half) >> shift;
+                    reduced[i + 3] = (v3 + half) >> shift;
+                }
+                break;
+            default:
+                for (int x = 0, i = 0; x < width; x++, i += channels) {
+                    for (int c = 0; c < channels; c++) {
+                        int s = starts[x] * channels + c;
+                        int v = 0;
+                        for (int k = offsets[x], end = offsets[x + 1]; k < end; k++, s += channels) {
+                            v += row[s] * weights[k];
+                        }
+                        reduced[i + c] = (v + half) >> shift;
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * The weights of the source pixels for each destination pixel, along one axis.
+     */
+    private static final class Weights {
+
+        /**
+         * The first source pixel of each destination pixel.
+         */
+        final int[] m_start;
+
+        /**
+         * The index of the first weight of each destination pixel in
+         * {@link Weights#m_weights}, plus a last entry for the end.
+         */
+        final int[] m_offset;
+
+        /**
+         * The weights, summing to <code>1 &lt;&lt; WEIGHT_BITS</code> for each
+         * destination pixel.
+         */
+        final int[] m_weights;
+
+        /**
+         * Computes the weights. In units of <code>1 / size</code> source
+         * pixel, the source pixel <code>i</code> covers
+         * <code>[i * size, (i + 1) * size)</code> and the destination pixel
+         * <code>x</code> covers <code>[x * source, (x + 1) * source)</code>.
+         * @param source the source size
+         * @param size the destination size
+         */
+        Weights(int source, int size) {
+            m_start = new int[size];
+            m_offset = new int[size + 1];
+            // Each destination pixel covers at most source / size + 2 source pixels
+            int[] weights = new int[size * (source / size + 2)];
+            int count = 0;
+            for (int x = 0; x < size; x++) {
+                long from = (long) x * source;
+                long to = from + source;
+                int first = (int) (from / size);
+                int last = (int) ((to - 1) / size);
+                m_start[x] = first;
+                m_offset[x] = count;
+                int total = 0;
+                int largest = count;
+                for (int i = first; i <= last; i++) {
+                    long covered = Math.min(to, (long) (i + 1) * size) - Math.max(from, (long) i * size);
+                    int weight = (int) ((covered << WEIGHT_BITS) / source);
+                    weights[count] = weight;
+                    if (weight > weights[largest]) {
+                        largest = count;
+                    }
+                    total += weight;
+                    count++;
+                }
+                // Rounding errors are given to the largest weight, so the weights sum exactly to one
+                weights[largest] += (1 << WEIGHT_BITS) - total;
+            }
+            m_offset[size] = count;
+            m_weights = new int[count];
+            System.arraycopy(weights, 0, m_weights, 0, count);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package de.akquinet.commons.image.io;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.common.bytesource.ByteSource;
+import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.JpegImageParser;
+import org.apache.commons.imaging.formats.png.PngImageParser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies the same metadata edits on a set of files.
+ * Files are processed in parallel. JPEG and PNG files are rewritten segment
+ * by segment (respectively chunk by chunk) without decoding the pixels.
+ * Each file is written to a temporary file first, which then atomically
+ * replaces the original file, so a failure never leaves a partially
+ * written file.
+ */
+public class BulkMetadataEditor {
+
+    /**
+     * The number of worker threads.
+     */
+    private final int m_threads;
+
+    /**
+     * Creates a BulkMetadataEditor using the given number of worker threads.
+     * @param threads the number of threads, must be positive
+     */
+    public BulkMetadataEditor(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Cannot create the editor : the number of threads must be positive");
+        }
+        m_threads = threads;
+    }
+
+    /**
+     * Creates a BulkMetadataEditor using one worker thread per available
+     * processor.
+     */
+    public BulkMetadataEditor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Applies the given edits on all the given files. Only the values set in
+     * the given metadata are changed, see {@link ExtendedImageMetadata#update(ExtendedImageMetadata)}.
+     * A failure on one file does not stop the processing of the others.
+     * @param edits the metadata to apply
+     * @param files the files to edit
+     * @return the result for each file, in the order of the given collection
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting for the workers
+     */
+    public List<Result> edit(final ExtendedImageMetadata edits, Collection<File> files)
+            throws InterruptedException {
+        if (edits == null) {
+            throw new IllegalArgumentException("Cannot edit files : the metadata cannot be null");
+        }
+        List<Result> results = new ArrayList<Result>(files.size());
+        if (files.isEmpty()) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(m_threads, files.size()));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(files.size());
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        try {
+                            edit(edits, file);
+                            return new Result(file, null);
+                        } catch (Exception e) {
+                            return new Result(file, e);
+                        }
+                    }
+                }));
+            }
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // Workers catch exceptions, so only errors end here
+                    throw new IllegalStateException("Cannot edit files", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Applies the given edits on the given file.
+     * @param edits the metadata to apply
+     * @param file the file to edit
+     * @throws IOException if the file cannot be read or written
+     */
+    public void edit(ExtendedImageMetadata edits, File file) throws IOException {
+        if (file == null || !file.exists()) {
+            throw new IOException("Cannot edit file : the file is null or does not exist : " + file);
+        }
+        Format format = ImageIOUtils.getIOHelper().getFormat(file);
+        if (!Format.supportExtendedMetadata(format)) {
+            throw new IOException("Cannot edit file : the format " + format
+                    + " does not support extended metadata : " + file.getAbsolutePath());
+        }
+
+        File tmp = File.createTempFile("." + file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            if (format == Format.JPEG) {
+                ExtendedImageMetadata metadata = readJPEGMetadata(file);
+                metadata.update(edits);
+                JPEGWriter writer = new JPEGWriter();
+                writer.load(file, metadata);
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    writer.write(out);
+                } finally {
+                    out.close();
+                }
+            } else {
+                // PNG, the only other format supporting extended metadata
+                ExtendedImageMetadata metadata = readPNGMetadata(file);
+                metadata.update(edits);
+                PNGWriter writer = new PNGWriter();
+                writer.load(file);
+                writer.setXmp(metadata.getXMPMetadata());
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    writer.write(out);
+                } finally {
+                    out.close();
+                }
+            }
+            IOHelper.replaceFile(tmp, file);
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the extended metadata of the given JPEG file without decoding
+     * the image.
+     * @param file the JPEG file
+     * @return the extended metadata
+     * @throws IOException if the metadata cannot be read
+     */
+    private static ExtendedImageMetadata readJPEGMetadata(File file) throws IOException {
+        ByteSource source = new ByteSourceFile(file);
+        JpegImageParser parser = new JpegImageParser();
+        try {
+            String xmp = parser.getXmpXml(source, null);
+            // We can cast as we're sure we're parsing a JPEG file.
+            JpegImageMetadata metadata = (JpegImageMetadata) parser.getMetadata(source);
+            return new ExtendedImageMetadata(metadata, xmp);
+        } catch (ImageReadException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the extended metadata of the given PNG file without decoding
+     * the image.
+     * @param file the PNG file
+     * @return the extended metadata
+     * @throws IOException if the metadata cannot be read
+     */
+    private static ExtendedImageMetadata readPNGMetadata(File file) throws IOException {
+        try {
+            // PNG can only contains XMP
+            String xmp = new PngImageParser().getXmpXml(new ByteSourceFile(file), null);
+            return new ExtendedImageMetadata(null, xmp);
+        } catch (ImageReadException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * The result of the edition of one file.
+     */
+    public static class Result {
+
+        /**
+         * The edited file.
+         */
+        private final File m_file;
+
+        /**
+         * The error, <code>null</code> if the file was edited successfully.
+         */
+        private final Exception m_error;
+
+        /**
+         * Creates a Result.
+         * @param file the edited file
+         * @param error the error, <code>null</code> on success
+         */
+        Result(File file, Exception error) {
+            m_file = file;
+            m_error = error;
+        }
+
+        /**
+         * Gets the edited file.
+         * @return the file
+         */
+        public File getFile() {
+            return m_file;
+        }
+
+        /**
+         * Checks whether the file was edited successfully.
+         * @return <code>true</code> if the file was edited,
+         * <code>false</code> otherwise
+         */
+        public boolean isSuccessful() {
+            return m_error == null;
+        }
+
+        /**
+         * Gets the error which has prevented the edition of the file.
+         * @return the error, <code>null</code> if the file was edited
+         * successfully
+         */
+        public Exception getError() {
+            return m_error;
+        }
+
+        public String toString() {
+            if (m_error == null) {
+                return m_file.getAbsolutePath() + " : OK";
+            }
+            return m_file.getAbsolutePath() + " : " + m_error.getMessage();
+        }
+    }
+}
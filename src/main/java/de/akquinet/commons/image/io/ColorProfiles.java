@@ -0,0 +1,418 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.color.CMMException;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Converts colors from ICC profiles to sRGB with lookup tables. The profile
+ * is applied once on a grid of colors by the color management module, with
+ * a single {@link ColorConvertOp} call, and the pixels are interpolated in
+ * this grid: tetrahedral interpolation for RGB profiles, and its 4D
+ * equivalent for CMYK profiles. Building a <code>ColorConvertOp</code> for
+ * each image and converting each pixel with the color management module is
+ * much slower.
+ * <p/>
+ * The tables are cached by SHA-1 hash of the profile, so the images coming
+ * from the same camera, editor or print workflow share them. The cache is
+ * bounded, the least recently used tables being dropped first.
+ */
+final class ColorProfiles {
+
+    /**
+     * The number of nodes on each axis of the RGB tables.
+     */
+    private static final int RGB_NODES = 33;
+
+    /**
+     * The number of nodes on each axis of the CMYK tables.
+     */
+    private static final int CMYK_NODES = 17;
+
+    /**
+     * The maximum difference between a node and its color for a table to be
+     * considered as the identity.
+     */
+    private static final int IDENTITY_TOLERANCE = 1;
+
+    /**
+     * The number of tables kept in the cache.
+     */
+    private static final int CACHE_SIZE = 16;
+
+    /**
+     * The minimum number of rows of the bands converted in parallel.
+     */
+    private static final int MIN_ROWS = 16;
+
+    /**
+     * Marks the profiles which cannot be used, so they're not parsed again.
+     */
+    private static final Table INVALID = new Table(1, new int[] {0, 65535}, new int[0]);
+
+    /**
+     * The tables, by identity of the profile, the least recently used first.
+     */
+    private static final LinkedHashMap<String, Table> TABLES = new LinkedHashMap<String, Table>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Table> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The table of the naive CMYK conversion, used for CMYK images without profile.
+     */
+    private static Table s_naiveCmyk;
+
+    /**
+     * A lookup table converting the colors of a profile to sRGB.
+     */
+    static final class Table {
+
+        /**
+         * The number of nodes on each axis.
+         */
+        private final int m_nodes;
+
+        /**
+         * The number of input components, 3 or 4.
+         */
+        private final int m_components;
+
+        /**
+         * The sRGB color of each node, the last component varying fastest.
+         */
+        private final int[] m_colors;
+
+        /**
+         * The offset of the lower node of each component value, by component
+         * then value.
+         */
+        private final int[] m_offsets;
+
+        /**
+         * The position of each component value between its nodes, on 8 bits,
+         * packed with the stride of its component in the lower 16 bits.
+         */
+        private final int[] m_steps;
+
+        /**
+         * Whether the table converts each color to itself.
+         */
+        private boolean m_identity;
+
+        /**
+         * Creates a table.
+         * @param components the number of input components
+         * @param values the 16 bits component value of each node of an axis
+         * @param colors the sRGB color of each node
+         */
+        private Table(int components, int[] values, int[] colors) {
+            m_nodes = values.length;
+            m_components = components;
+            m_colors = colors;
+            m_offsets = new int[components * 256];
+            m_steps = new int[components * 256];
+            int index = 0;
+            for (int v = 0; v < 256; v++) {
+                int value = v * 257;
+                while (index < m_nodes - 2 && values[index + 1] <= value) {
+                    index++;
+                }
+                int fraction = ((value - values[index]) * 256 + (values[index + 1] - values[index]) / 2)
+                        / (values[index + 1] - values[index]);
+                for (int c = components - 1, stride = 1; c >= 0; c--, stride *= m_nodes) {
+                    m_offsets[c * 256 + v] = index * stride;
+                    m_steps[c * 256 + v] = fraction << 16 | stride;
+                }
+            }
+        }
+
+        /**
+         * Gets the number of input components.
+         * @return 3 for RGB profiles, 4 for CMYK profiles
+         */
+        int getComponents() {
+            return m_components;
+        }
+
+        /**
+         * Checks whether the table converts each color to itself, typically
+         * for sRGB profiles embedded in the images.
+         * @return <code>true</code> if the colors don't need to be converted
+         */
+        boolean isIdentity() {
+            return m_identity;
+        }
+
+        /**
+         * Converts a color of an RGB profile.
+         * @param r the first component
+         * @param g the second component
+         * @param b the third component
+         * @return the sRGB color
+         */
+        int convert(int r, int g, int b) {
+            int base = m_offsets[r] + m_offsets[256 + g] + m_offsets[512 + b];
+            // The axes, sorted by decreasing position in the cell
+            int f0 = m_steps[r];
+            int f1 = m_steps[256 + g];
+            int f2 = m_steps[512 + b];
+            int t;
+            if (f0 < f1) { t = f0; f0 = f1; f1 = t; }
+            if (f1 < f2) { t = f1; f1 = f2; f2 = t; }
+            if (f0 < f1) { t = f0; f0 = f1; f1 = t; }
+            int w0 = f0 >>> 16;
+            int w1 = f1 >>> 16;
+            int w2 = f2 >>> 16;
+            int n1 = base + (f0 & 0xFFFF);
+            int n2 = n1 + (f1 & 0xFFFF);
+            int n3 = n2 + (f2 & 0xFFFF);
+            return interpolate(m_colors[base], m_colors[n1], m_colors[n2], m_colors[n3], 0,
+                    256 - w0, w0 - w1, w1 - w2, w2, 0);
+        }
+
+        /**
+         * Converts a color of a CMYK profile, interpolated between 5 nodes
+         * of its cell (simplex interpolation).
+         * @param c the cyan ink, 0 for no ink
+         * @param m the magenta ink
+         * @param y the yellow ink
+         * @param k the black ink
+         * @return the sRGB color
+         */
+        int convert(int c, int m, int y, int k) {
+            int base = m_offsets[c] + m_offsets[256 + m] + m_offsets[512 + y] + m_offsets[768 + k];
+            int f0 = m_steps[c];
+            int f1 = m_steps[256 + m];
+            int f2 = m_steps[512 + y];
+            int f3 = m_steps[768 + k];
+            int t;
+            // Sorting network of 4 values
+            if (f0 < f1) { t = f0; f0 = f1; f1 = t; }
+            if (f2 < f3) { t = f2; f2 = f3; f3 = t; }
+            if (f0 < f2) { t = f0; f0 = f2; f2 = t; }
+            if (f1 < f3) { t = f1; f1 = f3; f3 = t; }
+            if (f1 < f2) { t = f1; f1 = f2; f2 = t; }
+            int w0 = f0 >>> 16;
+            int w1 = f1 >>> 16;
+            int w2 = f2 >>> 16;
+            int w3 = f3 >>> 16;
+            int n1 = base + (f0 & 0xFFFF);
+            int n2 = n1 + (f1 & 0xFFFF);
+            int n3 = n2 + (f2 & 0xFFFF);
+            int n4 = n3 + (f3 & 0xFFFF);
+            return interpolate(m_colors[base], m_colors[n1], m_colors[n2], m_colors[n3], m_colors[n4],
+                    256 - w0, w0 - w1, w1 - w2, w2 - w3, w3);
+        }
+    }
+
+    private ColorProfiles() {
+        // Utility class
+    }
+
+    /**
+     * Interpolates 5 RGB colors, the red and blue components being computed
+     * at once. The weights sum to 256.
+     * @return the interpolated color
+     */
+    private static int interpolate(int p0, int p1, int p2, int p3, int p4, int w0, int w1, int w2, int w3,
+            int w4) {
+        int rb = (p0 & 0xFF00FF) * w0 + (p1 & 0xFF00FF) * w1 + (p2 & 0xFF00FF) * w2 + (p3 & 0xFF00FF) * w3
+                + (p4 & 0xFF00FF) * w4;
+        int g = (p0 & 0xFF00) * w0 + (p1 & 0xFF00) * w1 + (p2 & 0xFF00) * w2 + (p3 & 0xFF00) * w3
+                + (p4 & 0xFF00) * w4;
+        return ((rb + 0x800080) >>> 8) & 0xFF00FF | ((g + 0x8000) >>> 8) & 0xFF00;
+    }
+
+    /**
+     * Gets the table of the given profile, computing it if it's not cached.
+     * @param profile the ICC profile
+     * @return the table, <code>null</code> if the profile is invalid or is
+     * neither an RGB nor a CMYK profile
+     */
+    static Table getTable(byte[] profile) {
+        String key = IOHelper.sha1(profile);
+        Table table;
+        synchronized (TABLES) {
+            table = TABLES.get(key);
+        }
+        if (table == null) {
+            // Several threads may compute the same table, the last one is kept
+            table = createTable(profile);
+            synchronized (TABLES) {
+                TABLES.put(key, table);
+            }
+        }
+        return table == INVALID ? null : table;
+    }
+
+    /**
+     * Gets the table of the naive CMYK conversion, <code>R = (1 - C) (1 - K)</code>,
+     * used when the image has no CMYK profile.
+     * @return the table
+     */
+    static synchronized Table getNaiveCmykTable() {
+        if (s_naiveCmyk == null) {
+            int[] values = getValues(CMYK_NODES, false);
+            int[] colors = new int[CMYK_NODES * CMYK_NODES * CMYK_NODES * CMYK_NODES];
+            for (int i = 0; i < colors.length; i++) {
+                double white = (65535 - values[i % CMYK_NODES]) / 65535.0;
+                int r = toByte((65535 - values[i / (CMYK_NODES * CMYK_NODES * CMYK_NODES)]) * white);
+                int g = toByte((65535 - values[i / (CMYK_NODES * CMYK_NODES) % CMYK_NODES]) * white);
+                int b = toByte((65535 - values[i / CMYK_NODES % CMYK_NODES]) * white);
+                colors[i] = r << 16 | g << 8 | b;
+            }
+            s_naiveCmyk = new Table(4, values, colors);
+        }
+        return s_naiveCmyk;
+    }
+
+    /**
+     * Converts the given image to sRGB if its pixels are stored in the color
+     * space of an ICC profile other than sRGB, as decoded by some Image-IO
+     * readers. Only 8 bits RGB images, with or without a non premultiplied
+     * alpha channel, are converted.
+     * @param image the image, may be <code>null</code>
+     * @param pool the pool converting bands of rows in parallel, <code>null</code>
+     * to convert them in the current thread
+     * @return the <code>TYPE_INT_RGB</code> or <code>TYPE_INT_ARGB</code>
+     * converted image, the given image if it doesn't need to be converted
+     */
+    static BufferedImage toSRGB(BufferedImage image, ForkJoinPool pool) {
+        if (image == null) {
+            return null;
+        }
+        ColorModel model = image.getColorModel();
+        ColorSpace space = model.getColorSpace();
+        if (!(space instanceof ICC_ColorSpace) || space.isCS_sRGB() || space.getType() != ColorSpace.TYPE_RGB
+                || !(model instanceof ComponentColorModel) || model.isAlphaPremultiplied()
+                || model.getTransferType() != DataBuffer.TYPE_BYTE) {
+            return image;
+        }
+        final Table table = getTable(((ICC_ColorSpace) space).getProfile().getData());
+        if (table == null || table.isIdentity()) {
+            return image;
+        }
+        final Raster raster = image.getRaster();
+        final int width = raster.getWidth();
+        final int bands = raster.getNumDataElements();
+        final boolean alpha = model.hasAlpha();
+        final BufferedImage result = new BufferedImage(width, raster.getHeight(),
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        ParallelRows.process(pool, raster.getHeight(), MIN_ROWS,
+                new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                byte[] samples = new byte[width * bands];
+                for (int y = from; y < to; y++) {
+                    raster.getDataElements(raster.getMinX(), raster.getMinY() + y, width, 1, samples);
+                    for (int x = 0, i = 0, p = y * width; x < width; x++, i += bands, p++) {
+                        int rgb = table.convert(samples[i] & 0xFF, samples[i + 1] & 0xFF, samples[i + 2] & 0xFF);
+                        pixels[p] = alpha ? (samples[i + 3] & 0xFF) << 24 | rgb : rgb;
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Computes the table of a profile with the color management module,
+     * converting all the nodes at once.
+     * @param profile the ICC profile
+     * @return the table, {@link ColorProfiles#INVALID} if the profile cannot be used
+     */
+    private static Table createTable(byte[] profile) {
+        try {
+            ICC_Profile source = ICC_Profile.getInstance(profile);
+            int components;
+            int nodes;
+            if (source.getColorSpaceType() == ColorSpace.TYPE_RGB) {
+                components = 3;
+                nodes = RGB_NODES;
+            } else if (source.getColorSpaceType() == ColorSpace.TYPE_CMYK) {
+                components = 4;
+                nodes = CMYK_NODES;
+            } else {
+                return INVALID;
+            }
+            // The dark colors of the RGB profiles are the most curved, more nodes are placed there
+            int[] values = getValues(nodes, components == 3);
+            int count = 1;
+            for (int i = 0; i < components; i++) {
+                count *= nodes;
+            }
+            WritableRaster grid = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, count, 1, components, null);
+            int[] node = new int[components];
+            for (int i = 0; i < count; i++) {
+                for (int c = components - 1, index = i; c >= 0; c--, index /= nodes) {
+                    node[c] = values[index % nodes];
+                }
+                grid.setPixel(i, 0, node);
+            }
+            WritableRaster converted = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, count, 1, 3, null);
+            ICC_Profile srgb = ICC_Profile.getInstance(ColorSpace.CS_sRGB);
+            new ColorConvertOp(new ICC_Profile[] {source, srgb}, null).filter(grid, converted);
+
+            int[] colors = new int[count];
+            int[] color = new int[3];
+            boolean identity = components == 3;
+            for (int i = 0; i < count; i++) {
+                converted.getPixel(i, 0, color);
+                colors[i] = toByte(color[0]) << 16 | toByte(color[1]) << 8 | toByte(color[2]);
+                if (identity) {
+                    grid.getPixel(i, 0, node);
+                    for (int c = 0; c < 3; c++) {
+                        identity &= Math.abs(node[c] - color[c]) <= IDENTITY_TOLERANCE * 257;
+                    }
+                }
+            }
+            Table table = new Table(components, values, colors);
+            table.m_identity = identity;
+            return table;
+        } catch (IllegalArgumentException e) {
+            // Invalid profile
+            return INVALID;
+        } catch (CMMException e) {
+            // Profile not supported by the color management module
+            return INVALID;
+        }
+    }
+
+    /**
+     * Gets the component values of the nodes of an axis.
+     * @param nodes the number of nodes on the axis
+     * @param quadratic <code>true</code> to place the nodes on a parabola,
+     * closer to each other near 0, <code>false</code> to space them evenly
+     * @return the 16 bits values
+     */
+    private static int[] getValues(int nodes, boolean quadratic) {
+        int[] values = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            double position = (double) i / (nodes - 1);
+            values[i] = (int) Math.round(65535 * (quadratic ? position * position : position));
+        }
+        return values;
+    }
+
+    private static int toByte(double value) {
+        return (int) ((value + 128.5) / 257);
+    }
+
+}
@@ -3,21 +3,62 @@ package de.akquinet.commons.image.io;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Locale;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
-import javax.imageio.stream.ImageOutputStream;
 
 /**
  * Conversion Helper.
- * This helper allows converting images to JPEG and PNG.
+ * This helper allows converting images to JPEG and PNG. The images are
+ * converted to JPEG by {@link JPEGEncoder}s reusing their writers, one per
+ * quality, the encoders of the {@link ConversionHelper#ENCODERS} most
+ * recently used qualities being kept.
  */
 public class ConversionHelper {
 
+    /**
+     * The number of JPEG encoders kept.
+     */
+    public static final int ENCODERS = 8;
+
+    /**
+     * The JPEG encoders, by quality, the least recently used first.
+     */
+    private final LinkedHashMap<Float, JPEGEncoder> m_encoders = new LinkedHashMap<Float, JPEGEncoder>(16, 0.75f,
+            true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Float, JPEGEncoder> eldest) {
+            if (size() > ENCODERS) {
+                // The sessions in use are disposed when their encoding is done
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Gets the JPEG encoder of the given quality, using the default options
+     * of {@link JPEGEncoder#JPEGEncoder(float)}. The encoder is shared, and
+     * can be used concurrently.
+     * @param quality the quality, between 0 and 1
+     * @return the encoder
+     */
+    public JPEGEncoder getJPEGEncoder(float quality) {
+        Float key = Float.valueOf(quality);
+        synchronized (m_encoders) {
+            JPEGEncoder encoder = m_encoders.get(key);
+            if (encoder == null) {
+                encoder = new JPEGEncoder(quality);
+                m_encoders.put(key, encoder);
+            }
+            return encoder;
+        }
+    }
+
     /**
      * Converts the given {@link BufferedImage} to JPEG using
      * the specified quality.
@@ -25,21 +66,11 @@ public class ConversionHelper {
      * @param compressionQuality the quality
      * @return the byte array containing the converted image
      * @throws IOException if the image cannot be converted correctly.
+     * @see ConversionHelper#getJPEGEncoder(float)
      */
     public byte[] convertImageToJPEGBytes(BufferedImage image,
             float compressionQuality) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg")
-                .next();
-        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
-        writer.setOutput(ios);
-        ImageWriteParam iwparam = new JPEGImageWriteParam(Locale.getDefault());
-        iwparam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        iwparam.setCompressionQuality(compressionQuality);
-        writer.write(null, new IIOImage(image, null, null), iwparam);
-        ios.flush();
-        byte[] imageBytes = out.toByteArray();
-        return imageBytes;
+        return getJPEGEncoder(compressionQuality).encode(image);
     }
 
     /**
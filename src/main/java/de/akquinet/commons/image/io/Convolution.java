@@ -0,0 +1,480 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Separable convolutions (Gaussian blur, box blur and unsharp mask) on the
+ * packed pixels of <code>TYPE_INT_RGB</code> and <code>TYPE_INT_ARGB_PRE</code>
+ * images. The image is first filtered horizontally, row by row, then
+ * vertically, so a kernel of radius <code>r</code> costs <code>2 (2r + 1)</code>
+ * operations per pixel instead of <code>(2r + 1)^2</code>. The box blur uses
+ * sliding sums, its cost doesn't depend on the radius.
+ * <p/>
+ * The pixels outside of the image are the pixels of the nearest edge. Images
+ * with alpha are filtered premultiplied, so the color of transparent pixels
+ * doesn't bleed into their neighbours. Both passes process bands of rows in
+ * parallel. The result of the horizontal pass is rounded to 8 bits.
+ */
+final class Convolution {
+
+    /**
+     * The precision of the Gaussian weights, in bits. The weights sum to
+     * <code>1 &lt;&lt; WEIGHT_BITS</code>.
+     */
+    private static final int WEIGHT_BITS = 16;
+
+    /**
+     * The precision of the unsharp mask amount, in bits.
+     */
+    private static final int AMOUNT_BITS = 8;
+
+    /**
+     * The minimum number of rows of a band processed in parallel.
+     */
+    private static final int MIN_ROWS = 16;
+
+    /**
+     * A one dimensional filter, applied on rows and on columns.
+     */
+    private interface Filter {
+        /**
+         * Filters the given rows horizontally.
+         * @param source the source pixels
+         * @param target the target pixels, may be the source pixels
+         * @param width the width of the image
+         * @param from the first row (inclusive)
+         * @param to the last row (exclusive)
+         */
+        void filterRows(int[] source, int[] target, int width, int from, int to);
+
+        /**
+         * Filters the given rows vertically.
+         * @param source the source pixels, filtered horizontally
+         * @param target the target pixels
+         * @param width the width of the image
+         * @param height the height of the image
+         * @param from the first row (inclusive)
+         * @param to the last row (exclusive)
+         * @param combiner combines the filtered rows with the original ones,
+         * <code>null</code> to store the filtered rows
+         */
+        void filterColumns(int[] source, int[] target, int width, int height, int from, int to,
+                Combiner combiner);
+    }
+
+    /**
+     * Combines filtered rows with the original rows.
+     */
+    private interface Combiner {
+        /**
+         * Combines a filtered row with the original one.
+         * @param filtered the filtered row
+         * @param target the target pixels, containing the original row
+         * @param offset the index of the first pixel of the row in the target pixels
+         */
+        void combine(int[] filtered, int[] target, int offset);
+    }
+
+    private Convolution() {
+        // Utility class
+    }
+
+    /**
+     * Blurs the given image with a Gaussian kernel.
+     * @param image the image
+     * @param sigma the standard deviation of the kernel, in pixels
+     * @param pool the pool used to process the bands in parallel, <code>null</code>
+     * to process them in the current thread
+     * @param images the pool of the images, <code>null</code> to allocate them
+     * @return the blurred image
+     */
+    static BufferedImage gaussianBlur(BufferedImage image, float sigma, ForkJoinPool pool, ImagePool images) {
+        return apply(image, new GaussianFilter(sigma), pool, images, null);
+    }
+
+    /**
+     * Blurs the given image with a box kernel: each pixel becomes the average
+     * of the <code>(2 radius + 1)^2</code> pixels around it.
+     * @param image the image
+     * @param radius the radius of the kernel, in pixels
+     * @param pool the pool used to process the bands in parallel, <code>null</code>
+     * to process them in the current thread
+     * @param images the pool of the images, <code>null</code> to allocate them
+     * @return the blurred image
+     */
+    static BufferedImage boxBlur(BufferedImage image, int radius, ForkJoinPool pool, ImagePool images) {
+        return apply(image, new BoxFilter(radius), pool, images, null);
+    }
+
+    /**
+     * Sharpens the given image with an unsharp mask: the difference between
+     * each pixel and the Gaussian blurred pixel is amplified, when it's
+     * larger than the threshold. The alpha components are kept.
+     * @param image the image
+     * @param sigma the standard deviation of the Gaussian kernel, in pixels
+     * @param amount the amplification of the differences, 0 to keep the image
+     * @param threshold the minimum difference of a component to amplify, from 0 to 255
+     * @param pool the pool used to process the bands in parallel, <code>null</code>
+     * to process them in the current thread
+     * @param images the pool of the images, <code>null</code> to allocate them
+     * @return the sharpened image
+     */
+    static BufferedImage unsharpMask(BufferedImage image, float sigma, float amount, final int threshold,
+            ForkJoinPool pool, ImagePool images) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("The amount cannot be negative : " + amount);
+        }
+        if (threshold < 0 || threshold > 255) {
+            throw new IllegalArgumentException("The threshold must be between 0 and 255 : " + threshold);
+        }
+        final int factor = Math.round(amount * (1 << AMOUNT_BITS));
+        final boolean premultiplied = getType(image) == BufferedImage.TYPE_INT_ARGB_PRE;
+        return apply(image, new GaussianFilter(sigma), pool, images, new Combiner() {
+            public void combine(int[] filtered, int[] target, int offset) {
+                for (int x = 0, i = offset; x < filtered.length; x++, i++) {
+                    int p = target[i];
+                    int q = filtered[x];
+                    int max = premultiplied ? p >>> 24 : 0xFF;
+                    target[i] = p & 0xFF000000
+                            | sharpen((p >> 16) & 0xFF, (q >> 16) & 0xFF, max, factor, threshold) << 16
+                            | sharpen((p >> 8) & 0xFF, (q >> 8) & 0xFF, max, factor, threshold) << 8
+                            | sharpen(p & 0xFF, q & 0xFF, max, factor, threshold);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sharpens a component.
+     * @param value the original component
+     * @param blurred the blurred component
+     * @param max the maximum value of the component, the alpha component of
+     * premultiplied pixels
+     * @param factor the amount, with {@link Convolution#AMOUNT_BITS} fractional bits
+     * @param threshold the minimum difference to amplify
+     * @return the sharpened component
+     */
+    private static int sharpen(int value, int blurred, int max, int factor, int threshold) {
+        int difference = value - blurred;
+        if (difference < threshold && -difference < threshold) {
+            return value;
+        }
+        int sharpened = value + ((difference * factor + (1 << (AMOUNT_BITS - 1))) >> AMOUNT_BITS);
+        return sharpened < 0 ? 0 : sharpened > max ? max : sharpened;
+    }
+
+    /**
+     * Filters an image horizontally then vertically.
+     * @param image the image
+     * @param filter the filter
+     * @param pool the pool used to process the bands in parallel
+     * @param images the pool of the images
+     * @param combiner combines the filtered image with the original one,
+     * <code>null</code> to return the filtered image
+     * @return the filtered image
+     */
+    private static BufferedImage apply(BufferedImage image, final Filter filter, ForkJoinPool pool,
+            ImagePool images, final Combiner combiner) {
+        int type = getType(image);
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        BufferedImage rows;
+        final BufferedImage result;
+        if (combiner == null) {
+            // The rows are filtered in place, while they are copied
+            rows = PackedRows.apply(image, type, pool, images, new PackedRows.Kernel() {
+                public void process(int[] pixels, int offset, int length) {
+                    filter.filterRows(pixels, pixels, width, offset / width, (offset + length) / width);
+                }
+            });
+            result = ImagePool.allocate(images, width, height, type);
+        } else {
+            // The original rows are kept in the result, and combined with the filtered rows
+            result = PackedRows.apply(image, type, pool, images, null);
+            rows = ImagePool.allocate(images, width, height, type);
+            final int[] original = getPixels(result);
+            final int[] filtered = getPixels(rows);
+            ParallelRows.process(pool, height, MIN_ROWS, new ParallelRows.Processor() {
+                public void process(int from, int to) {
+                    filter.filterRows(original, filtered, width, from, to);
+                }
+            });
+        }
+        final int[] source = getPixels(rows);
+        final int[] target = getPixels(result);
+        ParallelRows.process(pool, height, MIN_ROWS, new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                filter.filterColumns(source, target, width, height, from, to, combiner);
+            }
+        });
+        ImagePool.recycle(images, rows);
+        return result;
+    }
+
+    /**
+     * Gets the type of the filtered images.
+     * @param image the image to filter
+     * @return <code>TYPE_INT_ARGB_PRE</code> if the image has alpha,
+     * <code>TYPE_INT_RGB</code> otherwise
+     */
+    static int getType(BufferedImage image) {
+        return image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB;
+    }
+
+    /**
+     * Gets the pixels of a new image of a packed int type.
+     * @param image the image
+     * @return the pixels, row by row
+     */
+    private static int[] getPixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Clamps a coordinate to the image.
+     * @param value the coordinate
+     * @param size the size of the image
+     * @return the coordinate of the nearest pixel of the image
+     */
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : value >= size ? size - 1 : value;
+    }
+
+    /**
+     * The Gaussian filter, with integer weights.
+     */
+    private static final class GaussianFilter implements Filter {
+
+        /**
+         * The radius of the kernel.
+         */
+        private final int m_radius;
+
+        /**
+         * The <code>2 radius + 1</code> weights.
+         */
+        private final int[] m_weights;
+
+        /**
+         * Creates the filter. The kernel is cut at 3 standard deviations.
+         * @param sigma the standard deviation
+         */
+        GaussianFilter(float sigma) {
+            if (!(sigma > 0)) {
+                throw new IllegalArgumentException("The standard deviation must be positive : " + sigma);
+            }
+            m_radius = Math.max(1, (int) Math.ceil(3 * sigma));
+            double[] gaussian = new double[2 * m_radius + 1];
+            double sum = 0;
+            for (int k = -m_radius; k <= m_radius; k++) {
+                gaussian[k + m_radius] = Math.exp(-(k * k) / (2.0 * sigma * sigma));
+                sum += gaussian[k + m_radius];
+            }
+            m_weights = new int[gaussian.length];
+            int total = 0;
+            for (int k = 0; k < gaussian.length; k++) {
+                m_weights[k] = (int) Math.round(gaussian[k] / sum * (1 << WEIGHT_BITS));
+                total += m_weights[k];
+            }
+            // The rounding error goes to the center, so uniform areas are kept
+            m_weights[m_radius] += (1 << WEIGHT_BITS) - total;
+        }
+
+        public void filterRows(int[] source, int[] target, int width, int from, int to) {
+            int radius = m_radius;
+            int[] weights = m_weights;
+            int[] row = new int[width + 2 * radius];
+            int half = 1 << (WEIGHT_BITS - 1);
+            for (int y = from; y < to; y++) {
+                int offset = y * width;
+                // The row is copied with its edges, so it can be filtered in place
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = source[offset + clamp(i - radius, width)];
+                }
+                for (int x = 0; x < width; x++) {
+                    int center = row[x + radius];
+                    int w = weights[radius];
+                    int a = half + (center >>> 24) * w;
+                    int r = half + ((center >> 16) & 0xFF) * w;
+                    int g = half + ((center >> 8) & 0xFF) * w;
+                    int b = half + (center & 0xFF) * w;
+                    for (int k = 0; k < radius; k++) {
+                        // The kernel is symmetric: the pixels sharing a weight are added first,
+                        // two components at once in 16 bits lanes
+                        int p = row[x + k];
+                        int q = row[x + 2 * radius - k];
+                        int ag = ((p >>> 8) & 0xFF00FF) + ((q >>> 8) & 0xFF00FF);
+                        int rb = (p & 0xFF00FF) + (q & 0xFF00FF);
+                        w = weights[k];
+                        a += (ag >>> 16) * w;
+                        g += (ag & 0xFFFF) * w;
+                        r += (rb >>> 16) * w;
+                        b += (rb & 0xFFFF) * w;
+                    }
+                    target[offset + x] = (a >>> WEIGHT_BITS) << 24 | (r >> WEIGHT_BITS) << 16
+                            | (g >> WEIGHT_BITS) << 8 | (b >> WEIGHT_BITS);
+                }
+            }
+        }
+
+        public void filterColumns(int[] source, int[] target, int width, int height, int from, int to,
+                Combiner combiner) {
+            int[] weights = m_weights;
+            int[] offsets = new int[weights.length];
+            int[] row = combiner == null ? null : new int[width];
+            int half = 1 << (WEIGHT_BITS - 1);
+            for (int y = from; y < to; y++) {
+                for (int k = 0; k < offsets.length; k++) {
+                    offsets[k] = clamp(y + k - m_radius, height) * width;
+                }
+                int offset = y * width;
+                int radius = m_radius;
+                for (int x = 0; x < width; x++) {
+                    // The rows of the kernel stay in the CPU cache while the columns are filtered
+                    int center = source[offsets[radius] + x];
+                    int w = weights[radius];
+                    int a = half + (center >>> 24) * w;
+                    int r = half + ((center >> 16) & 0xFF) * w;
+                    int g = half + ((center >> 8) & 0xFF) * w;
+                    int b = half + (center & 0xFF) * w;
+                    for (int k = 0; k < radius; k++) {
+                        int p = source[offsets[k] + x];
+                        int q = source[offsets[2 * radius - k] + x];
+                        int ag = ((p >>> 8) & 0xFF00FF) + ((q >>> 8) & 0xFF00FF);
+                        int rb = (p & 0xFF00FF) + (q & 0xFF00FF);
+                        w = weights[k];
+                        a += (ag >>> 16) * w;
+                        g += (ag & 0xFFFF) * w;
+                        r += (rb >>> 16) * w;
+                        b += (rb & 0xFFFF) * w;
+                    }
+                    int p = (a >>> WEIGHT_BITS) << 24 | (r >> WEIGHT_BITS) << 16
+                            | (g >> WEIGHT_BITS) << 8 | (b >> WEIGHT_BITS);
+                    if (row == null) {
+                        target[offset + x] = p;
+                    } else {
+                        row[x] = p;
+                    }
+                }
+                if (combiner != null) {
+                    combiner.combine(row, target, offset);
+                }
+            }
+        }
+    }
+
+    /**
+     * The box filter, computed with sliding sums.
+     */
+    private static final class BoxFilter implements Filter {
+
+        /**
+         * The radius of the kernel.
+         */
+        private final int m_radius;
+
+        /**
+         * The averages of the sums of <code>2 radius + 1</code> components,
+         * indexed by sum.
+         */
+        private final int[] m_averages;
+
+        /**
+         * Creates the filter.
+         * @param radius the radius
+         */
+        BoxFilter(int radius) {
+            if (radius < 0) {
+                throw new IllegalArgumentException("The radius cannot be negative : " + radius);
+            }
+            m_radius = radius;
+            int size = 2 * radius + 1;
+            // A table avoids a division per component
+            m_averages = new int[255 * size + 1];
+            for (int i = 0; i < m_averages.length; i++) {
+                m_averages[i] = (i + size / 2) / size;
+            }
+        }
+
+        public void filterRows(int[] source, int[] target, int width, int from, int to) {
+            int radius = m_radius;
+            int[] averages = m_averages;
+            int[] row = new int[width + 2 * radius + 1];
+            for (int y = from; y < to; y++) {
+                int offset = y * width;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = source[offset + clamp(i - radius, width)];
+                }
+                int a = 0;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int i = 0; i < 2 * radius + 1; i++) {
+                    int p = row[i];
+                    a += p >>> 24;
+                    r += (p >> 16) & 0xFF;
+                    g += (p >> 8) & 0xFF;
+                    b += p & 0xFF;
+                }
+                for (int x = 0; x < width; x++) {
+                    target[offset + x] = averages[a] << 24 | averages[r] << 16 | averages[g] << 8 | averages[b];
+                    // The window slides by one pixel
+                    int in = row[x + 2 * radius + 1];
+                    int out = row[x];
+                    a += (in >>> 24) - (out >>> 24);
+                    r += ((in >> 16) & 0xFF) - ((out >> 16) & 0xFF);
+                    g += ((in >> 8) & 0xFF) - ((out >> 8) & 0xFF);
+                    b += (in & 0xFF) - (out & 0xFF);
+                }
+            }
+        }
+
+        public void filterColumns(int[] source, int[] target, int width, int height, int from, int to,
+                Combiner combiner) {
+            int radius = m_radius;
+            int[] averages = m_averages;
+            int[] a = new int[width];
+            int[] r = new int[width];
+            int[] g = new int[width];
+            int[] b = new int[width];
+            // The sums of the columns start at the first row of the band
+            for (int k = from - radius; k <= from + radius; k++) {
+                int offset = clamp(k, height) * width;
+                for (int x = 0; x < width; x++) {
+                    int p = source[offset + x];
+                    a[x] += p >>> 24;
+                    r[x] += (p >> 16) & 0xFF;
+                    g[x] += (p >> 8) & 0xFF;
+                    b[x] += p & 0xFF;
+                }
+            }
+            int[] row = combiner == null ? null : new int[width];
+            for (int y = from; y < to; y++) {
+                int offset = y * width;
+                int[] filtered = row == null ? target : row;
+                int start = row == null ? offset : 0;
+                for (int x = 0; x < width; x++) {
+                    filtered[start + x] = averages[a[x]] << 24 | averages[r[x]] << 16
+                            | averages[g[x]] << 8 | averages[b[x]];
+                }
+                if (combiner != null) {
+                    combiner.combine(row, target, offset);
+                }
+                // The window slides by one row
+                int in = clamp(y + radius + 1, height) * width;
+                int out = clamp(y - radius, height) * width;
+                for (int x = 0; x < width; x++) {
+                    int p = source[in + x];
+                    int q = source[out + x];
+                    a[x] += (p >>> 24) - (q >>> 24);
+                    r[x] += ((p >> 16) & 0xFF) - ((q >> 16) & 0xFF);
+                    g[x] += ((p >> 8) & 0xFF) - ((q >> 8) & 0xFF);
+                    b[x] += (p & 0xFF) - (q & 0xFF);
+                }
+            }
+        }
+    }
+
+}
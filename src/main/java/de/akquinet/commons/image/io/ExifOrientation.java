@@ -0,0 +1,185 @@
+package de.akquinet.commons.image.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Locates the EXIF orientation tag of a JPEG stream. Only the header of the
+ * stream is parsed, so the orientation is available before decoding the
+ * image, and the tag can be rewritten in place.
+ */
+final class ExifOrientation {
+
+    /**
+     * The number of bytes read from the head of a file to find the EXIF segment.
+     * The EXIF segment is limited to 64KB and comes first in the stream.
+     */
+    private static final int HEADER_SIZE = 128 * 1024;
+
+    /**
+     * The orientation tag in the IFD0.
+     */
+    private static final int ORIENTATION_TAG = 0x0112;
+
+    /**
+     * The SHORT TIFF type.
+     */
+    private static final int SHORT_TYPE = 3;
+
+    /**
+     * The offset of the orientation value in the stream.
+     */
+    private final int m_offset;
+
+    /**
+     * Whether the TIFF structure is big endian (Motorola) or little endian (Intel).
+     */
+    private final boolean m_bigEndian;
+
+    /**
+     * The orientation code.
+     */
+    private final int m_orientation;
+
+    private ExifOrientation(int offset, boolean bigEndian, int orientation) {
+        m_offset = offset;
+        m_bigEndian = bigEndian;
+        m_orientation = orientation;
+    }
+
+    /**
+     * Gets the EXIF orientation code of the given JPEG file.
+     * @param file the JPEG file
+     * @return the orientation code, <code>-1</code> if the file has no orientation tag
+     * @throws IOException if the file cannot be read
+     */
+    static int read(File file) throws IOException {
+        byte[] header = new byte[(int) Math.min(HEADER_SIZE, file.length())];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < header.length) {
+                int count = in.read(header, read, header.length - read);
+                if (count == -1) {
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            IOHelper.closeQuietly(in);
+        }
+        return read(header);
+    }
+
+    /**
+     * Gets the EXIF orientation code of the given JPEG stream.
+     * @param jpeg the JPEG stream, or its header
+     * @return the orientation code, <code>-1</code> if the stream has no orientation tag
+     */
+    static int read(byte[] jpeg) {
+        ExifOrientation orientation = locate(jpeg);
+        return orientation == null ? -1 : orientation.m_orientation;
+    }
+
+    /**
+     * Rewrites the orientation tag of the given JPEG stream to 1 (normal),
+     * in place. Nothing is done if the stream has no orientation tag.
+     * @param jpeg the JPEG stream
+     * @return the previous orientation code, <code>-1</code> if the stream
+     * has no orientation tag
+     */
+    static int reset(byte[] jpeg) {
+        ExifOrientation orientation = locate(jpeg);
+        if (orientation == null) {
+            return -1;
+        }
+        jpeg[orientation.m_offset] = (byte) (orientation.m_bigEndian ? 0 : 1);
+        jpeg[orientation.m_offset + 1] = (byte) (orientation.m_bigEndian ? 1 : 0);
+        return orientation.m_orientation;
+    }
+
+    /**
+     * Finds the orientation tag in the EXIF segment.
+     * @param jpeg the JPEG stream
+     * @return the orientation tag, <code>null</code> if not found
+     */
+    private static ExifOrientation locate(byte[] jpeg) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xFF) == 0xFF) {
+            int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                pos++;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // Start of scan or end of image, no more metadata
+                return null;
+            }
+            int length = readShort(jpeg, pos + 2, true);
+            int end = Math.min(pos + 2 + length, jpeg.length);
+            if (marker == 0xE1 && isExif(jpeg, pos + 4)) {
+                return locateInTiff(jpeg, pos + 10, end);
+            }
+            pos = pos + 2 + length;
+        }
+        return null;
+    }
+
+    private static boolean isExif(byte[] jpeg, int pos) {
+        return pos + 6 <= jpeg.length && jpeg[pos] == 'E' && jpeg[pos + 1] == 'x'
+                && jpeg[pos + 2] == 'i' && jpeg[pos + 3] == 'f' && jpeg[pos + 4] == 0 && jpeg[pos + 5] == 0;
+    }
+
+    private static ExifOrientation locateInTiff(byte[] jpeg, int tiff, int end) {
+        if (tiff + 8 > end) {
+            return null;
+        }
+        boolean bigEndian;
+        if (jpeg[tiff] == 'M' && jpeg[tiff + 1] == 'M') {
+            bigEndian = true;
+        } else if (jpeg[tiff] == 'I' && jpeg[tiff + 1] == 'I') {
+            bigEndian = false;
+        } else {
+            return null;
+        }
+        long ifd = readInt(jpeg, tiff + 4, bigEndian);
+        if (ifd < 8 || tiff + ifd + 2 > end) {
+            return null;
+        }
+        int entries = tiff + (int) ifd;
+        int count = readShort(jpeg, entries, bigEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = entries + 2 + 12 * i;
+            if (entry + 12 > end) {
+                return null;
+            }
+            if (readShort(jpeg, entry, bigEndian) == ORIENTATION_TAG) {
+                if (readShort(jpeg, entry + 2, bigEndian) != SHORT_TYPE) {
+                    return null;
+                }
+                return new ExifOrientation(entry + 8, bigEndian, readShort(jpeg, entry + 8, bigEndian));
+            }
+        }
+        return null;
+    }
+
+    private static int readShort(byte[] data, int pos, boolean bigEndian) {
+        if (bigEndian) {
+            return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+        }
+        return ((data[pos + 1] & 0xFF) << 8) | (data[pos] & 0xFF);
+    }
+
+    private static long readInt(byte[] data, int pos, boolean bigEndian) {
+        if (bigEndian) {
+            return ((long) readShort(data, pos, true) << 16) | readShort(data, pos + 2, true);
+        }
+        return ((long) readShort(data, pos + 2, false) << 16) | readShort(data, pos, false);
+    }
+}
@@ -4,6 +4,7 @@ import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
 import org.apache.commons.imaging.formats.jpeg.iptc.PhotoshopApp13Data;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -60,6 +61,66 @@ public class ExtendedImageMetadata {
 
     }
     
+    /**
+     * Applies the given edits on these metadata. Only the values set
+     * (i.e. not <code>null</code>) in the given metadata are copied,
+     * the others are left unchanged.
+     * @param edits the metadata to apply
+     */
+    public void update(ExtendedImageMetadata edits) {
+        if (edits.getTitle() != null) {
+            setTitle(edits.getTitle());
+        }
+        if (edits.getAuthor() != null) {
+            setAuthor(edits.getAuthor());
+        }
+        if (edits.getContact() != null) {
+            setContact(edits.getContact());
+        }
+        if (edits.getExtendedAuthor() != null) {
+            setExtendedAuthor(edits.getExtendedAuthor());
+        }
+        if (edits.getCopyright() != null) {
+            setCopyright(edits.getCopyright());
+        }
+        if (edits.getUsage() != null) {
+            setUsage(edits.getUsage());
+        }
+        if (edits.getDescription() != null) {
+            setDescription(edits.getDescription());
+        }
+        if (edits.getSynopsis() != null) {
+            setSynopsis(edits.getSynopsis());
+        }
+        if (edits.getEditor() != null) {
+            setEditor(edits.getEditor());
+        }
+        if (edits.getKeywords() != null) {
+            setKeywords(new ArrayList<String>(edits.getKeywords()));
+        }
+        if (edits.getCity() != null) {
+            setCity(edits.getCity());
+        }
+        if (edits.getCountry() != null) {
+            setCountry(edits.getCountry());
+        }
+        if (edits.getState() != null) {
+            setState(edits.getState());
+        }
+        if (edits.getCreationDate() != null) {
+            setCreationDate(edits.getCreationDate());
+        }
+        if (edits.getSource() != null) {
+            setSource(edits.getSource());
+        }
+        if (edits.getWebStatement() != null) {
+            setWebStatement(edits.getWebStatement());
+        }
+        if (edits.isMarked()) {
+            setMarked(true);
+        }
+    }
+
     public String getXMPMetadata() throws IOException {
         return m_xmp.getXMPMetadata(this);
     }
@@ -14,19 +14,43 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 /**
  * Helper class to read and write images.
  */
 public class IOHelper {
 
+    /**
+     * The pool used to convert the colors of large images in parallel,
+     * <code>null</code> to convert them in the current thread.
+     */
+    private ForkJoinPool m_pool = ImageIOUtils.getForkJoinPool();
+
+    /**
+     * Sets the pool used to convert the colors of the CMYK and YCCK JPEG
+     * images, and of the images having an embedded ICC profile other than
+     * sRGB. The image is split in bands of rows converted concurrently. By
+     * default, the pool returned by {@link ImageIOUtils#getForkJoinPool()} is used.
+     * @param pool the pool, <code>null</code> to convert images in the current thread
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
     /**
      * Reads a {@link BufferedImage} from the input file
      *
@@ -39,9 +63,13 @@ public class IOHelper {
         if (f == null) {
             throw new IOException("The input file is null");
         }
+        BufferedImage managed = readManaged(f, m_pool);
+        if (managed != null) {
+            return managed;
+        }
         try {
             // Try image io
-            return ImageIO.read(f);
+            return ColorProfiles.toSRGB(ImageIO.read(f), m_pool);
         } catch (IOException e) {
             // Ignore, will fall back to Imaging
         } catch (CMMException e) {
@@ -78,7 +106,7 @@ public class IOHelper {
         }
 
         try {
-            return ImageIO.read(is);
+            return ColorProfiles.toSRGB(ImageIO.read(is), m_pool);
         } catch (IOException e) {
             // Ignore, will try Imaging.
         }
@@ -104,6 +132,10 @@ public class IOHelper {
             throw new IOException("Cannot convert the byte array into an image " +
                     "- the array is null");
         }
+        BufferedImage managed = readManaged(bytes, m_pool);
+        if (managed != null) {
+            return managed;
+        }
         InputStream is = new ByteArrayInputStream(bytes);
 
         try {
@@ -111,13 +143,68 @@ public class IOHelper {
             return img;
         } catch (ImageReadException e) {
             // As a fall back use the Image-IO
-            return ImageIO.read(is);
+            return ColorProfiles.toSRGB(ImageIO.read(is), m_pool);
         } finally {
             closeQuietly(is);
         }
 
     }
 
+    /**
+     * Decodes the given file with the {@link JPEGColorDecoder} if it's a CMYK
+     * or YCCK JPEG stream, or a JPEG stream with an embedded color profile
+     * other than sRGB. The color conversion of Image-IO and Imaging is much
+     * slower for these streams.
+     *
+     * @param f the file
+     * @param pool the pool converting the colors in parallel, may be <code>null</code>
+     * @return the image, <code>null</code> if the stream is not such a stream
+     * @throws IOException if the file cannot be opened
+     */
+    private static BufferedImage readManaged(File f, ForkJoinPool pool) throws IOException {
+        return readManaged(ImageIO.createImageInputStream(f), pool);
+    }
+
+    /**
+     * Decodes the given byte array with the {@link JPEGColorDecoder}, see
+     * {@link #readManaged(File, ForkJoinPool)}. Only the arrays starting with
+     * the JPEG SOI marker are parsed.
+     *
+     * @param bytes the bytes
+     * @param pool the pool converting the colors in parallel, may be <code>null</code>
+     * @return the image, <code>null</code> if the stream is not such a stream
+     */
+    private static BufferedImage readManaged(byte[] bytes, ForkJoinPool pool) {
+        if (bytes.length < 2 || (bytes[0] & 0xFF) != 0xFF || (bytes[1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        return readManaged(createImageInputStream(bytes), pool);
+    }
+
+    private static BufferedImage readManaged(ImageInputStream input, ForkJoinPool pool) {
+        if (input == null) {
+            return null;
+        }
+        try {
+            return JPEGColorDecoder.read(input, pool);
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Creates an image input stream reading the given bytes, cached in
+     * memory. The streams created by {@link ImageIO#createImageInputStream(Object)}
+     * on byte array streams are cached in a temporary file when the disk
+     * cache of Image-IO is enabled, which is the default.
+     *
+     * @param bytes the bytes
+     * @return the stream
+     */
+    static ImageInputStream createImageInputStream(byte[] bytes) {
+        return new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes));
+    }
+
     /**
      * Gets the format of the given byte array.
      *
@@ -327,6 +414,45 @@ public class IOHelper {
         return false;
     }
 
+    /**
+     * Computes the SHA-1 hash of the given bytes.
+     *
+     * @param bytes the bytes
+     * @return the hash, as 40 lowercase hexadecimal digits
+     */
+    static String sha1(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hash.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-1
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    /**
+     * Replaces the target file by the given source file. The move is atomic
+     * if the file system supports it, so readers of the target file see
+     * either the old or the new content.
+     *
+     * @param source the source file, moved by this method
+     * @param target the file to replace
+     * @throws IOException if the file cannot be replaced
+     */
+    public static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * Checks whether the given format can be read.
      *
@@ -43,6 +43,41 @@ public class Image {
      */
     private BufferedImage m_bufferedImage;
 
+    /**
+     * Whether the buffered image was modified since the image was read,
+     * in which case the original file or bytes do not depict it anymore.
+     */
+    private boolean m_modified;
+
+    /**
+     * Whether the EXIF orientation was applied on the buffered image when
+     * the image was read.
+     */
+    private boolean m_orientationNormalized;
+
+    /**
+     * The description of the operations applied on the buffered image since
+     * it was read, used to identify the renditions in the {@link RenditionCache}.
+     */
+    private final StringBuilder m_operations = new StringBuilder();
+
+    /**
+     * The identity of the file or bytes the image was read from, computed
+     * when first needed.
+     */
+    private String m_sourceIdentity;
+
+    /**
+     * Whether the geometric operations are recorded and rendered at once
+     * when the pixels are needed.
+     */
+    private boolean m_deferred;
+
+    /**
+     * The operations recorded but not rendered yet, <code>null</code> if none.
+     */
+    private OperationChain m_pending;
+
     /**
      * Creates a Image from the given {@link BufferedImage} and {@link Format}.
      * @param img the buffered image
@@ -90,6 +125,20 @@ public class Image {
      * @throws IOException if the file cannot be read correctly
      */
     public Image(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Creates a Image by reading the given file, and optionally applies
+     * the EXIF orientation of JPEG files.
+     * @param file the file to read
+     * @param normalizeOrientation <code>true</code> to rotate and flip the
+     * image as described by its EXIF orientation, so it's displayed correctly
+     * without further processing. The metadata then report the orientation 1.
+     * @throws IOException if the file cannot be read correctly
+     * @see Image#isOrientationNormalized()
+     */
+    public Image(File file, boolean normalizeOrientation) throws IOException {
         if (file == null  || ! file.exists()) {
             throw new IllegalArgumentException(
                     "Cannot read image : the file is null" +
@@ -99,6 +148,9 @@ public class Image {
         m_format = ImageIOUtils.getIOHelper().getFormat(file);
         m_file = file;
         m_bytes = null;
+        if (normalizeOrientation && m_format == Format.JPEG) {
+            normalizeOrientation(ExifOrientation.read(file));
+        }
     }
 
     /**
@@ -107,6 +159,20 @@ public class Image {
      * @throws IOException if the byte array is not a picture
      */
     public Image(byte[] bytes) throws IOException {
+        this(bytes, false);
+    }
+
+    /**
+     * Creates a Image from the given byte array, and optionally applies
+     * the EXIF orientation of JPEG images.
+     * @param bytes the byte array containing the image
+     * @param normalizeOrientation <code>true</code> to rotate and flip the
+     * image as described by its EXIF orientation, so it's displayed correctly
+     * without further processing. The metadata then report the orientation 1.
+     * @throws IOException if the byte array is not a picture
+     * @see Image#isOrientationNormalized()
+     */
+    public Image(byte[] bytes, boolean normalizeOrientation) throws IOException {
         if (bytes == null || bytes.length == 0) {
             throw new IllegalArgumentException(
                     "Cannot read image : the byte array is null" +
@@ -116,6 +182,42 @@ public class Image {
         m_format = ImageIOUtils.getIOHelper().getFormat(bytes);
         m_bytes = bytes;
         m_file = null;
+        if (normalizeOrientation && m_format == Format.JPEG) {
+            normalizeOrientation(ExifOrientation.read(bytes));
+        }
+    }
+
+    /**
+     * Applies the given EXIF orientation on the buffered image, by moving
+     * the pixels between rasters.
+     * @param orientation the EXIF orientation code
+     */
+    private void normalizeOrientation(int orientation) {
+        if (orientation == -1) {
+            // No orientation tag
+            return;
+        }
+        BufferedImage normalized = ImageIOUtils.getManipulationHelper()
+                .applyExifOrientation(m_bufferedImage, orientation);
+        m_operations.append("orientation(").append(orientation).append(')');
+        if (normalized != m_bufferedImage) {
+            m_bufferedImage = normalized;
+            // The original stream doesn't depict the normalized image anymore
+            m_modified = true;
+        }
+        m_orientationNormalized = true;
+    }
+
+    /**
+     * Checks whether the EXIF orientation of the image was applied when the
+     * image was read. In this case, the orientation reported by the metadata
+     * is 1 (normal).
+     * @return <code>true</code> if the orientation was normalized,
+     * <code>false</code> otherwise
+     * @see ImageMetadata#getExifOrientation()
+     */
+    public synchronized boolean isOrientationNormalized() {
+        return m_orientationNormalized;
     }
 
     /**
@@ -125,9 +227,71 @@ public class Image {
      * @return the wrapped {@link BufferedImage} cannot be <code>null</code>
      */
     public synchronized BufferedImage getBufferedImage() {
+        return render();
+    }
+
+    /**
+     * Enables or disables the deferred mode. In deferred mode, the geometric
+     * operations ({@link Image#scale(float)}, {@link Image#rotate(int)},
+     * {@link Image#horizontalflip()}, {@link Image#verticalflip()} and
+     * {@link Image#translate(int, int)}) are only recorded, and composed in
+     * a single {@link java.awt.geom.AffineTransform}. The image is rendered
+     * once when its pixels are needed: when getting the buffered image, the
+     * bytes or the metadata, or when writing it. Chaining several operations
+     * then resamples the image once instead of once per operation.
+     * <p/>
+     * When the operations only scale, flip and rotate the image by right
+     * angles, the image is scaled with the default {@link ScaleHelper} and
+     * its pixels are moved exactly. Otherwise, it's rendered with the
+     * interpolation of the default {@link ScaleHelper}.
+     * <p/>
+     * Disabling the deferred mode renders the recorded operations.
+     * @param deferred <code>true</code> to defer the geometric operations
+     */
+    public synchronized void setDeferred(boolean deferred) {
+        m_deferred = deferred;
+        if (!deferred) {
+            render();
+        }
+    }
+
+    /**
+     * Checks whether the geometric operations are deferred.
+     * @return <code>true</code> in deferred mode
+     * @see Image#setDeferred(boolean)
+     */
+    public synchronized boolean isDeferred() {
+        return m_deferred;
+    }
+
+    /**
+     * Renders the recorded operations, if any.
+     * @return the buffered image
+     */
+    private BufferedImage render() {
+        if (m_pending != null) {
+            m_bufferedImage = m_pending.render(m_bufferedImage, ImageIOUtils.getScaleHelper(),
+                    ImageIOUtils.getManipulationHelper());
+            m_operations.append("render(").append(m_pending.getDescription()).append(')');
+            m_pending = null;
+        }
         return m_bufferedImage;
     }
 
+    /**
+     * Gets the chain recording the operations in deferred mode.
+     * @return the chain, <code>null</code> if the operations are not deferred
+     */
+    private OperationChain getPendingOperations() {
+        if (!m_deferred) {
+            return null;
+        }
+        if (m_pending == null) {
+            m_pending = new OperationChain(m_bufferedImage.getWidth(), m_bufferedImage.getHeight());
+        }
+        return m_pending;
+    }
+
     /**
      * Gets the format of the image.
      * @return the image format, cannot be <code>null</code>
@@ -150,13 +314,63 @@ public class Image {
      * Converts the image to a byte array using the specified format.
      * The conversion uses the default parameter. See the {@link ConversionHelper}
      * for more parameters.
+     * <p/>
+     * If a {@link RenditionCache} is set with
+     * {@link ImageIOUtils#setRenditionCache(RenditionCache)}, the result is
+     * looked up in the cache first, and the image is not encoded on cache
+     * hits. Only the images read from a file, a stream or a byte array are
+     * cached, as long as their metadata were not accessed (they may have
+     * been edited). The renditions are identified by their source and the
+     * operations applied with the methods of this class, so the buffered
+     * image must not be modified directly.
      * @param format the output format
      * @return the byte array of the converted image
      * @throws IOException if the image cannot be converted
      * @see ConversionHelper
      * @see de.akquinet.commons.image.io.Image#getBytes()
      */
-    public synchronized byte[] getBytes(Format format) throws IOException {
+    public synchronized byte[] getBytes(final Format format) throws IOException {
+        RenditionCache cache = ImageIOUtils.getRenditionCache();
+        RenditionCache.Key key = cache == null ? null : getRenditionKey(format);
+        if (key == null) {
+            return encode(format);
+        }
+        return cache.get(key, new RenditionCache.Producer() {
+            public byte[] produce() throws IOException {
+                return encode(format);
+            }
+        });
+    }
+
+    /**
+     * Computes the key identifying the image in the given format in the
+     * {@link RenditionCache}.
+     * @param format the output format
+     * @return the key, <code>null</code> if the image cannot be cached
+     * @throws IOException if the identity of the source file cannot be computed
+     */
+    private RenditionCache.Key getRenditionKey(Format format) throws IOException {
+        if (m_metadata != null || (m_file == null && m_bytes == null)) {
+            return null;
+        }
+        if (m_sourceIdentity == null) {
+            m_sourceIdentity = m_file != null ? RenditionCache.getSourceIdentity(m_file)
+                    : RenditionCache.getSourceIdentity(m_bytes);
+        }
+        // The key of a pending rendering is the key of the rendered image
+        String operations = m_pending == null ? m_operations.toString()
+                : m_operations + "render(" + m_pending.getDescription() + ")";
+        return new RenditionCache.Key(m_sourceIdentity, operations, format,
+                RenditionCache.DEFAULT_QUALITY);
+    }
+
+    /**
+     * Encodes the image in the given format.
+     * @param format the output format
+     * @return the byte array of the encoded image
+     * @throws IOException if the image cannot be converted
+     */
+    private byte[] encode(Format format) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
             write(out, format);
@@ -169,15 +383,42 @@ public class Image {
     /**
      * Gets the byte array of the image from the buffered image.
      * This byte array does <strong>NOT</strong> contain metadata.
+     * The original bytes are returned while the image is not modified,
+     * otherwise the buffered image is encoded, after rendering the
+     * deferred operations.
      * @param format the output format
      * @return the resulting byte array
      * @throws IOException if the image cannot be read
      */
     public synchronized byte[] getRawBytes(Format format) throws IOException {
-        if (format == m_format && m_bytes != null) {
+        if (hasOriginalBytes(format) && m_pending == null) {
             return  m_bytes;
         }
-        return ImageIOUtils.getIOHelper().getBytes(m_bufferedImage, format);
+        return ImageIOUtils.getIOHelper().getBytes(render(), format);
+    }
+
+    /**
+     * Checks whether the bytes read from the original source (stream or
+     * byte array) are available in the given format, i.e. whether
+     * {@link Image#getRawBytes(Format)} can be served without encoding the
+     * buffered image.
+     * @param format the format
+     * @return <code>true</code> if the original bytes are available in the given
+     * format, <code>false</code> otherwise
+     */
+    synchronized boolean hasOriginalBytes(Format format) {
+        return format == m_format && m_bytes != null && ! m_modified;
+    }
+
+    /**
+     * Checks whether the image was read from a file in the given format and
+     * still depicts the content of this file.
+     * @param format the format
+     * @return <code>true</code> if the original file can be used instead of
+     * encoding the buffered image, <code>false</code> otherwise
+     */
+    synchronized boolean hasOriginalFile(Format format) {
+        return format == m_format && m_file != null && ! m_modified;
     }
 
     /**
@@ -230,6 +471,12 @@ public class Image {
             } finally {
                 fos.close();
             }
+        } else if (format == Format.PNG  && getMetadata().getXmp() != null
+                && (hasOriginalFile(Format.PNG) || hasOriginalBytes(Format.PNG))) {
+            // Only the metadata chunks are rewritten, the pixels are copied as they are
+            PNGWriter writer = new PNGWriter();
+            writer.load(this);
+            writer.write(out);
         } else if (format == Format.PNG  && getMetadata().getXmp() != null) {
             PngWriter writer = new PngWriter(false);
             OutputStream fos = new FileOutputStream(out);
@@ -244,7 +491,7 @@ public class Image {
                 fos.close();
             }
         } else {
-            ImageIOUtils.getIOHelper().write(m_bufferedImage, out, format);
+            ImageIOUtils.getIOHelper().write(render(), out, format);
         }
     }
 
@@ -263,7 +510,7 @@ public class Image {
             writer.load(this);
             writer.write(out);
         } else {
-            byte[] bytes = ImageIOUtils.getIOHelper().getBytes(m_bufferedImage, format);
+            byte[] bytes = ImageIOUtils.getIOHelper().getBytes(render(), format);
             out.write(bytes);
         }
     }
@@ -273,7 +520,7 @@ public class Image {
      * @return the width of the image
      */
     public synchronized int getWidth() {
-        return m_bufferedImage.getWidth();
+        return m_pending != null ? m_pending.getWidth() : m_bufferedImage.getWidth();
     }
 
     /**
@@ -281,7 +528,7 @@ public class Image {
      * @return the height of the image
      */
     public synchronized int getHeight() {
-        return m_bufferedImage.getHeight();
+        return m_pending != null ? m_pending.getHeight() : m_bufferedImage.getHeight();
     }
 
     /**
@@ -310,9 +557,19 @@ public class Image {
      * This method invalidates the extracted metadata.
      *
      * @param ratio the ratio used to scale the image.
+     * @see Image#setDeferred(boolean)
      */
     public synchronized void scale(float ratio) {
-        m_bufferedImage = ImageIOUtils.getScaleHelper().scale(m_bufferedImage, ratio);
+        ScaleHelper helper = ImageIOUtils.getScaleHelper();
+        OperationChain pending = getPendingOperations();
+        if (pending != null) {
+            pending.scale(ratio, helper.getInterpolation());
+        } else {
+            m_bufferedImage = helper.scale(m_bufferedImage, ratio);
+            m_operations.append("scale(").append(ratio).append(',')
+                    .append(helper.getInterpolation()).append(')');
+        }
+        m_modified = true;
         m_metadata = null; // Must be recomputed.
     }
 
@@ -322,12 +579,94 @@ public class Image {
      * This method invalidates the extracted metadata.
      *
      * @param angle the rotation angle in degree.
+     * @see Image#setDeferred(boolean)
      */
     public synchronized void rotate(int angle) {
-        m_bufferedImage = ImageIOUtils.getManipulationHelper().rotate(m_bufferedImage, angle);
+        OperationChain pending = getPendingOperations();
+        if (pending != null) {
+            pending.rotate(angle);
+        } else {
+            m_bufferedImage = ImageIOUtils.getManipulationHelper().rotate(m_bufferedImage, angle);
+            m_operations.append("rotate(").append(angle).append(')');
+        }
+        m_modified = true;
+        m_metadata = null; // Must be recomputed.
+    }
+
+    /**
+     * Flips the image horizontally. The pixels are moved exactly.
+     *
+     * This method invalidates the extracted metadata.
+     *
+     * @see Image#setDeferred(boolean)
+     */
+    public synchronized void horizontalflip() {
+        OperationChain pending = getPendingOperations();
+        if (pending != null) {
+            pending.flipHorizontally();
+        } else {
+            OperationChain flip = new OperationChain(m_bufferedImage.getWidth(), m_bufferedImage.getHeight());
+            flip.flipHorizontally();
+            apply(flip);
+        }
+        m_modified = true;
         m_metadata = null; // Must be recomputed.
     }
 
+    /**
+     * Flips the image vertically. The pixels are moved exactly.
+     *
+     * This method invalidates the extracted metadata.
+     *
+     * @see Image#setDeferred(boolean)
+     */
+    public synchronized void verticalflip() {
+        OperationChain pending = getPendingOperations();
+        if (pending != null) {
+            pending.flipVertically();
+        } else {
+            OperationChain flip = new OperationChain(m_bufferedImage.getWidth(), m_bufferedImage.getHeight());
+            flip.flipVertically();
+            apply(flip);
+        }
+        m_modified = true;
+        m_metadata = null; // Must be recomputed.
+    }
+
+    /**
+     * Moves the pixels of the image. The size of the image is kept: the
+     * pixels moved outside of the image are lost, and the uncovered pixels
+     * are transparent, or black if the image has no alpha channel.
+     *
+     * This method invalidates the extracted metadata.
+     *
+     * @param dx the horizontal move in pixels
+     * @param dy the vertical move in pixels
+     * @see Image#setDeferred(boolean)
+     */
+    public synchronized void translate(int dx, int dy) {
+        OperationChain pending = getPendingOperations();
+        if (pending != null) {
+            pending.translate(dx, dy);
+        } else {
+            OperationChain move = new OperationChain(m_bufferedImage.getWidth(), m_bufferedImage.getHeight());
+            move.translate(dx, dy);
+            apply(move);
+        }
+        m_modified = true;
+        m_metadata = null; // Must be recomputed.
+    }
+
+    /**
+     * Renders the given operations on the buffered image right away.
+     * @param operations the operations
+     */
+    private void apply(OperationChain operations) {
+        m_bufferedImage = operations.render(m_bufferedImage, ImageIOUtils.getScaleHelper(),
+                ImageIOUtils.getManipulationHelper());
+        m_operations.append(operations.getDescription());
+    }
+
     /**
      * Gets the source file of the image if any.
      * @return the source file, <code>null</code> if the {@link Image}
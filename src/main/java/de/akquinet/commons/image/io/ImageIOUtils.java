@@ -2,6 +2,8 @@ package de.akquinet.commons.image.io;
 
 import de.akquinet.commons.image.io.ScaleHelper.Interpolation;
 
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * Class to instantiate helper objects.
  * Helper objects are then cached once created.
@@ -12,6 +14,8 @@ public class ImageIOUtils {
     private static ScaleHelper m_defaultScaleHelper;
     private static ConversionHelper m_defaultConverter;
     private static ManipulationHelper m_defaultManipulator;
+    private static ForkJoinPool m_pool;
+    private static RenditionCache m_renditionCache;
 
     /**
      * Gets an {@link IOHelper} instance.
@@ -107,4 +111,40 @@ public class ImageIOUtils {
         return m_defaultManipulator;
     }
 
+    /**
+     * Gets the {@link ForkJoinPool} used by default by the helpers to
+     * process large images in parallel. The pool uses one thread per
+     * available processor.
+     * @return the shared pool, created if not already created
+     */
+    public static ForkJoinPool getForkJoinPool() {
+        synchronized (ImageIOUtils.class) {
+            if (m_pool == null) {
+                m_pool = new ForkJoinPool();
+            }
+        }
+        return m_pool;
+    }
+
+    /**
+     * Gets the {@link RenditionCache} used by {@link Image#getBytes(Format)}.
+     * @return the cache, <code>null</code> if the encoded images are not cached
+     */
+    public static RenditionCache getRenditionCache() {
+        synchronized (ImageIOUtils.class) {
+            return m_renditionCache;
+        }
+    }
+
+    /**
+     * Sets the {@link RenditionCache} used by {@link Image#getBytes(Format)}.
+     * By default, the encoded images are not cached.
+     * @param cache the cache, <code>null</code> to disable caching
+     */
+    public static void setRenditionCache(RenditionCache cache) {
+        synchronized (ImageIOUtils.class) {
+            m_renditionCache = cache;
+        }
+    }
+
 }
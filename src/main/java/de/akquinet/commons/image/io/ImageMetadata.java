@@ -142,6 +142,10 @@ public class ImageMetadata {
                     for (TiffField field : fields) {
                         m_metadata.put(field.getTagName(), field.getValueDescription());
                     }
+                    if (image.isOrientationNormalized() && m_metadata.containsKey("Orientation")) {
+                        // The orientation was applied on the pixels when reading the image
+                        m_metadata.put("Orientation", "1");
+                    }
                 }
                 // Geolocalisation is processed differently
                 m_location = extractLocation(metadata);
@@ -0,0 +1,412 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Pool of {@link BufferedImage}s, reusing the large pixel arrays of the
+ * images which are not used anymore instead of allocating new ones. Images
+ * are pooled by width, height and type. Large arrays are expensive for the
+ * garbage collector (G1 allocates them as humongous objects), so reusing
+ * them removes most of the GC pauses of servers processing many images of
+ * the same sizes.
+ * <p/>
+ * Images are taken from the pool with {@link ImagePool#acquire(int, int, int)},
+ * and given back with {@link ImagePool#release(BufferedImage)} or by closing
+ * the returned {@link Handle}, typically with a try-with-resources
+ * statement. Acquired images are cleared, like new images. The helpers
+ * configured with a pool (see {@link ScaleHelper#setImagePool(ImagePool)}
+ * and {@link ManipulationHelper#setImagePool(ImagePool)}) draw into pooled
+ * images, and release their intermediate images; their results can be
+ * released with {@link ImagePool#wrap(BufferedImage)}.
+ * <p/>
+ * The pool keeps at most the given number of bytes of idle images, the
+ * least recently released images being dropped first. A released image
+ * must not be used anymore. The pool is thread safe.
+ */
+public class ImagePool {
+
+    /**
+     * The default budget: 256 MB.
+     */
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    /**
+     * Gives an image back to its pool when closed.
+     */
+    public static final class Handle implements AutoCloseable {
+
+        /**
+         * The pool.
+         */
+        private final ImagePool m_pool;
+
+        /**
+         * The image, <code>null</code> once released.
+         */
+        private BufferedImage m_image;
+
+        private Handle(ImagePool pool, BufferedImage image) {
+            m_pool = pool;
+            m_image = image;
+        }
+
+        /**
+         * Gets the image.
+         * @return the image
+         * @throws IllegalStateException if the image was released
+         */
+        public synchronized BufferedImage getImage() {
+            if (m_image == null) {
+                throw new IllegalStateException("The image was released");
+            }
+            return m_image;
+        }
+
+        /**
+         * Releases the image. Closing a handle twice has no effect.
+         */
+        public synchronized void close() {
+            if (m_image != null) {
+                m_pool.release(m_image);
+                m_image = null;
+            }
+        }
+    }
+
+    /**
+     * The size and type of pooled images.
+     */
+    private static final class Key {
+
+        private final int m_width;
+
+        private final int m_height;
+
+        private final int m_type;
+
+        private Key(int width, int height, int type) {
+            m_width = width;
+            m_height = height;
+            m_type = type;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return m_width == other.m_width && m_height == other.m_height && m_type == other.m_type;
+        }
+
+        @Override
+        public int hashCode() {
+            return (m_width * 31 + m_height) * 31 + m_type;
+        }
+    }
+
+    /**
+     * The idle images by size and type, the most recently released last.
+     */
+    private final Map<Key, LinkedList<BufferedImage>> m_idle = new HashMap<Key, LinkedList<BufferedImage>>();
+
+    /**
+     * The idle images, from the least recently released to the most recently
+     * released. Images are compared by identity.
+     */
+    private final LinkedHashMap<BufferedImage, Key> m_released = new LinkedHashMap<BufferedImage, Key>();
+
+    /**
+     * The maximum number of bytes of idle images.
+     */
+    private final long m_budget;
+
+    /**
+     * The number of bytes of idle images.
+     */
+    private long m_size;
+
+    /**
+     * The number of images taken from the pool.
+     */
+    private long m_hits;
+
+    /**
+     * The number of images allocated because none was available.
+     */
+    private long m_misses;
+
+    /**
+     * Creates an ImagePool keeping at most the given number of bytes of idle images.
+     * @param budget the maximum number of bytes of idle images
+     */
+    public ImagePool(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("The budget must be positive : " + budget);
+        }
+        m_budget = budget;
+    }
+
+    /**
+     * Creates an ImagePool using the {@link ImagePool#DEFAULT_BUDGET}.
+     */
+    public ImagePool() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Gets a cleared image of the given size and type, taken from the pool
+     * if available. The image is released when the handle is closed.
+     * @param width the width
+     * @param height the height
+     * @param type the image type, see {@link BufferedImage#getType()}, except
+     * <code>TYPE_CUSTOM</code>. Indexed images are always allocated.
+     * @return the handle of the image
+     */
+    public Handle acquire(int width, int height, int type) {
+        return new Handle(this, take(width, height, type));
+    }
+
+    /**
+     * Wraps the given image, typically an image returned by a helper using
+     * this pool, so it's released when the handle is closed.
+     * @param image the image
+     * @return the handle of the image
+     */
+    public Handle wrap(BufferedImage image) {
+        if (image == null) {
+            throw new IllegalArgumentException("Cannot wrap the image : the image is null");
+        }
+        return new Handle(this, image);
+    }
+
+    /**
+     * Gives an image back to the pool. Only the images created by this pool
+     * or with the <code>BufferedImage(width, height, type)</code> constructor
+     * are kept, other images (sub-images, custom types, indexed images which
+     * may have their own palette) are ignored. The image must not be used
+     * anymore.
+     * @param image the image, ignored if <code>null</code>
+     */
+    public void release(BufferedImage image) {
+        if (image == null || !isPoolable(image)) {
+            return;
+        }
+        long bytes = getSize(image);
+        if (bytes > m_budget) {
+            return;
+        }
+        Key key = new Key(image.getWidth(), image.getHeight(), image.getType());
+        synchronized (this) {
+            if (m_released.containsKey(image)) {
+                // Already released
+                return;
+            }
+            LinkedList<BufferedImage> images = m_idle.get(key);
+            if (images == null) {
+                images = new LinkedList<BufferedImage>();
+                m_idle.put(key, images);
+            }
+            images.addLast(image);
+            m_released.put(image, key);
+            m_size += bytes;
+            Iterator<Map.Entry<BufferedImage, Key>> eldest = m_released.entrySet().iterator();
+            while (m_size > m_budget) {
+                Map.Entry<BufferedImage, Key> entry = eldest.next();
+                eldest.remove();
+                remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drops all the idle images. The statistics are kept.
+     */
+    public synchronized void clear() {
+        m_idle.clear();
+        m_released.clear();
+        m_size = 0;
+    }
+
+    /**
+     * Gets the maximum number of bytes of idle images.
+     * @return the budget
+     */
+    public long getBudget() {
+        return m_budget;
+    }
+
+    /**
+     * Gets the number of bytes of idle images.
+     * @return the size of the idle images
+     */
+    public synchronized long getSize() {
+        return m_size;
+    }
+
+    /**
+     * Gets the number of idle images.
+     * @return the number of idle images
+     */
+    public synchronized int getCount() {
+        return m_released.size();
+    }
+
+    /**
+     * Gets the number of images taken from the pool.
+     * @return the number of reused images
+     */
+    public synchronized long getHitCount() {
+        return m_hits;
+    }
+
+    /**
+     * Gets the number of images allocated because no idle image had the
+     * requested size and type.
+     * @return the number of allocated images
+     */
+    public synchronized long getMissCount() {
+        return m_misses;
+    }
+
+    /**
+     * Gets a cleared image, taken from the given pool if any.
+     * @param pool the pool, <code>null</code> to allocate a new image
+     * @param width the width
+     * @param height the height
+     * @param type the image type
+     * @return the image
+     */
+    static BufferedImage allocate(ImagePool pool, int width, int height, int type) {
+        if (pool == null) {
+            return new BufferedImage(width, height, type);
+        }
+        return pool.take(width, height, type);
+    }
+
+    /**
+     * Gives an intermediate image back to the given pool, if any.
+     * @param pool the pool, <code>null</code> to let the image be collected
+     * @param image the image
+     */
+    static void recycle(ImagePool pool, BufferedImage image) {
+        if (pool != null) {
+            pool.release(image);
+        }
+    }
+
+    /**
+     * Takes a cleared image from the pool, or allocates it.
+     * @param width the width
+     * @param height the height
+     * @param type the image type
+     * @return the image
+     */
+    BufferedImage take(int width, int height, int type) {
+        if (type == BufferedImage.TYPE_CUSTOM) {
+            throw new IllegalArgumentException("Custom images cannot be pooled");
+        }
+        if (!isPoolable(type)) {
+            return new BufferedImage(width, height, type);
+        }
+        BufferedImage image = null;
+        synchronized (this) {
+            LinkedList<BufferedImage> images = m_idle.get(new Key(width, height, type));
+            if (images != null) {
+                // The most recently released image is the most likely to be in the CPU cache
+                image = images.getLast();
+                m_released.remove(image);
+                remove(image, new Key(width, height, type));
+                m_hits++;
+            } else {
+                m_misses++;
+            }
+        }
+        if (image == null) {
+            return new BufferedImage(width, height, type);
+        }
+        clear(image.getRaster().getDataBuffer());
+        return image;
+    }
+
+    /**
+     * Removes an idle image.
+     * @param image the image
+     * @param key the key of the image
+     */
+    private void remove(BufferedImage image, Key key) {
+        LinkedList<BufferedImage> images = m_idle.get(key);
+        images.removeLastOccurrence(image);
+        if (images.isEmpty()) {
+            m_idle.remove(key);
+        }
+        m_size -= getSize(image);
+    }
+
+    /**
+     * Checks whether the given image has the layout of a new image of its type.
+     * @param image the image
+     * @return <code>true</code> if the image can be pooled
+     */
+    private static boolean isPoolable(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        return isPoolable(image.getType())
+                && raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && buffer.getOffset() == 0 && buffer.getNumBanks() == 1
+                && raster.getSampleModel().getWidth() == image.getWidth()
+                && raster.getSampleModel().getHeight() == image.getHeight();
+    }
+
+    /**
+     * Checks whether the images of the given type can be pooled: the type
+     * describes the whole color model of the image.
+     * @param type the image type
+     * @return <code>true</code> if the images can be pooled
+     */
+    static boolean isPoolable(int type) {
+        return type != BufferedImage.TYPE_CUSTOM && type != BufferedImage.TYPE_BYTE_BINARY
+                && type != BufferedImage.TYPE_BYTE_INDEXED;
+    }
+
+    /**
+     * Gets the number of bytes of the pixels of an image.
+     * @param image the image
+     * @return the size of the data buffer in bytes
+     */
+    private static long getSize(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Clears the pixels of a data buffer.
+     * @param buffer the buffer
+     */
+    private static void clear(DataBuffer buffer) {
+        if (buffer instanceof DataBufferInt) {
+            Arrays.fill(((DataBufferInt) buffer).getData(), 0);
+        } else if (buffer instanceof DataBufferByte) {
+            Arrays.fill(((DataBufferByte) buffer).getData(), (byte) 0);
+        } else if (buffer instanceof DataBufferUShort) {
+            Arrays.fill(((DataBufferUShort) buffer).getData(), (short) 0);
+        } else {
+            for (int i = 0; i < buffer.getSize(); i++) {
+                buffer.setElem(i, 0);
+            }
+        }
+    }
+
+}
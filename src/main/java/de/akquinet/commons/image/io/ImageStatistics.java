@@ -0,0 +1,546 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Statistics of the colors of an image: the histogram, mean and variance of
+ * each channel and of the luminance, and the dominant colors. They are
+ * computed in one pass on the pixels, read directly from the data buffer of
+ * the common image types, in bands of rows processed in parallel on the pool
+ * of {@link ImageIOUtils#getForkJoinPool()}. Each band fills its own partial
+ * histograms, merged at the end of the band.
+ * <p/>
+ * The dominant colors are found by clustering the populated cells of a
+ * 4096 cells color histogram (4 bits per channel) with k-means, so their
+ * cost doesn't depend on the size of the image.
+ * <p/>
+ * The fully transparent pixels are ignored.
+ */
+public final class ImageStatistics {
+
+    /**
+     * The default number of dominant colors.
+     */
+    public static final int DEFAULT_COLORS = 5;
+
+    /**
+     * The minimum number of rows of the bands processed in parallel.
+     */
+    private static final int MIN_ROWS = 32;
+
+    /**
+     * The number of bits per channel of the cells of the color histogram.
+     */
+    private static final int CELL_BITS = 4;
+
+    /**
+     * The number of cells of the color histogram.
+     */
+    private static final int CELLS = 1 << (3 * CELL_BITS);
+
+    /**
+     * The maximum number of iterations of the k-means clustering.
+     */
+    private static final int ITERATIONS = 10;
+
+    /**
+     * The channels of the histograms.
+     */
+    public enum Channel {
+        RED, GREEN, BLUE,
+        /**
+         * The luminance, <code>0.299 R + 0.587 G + 0.114 B</code>.
+         */
+        LUMINANCE
+    }
+
+    /**
+     * A dominant color.
+     */
+    public static final class Swatch {
+
+        private final int m_rgb;
+
+        private final int m_population;
+
+        private final double m_share;
+
+        private Swatch(int rgb, int population, double share) {
+            m_rgb = rgb;
+            m_population = population;
+            m_share = share;
+        }
+
+        /**
+         * Gets the color, the mean of the pixels of the cluster.
+         * @return the RGB color, without alpha
+         */
+        public int getRGB() {
+            return m_rgb;
+        }
+
+        /**
+         * Gets the number of pixels close to this color.
+         * @return the number of pixels
+         */
+        public int getPopulation() {
+            return m_population;
+        }
+
+        /**
+         * Gets the share of the pixels close to this color.
+         * @return the share, between 0 and 1
+         */
+        public double getShare() {
+            return m_share;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%06X (%.1f%%)", m_rgb, m_share * 100);
+        }
+    }
+
+    /**
+     * The partial statistics of a band, merged into the statistics of the image.
+     */
+    private static final class Accumulator {
+
+        /**
+         * The histograms, by channel then value.
+         */
+        private final int[] m_histograms = new int[4 * 256];
+
+        /**
+         * The number of pixels of each cell of the color histogram.
+         */
+        private final int[] m_counts = new int[CELLS];
+
+        /**
+         * The sum of the red, green and blue components of the pixels of each cell.
+         */
+        private final long[] m_sums = new long[CELLS * 3];
+
+        /**
+         * Adds a pixel.
+         * @param argb the pixel
+         */
+        void add(int argb) {
+            if ((argb >>> 24) == 0) {
+                return;
+            }
+            int r = (argb >> 16) & 0xFF;
+            int g = (argb >> 8) & 0xFF;
+            int b = argb & 0xFF;
+            m_histograms[r]++;
+            m_histograms[256 + g]++;
+            m_histograms[512 + b]++;
+            m_histograms[768 + ((77 * r + 150 * g + 29 * b + 128) >> 8)]++;
+            int cell = (r >> (8 - CELL_BITS)) << (2 * CELL_BITS) | (g >> (8 - CELL_BITS)) << CELL_BITS
+                    | b >> (8 - CELL_BITS);
+            m_counts[cell]++;
+            m_sums[cell * 3] += r;
+            m_sums[cell * 3 + 1] += g;
+            m_sums[cell * 3 + 2] += b;
+        }
+
+        /**
+         * Adds the statistics of another band.
+         * @param other the statistics of the other band
+         */
+        void merge(Accumulator other) {
+            for (int i = 0; i < m_histograms.length; i++) {
+                m_histograms[i] += other.m_histograms[i];
+            }
+            for (int i = 0; i < CELLS; i++) {
+                if (other.m_counts[i] != 0) {
+                    m_counts[i] += other.m_counts[i];
+                    m_sums[i * 3] += other.m_sums[i * 3];
+                    m_sums[i * 3 + 1] += other.m_sums[i * 3 + 1];
+                    m_sums[i * 3 + 2] += other.m_sums[i * 3 + 2];
+                }
+            }
+        }
+    }
+
+    /**
+     * The histograms, by channel then value.
+     */
+    private final int[] m_histograms;
+
+    /**
+     * The number of pixels taken into account.
+     */
+    private final int m_count;
+
+    /**
+     * The dominant colors, the most frequent first.
+     */
+    private final List<Swatch> m_colors;
+
+    private ImageStatistics(Accumulator statistics, int colors) {
+        m_histograms = statistics.m_histograms;
+        int count = 0;
+        for (int i = 0; i < 256; i++) {
+            count += m_histograms[i];
+        }
+        m_count = count;
+        m_colors = Collections.unmodifiableList(cluster(statistics, colors, count));
+    }
+
+    /**
+     * Computes the statistics of an image, with {@link #DEFAULT_COLORS}
+     * dominant colors.
+     * @param image the image
+     * @return the statistics
+     */
+    public static ImageStatistics compute(BufferedImage image) {
+        return compute(image, DEFAULT_COLORS);
+    }
+
+    /**
+     * Computes the statistics of an image.
+     * @param image the image
+     * @param colors the number of dominant colors to find
+     * @return the statistics
+     */
+    public static ImageStatistics compute(final BufferedImage image, int colors) {
+        if (image == null) {
+            throw new IllegalArgumentException("The image is null");
+        }
+        if (colors < 0) {
+            throw new IllegalArgumentException("Invalid number of colors : " + colors);
+        }
+        final Accumulator statistics = new Accumulator();
+        ParallelRows.process(ImageIOUtils.getForkJoinPool(), image.getHeight(), MIN_ROWS,
+                new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                Accumulator band = new Accumulator();
+                accumulate(image, from, to, band);
+                synchronized (statistics) {
+                    statistics.merge(band);
+                }
+            }
+        });
+        return new ImageStatistics(statistics, colors);
+    }
+
+    /**
+     * Computes the statistics of an image file, decoded subsampled when
+     * it's larger than the given size. Statistics don't need all the pixels
+     * of large images, and subsampling in the decoder saves most of the
+     * decoding.
+     * @param file the image file
+     * @param size the size of the largest side of the decoded image, 0 to
+     * decode all the pixels
+     * @param colors the number of dominant colors to find
+     * @return the statistics
+     * @throws IOException if the file cannot be read
+     */
+    public static ImageStatistics compute(File file, int size, int colors) throws IOException {
+        if (file == null) {
+            throw new IOException("The input file is null");
+        }
+        BufferedImage image = decode(ImageIO.createImageInputStream(file), size);
+        if (image == null) {
+            image = ImageIOUtils.getIOHelper().read(file);
+        }
+        return compute(image, colors);
+    }
+
+    /**
+     * Computes the statistics of an encoded image, decoded subsampled when
+     * it's larger than the given size.
+     * @param bytes the encoded image
+     * @param size the size of the largest side of the decoded image, 0 to
+     * decode all the pixels
+     * @param colors the number of dominant colors to find
+     * @return the statistics
+     * @throws IOException if the bytes cannot be decoded
+     * @see #compute(File, int, int)
+     */
+    public static ImageStatistics compute(byte[] bytes, int size, int colors) throws IOException {
+        if (bytes == null) {
+            throw new IOException("The byte array is null");
+        }
+        BufferedImage image = decode(IOHelper.createImageInputStream(bytes), size);
+        if (image == null) {
+            image = ImageIOUtils.getIOHelper().read(bytes);
+        }
+        return compute(image, colors);
+    }
+
+    /**
+     * Gets the number of pixels taken into account, the non transparent pixels.
+     * @return the number of pixels
+     */
+    public int getPixelCount() {
+        return m_count;
+    }
+
+    /**
+     * Gets the histogram of a channel.
+     * @param channel the channel
+     * @return the number of pixels of each value, from 0 to 255
+     */
+    public int[] getHistogram(Channel channel) {
+        int[] histogram = new int[256];
+        System.arraycopy(m_histograms, channel.ordinal() * 256, histogram, 0, 256);
+        return histogram;
+    }
+
+    /**
+     * Gets the mean value of a channel.
+     * @param channel the channel
+     * @return the mean, between 0 and 255, 0 if there is no pixel
+     */
+    public double getMean(Channel channel) {
+        if (m_count == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int v = 0, i = channel.ordinal() * 256; v < 256; v++, i++) {
+            sum += (long) m_histograms[i] * v;
+        }
+        return (double) sum / m_count;
+    }
+
+    /**
+     * Gets the variance of the values of a channel.
+     * @param channel the channel
+     * @return the variance, 0 if there is no pixel
+     */
+    public double getVariance(Channel channel) {
+        if (m_count == 0) {
+            return 0;
+        }
+        double mean = getMean(channel);
+        double sum = 0;
+        for (int v = 0, i = channel.ordinal() * 256; v < 256; v++, i++) {
+            sum += m_histograms[i] * (v - mean) * (v - mean);
+        }
+        return sum / m_count;
+    }
+
+    /**
+     * Gets the standard deviation of the values of a channel, a measure of
+     * the contrast for the luminance.
+     * @param channel the channel
+     * @return the standard deviation, 0 if there is no pixel
+     */
+    public double getStandardDeviation(Channel channel) {
+        return Math.sqrt(getVariance(channel));
+    }
+
+    /**
+     * Gets the dominant colors.
+     * @return the colors, the most frequent first. There may be less colors
+     * than requested when the image has few colors.
+     */
+    public List<Swatch> getDominantColors() {
+        return m_colors;
+    }
+
+    /**
+     * Decodes the image subsampled so its largest side is at least the given size.
+     * @param input the image stream, may be <code>null</code>
+     * @param size the size, 0 to decode all the pixels
+     * @return the image, <code>null</code> if Image-IO cannot read it
+     * @throws IOException if the stream cannot be read
+     */
+    private static BufferedImage decode(ImageInputStream input, final int size) throws IOException {
+        try {
+            return RegionDecoder.read(input, new RegionDecoder.Plan() {
+                public void configure(int width, int height, ImageReadParam param) {
+                    int factor = size <= 0 ? 1 : Math.max(width, height) / size;
+                    if (factor > 1) {
+                        param.setSourceSubsampling(factor, factor, 0, 0);
+                    }
+                }
+            }, ImageIOUtils.getForkJoinPool());
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the pixels of some rows. The pixels of the packed int images and
+     * of the interleaved byte images are read directly from their buffer.
+     * @param image the image
+     * @param from the first row (inclusive)
+     * @param to the last row (exclusive)
+     * @param statistics the statistics of the band
+     */
+    private static void accumulate(BufferedImage image, int from, int to, Accumulator statistics) {
+        int width = image.getWidth();
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int offset = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int alpha = type == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+            for (int y = from; y < to; y++) {
+                for (int i = offset + y * stride, end = i + width; i < end; i++) {
+                    statistics.add(data[i] | alpha);
+                }
+            }
+        } else if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR) {
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            int stride = model.getScanlineStride();
+            int pixelStride = model.getPixelStride();
+            int offset = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int[] bands = model.getBandOffsets();
+            boolean alpha = bands.length == 4;
+            for (int y = from; y < to; y++) {
+                for (int x = 0, i = offset + y * stride; x < width; x++, i += pixelStride) {
+                    int a = alpha ? data[i + bands[3]] & 0xFF : 0xFF;
+                    statistics.add(a << 24 | (data[i + bands[0]] & 0xFF) << 16 | (data[i + bands[1]] & 0xFF) << 8
+                            | data[i + bands[2]] & 0xFF);
+                }
+            }
+        } else {
+            int[] row = new int[width];
+            for (int y = from; y < to; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    statistics.add(row[x]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the dominant colors by k-means clustering of the cells of the
+     * color histogram, weighted by their number of pixels. The initial
+     * centers are chosen as by k-means++, deterministically: each one is the
+     * cell maximizing its number of pixels times its squared distance to
+     * the closest center already chosen.
+     * @param statistics the statistics of the image
+     * @param k the number of colors
+     * @param count the number of pixels
+     * @return the colors, the most frequent first
+     */
+    private static List<Swatch> cluster(Accumulator statistics, int k, int count) {
+        // The populated cells, with the mean color of their pixels
+        int cells = 0;
+        int[] weights = new int[CELLS];
+        int[] colors = new int[CELLS * 3];
+        for (int i = 0; i < CELLS; i++) {
+            int n = statistics.m_counts[i];
+            if (n != 0) {
+                weights[cells] = n;
+                for (int c = 0; c < 3; c++) {
+                    colors[cells * 3 + c] = (int) ((statistics.m_sums[i * 3 + c] + n / 2) / n);
+                }
+                cells++;
+            }
+        }
+        k = Math.min(k, cells);
+        if (k == 0) {
+            return new ArrayList<Swatch>();
+        }
+        int[] centers = new int[k * 3];
+        long[] distances = new long[cells];
+        Arrays.fill(distances, Long.MAX_VALUE);
+        for (int j = 0; j < k; j++) {
+            int best = -1;
+            double bestScore = -1;
+            for (int i = 0; i < cells; i++) {
+                if (j > 0) {
+                    distances[i] = Math.min(distances[i], distance(colors, i, centers, j - 1));
+                }
+                double score = j == 0 ? weights[i] : (double) weights[i] * distances[i];
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+            System.arraycopy(colors, best * 3, centers, j * 3, 3);
+        }
+
+        int[] assignments = new int[cells];
+        long[] sums = new long[k * 3];
+        int[] populations = new int[k];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            boolean changed = iteration == 0;
+            Arrays.fill(sums, 0);
+            Arrays.fill(populations, 0);
+            for (int i = 0; i < cells; i++) {
+                int closest = 0;
+                long closestDistance = Long.MAX_VALUE;
+                for (int j = 0; j < k; j++) {
+                    long d = distance(colors, i, centers, j);
+                    if (d < closestDistance) {
+                        closestDistance = d;
+                        closest = j;
+                    }
+                }
+                changed |= assignments[i] != closest;
+                assignments[i] = closest;
+                populations[closest] += weights[i];
+                for (int c = 0; c < 3; c++) {
+                    sums[closest * 3 + c] += (long) colors[i * 3 + c] * weights[i];
+                }
+            }
+            for (int j = 0; j < k; j++) {
+                if (populations[j] != 0) {
+                    for (int c = 0; c < 3; c++) {
+                        centers[j * 3 + c] = (int) ((sums[j * 3 + c] + populations[j] / 2) / populations[j]);
+                    }
+                }
+            }
+            if (!changed) {
+                break;
+            }
+        }
+
+        List<Swatch> swatches = new ArrayList<Swatch>(k);
+        for (int j = 0; j < k; j++) {
+            if (populations[j] != 0) {
+                int rgb = centers[j * 3] << 16 | centers[j * 3 + 1] << 8 | centers[j * 3 + 2];
+                swatches.add(new Swatch(rgb, populations[j], (double) populations[j] / count));
+            }
+        }
+        Collections.sort(swatches, new Comparator<Swatch>() {
+            public int compare(Swatch a, Swatch b) {
+                return b.m_population < a.m_population ? -1 : b.m_population == a.m_population ? 0 : 1;
+            }
+        });
+        return swatches;
+    }
+
+    /**
+     * Computes the squared distance between a color and a center.
+     */
+    private static long distance(int[] colors, int i, int[] centers, int j) {
+        long d = 0;
+        for (int c = 0; c < 3; c++) {
+            long delta = colors[i * 3 + c] - centers[j * 3 + c];
+            d += delta * delta;
+        }
+        return d;
+    }
+
+}
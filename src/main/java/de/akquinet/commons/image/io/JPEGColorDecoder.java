@@ -0,0 +1,421 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes the JPEG streams whose colors need to be managed to
+ * <code>TYPE_INT_RGB</code> images:
+ * <ul>
+ * <li>the CMYK and YCCK streams. Image-IO either fails on these streams or
+ * returns <code>TYPE_CUSTOM</code> images whose pixels are converted one by
+ * one by the color management module each time they are drawn.</li>
+ * <li>the RGB and YCbCr streams having an embedded ICC profile other than
+ * sRGB (AdobeRGB, ProPhoto...). Image-IO builds a new color conversion for
+ * each of these streams, and converts the image on a single thread.</li>
+ * </ul>
+ * Here the raw samples are read with
+ * {@link ImageReader#readRaster(int, ImageReadParam)}, and converted to sRGB
+ * in parallel with the cached lookup table of the profile, see
+ * {@link ColorProfiles}. The CMYK streams without profile are converted
+ * naively, the other streams are left to Image-IO.
+ * <p/>
+ * As Photoshop does, the samples of the CMYK streams having an Adobe
+ * segment are considered inverted.
+ */
+final class JPEGColorDecoder {
+
+    /**
+     * The minimum number of rows of the bands converted in parallel.
+     */
+    private static final int MIN_ROWS = 16;
+
+    /**
+     * The terms of the YCbCr to RGB conversion of libjpeg, by Cb or Cr
+     * sample. The green terms are on 16 bits.
+     */
+    private static final int[] CR_R = new int[256];
+
+    private static final int[] CB_B = new int[256];
+
+    private static final int[] CR_G = new int[256];
+
+    private static final int[] CB_G = new int[256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            int c = v - 128;
+            CR_R[v] = (91881 * c + 32768) >> 16;
+            CB_B[v] = (116130 * c + 32768) >> 16;
+            CR_G[v] = -46802 * c + 32768;
+            CB_G[v] = -22554 * c;
+        }
+    }
+
+    /**
+     * The JPEG header information needed to convert the samples.
+     */
+    static final class Header {
+
+        /**
+         * The Adobe color transform, <code>-1</code> if the stream has no Adobe segment.
+         */
+        private final int m_transform;
+
+        /**
+         * The embedded ICC profile, <code>null</code> if none.
+         */
+        private final byte[] m_profile;
+
+        /**
+         * The number of components of the frame.
+         */
+        private final int m_components;
+
+        /**
+         * Whether the 3 components are stored as YCbCr.
+         */
+        private final boolean m_ycc;
+
+        private Header(int transform, byte[] profile, int components, boolean ycc) {
+            m_transform = transform;
+            m_profile = profile;
+            m_components = components;
+            m_ycc = ycc;
+        }
+
+        /**
+         * Checks whether the samples are stored as YCCK.
+         * @return <code>true</code> for YCCK, <code>false</code> for CMYK
+         */
+        boolean isYcck() {
+            return m_components == 4 && m_transform == 2;
+        }
+
+        /**
+         * Checks whether the samples are inverted (0 for full ink).
+         * @return <code>true</code> if the CMYK stream has an Adobe segment
+         */
+        boolean isInverted() {
+            return m_components == 4 && m_transform >= 0;
+        }
+
+        /**
+         * Checks whether the samples are stored as YCbCr.
+         * @return <code>true</code> for YCbCr, <code>false</code> for RGB
+         */
+        boolean isYcc() {
+            return m_components == 3 && m_ycc;
+        }
+    }
+
+    private JPEGColorDecoder() {
+        // Utility class
+    }
+
+    /**
+     * Decodes the given stream if it's a JPEG stream whose colors need to be
+     * managed.
+     * @param input the stream, may be <code>null</code>
+     * @param pool the pool converting bands of rows in parallel, <code>null</code>
+     * to convert them in the current thread
+     * @return the image, <code>null</code> if the stream is not such a stream
+     * or cannot be decoded, truncated or corrupt streams being left to the
+     * other decoders
+     */
+    static BufferedImage read(ImageInputStream input, ForkJoinPool pool) {
+        if (input == null) {
+            return null;
+        }
+        Header header;
+        try {
+            header = readHeader(input);
+        } catch (IOException e) {
+            // Truncated or corrupt segment, the caller falls back to the other decoders
+            return null;
+        }
+        ColorProfiles.Table table = getTable(header);
+        if (table == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            return convert(reader.readRaster(0, null), header, table, pool);
+        } catch (IOException e) {
+            // Ignore, the caller falls back to the other decoders
+            return null;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Parses the header of the given stream. The position of the stream is
+     * restored.
+     * @param input the stream
+     * @return the header, <code>null</code> if the stream is not a JPEG stream
+     * @throws IOException if the stream cannot be read
+     */
+    static Header readHeader(ImageInputStream input) throws IOException {
+        input.mark();
+        try {
+            if (input.read() != 0xFF || input.read() != 0xD8) {
+                return null;
+            }
+            int transform = -1;
+            boolean jfif = false;
+            // The profile may be split in several segments, ordered by sequence number
+            TreeMap<Integer, byte[]> chunks = new TreeMap<Integer, byte[]>();
+            while (true) {
+                int b = input.read();
+                if (b == -1) {
+                    return null;
+                }
+                if (b != 0xFF) {
+                    continue;
+                }
+                int marker = input.read();
+                while (marker == 0xFF) {
+                    // Fill bytes
+                    marker = input.read();
+                }
+                if (marker == -1 || marker == 0xDA || marker == 0xD9) {
+                    // No frame before the scan
+                    return null;
+                }
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                    // Markers without segment
+                    continue;
+                }
+                int length = input.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (isFrame(marker)) {
+                    input.skipBytes(5);
+                    int components = input.read();
+                    boolean rgb = components == 3;
+                    for (int i = 0; i < components && rgb; i++) {
+                        rgb = input.read() == "RGB".charAt(i);
+                        input.skipBytes(2);
+                    }
+                    // As libjpeg, the JFIF and Adobe segments take precedence over the component identifiers
+                    boolean ycc = jfif || (transform >= 0 ? transform != 0 : !rgb);
+                    return new Header(transform, concat(chunks), components, ycc);
+                }
+                if (marker != 0xEE && marker != 0xE2 && marker != 0xE0) {
+                    input.skipBytes(length);
+                    continue;
+                }
+                byte[] segment = new byte[length];
+                input.readFully(segment);
+                if (marker == 0xE0 && startsWith(segment, "JFIF\0")) {
+                    jfif = true;
+                } else if (marker == 0xEE && startsWith(segment, "Adobe") && length >= 12) {
+                    transform = segment[11] & 0xFF;
+                } else if (marker == 0xE2 && startsWith(segment, "ICC_PROFILE\0") && length > 14) {
+                    byte[] chunk = new byte[length - 14];
+                    System.arraycopy(segment, 14, chunk, 0, chunk.length);
+                    chunks.put(segment[12] & 0xFF, chunk);
+                }
+            }
+        } finally {
+            input.reset();
+        }
+    }
+
+    /**
+     * Gets the table converting the samples of a stream.
+     * @param header the header of the stream, may be <code>null</code>
+     * @return the table, <code>null</code> if the stream is better decoded by
+     * Image-IO: not a JPEG stream, gray stream, RGB stream without profile
+     * or with an sRGB or invalid profile
+     */
+    static ColorProfiles.Table getTable(Header header) {
+        if (header == null || (header.m_components != 3 && header.m_components != 4)) {
+            return null;
+        }
+        ColorProfiles.Table table = null;
+        if (header.m_profile != null) {
+            table = ColorProfiles.getTable(header.m_profile);
+            if (table != null && table.getComponents() != header.m_components) {
+                table = null;
+            }
+        }
+        if (header.m_components == 4) {
+            return table == null ? ColorProfiles.getNaiveCmykTable() : table;
+        }
+        return table == null || table.isIdentity() ? null : table;
+    }
+
+    /**
+     * Converts the raw samples of a stream to sRGB.
+     * @param raster the samples, with 3 or 4 bands of bytes
+     * @param header the header of the stream
+     * @param table the table of the stream, see {@link #getTable(Header)}
+     * @param pool the pool converting bands of rows in parallel, <code>null</code>
+     * to convert them in the current thread
+     * @return the image
+     */
+    static BufferedImage convert(final Raster raster, final Header header, final ColorProfiles.Table table,
+            ForkJoinPool pool) {
+        final int width = raster.getWidth();
+        final int bands = header.m_components;
+        final BufferedImage image = new BufferedImage(width, raster.getHeight(), BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        ParallelRows.process(pool, raster.getHeight(), MIN_ROWS,
+                new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                byte[] samples = new byte[width * bands];
+                int[] row = new int[width * bands];
+                for (int y = from; y < to; y++) {
+                    // Rasters decoded by Image-IO copy their rows at once
+                    raster.getDataElements(raster.getMinX(), raster.getMinY() + y, width, 1, samples);
+                    if (bands == 3) {
+                        convertRgbRow(table, samples, header.isYcc(), pixels, y * width);
+                        continue;
+                    }
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = samples[i] & 0xFF;
+                    }
+                    if (header.isYcck()) {
+                        // The YCbCr components encode the complement of the C, M and Y components
+                        toRgb(row);
+                        for (int i = 0; i < row.length; i += 4) {
+                            row[i] = 255 - row[i];
+                            row[i + 1] = 255 - row[i + 1];
+                            row[i + 2] = 255 - row[i + 2];
+                        }
+                    }
+                    if (header.isInverted()) {
+                        for (int i = 0; i < row.length; i++) {
+                            row[i] = 255 - row[i];
+                        }
+                    }
+                    convertCmykRow(table, row, pixels, y * width);
+                }
+            }
+        });
+        return image;
+    }
+
+    /**
+     * Converts the YCbCr components of YCCK pixels to RGB, as libjpeg does.
+     * The K component is kept.
+     * @param row the samples, converted in place
+     */
+    private static void toRgb(int[] row) {
+        for (int i = 0; i < row.length; i += 4) {
+            int y = row[i];
+            int cb = row[i + 1];
+            int cr = row[i + 2];
+            row[i] = clamp(y + CR_R[cr]);
+            row[i + 1] = clamp(y + ((CB_G[cb] + CR_G[cr]) >> 16));
+            row[i + 2] = clamp(y + CB_B[cb]);
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /**
+     * Converts a row of CMYK pixels (0 for no ink) with the table.
+     * @param table the table
+     * @param row the CMYK samples
+     * @param pixels the RGB pixels
+     * @param offset the index of the first pixel of the row
+     */
+    private static void convertCmykRow(ColorProfiles.Table table, int[] row, int[] pixels, int offset) {
+        int previous = -1;
+        int rgb = 0;
+        for (int i = 0, x = offset; i < row.length; i += 4, x++) {
+            int cmyk = row[i] << 24 | row[i + 1] << 16 | row[i + 2] << 8 | row[i + 3];
+            if (cmyk != previous) {
+                // Runs of identical pixels are frequent in print documents
+                previous = cmyk;
+                rgb = table.convert(row[i], row[i + 1], row[i + 2], row[i + 3]);
+            }
+            pixels[x] = rgb;
+        }
+    }
+
+    /**
+     * Converts a row of RGB or YCbCr pixels with the table.
+     * @param table the table
+     * @param samples the samples
+     * @param ycc whether the samples are stored as YCbCr
+     * @param pixels the sRGB pixels
+     * @param offset the index of the first pixel of the row
+     */
+    private static void convertRgbRow(ColorProfiles.Table table, byte[] samples, boolean ycc, int[] pixels,
+            int offset) {
+        int previous = -1;
+        int rgb = 0;
+        for (int i = 0, x = offset; i < samples.length; i += 3, x++) {
+            int c0 = samples[i] & 0xFF;
+            int c1 = samples[i + 1] & 0xFF;
+            int c2 = samples[i + 2] & 0xFF;
+            int color = c0 << 16 | c1 << 8 | c2;
+            if (color != previous) {
+                previous = color;
+                if (ycc) {
+                    rgb = table.convert(clamp(c0 + CR_R[c2]), clamp(c0 + ((CB_G[c1] + CR_G[c2]) >> 16)),
+                            clamp(c0 + CB_B[c1]));
+                } else {
+                    rgb = table.convert(c0, c1, c2);
+                }
+            }
+            pixels[x] = rgb;
+        }
+    }
+
+    private static boolean isFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static boolean startsWith(byte[] segment, String prefix) {
+        if (segment.length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (segment[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Concatenates the chunks of the ICC profile.
+     * @param chunks the chunks, by sequence number
+     * @return the profile, <code>null</code> if there is no chunk
+     */
+    private static byte[] concat(TreeMap<Integer, byte[]> chunks) {
+        if (chunks.isEmpty()) {
+            return null;
+        }
+        ByteArrayOutputStream profile = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks.values()) {
+            profile.write(chunk, 0, chunk.length);
+        }
+        return profile.toByteArray();
+    }
+
+}
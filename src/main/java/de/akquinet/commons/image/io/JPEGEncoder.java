@@ -0,0 +1,485 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+import org.w3c.dom.NodeList;
+
+/**
+ * Encodes images to JPEG with fixed options, reusing the Image-IO writers.
+ * Looking up a writer, creating its parameters and output stream, and
+ * letting the garbage collector release the native memory of the writer
+ * costs about as much as encoding a thumbnail, so the encoder keeps a pool
+ * of sessions: a writer configured once, writing into a growable byte array
+ * which is reused by the following encodings. The encoded bytes are then
+ * copied into a new array, a stream, or a buffer given by the caller.
+ * <p/>
+ * The encoder is thread safe: each encoding takes an idle session, or
+ * creates one, and gives it back when done. At most one idle session per
+ * processor is kept, the others are disposed. {@link ConversionHelper}
+ * keeps an encoder per quality, see {@link ConversionHelper#getJPEGEncoder(float)}.
+ */
+public final class JPEGEncoder {
+
+    /**
+     * The chroma subsampling of the color images.
+     */
+    public enum Subsampling {
+        /**
+         * The default subsampling of the Image-IO writer, 4:2:0 for the color images.
+         */
+        DEFAULT(0, 0),
+        /**
+         * No subsampling: the best quality, and the largest files.
+         */
+        S444(1, 1),
+        /**
+         * The chroma is subsampled horizontally.
+         */
+        S422(2, 1),
+        /**
+         * The chroma is subsampled horizontally and vertically.
+         */
+        S420(2, 2);
+
+        /**
+         * The sampling factors of the luminance, the chroma having factors of 1.
+         */
+        private final int m_horizontal;
+
+        private final int m_vertical;
+
+        private Subsampling(int horizontal, int vertical) {
+            m_horizontal = horizontal;
+            m_vertical = vertical;
+        }
+    }
+
+    /**
+     * The name of the native metadata format of the Image-IO JPEG writer.
+     */
+    private static final String NATIVE_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    /**
+     * The maximum size of the buffers kept by the idle sessions, larger
+     * buffers being dropped when their session is given back to the pool.
+     */
+    private static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The initial size of the buffers.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * An in-memory image output stream which can be rewound and reused.
+     */
+    private static final class BufferOutputStream extends ImageOutputStreamImpl {
+
+        private byte[] m_buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        /**
+         * The number of bytes written.
+         */
+        private int m_length;
+
+        /**
+         * Empties the stream.
+         */
+        void rewind() {
+            m_length = 0;
+            streamPos = 0;
+            flushedPos = 0;
+            bitOffset = 0;
+        }
+
+        /**
+         * Drops the buffer if it's larger than {@link JPEGEncoder#MAX_BUFFER_SIZE}.
+         */
+        void trim() {
+            if (m_buffer.length > MAX_BUFFER_SIZE) {
+                m_buffer = new byte[INITIAL_BUFFER_SIZE];
+                m_length = 0;
+            }
+        }
+
+        byte[] getBuffer() {
+            return m_buffer;
+        }
+
+        int getLength() {
+            return m_length;
+        }
+
+        @Override
+        public long length() {
+            return m_length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= m_length) {
+                return -1;
+            }
+            return m_buffer[(int) streamPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (len == 0) {
+                return 0;
+            }
+            int count = (int) Math.min(len, m_length - streamPos);
+            if (count <= 0) {
+                return -1;
+            }
+            System.arraycopy(m_buffer, (int) streamPos, b, off, count);
+            streamPos += count;
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + 1);
+            m_buffer[(int) streamPos++] = (byte) b;
+            m_length = Math.max(m_length, (int) streamPos);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + len);
+            System.arraycopy(b, off, m_buffer, (int) streamPos, len);
+            streamPos += len;
+            m_length = Math.max(m_length, (int) streamPos);
+        }
+
+        private void ensureCapacity(long capacity) throws IOException {
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IOException("Cannot encode the image : the JPEG stream is too large");
+            }
+            if (capacity > m_buffer.length) {
+                m_buffer = Arrays.copyOf(m_buffer, (int) Math.min(Math.max(capacity, 2L * m_buffer.length),
+                        Integer.MAX_VALUE - 8));
+            }
+        }
+    }
+
+    /**
+     * A writer configured with the options of the encoder, and its output.
+     */
+    private final class Session {
+
+        private final ImageWriter m_writer;
+
+        private final ImageWriteParam m_param;
+
+        private final BufferOutputStream m_stream = new BufferOutputStream();
+
+        /**
+         * The type of the last encoded image, <code>null</code> if none.
+         */
+        private ImageTypeSpecifier m_type;
+
+        /**
+         * The metadata setting the subsampling of the last type of image,
+         * <code>null</code> to use the default metadata.
+         */
+        private IIOMetadata m_metadata;
+
+        Session() throws IOException {
+            m_writer = ImageIOUtils.getIOHelper().getWriterForFormat(Format.JPEG);
+            if (m_writer == null) {
+                throw new IOException("Cannot write image - unsupported format " + Format.JPEG);
+            }
+            JPEGImageWriteParam param = new JPEGImageWriteParam(Locale.getDefault());
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(m_quality);
+            if (m_progressive) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            param.setOptimizeHuffmanTables(m_optimizeHuffman);
+            m_param = param;
+        }
+
+        /**
+         * Encodes the image in the stream of the session.
+         */
+        void encode(BufferedImage image) throws IOException {
+            m_stream.rewind();
+            m_writer.setOutput(m_stream);
+            m_writer.write(null, new IIOImage(image, null, getMetadata(image)), m_param);
+            m_stream.flush();
+        }
+
+        /**
+         * Gets the metadata setting the subsampling of the image, computed
+         * once per type of image.
+         */
+        private IIOMetadata getMetadata(BufferedImage image) throws IOException {
+            if (m_subsampling == Subsampling.DEFAULT) {
+                return null;
+            }
+            ImageTypeSpecifier type = new ImageTypeSpecifier(image);
+            if (!type.equals(m_type)) {
+                m_metadata = createMetadata(type);
+                m_type = type;
+            }
+            return m_metadata;
+        }
+
+        private IIOMetadata createMetadata(ImageTypeSpecifier type) throws IOException {
+            IIOMetadata metadata = m_writer.getDefaultImageMetadata(type, m_param);
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(NATIVE_FORMAT);
+            NodeList components = root.getElementsByTagName("componentSpec");
+            if (root.getElementsByTagName("app0JFIF").getLength() == 0 || components.getLength() != 3) {
+                // Not a YCbCr image, the components are not subsampled
+                return null;
+            }
+            for (int i = 0; i < components.getLength(); i++) {
+                IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+                component.setAttribute("HsamplingFactor", Integer.toString(i == 0 ? m_subsampling.m_horizontal : 1));
+                component.setAttribute("VsamplingFactor", Integer.toString(i == 0 ? m_subsampling.m_vertical : 1));
+            }
+            metadata.setFromTree(NATIVE_FORMAT, root);
+            return metadata;
+        }
+
+        void dispose() {
+            m_writer.dispose();
+            IOHelper.closeQuietly(m_stream);
+        }
+    }
+
+    private final float m_quality;
+
+    private final Subsampling m_subsampling;
+
+    private final boolean m_progressive;
+
+    private final boolean m_optimizeHuffman;
+
+    /**
+     * The idle sessions, the most recently used last.
+     */
+    private final LinkedList<Session> m_idle = new LinkedList<Session>();
+
+    /**
+     * Whether the encoder was closed, in which case the sessions are
+     * disposed instead of being pooled. Guarded by the idle sessions.
+     */
+    private boolean m_closed;
+
+    /**
+     * Creates an encoder using the default subsampling, without progressive
+     * encoding nor optimized Huffman tables, as
+     * {@link ConversionHelper#convertImageToJPEGBytes(BufferedImage, float)}.
+     * @param quality the quality, between 0 and 1
+     */
+    public JPEGEncoder(float quality) {
+        this(quality, Subsampling.DEFAULT, false, false);
+    }
+
+    /**
+     * Creates an encoder.
+     * @param quality the quality, between 0 and 1
+     * @param subsampling the chroma subsampling of the color images
+     * @param progressive <code>true</code> to encode progressive JPEG
+     * files, typically smaller for large images and displayed progressively
+     * by the browsers
+     * @param optimizeHuffman <code>true</code> to compute Huffman tables
+     * optimized for each image, which makes the files a few percent smaller
+     * but the encoding slower
+     */
+    public JPEGEncoder(float quality, Subsampling subsampling, boolean progressive, boolean optimizeHuffman) {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("The quality must be between 0 and 1 : " + quality);
+        }
+        if (subsampling == null) {
+            throw new IllegalArgumentException("The subsampling cannot be null");
+        }
+        m_quality = quality;
+        m_subsampling = subsampling;
+        m_progressive = progressive;
+        m_optimizeHuffman = optimizeHuffman;
+    }
+
+    /**
+     * Gets the quality.
+     * @return the quality, between 0 and 1
+     */
+    public float getQuality() {
+        return m_quality;
+    }
+
+    /**
+     * Gets the chroma subsampling.
+     * @return the subsampling
+     */
+    public Subsampling getSubsampling() {
+        return m_subsampling;
+    }
+
+    /**
+     * Checks whether the images are encoded as progressive JPEG files.
+     * @return <code>true</code> if the encoding is progressive
+     */
+    public boolean isProgressive() {
+        return m_progressive;
+    }
+
+    /**
+     * Checks whether the Huffman tables are optimized for each image.
+     * @return <code>true</code> if the Huffman tables are optimized
+     */
+    public boolean isOptimizeHuffman() {
+        return m_optimizeHuffman;
+    }
+
+    /**
+     * Encodes the given image.
+     * @param image the image
+     * @return the JPEG bytes
+     * @throws IOException if the image cannot be encoded
+     */
+    public byte[] encode(BufferedImage image) throws IOException {
+        Session session = encodeInSession(image);
+        try {
+            return Arrays.copyOf(session.m_stream.getBuffer(), session.m_stream.getLength());
+        } finally {
+            release(session);
+        }
+    }
+
+    /**
+     * Encodes the given image to the given stream. The stream is not closed.
+     * @param image the image
+     * @param out the output stream
+     * @throws IOException if the image cannot be encoded or written
+     */
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        Session session = encodeInSession(image);
+        try {
+            out.write(session.m_stream.getBuffer(), 0, session.m_stream.getLength());
+        } finally {
+            release(session);
+        }
+    }
+
+    /**
+     * Encodes the given image into the given buffer, so a caller encoding
+     * many images can reuse its buffer.
+     * @param image the image
+     * @param buffer the buffer
+     * @param offset the position of the JPEG bytes in the buffer
+     * @return the number of JPEG bytes
+     * @throws IOException if the image cannot be encoded, or if the JPEG
+     * bytes don't fit in the buffer
+     */
+    public int encode(BufferedImage image, byte[] buffer, int offset) throws IOException {
+        if (offset < 0 || offset > buffer.length) {
+            throw new IllegalArgumentException("Invalid offset : " + offset);
+        }
+        Session session = encodeInSession(image);
+        try {
+            int length = session.m_stream.getLength();
+            if (length > buffer.length - offset) {
+                throw new IOException("Cannot encode the image : the buffer is too small, " + length
+                        + " bytes needed");
+            }
+            System.arraycopy(session.m_stream.getBuffer(), 0, buffer, offset, length);
+            return length;
+        } finally {
+            release(session);
+        }
+    }
+
+    /**
+     * Disposes the writers of the idle sessions. The encoder can still be
+     * used, new sessions are created as needed.
+     */
+    public void clear() {
+        LinkedList<Session> idle;
+        synchronized (m_idle) {
+            idle = new LinkedList<Session>(m_idle);
+            m_idle.clear();
+        }
+        for (Session session : idle) {
+            session.dispose();
+        }
+    }
+
+    /**
+     * Disposes the writers of the idle sessions, and of the sessions in use
+     * once their encoding is done. The encoder can still be used, but each
+     * encoding then creates and disposes its own session.
+     */
+    public void close() {
+        synchronized (m_idle) {
+            m_closed = true;
+        }
+        clear();
+    }
+
+    /**
+     * Encodes the image in an idle or new session. A session failing to
+     * encode is disposed, as its writer may be left in any state.
+     * @return the session, holding the JPEG bytes
+     */
+    private Session encodeInSession(BufferedImage image) throws IOException {
+        if (image == null) {
+            throw new IOException("The image is null");
+        }
+        Session session;
+        synchronized (m_idle) {
+            session = m_idle.pollLast();
+        }
+        if (session == null) {
+            session = new Session();
+        }
+        boolean encoded = false;
+        try {
+            session.encode(image);
+            encoded = true;
+        } finally {
+            if (!encoded) {
+                session.dispose();
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Gives a session back to the pool, or disposes it if enough sessions
+     * are idle or if the encoder is closed.
+     */
+    private void release(Session session) {
+        session.m_stream.trim();
+        synchronized (m_idle) {
+            if (!m_closed && m_idle.size() < Runtime.getRuntime().availableProcessors()) {
+                m_idle.addLast(session);
+                return;
+            }
+        }
+        session.dispose();
+    }
+
+}
@@ -0,0 +1,1241 @@
+package de.akquinet.commons.image.io;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class applying lossless transformations (rotations by a multiple of 90
+ * degrees, flips) on JPEG images. The transformations are applied on the
+ * quantized DCT coefficients, so the image is neither decoded nor re-encoded:
+ * there is no quality loss and it is much faster than a pixel transformation.
+ * <p/>
+ * A transformation moving the right or bottom edge of the image to the left or
+ * top requires the image dimension along this edge to be a multiple of the MCU
+ * size (8 or 16 pixels). Otherwise, the partial MCUs on this edge are dropped
+ * (like <code>jpegtran -trim</code>), so the resulting image may be a few pixels
+ * smaller than the original.
+ * <p/>
+ * Only baseline and extended sequential Huffman JPEG files (8 bits) are supported.
+ * APPn and COM segments (EXIF, IPTC, XMP, ICC profile...) are copied as they are.
+ * The Huffman tables are optimized for the transformed image.
+ */
+public class JPEGTransformer {
+
+    /**
+     * The supported transformations.
+     */
+    public enum Transform {
+        /**
+         * Mirror around the vertical axis.
+         */
+        FLIP_HORIZONTAL(false, true, false),
+        /**
+         * Mirror around the horizontal axis.
+         */
+        FLIP_VERTICAL(false, false, true),
+        /**
+         * Rotation by 90 degrees clockwise.
+         */
+        ROTATE_90(true, true, false),
+        /**
+         * Rotation by 180 degrees.
+         */
+        ROTATE_180(false, true, true),
+        /**
+         * Rotation by 270 degrees clockwise.
+         */
+        ROTATE_270(true, false, true),
+        /**
+         * Mirror around the top-left to bottom-right diagonal.
+         */
+        TRANSPOSE(true, false, false),
+        /**
+         * Mirror around the top-right to bottom-left diagonal.
+         */
+        TRANSVERSE(true, true, true);
+
+        /**
+         * Whether the transformation transposes the image first.
+         */
+        private final boolean m_transpose;
+
+        /**
+         * Whether the (transposed) image is then mirrored horizontally.
+         */
+        private final boolean m_mirrorX;
+
+        /**
+         * Whether the (transposed) image is then mirrored vertically.
+         */
+        private final boolean m_mirrorY;
+
+        private Transform(boolean transpose, boolean mirrorX, boolean mirrorY) {
+            m_transpose = transpose;
+            m_mirrorX = mirrorX;
+            m_mirrorY = mirrorY;
+        }
+
+        /**
+         * Checks whether the transformation transposes the image (swaps
+         * the rows and the columns) before mirroring it.
+         * @return <code>true</code> if the image is transposed
+         */
+        public boolean isTransposing() {
+            return m_transpose;
+        }
+
+        /**
+         * Checks whether the transformation mirrors the (transposed) image
+         * around the vertical axis.
+         * @return <code>true</code> if the image is mirrored horizontally
+         */
+        public boolean isMirroringX() {
+            return m_mirrorX;
+        }
+
+        /**
+         * Checks whether the transformation mirrors the (transposed) image
+         * around the horizontal axis.
+         * @return <code>true</code> if the image is mirrored vertically
+         */
+        public boolean isMirroringY() {
+            return m_mirrorY;
+        }
+
+        /**
+         * Gets the rotation for the given angle.
+         * @param angle the angle in degree, must be a multiple of 90
+         * @return the rotation, <code>null</code> if the angle is a multiple of 360
+         */
+        public static Transform getRotation(int angle) {
+            if (angle % 90 != 0) {
+                throw new IllegalArgumentException("Cannot rotate losslessly : the angle "
+                        + angle + " is not a multiple of 90");
+            }
+            switch (((angle % 360) + 360) % 360) {
+                case 90:
+                    return ROTATE_90;
+                case 180:
+                    return ROTATE_180;
+                case 270:
+                    return ROTATE_270;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Gets the transformation turning an image with the given EXIF
+         * orientation into an image to display as it is (orientation 1).
+         * @param orientation the EXIF orientation code, from 1 to 8
+         * @return the transformation, <code>null</code> if there is nothing
+         * to do (orientation 1 or unknown orientation)
+         */
+        public static Transform getTransformForExifOrientation(int orientation) {
+            switch (orientation) {
+                case 2:
+                    return FLIP_HORIZONTAL;
+                case 3:
+                    return ROTATE_180;
+                case 4:
+                    return FLIP_VERTICAL;
+                case 5:
+                    return TRANSPOSE;
+                case 6:
+                    return ROTATE_90;
+                case 7:
+                    return TRANSVERSE;
+                case 8:
+                    return ROTATE_270;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Natural order index of the coefficients in zig-zag order.
+     */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int DHT = 0xC4;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+    private static final int APP0 = 0xE0;
+    private static final int APP15 = 0xEF;
+    private static final int COM = 0xFE;
+
+    /**
+     * The maximum number of blocks in an interleaved MCU.
+     */
+    private static final int MAX_BLOCKS_IN_MCU = 10;
+
+    /**
+     * Applies the EXIF orientation of the given JPEG stream losslessly, and
+     * rewrites the orientation tag to 1 (normal), so the image is displayed the
+     * same way by readers ignoring the EXIF orientation.
+     * @param jpeg the JPEG stream
+     * @return the normalized JPEG stream, the given stream if it has no
+     * orientation to apply
+     * @throws IOException if the JPEG stream is not supported or invalid
+     */
+    public byte[] normalizeOrientation(byte[] jpeg) throws IOException {
+        Transform transform = Transform.getTransformForExifOrientation(ExifOrientation.read(jpeg));
+        if (transform == null) {
+            return jpeg;
+        }
+        // The EXIF segment is copied as it is, so the tag can be rewritten in place
+        byte[] result = transform(jpeg, transform);
+        ExifOrientation.reset(result);
+        return result;
+    }
+
+    /**
+     * Transforms the given image. The image must be backed by an original JPEG
+     * file or byte array.
+     * @param image the image
+     * @param transform the transformation
+     * @return the transformed image
+     * @throws IOException if the image is not backed by an original JPEG
+     * stream, or if the JPEG stream is not supported
+     */
+    public Image transform(Image image, Transform transform) throws IOException {
+        byte[] bytes;
+        if (image.hasOriginalFile(Format.JPEG)) {
+            bytes = FileUtils.readFileToByteArray(image.getFile());
+        } else if (image.hasOriginalBytes(Format.JPEG)) {
+            bytes = image.getRawBytes(Format.JPEG);
+        } else {
+            throw new IOException("Cannot transform the image losslessly : "
+                    + "the image is not backed by an original JPEG stream");
+        }
+        return new Image(transform(bytes, transform));
+    }
+
+    /**
+     * Transforms the given JPEG file. The input and output files may be the same.
+     * @param in the JPEG file
+     * @param out the output file
+     * @param transform the transformation
+     * @throws IOException if the file cannot be read or written, or if the
+     * JPEG stream is not supported
+     */
+    public void transform(File in, File out, Transform transform) throws IOException {
+        byte[] bytes = transform(FileUtils.readFileToByteArray(in), transform);
+        File tmp = File.createTempFile("." + out.getName(), ".tmp", out.getAbsoluteFile().getParentFile());
+        try {
+            FileUtils.writeByteArrayToFile(tmp, bytes);
+            IOHelper.replaceFile(tmp, out);
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Transforms the given JPEG stream.
+     * @param jpeg the JPEG stream
+     * @param transform the transformation
+     * @return the transformed JPEG stream
+     * @throws IOException if the JPEG stream is not supported or invalid
+     */
+    public byte[] transform(byte[] jpeg, Transform transform) throws IOException {
+        if (transform == null) {
+            throw new IllegalArgumentException("Cannot transform the image : the transformation cannot be null");
+        }
+        try {
+            Decoder decoder = new Decoder(jpeg);
+            decoder.decode();
+            return new Encoder(decoder, transform).encode();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Cannot transform the image : truncated or invalid JPEG stream", e);
+        }
+    }
+
+    /**
+     * A component of the image, with its quantized DCT coefficients.
+     */
+    private static final class Component {
+        int m_id;
+        int m_h;
+        int m_v;
+        int m_quantizationTable;
+        int m_dcTable;
+        int m_acTable;
+        /**
+         * The number of blocks per line / column covering the component.
+         */
+        int m_width;
+        int m_height;
+        /**
+         * The number of blocks per line / column, padded to fill complete MCUs.
+         */
+        int m_blocksX;
+        int m_blocksY;
+        /**
+         * The coefficients, 64 per block in natural order, blocks in raster order.
+         */
+        short[] m_coefficients;
+    }
+
+    /**
+     * Reads the frame and the quantized DCT coefficients of a JPEG stream.
+     */
+    private static final class Decoder {
+        final byte[] m_data;
+        int m_pos;
+        int m_marker;
+        int m_width;
+        int m_height;
+        int m_maxH;
+        int m_maxV;
+        int m_restartInterval;
+        Component[] m_components;
+        final int[][] m_quantizationTables = new int[4][];
+        final HuffmanDecoder[] m_dcTables = new HuffmanDecoder[4];
+        final HuffmanDecoder[] m_acTables = new HuffmanDecoder[4];
+        /**
+         * The APPn and COM segments, including their marker and length.
+         */
+        final List<byte[]> m_segments = new ArrayList<byte[]>();
+
+        Decoder(byte[] data) {
+            m_data = data;
+        }
+
+        void decode() throws IOException {
+            if (m_data.length < 4 || (m_data[0] & 0xFF) != 0xFF || (m_data[1] & 0xFF) != SOI) {
+                throw new IOException("Cannot transform the image : not a JPEG stream");
+            }
+            m_pos = 2;
+            while (true) {
+                int marker = readMarker();
+                if (marker == EOI) {
+                    break;
+                }
+                int length = readUnsignedShort(m_pos);
+                int start = m_pos + 2;
+                int end = m_pos + length;
+                if ((marker >= APP0 && marker <= APP15) || marker == COM) {
+                    byte[] segment = new byte[length + 2];
+                    System.arraycopy(m_data, m_pos - 2, segment, 0, segment.length);
+                    m_segments.add(segment);
+                } else if (marker == DQT) {
+                    readQuantizationTables(start, end);
+                } else if (marker == DHT) {
+                    readHuffmanTables(start, end);
+                } else if (marker == DRI) {
+                    m_restartInterval = readUnsignedShort(start);
+                } else if (marker == SOF0 || marker == SOF1) {
+                    m_marker = marker;
+                    readFrame(start);
+                } else if (marker == SOS) {
+                    m_pos = end;
+                    readScan(start);
+                    continue;
+                } else if (marker >= 0xC2 && marker <= 0xCF) {
+                    throw new IOException("Cannot transform the image : only baseline and extended "
+                            + "sequential Huffman JPEG are supported (SOF" + (marker - SOF0) + ")");
+                }
+                // Other markers are ignored
+                m_pos = end;
+            }
+            if (m_components == null) {
+                throw new IOException("Cannot transform the image : no frame found");
+            }
+        }
+
+        int readMarker() throws IOException {
+            // Skip anything up to the next marker, including fill bytes
+            while (m_pos + 1 < m_data.length) {
+                if ((m_data[m_pos] & 0xFF) == 0xFF) {
+                    int marker = m_data[m_pos + 1] & 0xFF;
+                    if (marker != 0 && marker != 0xFF && (marker < 0xD0 || marker > 0xD7)) {
+                        m_pos += 2;
+                        return marker;
+                    }
+                }
+                m_pos++;
+            }
+            // Missing EOI, accept truncated trailing data
+            return EOI;
+        }
+
+        int readUnsignedShort(int pos) {
+            return ((m_data[pos] & 0xFF) << 8) | (m_data[pos + 1] & 0xFF);
+        }
+
+        void readQuantizationTables(int pos, int end) throws IOException {
+            while (pos < end) {
+                int precision = (m_data[pos] & 0xFF) >> 4;
+                int id = m_data[pos] & 0x0F;
+                pos++;
+                if (id > 3) {
+                    throw new IOException("Cannot transform the image : invalid quantization table " + id);
+                }
+                int[] table = new int[64];
+                for (int i = 0; i < 64; i++) {
+                    if (precision == 0) {
+                        table[ZIGZAG[i]] = m_data[pos++] & 0xFF;
+                    } else {
+                        table[ZIGZAG[i]] = readUnsignedShort(pos);
+                        pos += 2;
+                    }
+                }
+                m_quantizationTables[id] = table;
+            }
+        }
+
+        void readHuffmanTables(int pos, int end) throws IOException {
+            while (pos < end) {
+                int tableClass = (m_data[pos] & 0xFF) >> 4;
+                int id = m_data[pos] & 0x0F;
+                pos++;
+                if (id > 3) {
+                    throw new IOException("Cannot transform the image : invalid Huffman table " + id);
+                }
+                int[] bits = new int[17];
+                int count = 0;
+                for (int i = 1; i <= 16; i++) {
+                    bits[i] = m_data[pos++] & 0xFF;
+                    count += bits[i];
+                }
+                int[] values = new int[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = m_data[pos++] & 0xFF;
+                }
+                if (tableClass == 0) {
+                    m_dcTables[id] = new HuffmanDecoder(bits, values);
+                } else {
+                    m_acTables[id] = new HuffmanDecoder(bits, values);
+                }
+            }
+        }
+
+        void readFrame(int pos) throws IOException {
+            int precision = m_data[pos] & 0xFF;
+            if (precision != 8) {
+                throw new IOException("Cannot transform the image : only 8 bits precision is supported");
+            }
+            m_height = readUnsignedShort(pos + 1);
+            m_width = readUnsignedShort(pos + 3);
+            if (m_height == 0 || m_width == 0) {
+                throw new IOException("Cannot transform the image : invalid dimension");
+            }
+            int count = m_data[pos + 5] & 0xFF;
+            m_components = new Component[count];
+            pos += 6;
+            for (int i = 0; i < count; i++) {
+                Component component = new Component();
+                component.m_id = m_data[pos] & 0xFF;
+                component.m_h = count == 1 ? 1 : (m_data[pos + 1] & 0xFF) >> 4;
+                component.m_v = count == 1 ? 1 : m_data[pos + 1] & 0x0F;
+                component.m_quantizationTable = m_data[pos + 2] & 0xFF;
+                if (component.m_h < 1 || component.m_h > 4 || component.m_v < 1 || component.m_v > 4) {
+                    throw new IOException("Cannot transform the image : invalid sampling factors");
+                }
+                m_maxH = Math.max(m_maxH, component.m_h);
+                m_maxV = Math.max(m_maxV, component.m_v);
+                m_components[i] = component;
+                pos += 3;
+            }
+            int mcusX = ceil(m_width, 8 * m_maxH);
+            int mcusY = ceil(m_height, 8 * m_maxV);
+            for (Component component : m_components) {
+                component.m_width = ceil(ceil(m_width * component.m_h, m_maxH), 8);
+                component.m_height = ceil(ceil(m_height * component.m_v, m_maxV), 8);
+                component.m_blocksX = mcusX * component.m_h;
+                component.m_blocksY = mcusY * component.m_v;
+                component.m_coefficients = new short[component.m_blocksX * component.m_blocksY * 64];
+            }
+        }
+
+        void readScan(int pos) throws IOException {
+            if (m_components == null) {
+                throw new IOException("Cannot transform the image : scan before frame");
+            }
+            int count = m_data[pos] & 0xFF;
+            Component[] components = new Component[count];
+            pos++;
+            for (int i = 0; i < count; i++) {
+                int id = m_data[pos] & 0xFF;
+                for (Component component : m_components) {
+                    if (component.m_id == id) {
+                        components[i] = component;
+                    }
+                }
+                if (components[i] == null) {
+                    throw new IOException("Cannot transform the image : unknown component " + id);
+                }
+                components[i].m_dcTable = (m_data[pos + 1] & 0xFF) >> 4;
+                components[i].m_acTable = m_data[pos + 1] & 0x0F;
+                if (m_dcTables[components[i].m_dcTable] == null || m_acTables[components[i].m_acTable] == null) {
+                    throw new IOException("Cannot transform the image : missing Huffman table");
+                }
+                pos += 2;
+            }
+
+            BitReader reader = new BitReader(m_data, m_pos);
+            int[] predictions = new int[count];
+            int mcus;
+            int mcusX;
+            if (count == 1) {
+                // Non interleaved, the MCU is one block
+                mcusX = components[0].m_width;
+                mcus = mcusX * components[0].m_height;
+            } else {
+                mcusX = ceil(m_width, 8 * m_maxH);
+                mcus = mcusX * ceil(m_height, 8 * m_maxV);
+            }
+
+            for (int mcu = 0; mcu < mcus; mcu++) {
+                if (m_restartInterval > 0 && mcu > 0 && mcu % m_restartInterval == 0) {
+                    reader.restart();
+                    for (int i = 0; i < count; i++) {
+                        predictions[i] = 0;
+                    }
+                }
+                int mcuX = mcu % mcusX;
+                int mcuY = mcu / mcusX;
+                if (count == 1) {
+                    predictions[0] = readBlock(reader, components[0], mcuX, mcuY, predictions[0]);
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        Component component = components[i];
+                        for (int y = 0; y < component.m_v; y++) {
+                            for (int x = 0; x < component.m_h; x++) {
+                                predictions[i] = readBlock(reader, component,
+                                        mcuX * component.m_h + x, mcuY * component.m_v + y, predictions[i]);
+                            }
+                        }
+                    }
+                }
+            }
+            m_pos = reader.getPosition();
+        }
+
+        int readBlock(BitReader reader, Component component, int x, int y, int prediction)
+                throws IOException {
+            short[] coefficients = component.m_coefficients;
+            int offset = (y * component.m_blocksX + x) * 64;
+            int s = m_dcTables[component.m_dcTable].decode(reader);
+            if (s > 0) {
+                prediction += extend(reader.readBits(s), s);
+            }
+            coefficients[offset] = (short) prediction;
+            HuffmanDecoder ac = m_acTables[component.m_acTable];
+            for (int k = 1; k < 64; k++) {
+                int rs = ac.decode(reader);
+                int r = rs >> 4;
+                s = rs & 0x0F;
+                if (s == 0) {
+                    if (r != 15) {
+                        // End of block
+                        break;
+                    }
+                    k += 15;
+                } else {
+                    k += r;
+                    if (k > 63) {
+                        throw new IOException("Cannot transform the image : invalid AC coefficient index");
+                    }
+                    coefficients[offset + ZIGZAG[k]] = (short) extend(reader.readBits(s), s);
+                }
+            }
+            return prediction;
+        }
+    }
+
+    /**
+     * Writes the transformed JPEG stream.
+     */
+    private static final class Encoder {
+        final Decoder m_decoder;
+        final Transform m_transform;
+        int m_width;
+        int m_height;
+        int m_maxH;
+        int m_maxV;
+        Component[] m_components;
+        final ByteArray m_out = new ByteArray();
+
+        Encoder(Decoder decoder, Transform transform) throws IOException {
+            m_decoder = decoder;
+            m_transform = transform;
+            prepare();
+        }
+
+        /**
+         * Computes the geometry of the transformed image and its coefficients.
+         * @throws IOException if the image is too small to be transformed
+         */
+        void prepare() throws IOException {
+            boolean transpose = m_transform.m_transpose;
+            m_width = transpose ? m_decoder.m_height : m_decoder.m_width;
+            m_height = transpose ? m_decoder.m_width : m_decoder.m_height;
+            m_maxH = transpose ? m_decoder.m_maxV : m_decoder.m_maxH;
+            m_maxV = transpose ? m_decoder.m_maxH : m_decoder.m_maxV;
+            // Drop the partial MCUs moving to the left or top edge
+            if (m_transform.m_mirrorX) {
+                m_width = m_width / (8 * m_maxH) * 8 * m_maxH;
+            }
+            if (m_transform.m_mirrorY) {
+                m_height = m_height / (8 * m_maxV) * 8 * m_maxV;
+            }
+            if (m_width == 0 || m_height == 0) {
+                throw new IOException("Cannot transform the image : the image is smaller than a MCU");
+            }
+
+            int mcusX = ceil(m_width, 8 * m_maxH);
+            int mcusY = ceil(m_height, 8 * m_maxV);
+            m_components = new Component[m_decoder.m_components.length];
+            for (int i = 0; i < m_components.length; i++) {
+                Component source = m_decoder.m_components[i];
+                Component component = new Component();
+                component.m_id = source.m_id;
+                component.m_quantizationTable = source.m_quantizationTable;
+                component.m_h = transpose ? source.m_v : source.m_h;
+                component.m_v = transpose ? source.m_h : source.m_v;
+                component.m_width = ceil(ceil(m_width * component.m_h, m_maxH), 8);
+                component.m_height = ceil(ceil(m_height * component.m_v, m_maxV), 8);
+                component.m_blocksX = mcusX * component.m_h;
+                component.m_blocksY = mcusY * component.m_v;
+                // Luminance uses the tables 0, chrominance the tables 1
+                component.m_dcTable = i == 0 ? 0 : 1;
+                component.m_acTable = component.m_dcTable;
+                component.m_coefficients = transform(source, component);
+                m_components[i] = component;
+            }
+        }
+
+        /**
+         * Computes the coefficients of the transformed component.
+         * @param source the source component
+         * @param target the transformed component, without coefficients
+         * @return the coefficients of the transformed component
+         */
+        short[] transform(Component source, Component target) {
+            boolean transpose = m_transform.m_transpose;
+            boolean mirrorX = m_transform.m_mirrorX;
+            boolean mirrorY = m_transform.m_mirrorY;
+
+            // Coefficient mapping and signs, computed once for all blocks
+            int[] index = new int[64];
+            int[] sign = new int[64];
+            for (int v = 0; v < 8; v++) {
+                for (int u = 0; u < 8; u++) {
+                    index[v * 8 + u] = transpose ? u * 8 + v : v * 8 + u;
+                    boolean negate = (mirrorX && (u & 1) == 1) ^ (mirrorY && (v & 1) == 1);
+                    sign[v * 8 + u] = negate ? -1 : 1;
+                }
+            }
+
+            short[] in = source.m_coefficients;
+            short[] out = new short[target.m_blocksX * target.m_blocksY * 64];
+            for (int y = 0; y < target.m_blocksY; y++) {
+                for (int x = 0; x < target.m_blocksX; x++) {
+                    int tx = mirrorX ? target.m_blocksX - 1 - x : x;
+                    int ty = mirrorY ? target.m_blocksY - 1 - y : y;
+                    int sx = transpose ? ty : tx;
+                    int sy = transpose ? tx : ty;
+                    if (sx >= source.m_blocksX || sy >= source.m_blocksY) {
+                        // Padding block, left empty
+                        continue;
+                    }
+                    int from = (sy * source.m_blocksX + sx) * 64;
+                    int to = (y * target.m_blocksX + x) * 64;
+                    for (int k = 0; k < 64; k++) {
+                        out[to + k] = (short) (sign[k] * in[from + index[k]]);
+                    }
+                }
+            }
+            return out;
+        }
+
+        byte[] encode() throws IOException {
+            m_out.writeMarker(SOI);
+            for (byte[] segment : m_decoder.m_segments) {
+                m_out.write(segment, 0, segment.length);
+            }
+            writeQuantizationTables();
+            writeFrame();
+
+            // Interleave all components in one scan if possible
+            int blocksInMcu = 0;
+            for (Component component : m_components) {
+                blocksInMcu += component.m_h * component.m_v;
+            }
+            List<Component[]> scans = new ArrayList<Component[]>();
+            if (m_components.length == 1 || blocksInMcu > MAX_BLOCKS_IN_MCU) {
+                for (Component component : m_components) {
+                    scans.add(new Component[] {component});
+                }
+            } else {
+                scans.add(m_components);
+            }
+
+            // First pass to compute optimal Huffman tables
+            int tables = m_components.length == 1 ? 1 : 2;
+            long[][] dcFrequencies = new long[tables][257];
+            long[][] acFrequencies = new long[tables][257];
+            for (Component[] scan : scans) {
+                encodeScan(scan, null, null, null, dcFrequencies, acFrequencies);
+            }
+            HuffmanEncoder[] dc = new HuffmanEncoder[tables];
+            HuffmanEncoder[] ac = new HuffmanEncoder[tables];
+            for (int i = 0; i < tables; i++) {
+                dc[i] = HuffmanEncoder.optimal(dcFrequencies[i]);
+                ac[i] = HuffmanEncoder.optimal(acFrequencies[i]);
+                writeHuffmanTable(0, i, dc[i]);
+                writeHuffmanTable(1, i, ac[i]);
+            }
+
+            // Second pass
+            for (Component[] scan : scans) {
+                writeScanHeader(scan);
+                BitWriter writer = new BitWriter(m_out);
+                encodeScan(scan, writer, dc, ac, null, null);
+                writer.flush();
+            }
+            m_out.writeMarker(EOI);
+            return m_out.toByteArray();
+        }
+
+        void writeQuantizationTables() throws IOException {
+            boolean transpose = m_transform.m_transpose;
+            for (int id = 0; id < 4; id++) {
+                int[] table = m_decoder.m_quantizationTables[id];
+                if (table == null) {
+                    continue;
+                }
+                boolean used = false;
+                for (Component component : m_components) {
+                    used |= component.m_quantizationTable == id;
+                }
+                if (!used) {
+                    continue;
+                }
+                boolean extended = false;
+                for (int value : table) {
+                    extended |= value > 255;
+                }
+                m_out.writeMarker(DQT);
+                m_out.writeShort(2 + 1 + (extended ? 128 : 64));
+                m_out.write(((extended ? 1 : 0) << 4) | id);
+                for (int i = 0; i < 64; i++) {
+                    int k = ZIGZAG[i];
+                    // The quantization table is transposed with the coefficients
+                    int value = transpose ? table[(k % 8) * 8 + k / 8] : table[k];
+                    if (extended) {
+                        m_out.writeShort(value);
+                    } else {
+                        m_out.write(value);
+                    }
+                }
+            }
+        }
+
+        void writeFrame() {
+            m_out.writeMarker(m_decoder.m_marker);
+            m_out.writeShort(8 + 3 * m_components.length);
+            m_out.write(8);
+            m_out.writeShort(m_height);
+            m_out.writeShort(m_width);
+            m_out.write(m_components.length);
+            for (Component component : m_components) {
+                m_out.write(component.m_id);
+                m_out.write((component.m_h << 4) | component.m_v);
+                m_out.write(component.m_quantizationTable);
+            }
+        }
+
+        void writeHuffmanTable(int tableClass, int id, HuffmanEncoder table) {
+            m_out.writeMarker(DHT);
+            m_out.writeShort(2 + 1 + 16 + table.m_values.length);
+            m_out.write((tableClass << 4) | id);
+            for (int i = 1; i <= 16; i++) {
+                m_out.write(table.m_bits[i]);
+            }
+            for (int value : table.m_values) {
+                m_out.write(value);
+            }
+        }
+
+        void writeScanHeader(Component[] scan) {
+            m_out.writeMarker(SOS);
+            m_out.writeShort(6 + 2 * scan.length);
+            m_out.write(scan.length);
+            for (Component component : scan) {
+                m_out.write(component.m_id);
+                m_out.write((component.m_dcTable << 4) | component.m_acTable);
+            }
+            // Spectral selection and successive approximation for sequential JPEG
+            m_out.write(0);
+            m_out.write(63);
+            m_out.write(0);
+        }
+
+        /**
+         * Encodes a scan, or only counts the symbol frequencies if no writer is given.
+         */
+        void encodeScan(Component[] scan, BitWriter writer, HuffmanEncoder[] dc, HuffmanEncoder[] ac,
+                        long[][] dcFrequencies, long[][] acFrequencies) {
+            int[] predictions = new int[scan.length];
+            if (scan.length == 1) {
+                Component component = scan[0];
+                for (int y = 0; y < component.m_height; y++) {
+                    for (int x = 0; x < component.m_width; x++) {
+                        predictions[0] = encodeBlock(component, x, y, predictions[0],
+                                writer, dc, ac, dcFrequencies, acFrequencies);
+                    }
+                }
+                return;
+            }
+            int mcusX = ceil(m_width, 8 * m_maxH);
+            int mcusY = ceil(m_height, 8 * m_maxV);
+            for (int mcuY = 0; mcuY < mcusY; mcuY++) {
+                for (int mcuX = 0; mcuX < mcusX; mcuX++) {
+                    for (int i = 0; i < scan.length; i++) {
+                        Component component = scan[i];
+                        for (int y = 0; y < component.m_v; y++) {
+                            for (int x = 0; x < component.m_h; x++) {
+                                predictions[i] = encodeBlock(component,
+                                        mcuX * component.m_h + x, mcuY * component.m_v + y, predictions[i],
+                                        writer, dc, ac, dcFrequencies, acFrequencies);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        int encodeBlock(Component component, int x, int y, int prediction, BitWriter writer,
+                        HuffmanEncoder[] dc, HuffmanEncoder[] ac,
+                        long[][] dcFrequencies, long[][] acFrequencies) {
+            short[] coefficients = component.m_coefficients;
+            int offset = (y * component.m_blocksX + x) * 64;
+            int table = component.m_dcTable;
+
+            int value = coefficients[offset];
+            int diff = value - prediction;
+            int size = bitLength(diff);
+            if (writer == null) {
+                dcFrequencies[table][size]++;
+            } else {
+                dc[table].write(writer, size);
+                if (size > 0) {
+                    writer.write(diff < 0 ? diff - 1 : diff, size);
+                }
+            }
+
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int coefficient = coefficients[offset + ZIGZAG[k]];
+                if (coefficient == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    // Zero run length (16 zeros)
+                    if (writer == null) {
+                        acFrequencies[table][0xF0]++;
+                    } else {
+                        ac[table].write(writer, 0xF0);
+                    }
+                    run -= 16;
+                }
+                size = bitLength(coefficient);
+                int symbol = (run << 4) | size;
+                if (writer == null) {
+                    acFrequencies[table][symbol]++;
+                } else {
+                    ac[table].write(writer, symbol);
+                    writer.write(coefficient < 0 ? coefficient - 1 : coefficient, size);
+                }
+                run = 0;
+            }
+            if (run > 0) {
+                // End of block
+                if (writer == null) {
+                    acFrequencies[table][0]++;
+                } else {
+                    ac[table].write(writer, 0);
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Huffman table used to decode symbols.
+     */
+    private static final class HuffmanDecoder {
+        /**
+         * Lookup table for codes up to 8 bits: (length << 8) | symbol, 0 if longer.
+         */
+        final int[] m_lookup = new int[256];
+        final int[] m_maxCode = new int[18];
+        final int[] m_minCode = new int[17];
+        final int[] m_valuePointer = new int[17];
+        final int[] m_values;
+
+        HuffmanDecoder(int[] bits, int[] values) {
+            m_values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                m_valuePointer[length] = k;
+                m_minCode[length] = code;
+                for (int i = 0; i < bits[length]; i++) {
+                    if (length <= 8) {
+                        int first = code << (8 - length);
+                        for (int j = 0; j < 1 << (8 - length); j++) {
+                            m_lookup[first + j] = (length << 8) | values[k];
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                m_maxCode[length] = bits[length] == 0 ? -1 : code - 1;
+                code <<= 1;
+            }
+            m_maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        int decode(BitReader reader) throws IOException {
+            int entry = m_lookup[reader.peekBits(8)];
+            if (entry != 0) {
+                reader.skipBits(entry >> 8);
+                return entry & 0xFF;
+            }
+            int code = reader.readBits(1);
+            int length = 1;
+            while (code > m_maxCode[length]) {
+                code = (code << 1) | reader.readBits(1);
+                length++;
+                if (length > 16) {
+                    throw new IOException("Cannot transform the image : invalid Huffman code");
+                }
+            }
+            return m_values[m_valuePointer[length] + code - m_minCode[length]];
+        }
+    }
+
+    /**
+     * Huffman table used to encode symbols.
+     */
+    private static final class HuffmanEncoder {
+        final int[] m_bits = new int[17];
+        int[] m_values;
+        final int[] m_codes = new int[256];
+        final int[] m_sizes = new int[256];
+
+        /**
+         * Computes the optimal table for the given symbol frequencies,
+         * limiting the code lengths to 16 bits (JPEG specification, K.2).
+         * @param frequencies the frequencies of the 256 symbols, the last
+         * entry is reserved
+         * @return the Huffman table
+         */
+        static HuffmanEncoder optimal(long[] frequencies) {
+            long[] frequency = frequencies.clone();
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            for (int i = 0; i < others.length; i++) {
+                others[i] = -1;
+            }
+            // Reserved symbol, so no code consists only of 1 bits
+            frequency[256] = 1;
+
+            while (true) {
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequency[i] != 0 && frequency[i] <= v) {
+                        v = frequency[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequency[i] != 0 && frequency[i] <= v && i != c1) {
+                        v = frequency[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                frequency[c1] += frequency[c2];
+                frequency[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            int[] bits = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    bits[codeSize[i]]++;
+                }
+            }
+            // Limit the code lengths to 16 bits
+            for (int i = 32; i > 16; i--) {
+                while (bits[i] > 0) {
+                    int j = i - 2;
+                    while (bits[j] == 0) {
+                        j--;
+                    }
+                    bits[i] -= 2;
+                    bits[i - 1]++;
+                    bits[j + 1] += 2;
+                    bits[j]--;
+                }
+            }
+            // Remove the reserved symbol, which has the longest code
+            int i = 16;
+            while (bits[i] == 0) {
+                i--;
+            }
+            bits[i]--;
+
+            HuffmanEncoder encoder = new HuffmanEncoder();
+            List<Integer> values = new ArrayList<Integer>();
+            for (int length = 1; length <= 32; length++) {
+                for (int symbol = 0; symbol < 256; symbol++) {
+                    if (codeSize[symbol] == length) {
+                        values.add(symbol);
+                    }
+                }
+            }
+            encoder.m_values = new int[values.size()];
+            for (int k = 0; k < encoder.m_values.length; k++) {
+                encoder.m_values[k] = values.get(k);
+            }
+            System.arraycopy(bits, 0, encoder.m_bits, 0, 17);
+
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int n = 0; n < encoder.m_bits[length]; n++) {
+                    encoder.m_codes[encoder.m_values[k]] = code;
+                    encoder.m_sizes[encoder.m_values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+            return encoder;
+        }
+
+        void write(BitWriter writer, int symbol) {
+            writer.write(m_codes[symbol], m_sizes[symbol]);
+        }
+    }
+
+    /**
+     * Reads bits from entropy coded data, handling byte stuffing and markers.
+     */
+    private static final class BitReader {
+        final byte[] m_data;
+        int m_pos;
+        long m_buffer;
+        int m_count;
+        boolean m_marker;
+
+        BitReader(byte[] data, int pos) {
+            m_data = data;
+            m_pos = pos;
+        }
+
+        void fill() {
+            while (m_count <= 48) {
+                int b = 0;
+                if (!m_marker && m_pos < m_data.length) {
+                    b = m_data[m_pos] & 0xFF;
+                    if (b == 0xFF) {
+                        int next = m_pos + 1 < m_data.length ? m_data[m_pos + 1] & 0xFF : -1;
+                        if (next == 0) {
+                            m_pos += 2;
+                        } else {
+                            // Marker, feed zeros from now on
+                            m_marker = true;
+                            b = 0;
+                        }
+                    } else {
+                        m_pos++;
+                    }
+                } else {
+                    m_marker = true;
+                }
+                m_buffer = (m_buffer << 8) | b;
+                m_count += 8;
+            }
+        }
+
+        int peekBits(int n) {
+            if (m_count < n) {
+                fill();
+            }
+            return (int) (m_buffer >>> (m_count - n)) & ((1 << n) - 1);
+        }
+
+        void skipBits(int n) {
+            m_count -= n;
+        }
+
+        int readBits(int n) {
+            int value = peekBits(n);
+            m_count -= n;
+            return value;
+        }
+
+        /**
+         * Skips the restart marker and resets the reader.
+         * @throws IOException if the restart marker is missing
+         */
+        void restart() throws IOException {
+            m_buffer = 0;
+            m_count = 0;
+            m_marker = false;
+            while (m_pos < m_data.length && (m_data[m_pos] & 0xFF) == 0xFF
+                    && m_pos + 1 < m_data.length && (m_data[m_pos + 1] & 0xFF) == 0xFF) {
+                // Fill bytes
+                m_pos++;
+            }
+            if (m_pos + 1 >= m_data.length || (m_data[m_pos] & 0xFF) != 0xFF
+                    || (m_data[m_pos + 1] & 0xF8) != 0xD0) {
+                throw new IOException("Cannot transform the image : restart marker expected");
+            }
+            m_pos += 2;
+        }
+
+        int getPosition() {
+            return m_pos;
+        }
+    }
+
+    /**
+     * Writes bits of entropy coded data, stuffing 0xFF bytes.
+     */
+    private static final class BitWriter {
+        final ByteArray m_out;
+        int m_buffer;
+        int m_count;
+
+        BitWriter(ByteArray out) {
+            m_out = out;
+        }
+
+        void write(int value, int size) {
+            m_buffer = (m_buffer << size) | (value & ((1 << size) - 1));
+            m_count += size;
+            while (m_count >= 8) {
+                int b = (m_buffer >> (m_count - 8)) & 0xFF;
+                m_out.write(b);
+                if (b == 0xFF) {
+                    m_out.write(0);
+                }
+                m_count -= 8;
+            }
+        }
+
+        void flush() {
+            if (m_count > 0) {
+                // Pad with 1 bits
+                write(0x7F, 8 - m_count);
+            }
+        }
+    }
+
+    /**
+     * Growable byte array, not synchronized.
+     */
+    private static final class ByteArray {
+        byte[] m_bytes = new byte[64 * 1024];
+        int m_size;
+
+        void write(int b) {
+            if (m_size == m_bytes.length) {
+                grow(1);
+            }
+            m_bytes[m_size++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            if (m_size + length > m_bytes.length) {
+                grow(length);
+            }
+            System.arraycopy(bytes, offset, m_bytes, m_size, length);
+            m_size += length;
+        }
+
+        void writeShort(int value) {
+            write(value >> 8);
+            write(value);
+        }
+
+        void writeMarker(int marker) {
+            write(0xFF);
+            write(marker);
+        }
+
+        void grow(int needed) {
+            byte[] bytes = new byte[Math.max(m_bytes.length * 2, m_size + needed)];
+            System.arraycopy(m_bytes, 0, bytes, 0, m_size);
+            m_bytes = bytes;
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[m_size];
+            System.arraycopy(m_bytes, 0, bytes, 0, m_size);
+            return bytes;
+        }
+    }
+
+    /**
+     * Extends the given value read on <code>size</code> bits to a signed value.
+     */
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    /**
+     * Gets the number of bits needed to encode the magnitude of the given value.
+     */
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+
+    private static int ceil(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
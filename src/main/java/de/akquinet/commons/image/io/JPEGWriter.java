@@ -11,6 +11,16 @@ import org.apache.commons.imaging.formats.jpeg.iptc.IptcParser;
 import org.apache.commons.imaging.formats.jpeg.iptc.PhotoshopApp13Data;
 import org.apache.commons.imaging.formats.jpeg.xmp.JpegRewriter;
 
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -23,19 +33,29 @@ import java.util.List;
  * Class responsible to write JPEG files including EXIF and IPTC metadata.
  * IPTC metadata are rewritten every time.
  * We can't use buffered image because EXIF metadata and IPTC are not included.
+ * Images not backed by an original JPEG stream are encoded once, the metadata
+ * segments being emitted by the encoder directly.
  */
 public class JPEGWriter extends JpegRewriter {
 
     /**
-     * Pieces.
+     * Pieces, <code>null</code> if the image is not backed by an original
+     * JPEG stream and so must be encoded.
      */
     private List<JFIFPiece> m_pieces;
 
     /**
-     * The image.
+     * The image, <code>null</code> if a file was loaded without
+     * decoding it.
      */
     private Image m_image;
 
+    /**
+     * The metadata to write when a file was loaded without decoding it,
+     * <code>null</code> to use the metadata of the loaded image.
+     */
+    private ExtendedImageMetadata m_metadata;
+
     /**
      * Replaces the IPTC metadata from the image. The whole App13 segment is replaced.
      * @param newIPTC the new IPTC metadata
@@ -45,7 +65,22 @@ public class JPEGWriter extends JpegRewriter {
     public void replaceIPTCMetadata(PhotoshopApp13Data newIPTC) throws IOException, ImageWriteException {
         List newPieces = removePhotoshopApp13Segments(m_pieces);
 
+        JFIFPieceSegment newSegment = new JFIFPieceSegment(
+                JPEG_APP13_Marker, writeApp13Segment(newIPTC));
 
+        m_pieces = insertAfterLastAppSegments(newPieces, Arrays
+                .asList(newSegment));
+
+    }
+
+    /**
+     * Creates the App13 segment data for the given IPTC metadata.
+     * @param newIPTC the IPTC metadata
+     * @return the segment data
+     * @throws IOException if the segment cannot be written
+     * @throws ImageWriteException if the segment cannot be written
+     */
+    private byte[] writeApp13Segment(PhotoshopApp13Data newIPTC) throws IOException, ImageWriteException {
         // discard old iptc blocks.
         List newBlocks = newIPTC.getNonIptcBlocks();
         byte[] newBlockBytes = new IptcParser().writeIPTCBlock(newIPTC
@@ -59,14 +94,7 @@ public class JPEGWriter extends JpegRewriter {
 
         newIPTC = new PhotoshopApp13Data(newIPTC.getRecords(), newBlocks);
 
-        byte segmentBytes[] = new IptcParser()
-                .writePhotoshopApp13Segment(newIPTC);
-        JFIFPieceSegment newSegment = new JFIFPieceSegment(
-                JPEG_APP13_Marker, segmentBytes);
-
-        m_pieces = insertAfterLastAppSegments(newPieces, Arrays
-                .asList(newSegment));
-
+        return new IptcParser().writePhotoshopApp13Segment(newIPTC);
     }
 
     /**
@@ -77,18 +105,23 @@ public class JPEGWriter extends JpegRewriter {
      */
     public void write(OutputStream fos) throws IOException {
         try {
-            PhotoshopApp13Data data = m_image.getMetadata().getExtendedMetadata().getPhotoshopApp13Data();
+            if (m_pieces == null) {
+                writeEncoded(fos);
+                return;
+            }
+
+            PhotoshopApp13Data data = getExtendedMetadata().getPhotoshopApp13Data();
             if (data != null) {
                 replaceIPTCMetadata(data);
             }
 
             // Write the XMP segment too, if any
-            String xmp = m_image.getMetadata().getXmp();
+            String xmp = getXmp();
             if (xmp != null) {
                 List newPieces = new ArrayList();
                 m_pieces = removeXmpSegments(m_pieces);
                 int segmentSize = Math.min(xmp.getBytes().length, MAX_SEGMENT_SIZE);
-                byte segmentData[] = writeXmpSegment(m_image.getMetadata().getXmp().getBytes(), 0, segmentSize);
+                byte segmentData[] = writeXmpSegment(xmp.getBytes(), 0, segmentSize);
                 newPieces.add(new JFIFPieceSegment(JPEG_APP1_Marker, segmentData));
                 m_pieces = insertAfterLastAppSegments(m_pieces, newPieces);
             }
@@ -107,12 +140,17 @@ public class JPEGWriter extends JpegRewriter {
     public void load(Image origin) throws IOException {
         File file = origin.getFile();
         ByteSource source = null;
-        if (file != null  && origin.getFormat() == Format.JPEG) {
+        m_image = origin;
+        m_metadata = null;
+        if (origin.hasOriginalFile(Format.JPEG)) {
             source = new ByteSourceFile(file);
-        } else {
+        } else if (origin.hasOriginalBytes(Format.JPEG)) {
             source = new ByteSourceArray(origin.getRawBytes(Format.JPEG));
+        } else {
+            // No JPEG stream to rewrite, the image is encoded on write
+            m_pieces = null;
+            return;
         }
-        m_image = origin;
         try {
             m_pieces = analyzeJFIF(source).pieces;
         } catch (ImageReadException e) {
@@ -120,6 +158,48 @@ public class JPEGWriter extends JpegRewriter {
         }
     }
 
+    /**
+     * Initializes the writer with the given JPEG file, without decoding it.
+     * The given metadata are written instead of the image metadata, all
+     * other segments are copied as they are.
+     * @param file the JPEG file
+     * @param metadata the metadata to write
+     * @throws IOException if the file cannot be read
+     */
+    public void load(File file, ExtendedImageMetadata metadata) throws IOException {
+        m_image = null;
+        m_metadata = metadata;
+        try {
+            m_pieces = analyzeJFIF(new ByteSourceFile(file)).pieces;
+        } catch (ImageReadException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Gets the metadata to write.
+     * @return the metadata given when loading a file, or the metadata of
+     * the loaded image
+     */
+    private ExtendedImageMetadata getExtendedMetadata() {
+        if (m_metadata != null) {
+            return m_metadata;
+        }
+        return m_image.getMetadata().getExtendedMetadata();
+    }
+
+    /**
+     * Gets the XMP XML snippet to write.
+     * @return the XMP XML snippet, <code>null</code> if none
+     * @throws IOException if the XMP metadata cannot be generated
+     */
+    private String getXmp() throws IOException {
+        if (m_metadata != null) {
+            return m_metadata.getXMPMetadata();
+        }
+        return m_image.getMetadata().getXmp();
+    }
+
     /**
      * Reads a Jpeg image, replaces the XMP XML and writes the result to a
      * stream.
@@ -156,6 +236,57 @@ public class JPEGWriter extends JpegRewriter {
         writeSegments(os, pieces);
     }
 
+    /**
+     * Encodes the buffered image of the loaded image and writes the result
+     * to the given stream. The IPTC and XMP segments are emitted by the
+     * encoder right after the JFIF header, so the image is encoded only once
+     * and never parsed back.
+     * @param fos the output stream, not closed by this method
+     * @throws IOException if the image cannot be encoded
+     * @throws ImageWriteException if the metadata segments cannot be written
+     */
+    private void writeEncoded(OutputStream fos) throws IOException, ImageWriteException {
+        List<JFIFPieceSegment> segments = new ArrayList<JFIFPieceSegment>();
+        PhotoshopApp13Data data = getExtendedMetadata().getPhotoshopApp13Data();
+        if (data != null) {
+            segments.add(new JFIFPieceSegment(JPEG_APP13_Marker, writeApp13Segment(data)));
+        }
+        String xmp = getXmp();
+        if (xmp != null) {
+            byte[] xmpBytes = xmp.getBytes();
+            int segmentSize = Math.min(xmpBytes.length, MAX_SEGMENT_SIZE);
+            segments.add(new JFIFPieceSegment(JPEG_APP1_Marker, writeXmpSegment(xmpBytes, 0, segmentSize)));
+        }
+
+        BufferedImage image = m_image.getBufferedImage();
+        ImageWriter writer = ImageIOUtils.getIOHelper().getWriterForFormat(Format.JPEG);
+        if (writer == null) {
+            throw new IOException("Cannot write image - unsupported format " + Format.JPEG);
+        }
+        ImageOutputStream stream = ImageIO.createImageOutputStream(fos);
+        try {
+            writer.setOutput(stream);
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), null);
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+            // Unknown markers placed first in the sequence are written just after the APP0 (JFIF) segment
+            Node sequence = root.getElementsByTagName("markerSequence").item(0);
+            Node first = sequence.getFirstChild();
+            for (JFIFPieceSegment segment : segments) {
+                IIOMetadataNode marker = new IIOMetadataNode("unknown");
+                marker.setAttribute("MarkerTag", Integer.toString(segment.marker & 0xFF));
+                marker.setUserObject(segment.segmentData);
+                sequence.insertBefore(marker, first);
+            }
+            metadata.setFromTree(format, root);
+            writer.write(null, new IIOImage(image, null, metadata), null);
+            stream.flush();
+        } finally {
+            writer.dispose();
+            IOHelper.closeQuietly(stream);
+        }
+    }
+
     private byte[] writeXmpSegment(byte xmpXmlData[], int start, int length)
             throws IOException
     {
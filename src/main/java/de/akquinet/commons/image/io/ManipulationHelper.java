@@ -1,29 +1,127 @@
 package de.akquinet.commons.image.io;
 
-import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import de.akquinet.commons.image.io.JPEGTransformer.Transform;
 
 /**
  * Class providing method to manipulate image.
  */
 public class ManipulationHelper {
 
+    /**
+     * The size of the tiles used to move the pixels when transposing an image,
+     * so both the read and written lines stay in the CPU cache.
+     */
+    private static final int TILE_SIZE = 64;
+
+    /**
+     * The normalizer converting the images to flip and rotate to fast image types.
+     */
+    private RasterNormalizer m_normalizer = RasterNormalizer.DEFAULT;
+
+    /**
+     * The pool used to process large images in parallel, <code>null</code>
+     * to process them in the current thread.
+     */
+    private ForkJoinPool m_pool = ImageIOUtils.getForkJoinPool();
+
+    /**
+     * The pool of the resulting images, <code>null</code> to allocate them.
+     */
+    private ImagePool m_imagePool;
+
+    /**
+     * Sets the normalizer converting the images before flipping or rotating
+     * them with {@link ManipulationHelper#horizontalflip(BufferedImage)},
+     * {@link ManipulationHelper#verticalflip(BufferedImage)} and
+     * {@link ManipulationHelper#rotate(BufferedImage, int)}. The resulting
+     * images have the type of the normalized images. By default,
+     * {@link RasterNormalizer#DEFAULT} is used.
+     * @param normalizer the normalizer
+     */
+    public void setRasterNormalizer(RasterNormalizer normalizer) {
+        if (normalizer == null) {
+            throw new IllegalArgumentException("The normalizer cannot be null");
+        }
+        m_normalizer = normalizer;
+    }
+
+    /**
+     * Sets the pool used to process large images in parallel with
+     * {@link ManipulationHelper#makeTranslucent(BufferedImage, float)},
+     * {@link ManipulationHelper#makeColorTransparent(BufferedImage, Color, int)},
+     * {@link ManipulationHelper#transform(BufferedImage, Transform)}, the
+     * right angle rotations, the blur and sharpen filters and the
+     * watermarks. The image is split in bands of rows processed
+     * concurrently. By default, the pool returned by {@link ImageIOUtils#getForkJoinPool()} is used.
+     * @param pool the pool, <code>null</code> to process images in the current thread
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
+    /**
+     * Sets the pool providing the resulting images of the flips, rotations,
+     * transformations and pixel operations. The resulting images can be
+     * released by the caller, see {@link ImagePool#wrap(BufferedImage)}.
+     * By default, images are allocated.
+     * @param pool the pool, <code>null</code> to allocate the images
+     */
+    public void setImagePool(ImagePool pool) {
+        m_imagePool = pool;
+    }
+
+    /**
+     * Gets the pool used to process large images in parallel.
+     * @return the pool, <code>null</code> if images are processed in the current thread
+     */
+    ForkJoinPool getForkJoinPool() {
+        return m_pool;
+    }
+
+    /**
+     * Gets the pool providing the resulting images.
+     * @return the pool, <code>null</code> if images are allocated
+     */
+    ImagePool getImagePool() {
+        return m_imagePool;
+    }
+
     /**
      * Makes the given {@link BufferedImage} translucent using the given transparency.
+     * The resulting image has the <code>TYPE_INT_ARGB_PRE</code> type.
      * @param img the image
      * @param transparancy the transparency between 0 and 1.
      * @return the translucent image
      */
     public BufferedImage makeTranslucent(BufferedImage img, float transparancy) {
-        BufferedImage aimg = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TRANSLUCENT);
-        Graphics2D g = aimg.createGraphics();
-        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, transparancy));
-        g.drawImage(img, null, 0, 0);
-        g.dispose();
-        return aimg;
+        if (transparancy < 0 || transparancy > 1) {
+            throw new IllegalArgumentException("The transparency must be between 0 and 1 : " + transparancy);
+        }
+        final int factor = Math.round(transparancy * 255);
+        // The colors are premultiplied, so all the components are multiplied by the factor
+        return PackedRows.apply(img, BufferedImage.TYPE_INT_ARGB_PRE, m_pool, m_imagePool,
+                new PackedRows.Kernel() {
+            public void process(int[] pixels, int offset, int length) {
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    pixels[i] = PixelKernels.scale(pixels[i], factor);
+                }
+            }
+        });
     }
 
     /**
@@ -43,22 +141,35 @@ public class ManipulationHelper {
      * @param image the image
      * @param color the color to replace by transparent
      * @return the transparent image
+     * @see ManipulationHelper#makeColorTransparent(BufferedImage, Color, int)
      */
     public BufferedImage makeColorTransparent(BufferedImage image, Color color) {
-        BufferedImage dimg = new BufferedImage(image.getWidth(), image.getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = dimg.createGraphics();
-        g.setComposite(AlphaComposite.Src);
-        g.drawImage(image, null, 0, 0);
-        g.dispose();
-        for(int i = 0; i < dimg.getHeight(); i++) {
-            for(int j = 0; j < dimg.getWidth(); j++) {
-                if(dimg.getRGB(j, i) == color.getRGB()) {
-                dimg.setRGB(j, i, 0x8F1C1C);
-                }
-            }
+        return makeColorTransparent(image, color, 0);
+    }
+
+    /**
+     * Makes transparent all the pixels of the given image close to the given
+     * color: the pixels whose red, green and blue components all differ by at
+     * most the given tolerance from the ones of the color. The transparent
+     * pixels keep their color, only their alpha component is cleared. The
+     * resulting image has the <code>TYPE_INT_ARGB</code> type.
+     * @param image the image
+     * @param color the color to replace by transparent, its alpha component is ignored
+     * @param tolerance the maximum difference of each component, from 0 (exact match) to 255
+     * @return the transparent image
+     */
+    public BufferedImage makeColorTransparent(BufferedImage image, Color color, final int tolerance) {
+        if (tolerance < 0 || tolerance > 255) {
+            throw new IllegalArgumentException("The tolerance must be between 0 and 255 : " + tolerance);
         }
-        return dimg;
+        final int rgb = color.getRGB();
+        final PixelKernels kernels = PixelKernels.getInstance();
+        return PackedRows.apply(image, BufferedImage.TYPE_INT_ARGB, m_pool, m_imagePool,
+                new PackedRows.Kernel() {
+            public void process(int[] pixels, int offset, int length) {
+                kernels.keyColor(pixels, offset, length, rgb, tolerance);
+            }
+        });
     }
 
     /**
@@ -73,15 +184,188 @@ public class ManipulationHelper {
         return new Image(dimg, image.getFormat());
     }
 
+    /**
+     * Makes transparent all the pixels of the given image close to the given color.
+     * @param image the image
+     * @param color the color to replace by transparent
+     * @param tolerance the maximum difference of each component, from 0 (exact match) to 255
+     * @return the transparent image
+     * @throws IOException if the new image cannot be created
+     * @see ManipulationHelper#makeColorTransparent(BufferedImage, Color, int)
+     */
+    public Image makeColorTransparent(Image image, Color color, int tolerance) throws IOException {
+        BufferedImage dimg = makeColorTransparent(image.getBufferedImage(), color, tolerance);
+        return new Image(dimg, image.getFormat());
+    }
+
+    /**
+     * Blurs the given image with a Gaussian kernel, cut at 3 standard
+     * deviations. The kernel is separable, so the image is blurred
+     * horizontally then vertically. The resulting image has the
+     * <code>TYPE_INT_ARGB_PRE</code> type if the image has alpha,
+     * <code>TYPE_INT_RGB</code> otherwise.
+     * @param image the image
+     * @param sigma the standard deviation of the kernel in pixels, must be positive
+     * @return the blurred image
+     */
+    public BufferedImage gaussianBlur(BufferedImage image, float sigma) {
+        return Convolution.gaussianBlur(image, sigma, m_pool, m_imagePool);
+    }
+
+    /**
+     * Blurs the given image with a Gaussian kernel.
+     * @param image the image
+     * @param sigma the standard deviation of the kernel in pixels, must be positive
+     * @return the blurred image
+     * @throws IOException if the new image cannot be created
+     * @see ManipulationHelper#gaussianBlur(BufferedImage, float)
+     */
+    public Image gaussianBlur(Image image, float sigma) throws IOException {
+        BufferedImage dimg = gaussianBlur(image.getBufferedImage(), sigma);
+        return new Image(dimg, image.getFormat());
+    }
+
+    /**
+     * Blurs the given image with a box kernel: each pixel becomes the average
+     * of the square of pixels of the given radius around it. The cost doesn't
+     * depend on the radius. Applying it three times approximates a Gaussian
+     * blur. The resulting image has the type of
+     * {@link ManipulationHelper#gaussianBlur(BufferedImage, float)}.
+     * @param image the image
+     * @param radius the radius of the square in pixels, 0 to copy the image
+     * @return the blurred image
+     */
+    public BufferedImage boxBlur(BufferedImage image, int radius) {
+        return Convolution.boxBlur(image, radius, m_pool, m_imagePool);
+    }
+
+    /**
+     * Blurs the given image with a box kernel.
+     * @param image the image
+     * @param radius the radius of the square in pixels, 0 to copy the image
+     * @return the blurred image
+     * @throws IOException if the new image cannot be created
+     * @see ManipulationHelper#boxBlur(BufferedImage, int)
+     */
+    public Image boxBlur(Image image, int radius) throws IOException {
+        BufferedImage dimg = boxBlur(image.getBufferedImage(), radius);
+        return new Image(dimg, image.getFormat());
+    }
+
+    /**
+     * Sharpens the given image with an unsharp mask: the difference between
+     * each color component and the Gaussian blurred component is multiplied
+     * by the amount and added to the component, when it reaches the
+     * threshold. Downscaled images are typically sharpened with a radius
+     * around 0.5 to 1 pixel and an amount around 0.5 to 1. The alpha
+     * components are kept. The resulting image has the type of
+     * {@link ManipulationHelper#gaussianBlur(BufferedImage, float)}.
+     * @param image the image
+     * @param sigma the standard deviation of the Gaussian kernel in pixels, must be positive
+     * @param amount the strength of the sharpening, 0 to keep the image
+     * @param threshold the minimum difference to sharpen, from 0 (sharpen
+     * everything) to 255, to keep the noise of uniform areas
+     * @return the sharpened image
+     */
+    public BufferedImage unsharpMask(BufferedImage image, float sigma, float amount, int threshold) {
+        return Convolution.unsharpMask(image, sigma, amount, threshold, m_pool, m_imagePool);
+    }
+
+    /**
+     * Sharpens the given image with an unsharp mask.
+     * @param image the image
+     * @param sigma the standard deviation of the Gaussian kernel in pixels, must be positive
+     * @param amount the strength of the sharpening, 0 to keep the image
+     * @param threshold the minimum difference to sharpen, from 0 to 255
+     * @return the sharpened image
+     * @throws IOException if the new image cannot be created
+     * @see ManipulationHelper#unsharpMask(BufferedImage, float, float, int)
+     */
+    public Image unsharpMask(Image image, float sigma, float amount, int threshold) throws IOException {
+        BufferedImage dimg = unsharpMask(image.getBufferedImage(), sigma, amount, threshold);
+        return new Image(dimg, image.getFormat());
+    }
+
+    /**
+     * Composites the given watermark over a copy of the given image. The
+     * cached premultiplied pixels of the watermark are blended on the raster
+     * of the copy, a <code>TYPE_INT_ARGB_PRE</code> image if the image has
+     * alpha, a <code>TYPE_INT_RGB</code> image otherwise. The given image is
+     * left unchanged.
+     * @param image the image
+     * @param watermark the watermark
+     * @return the watermarked image
+     */
+    public BufferedImage applyWatermark(BufferedImage image, Watermark watermark) {
+        if (watermark == null) {
+            throw new IllegalArgumentException("The watermark cannot be null");
+        }
+        BufferedImage result = PackedRows.apply(image, image.getColorModel().hasAlpha()
+                ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB, m_pool, m_imagePool, null);
+        blend(PixelArray.of(result.getRaster()), result.getWidth(), result.getHeight(), watermark);
+        return result;
+    }
+
+    /**
+     * Composites the given watermark over a copy of the given image.
+     * @param image the image
+     * @param watermark the watermark
+     * @return the watermarked image
+     * @throws IOException if the new image cannot be created
+     * @see ManipulationHelper#applyWatermark(BufferedImage, Watermark)
+     */
+    public Image applyWatermark(Image image, Watermark watermark) throws IOException {
+        return new Image(applyWatermark(image.getBufferedImage(), watermark), image.getFormat());
+    }
+
+    /**
+     * Blends the watermark pixels for the size of the image on the packed
+     * pixels of the image, in bands of rows processed in parallel.
+     * @param array the packed pixels of the image
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param watermark the watermark
+     */
+    private void blend(PixelArray array, final int width, int height, Watermark watermark) {
+        final Watermark.Scaled scaled = watermark.getScaled(width, height, this);
+        final List<int[]> placements = watermark.getPlacements(width, height, scaled);
+        final int[] data = (int[]) array.m_data;
+        final int offset = array.m_offset;
+        final int stride = array.m_scanlineStride;
+        final PixelKernels kernels = PixelKernels.getInstance();
+        ParallelRows.process(m_pool, height, TILE_SIZE, new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                int w = scaled.getWidth();
+                int h = scaled.getHeight();
+                int[] pixels = scaled.getPixels();
+                for (int[] placement : placements) {
+                    // Clips the watermark to the image and to the band
+                    int left = Math.max(placement[0], 0);
+                    int right = Math.min(placement[0] + w, width);
+                    int top = Math.max(placement[1], from);
+                    int bottom = Math.min(placement[1] + h, to);
+                    if (left >= right) {
+                        continue;
+                    }
+                    for (int y = top; y < bottom; y++) {
+                        kernels.blend(pixels, (y - placement[1]) * w + left - placement[0],
+                                data, offset + y * stride + left, right - left);
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Flips the image horizontally
      * @param img the image
      * @return the flipped image
      */
     public BufferedImage horizontalflip(BufferedImage img) {
+        img = m_normalizer.normalize(img);
         int w = img.getWidth();
         int h = img.getHeight();
-        BufferedImage dimg = new BufferedImage(w, h, img.getType());
+        BufferedImage dimg = ImagePool.allocate(m_imagePool, w, h, img.getType());
         Graphics2D g = dimg.createGraphics();
         g.drawImage(img, 0, 0, w, h, w, 0, 0, h, null);
         g.dispose();
@@ -105,9 +389,10 @@ public class ManipulationHelper {
      * @return the flipped image
      */
     public BufferedImage verticalflip(BufferedImage img) {
+        img = m_normalizer.normalize(img);
         int w = img.getWidth();
         int h = img.getHeight();
-        BufferedImage dimg = new BufferedImage(w, h, img.getType());
+        BufferedImage dimg = ImagePool.allocate(m_imagePool, w, h, img.getType());
         Graphics2D g = dimg.createGraphics();
         g.drawImage(img, 0, 0, w, h, 0, h, w, 0, null);
         g.dispose();
@@ -127,12 +412,27 @@ public class ManipulationHelper {
 
     /**
      * Rotates the given image with the given angle in degree.
-     * This method recomputes the image size.
+     * This method recomputes the image size. Rotations by a multiple of 90
+     * degrees are exact: the pixels are moved with
+     * {@link ManipulationHelper#transform(BufferedImage, Transform)}, without
+     * interpolation.
      * @param image the image
      * @param angle the angle in degree
      * @return the rotated image
      */
     public BufferedImage rotate(BufferedImage image, int angle) {
+        image = m_normalizer.normalize(image);
+        if (angle % 90 == 0) {
+            // Right angles are exact, the pixels are moved without interpolation
+            Transform rotation = Transform.getRotation(angle);
+            if (rotation == null) {
+                WritableRaster copy = image.getRaster().createCompatibleWritableRaster();
+                copy.setDataElements(0, 0, image.getRaster());
+                ColorModel model = image.getColorModel();
+                return new BufferedImage(model, copy, model.isAlphaPremultiplied(), null);
+            }
+            return transform(image, rotation);
+        }
         double sin = Math.abs(Math.sin(Math.toRadians(angle)));
         double cos = Math.abs(Math.cos(Math.toRadians(angle)));
 
@@ -142,7 +442,7 @@ public class ManipulationHelper {
         int neww = (int)Math.floor(w*cos+h*sin);
         int newh = (int)Math.floor(h*cos+w*sin);
 
-        BufferedImage dimg = new BufferedImage(neww, newh, image.getType());
+        BufferedImage dimg = ImagePool.allocate(m_imagePool, neww, newh, image.getType());
         Graphics2D g = dimg.createGraphics();
         g.translate((neww-w)/2, (newh-h)/2);
         g.rotate(Math.toRadians(angle), w/2, h/2);
@@ -164,4 +464,248 @@ public class ManipulationHelper {
         return new Image(dimg, image.getFormat());
     }
 
+    /**
+     * Applies the given right angle rotation or flip on the given image.
+     * The pixels are moved between the rasters as they are, without
+     * interpolation nor color conversion, which is much faster than drawing
+     * the image with a rotation. The image type is kept. The pixels are moved
+     * by tiles, so both the read and written lines stay in the CPU cache,
+     * and large images are processed in parallel bands of tiles.
+     * @param img the image
+     * @param transform the transformation
+     * @return the transformed image
+     * @see ManipulationHelper#setForkJoinPool(ForkJoinPool)
+     */
+    public BufferedImage transform(BufferedImage img, Transform transform) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        final boolean transpose = transform.isTransposing();
+        final int neww = transpose ? h : w;
+        final int newh = transpose ? w : h;
+
+        WritableRaster raster = img.getRaster();
+        // Pooled images of the same type have the same color model
+        BufferedImage result = m_imagePool != null && ImagePool.isPoolable(img.getType())
+                ? m_imagePool.take(neww, newh, img.getType()) : null;
+        WritableRaster target = result != null ? result.getRaster()
+                : raster.createCompatibleWritableRaster(neww, newh);
+        PixelArray source = PixelArray.of(raster);
+        PixelArray data = PixelArray.of(target);
+        boolean direct = source != null && data != null && source.m_pixelStride == data.m_pixelStride;
+        if (!direct) {
+            // Other layouts are copied to and from arrays of data elements
+            int elements = raster.getNumDataElements();
+            source = new PixelArray(raster.getDataElements(raster.getMinX(), raster.getMinY(), w, h, null),
+                    0, w * elements, elements);
+            data = new PixelArray(target.getDataElements(0, 0, neww, newh, null), 0, neww * elements, elements);
+        }
+
+        // Index in the source of the first pixel of the transformed image, and
+        // moves in the source when moving right or down in the transformed image
+        int stepX = transpose ? source.m_scanlineStride : source.m_pixelStride;
+        int stepY = transpose ? source.m_pixelStride : source.m_scanlineStride;
+        int first = source.m_offset;
+        if (transform.isMirroringX()) {
+            first += (neww - 1) * stepX;
+            stepX = -stepX;
+        }
+        if (transform.isMirroringY()) {
+            first += (newh - 1) * stepY;
+            stepY = -stepY;
+        }
+
+        final PixelArray in = source;
+        final PixelArray out = data;
+        final int firstPixel = first;
+        final int moveX = stepX;
+        final int moveY = stepY;
+        ParallelRows.process(direct ? m_pool : null, newh, TILE_SIZE, new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                int tile = transpose ? TILE_SIZE : Math.max(neww, 1);
+                for (int y0 = from; y0 < to; y0 += tile) {
+                    int y1 = Math.min(y0 + tile, to);
+                    for (int x0 = 0; x0 < neww; x0 += tile) {
+                        moveTile(in, out, firstPixel, moveX, moveY, x0, y0, Math.min(x0 + tile, neww), y1);
+                    }
+                }
+            }
+        });
+        if (!direct) {
+            target.setDataElements(0, 0, neww, newh, data.m_data);
+        }
+
+        if (result != null) {
+            return result;
+        }
+        ColorModel model = img.getColorModel();
+        return new BufferedImage(model, target, model.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Moves a tile of pixels of a transformed image.
+     * @param in the source pixels
+     * @param out the transformed pixels
+     * @param first the index in the source of the first transformed pixel
+     * @param stepX the move in the source when moving right in the transformed image
+     * @param stepY the move in the source when moving down in the transformed image
+     * @param x0 the first column of the tile (inclusive)
+     * @param y0 the first row of the tile (inclusive)
+     * @param x1 the last column of the tile (exclusive)
+     * @param y1 the last row of the tile (exclusive)
+     */
+    private static void moveTile(PixelArray in, PixelArray out, int first, int stepX, int stepY,
+            int x0, int y0, int x1, int y1) {
+        int elements = out.m_pixelStride;
+        if (in.m_data instanceof int[] && elements == 1) {
+            int[] source = (int[]) in.m_data;
+            int[] data = (int[]) out.m_data;
+            for (int y = y0; y < y1; y++) {
+                int from = first + y * stepY + x0 * stepX;
+                int to = out.m_offset + y * out.m_scanlineStride + x0;
+                for (int x = x0; x < x1; x++, to++, from += stepX) {
+                    data[to] = source[from];
+                }
+            }
+        } else if (in.m_data instanceof byte[]) {
+            byte[] source = (byte[]) in.m_data;
+            byte[] data = (byte[]) out.m_data;
+            for (int y = y0; y < y1; y++) {
+                int from = first + y * stepY + x0 * stepX;
+                int to = out.m_offset + y * out.m_scanlineStride + x0 * elements;
+                // The usual pixel sizes are unrolled
+                if (elements == 3) {
+                    for (int x = x0; x < x1; x++, to += 3, from += stepX) {
+                        data[to] = source[from];
+                        data[to + 1] = source[from + 1];
+                        data[to + 2] = source[from + 2];
+                    }
+                } else if (elements == 4) {
+                    for (int x = x0; x < x1; x++, to += 4, from += stepX) {
+                        data[to] = source[from];
+                        data[to + 1] = source[from + 1];
+                        data[to + 2] = source[from + 2];
+                        data[to + 3] = source[from + 3];
+                    }
+                } else {
+                    for (int x = x0; x < x1; x++, from += stepX) {
+                        for (int e = 0; e < elements; e++) {
+                            data[to++] = source[from + e];
+                        }
+                    }
+                }
+            }
+        } else {
+            for (int y = y0; y < y1; y++) {
+                int from = first + y * stepY + x0 * stepX;
+                int to = out.m_offset + y * out.m_scanlineStride + x0 * elements;
+                for (int x = x0; x < x1; x++, to += elements, from += stepX) {
+                    System.arraycopy(in.m_data, from, out.m_data, to, elements);
+                }
+            }
+        }
+    }
+
+    /**
+     * The data elements of the pixels of a raster, stored in an array.
+     */
+    private static final class PixelArray {
+
+        /**
+         * The array, <code>int[]</code>, <code>byte[]</code>, or any other
+         * array of data elements.
+         */
+        private final Object m_data;
+
+        /**
+         * The index of the first element of the first pixel.
+         */
+        private final int m_offset;
+
+        /**
+         * The distance between two rows.
+         */
+        private final int m_scanlineStride;
+
+        /**
+         * The distance between two pixels.
+         */
+        private final int m_pixelStride;
+
+        private PixelArray(Object data, int offset, int scanlineStride, int pixelStride) {
+            m_data = data;
+            m_offset = offset;
+            m_scanlineStride = scanlineStride;
+            m_pixelStride = pixelStride;
+        }
+
+        /**
+         * Gets the array of the data buffer of the given raster, when its
+         * pixels are stored in one array as packed ints or interleaved bytes.
+         * @param raster the raster
+         * @return the pixel array, <code>null</code> if the layout is not supported
+         */
+        private static PixelArray of(WritableRaster raster) {
+            SampleModel model = raster.getSampleModel();
+            DataBuffer buffer = raster.getDataBuffer();
+            int tx = raster.getSampleModelTranslateX();
+            int ty = raster.getSampleModelTranslateY();
+            if (buffer instanceof DataBufferInt && buffer.getNumBanks() == 1
+                    && model instanceof SinglePixelPackedSampleModel) {
+                int stride = ((SinglePixelPackedSampleModel) model).getScanlineStride();
+                return new PixelArray(((DataBufferInt) buffer).getData(),
+                        buffer.getOffset() - ty * stride - tx, stride, 1);
+            }
+            if (buffer instanceof DataBufferByte && buffer.getNumBanks() == 1
+                    && model instanceof PixelInterleavedSampleModel) {
+                PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) model;
+                int[] offsets = interleaved.getBandOffsets();
+                int first = offsets[0];
+                int last = offsets[0];
+                for (int offset : offsets) {
+                    first = Math.min(first, offset);
+                    last = Math.max(last, offset);
+                }
+                int pixelStride = interleaved.getPixelStride();
+                if (last - first + 1 != pixelStride) {
+                    // Padding between the pixels
+                    return null;
+                }
+                int stride = interleaved.getScanlineStride();
+                return new PixelArray(((DataBufferByte) buffer).getData(),
+                        buffer.getOffset() - ty * stride - tx * pixelStride + first, stride, pixelStride);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Applies the given right angle rotation or flip on the given image.
+     * @param image the image
+     * @param transform the transformation
+     * @return the transformed image
+     * @throws IOException if the new image cannot be created
+     * @see ManipulationHelper#transform(BufferedImage, Transform)
+     */
+    public Image transform(Image image, Transform transform) throws IOException {
+        BufferedImage dimg = transform(image.getBufferedImage(), transform);
+        return new Image(dimg, image.getFormat());
+    }
+
+    /**
+     * Rotates and flips the given image so it's displayed as described by
+     * the given EXIF orientation code.
+     * @param img the image, as stored in the file
+     * @param orientation the EXIF orientation code
+     * @return the image as it must be displayed, the given image if the
+     * orientation code is 1 or unknown
+     * @see ImageMetadata#getExifOrientation()
+     */
+    public BufferedImage applyExifOrientation(BufferedImage img, int orientation) {
+        Transform transform = Transform.getTransformForExifOrientation(orientation);
+        if (transform == null) {
+            return img;
+        }
+        return transform(img, transform);
+    }
+
 }
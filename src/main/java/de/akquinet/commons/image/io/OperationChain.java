@@ -0,0 +1,281 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+
+import de.akquinet.commons.image.io.JPEGTransformer.Transform;
+
+/**
+ * Geometric operations recorded on an image and composed into a single
+ * {@link AffineTransform}, so the image is rendered once whatever the
+ * number of operations. The size of the image after each operation is the
+ * size computed by the eager operations of {@link ScaleHelper} and
+ * {@link ManipulationHelper}.
+ * <p/>
+ * When the operations only scale, flip and rotate the image by right
+ * angles, the image is scaled once with the {@link ScaleHelper}, and its
+ * pixels are then moved exactly with
+ * {@link ManipulationHelper#transform(BufferedImage, Transform)}. Other
+ * operations are rendered at once with Java2D.
+ */
+final class OperationChain {
+
+    /**
+     * The tolerance used to compare the coordinates of the transformed image.
+     */
+    private static final double EPSILON = 1e-6;
+
+    /**
+     * The transform from the source image to the resulting image.
+     */
+    private final AffineTransform m_transform = new AffineTransform();
+
+    /**
+     * The description of the recorded operations.
+     */
+    private final StringBuilder m_description = new StringBuilder();
+
+    /**
+     * The width of the resulting image.
+     */
+    private int m_width;
+
+    /**
+     * The height of the resulting image.
+     */
+    private int m_height;
+
+    /**
+     * Creates an empty OperationChain.
+     * @param width the width of the source image
+     * @param height the height of the source image
+     */
+    OperationChain(int width, int height) {
+        m_width = width;
+        m_height = height;
+    }
+
+    /**
+     * Gets the width of the resulting image.
+     * @return the width
+     */
+    int getWidth() {
+        return m_width;
+    }
+
+    /**
+     * Gets the height of the resulting image.
+     * @return the height
+     */
+    int getHeight() {
+        return m_height;
+    }
+
+    /**
+     * Gets the description of the recorded operations.
+     * @return the description, empty if no operation was recorded
+     */
+    String getDescription() {
+        return m_description.toString();
+    }
+
+    /**
+     * Checks whether operations were recorded.
+     * @return <code>true</code> if no operation was recorded
+     */
+    boolean isEmpty() {
+        return m_description.length() == 0;
+    }
+
+    /**
+     * Records a scale, see {@link ScaleHelper#scale(BufferedImage, float)}.
+     * @param ratio the ratio
+     * @param interpolation the scaling algorithm, recorded in the description
+     */
+    void scale(float ratio, ScaleHelper.Interpolation interpolation) {
+        int width = (int) (m_width * ratio);
+        int height = (int) (m_height * ratio);
+        append(AffineTransform.getScaleInstance((double) width / m_width, (double) height / m_height),
+                width, height);
+        m_description.append("scale(").append(ratio).append(',').append(interpolation).append(')');
+    }
+
+    /**
+     * Records a rotation, see {@link ManipulationHelper#rotate(BufferedImage, int)}.
+     * Right angles are exact.
+     * @param angle the angle in degree
+     */
+    void rotate(int angle) {
+        int w = m_width;
+        int h = m_height;
+        if (angle % 90 == 0) {
+            switch (((angle % 360) + 360) % 360) {
+                case 90:
+                    append(new AffineTransform(0, 1, -1, 0, h, 0), h, w);
+                    break;
+                case 180:
+                    append(new AffineTransform(-1, 0, 0, -1, w, h), w, h);
+                    break;
+                case 270:
+                    append(new AffineTransform(0, -1, 1, 0, 0, w), h, w);
+                    break;
+                default:
+                    break;
+            }
+        } else {
+            double sin = Math.abs(Math.sin(Math.toRadians(angle)));
+            double cos = Math.abs(Math.cos(Math.toRadians(angle)));
+            int neww = (int) Math.floor(w * cos + h * sin);
+            int newh = (int) Math.floor(h * cos + w * sin);
+            // Same placement as the eager rotation
+            AffineTransform rotation = AffineTransform.getTranslateInstance((neww - w) / 2, (newh - h) / 2);
+            rotation.rotate(Math.toRadians(angle), w / 2, h / 2);
+            append(rotation, neww, newh);
+        }
+        m_description.append("rotate(").append(angle).append(')');
+    }
+
+    /**
+     * Records a horizontal flip.
+     */
+    void flipHorizontally() {
+        append(new AffineTransform(-1, 0, 0, 1, m_width, 0), m_width, m_height);
+        m_description.append("hflip");
+    }
+
+    /**
+     * Records a vertical flip.
+     */
+    void flipVertically() {
+        append(new AffineTransform(1, 0, 0, -1, 0, m_height), m_width, m_height);
+        m_description.append("vflip");
+    }
+
+    /**
+     * Records a translation of the pixels, the size of the image being kept.
+     * @param dx the horizontal move
+     * @param dy the vertical move
+     */
+    void translate(int dx, int dy) {
+        append(AffineTransform.getTranslateInstance(dx, dy), m_width, m_height);
+        m_description.append("translate(").append(dx).append(',').append(dy).append(')');
+    }
+
+    /**
+     * Appends an operation to the transform.
+     * @param operation the operation
+     * @param width the width of the image after the operation
+     * @param height the height of the image after the operation
+     */
+    private void append(AffineTransform operation, int width, int height) {
+        m_transform.preConcatenate(operation);
+        m_width = width;
+        m_height = height;
+    }
+
+    /**
+     * Renders the recorded operations.
+     * @param source the source image
+     * @param scaler the helper scaling the image
+     * @param manipulation the helper moving the pixels
+     * @return the resulting image, the source image if no operation was recorded
+     */
+    BufferedImage render(BufferedImage source, ScaleHelper scaler, ManipulationHelper manipulation) {
+        if (isEmpty()) {
+            return source;
+        }
+        if (m_width <= 0 || m_height <= 0) {
+            throw new IllegalArgumentException("Cannot render the image : invalid size "
+                    + m_width + "x" + m_height);
+        }
+        Transform transform = getRightAngleTransform(source);
+        if (transform != null || isScaleOnly(source)) {
+            boolean transpose = transform != null && transform.isTransposing();
+            int width = transpose ? m_height : m_width;
+            int height = transpose ? m_width : m_height;
+            BufferedImage scaled = source;
+            if (width != source.getWidth() || height != source.getHeight()) {
+                scaled = scaler.scaleImage(source, width, height, scaler.getInterpolation());
+            }
+            return transform == null ? scaled : manipulation.transform(scaled, transform);
+        }
+
+        BufferedImage normalized = RasterNormalizer.DEFAULT.normalize(source);
+        BufferedImage target = new BufferedImage(m_width, m_height, normalized.getType());
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, scaler.getRenderingHint());
+            graphics.drawRenderedImage(normalized, m_transform);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    /**
+     * Checks whether the transform only scales the image, the scaled image
+     * covering exactly the resulting image.
+     * @param source the source image
+     * @return <code>true</code> if the transform is a scale
+     */
+    private boolean isScaleOnly(BufferedImage source) {
+        return m_transform.getShearX() == 0 && m_transform.getShearY() == 0
+                && m_transform.getScaleX() > 0 && m_transform.getScaleY() > 0
+                && coversResult(source);
+    }
+
+    /**
+     * Gets the right angle rotation or flip done by the transform, when it
+     * only moves the pixels and scales the image, the transformed image
+     * covering exactly the resulting image.
+     * @param source the source image
+     * @return the rotation or flip applied after scaling, <code>null</code>
+     * if the transform does something else or if no pixel is moved
+     */
+    private Transform getRightAngleTransform(BufferedImage source) {
+        double m00 = m_transform.getScaleX();
+        double m01 = m_transform.getShearX();
+        double m10 = m_transform.getShearY();
+        double m11 = m_transform.getScaleY();
+        boolean transpose;
+        if (m01 == 0 && m10 == 0 && m00 != 0 && m11 != 0) {
+            transpose = false;
+        } else if (m00 == 0 && m11 == 0 && m01 != 0 && m10 != 0) {
+            transpose = true;
+        } else {
+            return null;
+        }
+        if (!coversResult(source)) {
+            return null;
+        }
+        boolean mirrorX = transpose ? m01 < 0 : m00 < 0;
+        boolean mirrorY = transpose ? m10 < 0 : m11 < 0;
+        for (Transform transform : Transform.values()) {
+            if (transform.isTransposing() == transpose && transform.isMirroringX() == mirrorX
+                    && transform.isMirroringY() == mirrorY) {
+                return transform;
+            }
+        }
+        // Neither moved nor mirrored
+        return null;
+    }
+
+    /**
+     * Checks whether the transformed source image covers exactly the
+     * resulting image.
+     * @param source the source image
+     * @return <code>true</code> if the bounds of the transformed image are the
+     * bounds of the resulting image
+     */
+    private boolean coversResult(BufferedImage source) {
+        Rectangle2D bounds = m_transform.createTransformedShape(
+                new Rectangle2D.Double(0, 0, source.getWidth(), source.getHeight())).getBounds2D();
+        return Math.abs(bounds.getMinX()) < EPSILON && Math.abs(bounds.getMinY()) < EPSILON
+                && Math.abs(bounds.getMaxX() - m_width) < EPSILON
+                && Math.abs(bounds.getMaxY() - m_height) < EPSILON;
+    }
+
+}
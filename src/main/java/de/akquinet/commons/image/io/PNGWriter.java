@@ -0,0 +1,353 @@
+package de.akquinet.commons.image.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Class responsible to write the metadata of PNG files without re-encoding
+ * the pixels. The chunks of the original file are copied as they are,
+ * only the XMP (<code>iTXt</code>) and the replaced <code>tEXt</code> chunks
+ * are written again. New chunks are inserted right after the header.
+ */
+public class PNGWriter {
+
+    /**
+     * The PNG signature.
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * The keyword of the <code>iTXt</code> chunk containing the XMP metadata.
+     */
+    public static final String XMP_KEYWORD = "XML:com.adobe.xmp";
+
+    private static final int IHDR = chunkType("IHDR");
+    private static final int IEND = chunkType("IEND");
+    private static final int ITXT = chunkType("iTXt");
+    private static final int TEXT = chunkType("tEXt");
+
+    /**
+     * The maximum length of a text chunk keyword.
+     */
+    private static final int MAX_KEYWORD_LENGTH = 79;
+
+    /**
+     * The size of the buffer used to copy chunks.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The original file, <code>null</code> if the image is read from
+     * a byte array.
+     */
+    private File m_file;
+
+    /**
+     * The original bytes, <code>null</code> if the image is read from
+     * a file.
+     */
+    private byte[] m_bytes;
+
+    /**
+     * The XMP XML snippet to write, <code>null</code> to keep the original one.
+     */
+    private String m_xmp;
+
+    /**
+     * The <code>tEXt</code> chunks to write, by keyword.
+     */
+    private final Map<String, String> m_texts = new LinkedHashMap<String, String>();
+
+    /**
+     * Initializes the writer with the given image. The image must be backed by
+     * an original PNG file or byte array. The XMP metadata of the image are
+     * written.
+     * @param origin the image
+     * @throws IOException if the image is not backed by an original PNG stream
+     */
+    public void load(Image origin) throws IOException {
+        if (origin.hasOriginalFile(Format.PNG)) {
+            m_file = origin.getFile();
+            m_bytes = null;
+        } else if (origin.hasOriginalBytes(Format.PNG)) {
+            m_file = null;
+            m_bytes = origin.getRawBytes(Format.PNG);
+        } else {
+            throw new IOException("Cannot rewrite the image : the image is not backed by an original PNG stream");
+        }
+        m_xmp = origin.getMetadata().getXmp();
+    }
+
+    /**
+     * Initializes the writer with the given PNG file. The file is not read
+     * until the writer is written.
+     * @param file the PNG file
+     */
+    public void load(File file) {
+        m_file = file;
+        m_bytes = null;
+    }
+
+    /**
+     * Sets the XMP metadata to write. The <code>iTXt</code> chunk containing
+     * the original XMP metadata, if any, is replaced.
+     * @param xmp the XMP XML snippet, <code>null</code> to keep the original one
+     */
+    public void setXmp(String xmp) {
+        m_xmp = xmp;
+    }
+
+    /**
+     * Sets a <code>tEXt</code> chunk to write. The original <code>tEXt</code>
+     * chunk with the same keyword, if any, is replaced.
+     * @param keyword the keyword, such as <code>Title</code> or <code>Author</code>
+     * @param text the text, must be encodable in ISO-8859-1
+     */
+    public void setText(String keyword, String text) {
+        if (keyword == null || keyword.length() == 0 || keyword.length() > MAX_KEYWORD_LENGTH) {
+            throw new IllegalArgumentException("Invalid tEXt keyword : " + keyword);
+        }
+        m_texts.put(keyword, text);
+    }
+
+    /**
+     * Writes the new PNG to the given file. The file is written in a temporary
+     * file first, then atomically replaced, so the loaded file can be
+     * overwritten.
+     * @param out the output file
+     * @throws IOException if the image can't be written
+     */
+    public void write(File out) throws IOException {
+        File tmp = File.createTempFile("." + out.getName(), ".tmp", out.getAbsoluteFile().getParentFile());
+        try {
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                write(os);
+            } finally {
+                os.close();
+            }
+            IOHelper.replaceFile(tmp, out);
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the new PNG to the given output stream. The stream is not closed.
+     * @param out the output stream
+     * @throws IOException if the image can't be read or written
+     */
+    public void write(OutputStream out) throws IOException {
+        InputStream is;
+        if (m_file != null) {
+            is = new BufferedInputStream(new FileInputStream(m_file), BUFFER_SIZE);
+        } else if (m_bytes != null) {
+            is = new ByteArrayInputStream(m_bytes);
+        } else {
+            throw new IOException("Cannot write the PNG : no image loaded");
+        }
+        try {
+            rewrite(new DataInputStream(is), new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE)));
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Copies the chunks from the given input to the given output, dropping the
+     * replaced metadata chunks and inserting the new ones after the header.
+     * @param in the original PNG
+     * @param out the output
+     * @throws IOException if the PNG cannot be read or written
+     */
+    private void rewrite(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] signature = new byte[SIGNATURE.length];
+        in.readFully(signature);
+        if (!Arrays.equals(signature, SIGNATURE)) {
+            throw new IOException("Cannot write the PNG : invalid signature");
+        }
+        out.write(SIGNATURE);
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int type;
+        do {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Cannot write the PNG : IEND chunk missing", e);
+            }
+            type = in.readInt();
+            if (length < 0) {
+                throw new IOException("Cannot write the PNG : invalid chunk length " + length);
+            }
+
+            if (type == ITXT || type == TEXT) {
+                // Metadata chunk, check whether it's replaced using its keyword
+                byte[] prefix = new byte[Math.min(length, MAX_KEYWORD_LENGTH + 1)];
+                in.readFully(prefix);
+                if (isReplaced(type, getKeyword(prefix))) {
+                    skip(in, length - prefix.length + 4L);
+                } else {
+                    out.writeInt(length);
+                    out.writeInt(type);
+                    out.write(prefix);
+                    copy(in, out, length - prefix.length + 4L, buffer);
+                }
+            } else {
+                out.writeInt(length);
+                out.writeInt(type);
+                // Copy the data and the CRC
+                copy(in, out, length + 4L, buffer);
+            }
+
+            if (type == IHDR) {
+                writeMetadataChunks(out);
+            }
+        } while (type != IEND);
+        out.flush();
+    }
+
+    /**
+     * Checks whether the given metadata chunk is replaced by a new one.
+     * @param type the chunk type
+     * @param keyword the chunk keyword
+     * @return <code>true</code> if the chunk must be dropped
+     */
+    private boolean isReplaced(int type, String keyword) {
+        if (type == ITXT) {
+            return m_xmp != null && XMP_KEYWORD.equals(keyword);
+        }
+        return m_texts.containsKey(keyword);
+    }
+
+    /**
+     * Copies the given number of bytes.
+     * @param in the input
+     * @param out the output
+     * @param length the number of bytes to copy
+     * @param buffer the buffer to use
+     * @throws IOException if the input is truncated or the output cannot be written
+     */
+    private static void copy(InputStream in, OutputStream out, long length, byte[] buffer) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read == -1) {
+                throw new IOException("Cannot write the PNG : truncated chunk");
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    /**
+     * Skips the given number of bytes.
+     * @param in the input
+     * @param length the number of bytes to skip
+     * @throws IOException if the input is truncated
+     */
+    private static void skip(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("Cannot write the PNG : truncated chunk");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Writes the new XMP and <code>tEXt</code> chunks.
+     * @param out the output
+     * @throws IOException if the chunks cannot be written
+     */
+    private void writeMetadataChunks(DataOutputStream out) throws IOException {
+        if (m_xmp != null) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            data.write(XMP_KEYWORD.getBytes("ISO-8859-1"));
+            // Null separator, no compression (flag and method), empty language tag
+            // and empty translated keyword, each followed by a null separator.
+            data.write(new byte[] {0, 0, 0, 0, 0});
+            data.write(m_xmp.getBytes("UTF-8"));
+            writeChunk(out, ITXT, data.toByteArray());
+        }
+        for (Map.Entry<String, String> entry : m_texts.entrySet()) {
+            if (entry.getValue() == null) {
+                // Only removes the original chunk
+                continue;
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            data.write(entry.getKey().getBytes("ISO-8859-1"));
+            data.write(0);
+            data.write(entry.getValue().getBytes("ISO-8859-1"));
+            writeChunk(out, TEXT, data.toByteArray());
+        }
+    }
+
+    /**
+     * Writes a chunk, computing its CRC.
+     * @param out the output
+     * @param type the chunk type
+     * @param data the chunk data
+     * @throws IOException if the chunk cannot be written
+     */
+    private static void writeChunk(DataOutputStream out, int type, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type >>> 24);
+        crc.update(type >>> 16);
+        crc.update(type >>> 8);
+        crc.update(type);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeInt(type);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Gets the keyword of a text chunk, i.e. the bytes before the first null byte.
+     * @param data the chunk data
+     * @return the keyword
+     */
+    private static String getKeyword(byte[] data) {
+        int end = 0;
+        while (end < data.length && data[end] != 0) {
+            end++;
+        }
+        try {
+            return new String(data, 0, end, "ISO-8859-1");
+        } catch (IOException e) {
+            // Cannot happen, ISO-8859-1 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the integer value of a chunk type.
+     * @param type the chunk type name
+     * @return the chunk type as read from the stream
+     */
+    private static int chunkType(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
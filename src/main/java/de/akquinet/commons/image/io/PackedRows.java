@@ -0,0 +1,103 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Applies per-pixel operations on the packed ARGB pixels of an image,
+ * working directly on the int array of its data buffer instead of reading
+ * and writing the pixels one by one through the color model. The image is
+ * copied to a new image of the requested type and the operation is applied
+ * on the copied rows, both in bands of rows processed in parallel, so each
+ * band is still in the CPU cache when it's processed.
+ */
+final class PackedRows {
+
+    /**
+     * The minimum number of rows of the bands processed in parallel.
+     */
+    private static final int MIN_ROWS = 16;
+
+    /**
+     * The operation applied on the pixels.
+     */
+    interface Kernel {
+        /**
+         * Processes consecutive pixels, which may span several rows.
+         * @param pixels the packed pixels
+         * @param offset the index of the first pixel to process
+         * @param length the number of pixels to process
+         */
+        void process(int[] pixels, int offset, int length);
+    }
+
+    private PackedRows() {
+        // Utility class
+    }
+
+    /**
+     * Copies the given image to a new image of the given type, and applies
+     * the kernel on all its pixels. The pixels of the new image are stored in
+     * one array, row by row.
+     * @param source the image
+     * @param type the type of the resulting image, <code>TYPE_INT_RGB</code>,
+     * <code>TYPE_INT_ARGB</code> or <code>TYPE_INT_ARGB_PRE</code>
+     * @param pool the pool, <code>null</code> to process the image in the current thread
+     * @param images the pool of the new image, <code>null</code> to allocate it
+     * @param kernel the operation to apply, <code>null</code> to only copy the image
+     * @return the new image
+     */
+    static BufferedImage apply(final BufferedImage source, int type, ForkJoinPool pool, ImagePool images,
+            final Kernel kernel) {
+        final int width = source.getWidth();
+        final BufferedImage target = ImagePool.allocate(images, width, source.getHeight(), type);
+        // A new image stores its pixels in one array, row by row
+        final int[] pixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+        final boolean sameLayout = source.getType() == type
+                && source.getRaster().getDataBuffer() instanceof DataBufferInt;
+        ParallelRows.process(pool, target.getHeight(), MIN_ROWS, new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                if (sameLayout) {
+                    copyRows(source, pixels, width, from, to);
+                } else {
+                    Graphics2D graphics = target.createGraphics();
+                    try {
+                        graphics.setComposite(AlphaComposite.Src);
+                        graphics.drawImage(source.getSubimage(0, from, width, to - from), 0, from, null);
+                    } finally {
+                        graphics.dispose();
+                    }
+                }
+                if (kernel != null) {
+                    kernel.process(pixels, from * width, (to - from) * width);
+                }
+            }
+        });
+        return target;
+    }
+
+    /**
+     * Copies rows of an image having the type of the target image.
+     * @param source the image, stored in a {@link DataBufferInt}
+     * @param pixels the pixels of the target image
+     * @param width the width of the images
+     * @param from the first row (inclusive)
+     * @param to the last row (exclusive)
+     */
+    private static void copyRows(BufferedImage source, int[] pixels, int width, int from, int to) {
+        WritableRaster raster = source.getRaster();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int offset = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        for (int y = from; y < to; y++) {
+            System.arraycopy(data, offset + y * stride, pixels, y * width, width);
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package de.akquinet.commons.image.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the processing of image rows in bands processed on a
+ * {@link ForkJoinPool}. Each band is processed by a single thread, so band
+ * processors can allocate their working buffers once per band.
+ */
+final class ParallelRows {
+
+    /**
+     * The number of bands created per thread of the pool, so threads finishing
+     * early can steal work from the others.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * Processes a band of rows.
+     */
+    interface Processor {
+        /**
+         * Processes the given rows.
+         * @param from the first row (inclusive)
+         * @param to the last row (exclusive)
+         */
+        void process(int from, int to);
+    }
+
+    private ParallelRows() {
+        // Utility class
+    }
+
+    /**
+     * Processes the given number of rows. The rows are processed in the
+     * current thread if no pool is given or if there are not enough rows.
+     * @param pool the pool, <code>null</code> to process the rows sequentially
+     * @param rows the number of rows
+     * @param minRows the minimum number of rows of a band
+     * @param processor the processor
+     */
+    static void process(ForkJoinPool pool, int rows, int minRows, Processor processor) {
+        int bands = pool == null ? 1
+                : Math.min(pool.getParallelism() * BANDS_PER_THREAD, rows / Math.max(minRows, 1));
+        if (bands <= 1) {
+            processor.process(0, rows);
+            return;
+        }
+        int[] bounds = new int[bands + 1];
+        for (int i = 0; i <= bands; i++) {
+            bounds[i] = (int) ((long) rows * i / bands);
+        }
+        invoke(pool, bounds, processor);
+    }
+
+    /**
+     * Processes the given number of rows in bands of a fixed size. Unlike
+     * {@link ParallelRows#process(ForkJoinPool, int, int, Processor)}, the
+     * bands don't depend on the pool: without pool, the same bands are
+     * processed one after the other. This is required when the result of a
+     * processor depends on the first row of its band.
+     * @param pool the pool, <code>null</code> to process the bands sequentially
+     * @param rows the number of rows
+     * @param bandRows the number of rows of a band, the last band may be smaller
+     * @param processor the processor
+     */
+    static void processBands(ForkJoinPool pool, int rows, int bandRows, Processor processor) {
+        bandRows = Math.max(bandRows, 1);
+        int bands = (rows + bandRows - 1) / bandRows;
+        if (bands <= 1) {
+            processor.process(0, rows);
+            return;
+        }
+        int[] bounds = new int[bands + 1];
+        for (int i = 0; i < bands; i++) {
+            bounds[i] = i * bandRows;
+        }
+        bounds[bands] = rows;
+        if (pool == null) {
+            for (int i = 0; i < bands; i++) {
+                processor.process(bounds[i], bounds[i + 1]);
+            }
+        } else {
+            invoke(pool, bounds, processor);
+        }
+    }
+
+    /**
+     * Processes the given bands on the pool, and waits for their completion.
+     * @param pool the pool
+     * @param bounds the first row of each band, followed by the number of rows
+     * @param processor the processor
+     */
+    private static void invoke(ForkJoinPool pool, int[] bounds, final Processor processor) {
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(bounds.length - 1);
+        for (int i = 0; i < bounds.length - 1; i++) {
+            final int from = bounds[i];
+            final int to = bounds[i + 1];
+            tasks.add(new RecursiveAction() {
+                protected void compute() {
+                    processor.process(from, to);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+}
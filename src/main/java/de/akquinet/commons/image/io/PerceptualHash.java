@@ -0,0 +1,296 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Computes 64 bits perceptual hashes of images. Unlike cryptographic hashes,
+ * similar images have similar hashes: re-saved, resized or slightly edited
+ * copies of an image have hashes differing by a few bits only, so near
+ * duplicates are found by comparing the {@link #distance(long, long) Hamming
+ * distance} of the hashes, see {@link PerceptualHashIndex}.
+ * <p/>
+ * The hashes only depend on the luminance of a tiny version of the image,
+ * averaged over areas of the image. The files and byte arrays are decoded
+ * subsampled, which saves most of the decoding. The EXIF orientation is not
+ * applied.
+ */
+public final class PerceptualHash {
+
+    /**
+     * The hash algorithms.
+     */
+    public enum Algorithm {
+        /**
+         * The average hash: each bit tells whether a cell of an 8x8 grid is
+         * brighter than the mean. Fast, but sensitive to gamma and
+         * contrast changes.
+         */
+        AVERAGE(8, 8),
+        /**
+         * The difference hash: each bit tells whether a cell of an 9x8 grid
+         * is brighter than its right neighbor. Fast, and robust to global
+         * brightness and contrast changes.
+         */
+        DIFFERENCE(9, 8),
+        /**
+         * The DCT hash: each bit tells whether one of the 64 lowest
+         * frequencies of the discrete cosine transform of a 32x32 grid is
+         * above their median. The most robust to compression, resizing and
+         * gamma changes.
+         */
+        DCT(32, 32);
+
+        private final int m_width;
+
+        private final int m_height;
+
+        private Algorithm(int width, int height) {
+            m_width = width;
+            m_height = height;
+        }
+    }
+
+    /**
+     * The minimum size of the images decoded subsampled. The decoder picks
+     * one pixel out of several instead of averaging them, so the decoded
+     * image must stay much larger than the grid of the algorithms to avoid
+     * aliasing.
+     */
+    private static final int DECODED_SIZE = 256;
+
+    /**
+     * The number of lowest frequencies kept on each axis by the DCT hash.
+     */
+    private static final int FREQUENCIES = 8;
+
+    /**
+     * The cosines of the DCT of the 32 values of a row or column, by
+     * frequency then position.
+     */
+    private static final double[] COSINES = new double[FREQUENCIES * 32];
+
+    static {
+        for (int u = 0; u < FREQUENCIES; u++) {
+            for (int x = 0; x < 32; x++) {
+                COSINES[u * 32 + x] = Math.cos((2 * x + 1) * u * Math.PI / 64);
+            }
+        }
+    }
+
+    private PerceptualHash() {
+        // Utility class
+    }
+
+    /**
+     * Computes the hash of an image.
+     * @param image the image
+     * @param algorithm the algorithm
+     * @return the hash
+     */
+    public static long compute(BufferedImage image, Algorithm algorithm) {
+        if (image == null) {
+            throw new IllegalArgumentException("The image is null");
+        }
+        double[] grid = reduce(image, algorithm.m_width, algorithm.m_height);
+        switch (algorithm) {
+            case AVERAGE:
+                return averageHash(grid);
+            case DIFFERENCE:
+                return differenceHash(grid);
+            default:
+                return dctHash(grid);
+        }
+    }
+
+    /**
+     * Computes the hash of an image.
+     * @param image the image
+     * @param algorithm the algorithm
+     * @return the hash
+     */
+    public static long compute(Image image, Algorithm algorithm) {
+        if (image == null) {
+            throw new IllegalArgumentException("The image is null");
+        }
+        return compute(image.getBufferedImage(), algorithm);
+    }
+
+    /**
+     * Computes the hash of an image file, decoded subsampled.
+     * @param file the image file
+     * @param algorithm the algorithm
+     * @return the hash
+     * @throws IOException if the file cannot be read
+     */
+    public static long compute(File file, Algorithm algorithm) throws IOException {
+        if (file == null) {
+            throw new IOException("The input file is null");
+        }
+        BufferedImage image = decode(ImageIO.createImageInputStream(file));
+        if (image == null) {
+            image = ImageIOUtils.getIOHelper().read(file);
+        }
+        return compute(image, algorithm);
+    }
+
+    /**
+     * Computes the hash of an encoded image, decoded subsampled.
+     * @param bytes the encoded image
+     * @param algorithm the algorithm
+     * @return the hash
+     * @throws IOException if the bytes cannot be decoded
+     */
+    public static long compute(byte[] bytes, Algorithm algorithm) throws IOException {
+        if (bytes == null) {
+            throw new IOException("The byte array is null");
+        }
+        BufferedImage image = decode(IOHelper.createImageInputStream(bytes));
+        if (image == null) {
+            image = ImageIOUtils.getIOHelper().read(bytes);
+        }
+        return compute(image, algorithm);
+    }
+
+    /**
+     * Computes the Hamming distance of two hashes, the number of differing bits.
+     * @param a a hash
+     * @param b another hash
+     * @return the distance, from 0 for similar images to 64
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Decodes the image subsampled so its smallest side stays at least
+     * {@link #DECODED_SIZE} pixels.
+     * @param input the image stream, may be <code>null</code>
+     * @return the image, <code>null</code> if Image-IO cannot read it
+     * @throws IOException if the stream cannot be read
+     */
+    private static BufferedImage decode(ImageInputStream input) throws IOException {
+        try {
+            return RegionDecoder.read(input, new RegionDecoder.Plan() {
+                public void configure(int width, int height, ImageReadParam param) {
+                    int factor = Math.min(width, height) / DECODED_SIZE;
+                    if (factor > 1) {
+                        param.setSourceSubsampling(factor, factor, 0, 0);
+                    }
+                }
+            }, ImageIOUtils.getForkJoinPool());
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Reduces the image to a grid of luminance values, each cell being the
+     * mean luminance of its area of the image. The rows of the image are
+     * read once when the image is larger than the grid.
+     * @param image the image
+     * @param width the width of the grid
+     * @param height the height of the grid
+     * @return the luminance of the cells, row by row
+     */
+    private static double[] reduce(BufferedImage image, int width, int height) {
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int[] left = new int[width + 1];
+        for (int x = 0; x <= width; x++) {
+            left[x] = (int) ((long) imageWidth * x / width);
+        }
+        double[] grid = new double[width * height];
+        long[] sums = new long[width];
+        int[] row = new int[imageWidth];
+        for (int y = 0; y < height; y++) {
+            int top = (int) ((long) imageHeight * y / height);
+            // Images smaller than the grid have cells of at least one pixel
+            int bottom = Math.max((int) ((long) imageHeight * (y + 1) / height), top + 1);
+            Arrays.fill(sums, 0);
+            for (int sy = top; sy < bottom; sy++) {
+                image.getRGB(0, sy, imageWidth, 1, row, 0, imageWidth);
+                for (int x = 0; x < width; x++) {
+                    int end = Math.max(left[x + 1], left[x] + 1);
+                    for (int sx = left[x]; sx < end; sx++) {
+                        int rgb = row[sx];
+                        sums[x] += 77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF);
+                    }
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                int area = (bottom - top) * Math.max(left[x + 1] - left[x], 1);
+                grid[y * width + x] = sums[x] / (256.0 * area);
+            }
+        }
+        return grid;
+    }
+
+    private static long averageHash(double[] grid) {
+        double mean = 0;
+        for (double value : grid) {
+            mean += value;
+        }
+        mean /= grid.length;
+        long hash = 0;
+        for (double value : grid) {
+            hash = hash << 1 | (value > mean ? 1 : 0);
+        }
+        return hash;
+    }
+
+    private static long differenceHash(double[] grid) {
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash = hash << 1 | (grid[y * 9 + x] > grid[y * 9 + x + 1] ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the DCT hash of a 32x32 grid. Only the 8x8 lowest frequencies
+     * are computed, as two products by the 8x32 cosine matrix.
+     */
+    private static long dctHash(double[] grid) {
+        // The DCT of the columns, for the lowest frequencies
+        double[] columns = new double[FREQUENCIES * 32];
+        for (int v = 0; v < FREQUENCIES; v++) {
+            for (int x = 0; x < 32; x++) {
+                double sum = 0;
+                for (int y = 0; y < 32; y++) {
+                    sum += COSINES[v * 32 + y] * grid[y * 32 + x];
+                }
+                columns[v * 32 + x] = sum;
+            }
+        }
+        double[] frequencies = new double[FREQUENCIES * FREQUENCIES];
+        for (int v = 0; v < FREQUENCIES; v++) {
+            for (int u = 0; u < FREQUENCIES; u++) {
+                double sum = 0;
+                for (int x = 0; x < 32; x++) {
+                    sum += COSINES[u * 32 + x] * columns[v * 32 + x];
+                }
+                frequencies[v * FREQUENCIES + u] = sum;
+            }
+        }
+        double[] sorted = frequencies.clone();
+        Arrays.sort(sorted);
+        double median = (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+        long hash = 0;
+        for (double frequency : frequencies) {
+            hash = hash << 1 | (frequency > median ? 1 : 0);
+        }
+        return hash;
+    }
+
+}
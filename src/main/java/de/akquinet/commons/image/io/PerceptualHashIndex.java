@@ -0,0 +1,325 @@
+package de.akquinet.commons.image.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the {@link PerceptualHash perceptual hashes} within a Hamming
+ * distance of a hash, among millions of hashes, with multi-index hashing:
+ * the 64 bits of the hashes are split in <code>m</code> substrings, each
+ * indexed in its own table. Two hashes within a distance <code>r</code>
+ * have at least one substring within a distance <code>r / m</code>, so the
+ * candidates are found by probing the buckets of the substrings of the hash
+ * and of their close variants, and only the candidates are compared. The
+ * number of substrings is chosen so the buckets hold a few hashes each, and
+ * the buckets store the hashes themselves, so comparing the candidates
+ * reads contiguous memory.
+ * <p/>
+ * The tables are built when the index is first searched after hashes were
+ * added, as sorted arrays of positions. Adding all the hashes then
+ * searching is much faster than alternating additions and searches. The
+ * searches can be run concurrently.
+ *
+ * @param <T> the type of the values associated to the hashes, typically
+ * file names or identifiers
+ */
+public final class PerceptualHashIndex<T> {
+
+    /**
+     * The maximum number of substrings.
+     */
+    private static final int MAX_SUBSTRINGS = 8;
+
+    /**
+     * The minimum number of bits of the substrings, so small indexes don't
+     * use too many tables.
+     */
+    private static final int MIN_BITS = 8;
+
+    /**
+     * The maximum number of bits of the substrings, limiting the size of
+     * the bucket offsets.
+     */
+    private static final int MAX_BITS = 24;
+
+    /**
+     * A hash found by a search.
+     *
+     * @param <T> the type of the value
+     */
+    public static final class Match<T> {
+
+        private final long m_hash;
+
+        private final T m_value;
+
+        private final int m_distance;
+
+        private Match(long hash, T value, int distance) {
+            m_hash = hash;
+            m_value = value;
+            m_distance = distance;
+        }
+
+        /**
+         * Gets the hash found.
+         * @return the hash
+         */
+        public long getHash() {
+            return m_hash;
+        }
+
+        /**
+         * Gets the value associated to the hash found.
+         * @return the value
+         */
+        public T getValue() {
+            return m_value;
+        }
+
+        /**
+         * Gets the Hamming distance between the hash found and the searched hash.
+         * @return the distance
+         */
+        public int getDistance() {
+            return m_distance;
+        }
+    }
+
+    /**
+     * The tables of the substrings, built for a given number of hashes.
+     */
+    private static final class Tables {
+
+        /**
+         * The number of hashes indexed.
+         */
+        private final int m_count;
+
+        /**
+         * The first bit of each substring, and the end of the last one.
+         */
+        private final int[] m_bounds;
+
+        /**
+         * The start of each bucket in the positions, by substring then value
+         * of the substring.
+         */
+        private final int[][] m_offsets;
+
+        /**
+         * The positions of the hashes, by substring then bucket.
+         */
+        private final int[][] m_positions;
+
+        /**
+         * The hashes, in the order of the positions, so the candidates of a
+         * bucket are compared without reading the hashes at random.
+         */
+        private final long[][] m_hashes;
+
+        Tables(long[] hashes, int count) {
+            m_count = count;
+            int bits = 64 - Long.numberOfLeadingZeros(Math.max(count, 1));
+            int substrings = Math.max(64 / MAX_BITS + 1,
+                    Math.min(MAX_SUBSTRINGS, 64 / Math.max(bits, MIN_BITS)));
+            m_bounds = new int[substrings + 1];
+            for (int i = 0; i <= substrings; i++) {
+                m_bounds[i] = 64 * i / substrings;
+            }
+            m_offsets = new int[substrings][];
+            m_positions = new int[substrings][];
+            m_hashes = new long[substrings][];
+            for (int s = 0; s < substrings; s++) {
+                // Counting sort of the positions by value of the substring
+                int[] offsets = new int[(1 << getBits(s)) + 1];
+                for (int i = 0; i < count; i++) {
+                    offsets[getKey(hashes[i], s) + 1]++;
+                }
+                for (int k = 1; k < offsets.length; k++) {
+                    offsets[k] += offsets[k - 1];
+                }
+                int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+                int[] positions = new int[count];
+                long[] sorted = new long[count];
+                for (int i = 0; i < count; i++) {
+                    int position = next[getKey(hashes[i], s)]++;
+                    positions[position] = i;
+                    sorted[position] = hashes[i];
+                }
+                m_offsets[s] = offsets;
+                m_positions[s] = positions;
+                m_hashes[s] = sorted;
+            }
+        }
+
+        int getSubstrings() {
+            return m_bounds.length - 1;
+        }
+
+        int getBits(int substring) {
+            return m_bounds[substring + 1] - m_bounds[substring];
+        }
+
+        int getKey(long hash, int substring) {
+            return (int) ((hash >>> m_bounds[substring]) & ((1L << getBits(substring)) - 1));
+        }
+    }
+
+    /**
+     * The hashes, in order of addition.
+     */
+    private long[] m_hashes = new long[1024];
+
+    /**
+     * The values of the hashes.
+     */
+    private final List<T> m_values = new ArrayList<T>();
+
+    /**
+     * The tables, <code>null</code> if hashes were added since they were built.
+     */
+    private Tables m_tables;
+
+    /**
+     * Adds a hash.
+     * @param hash the hash
+     * @param value the value associated to the hash
+     */
+    public synchronized void add(long hash, T value) {
+        int count = m_values.size();
+        if (count == m_hashes.length) {
+            m_hashes = Arrays.copyOf(m_hashes, count * 2);
+        }
+        m_hashes[count] = hash;
+        m_values.add(value);
+        m_tables = null;
+    }
+
+    /**
+     * Gets the number of hashes.
+     * @return the number of hashes
+     */
+    public synchronized int size() {
+        return m_values.size();
+    }
+
+    /**
+     * Finds the hashes within the given distance of a hash, including the
+     * hash itself if it was added.
+     * @param hash the hash
+     * @param distance the maximum Hamming distance
+     * @return the hashes found, in order of addition
+     */
+    public List<Match<T>> search(long hash, int distance) {
+        if (distance < 0) {
+            throw new IllegalArgumentException("Invalid distance : " + distance);
+        }
+        long[] hashes;
+        List<T> values;
+        Tables tables;
+        synchronized (this) {
+            if (m_tables == null) {
+                m_tables = new Tables(m_hashes, m_values.size());
+            }
+            tables = m_tables;
+            hashes = m_hashes;
+            values = m_values;
+        }
+        int[] found = find(tables, hashes, hash, distance);
+        List<Match<T>> matches = new ArrayList<Match<T>>(found.length);
+        synchronized (this) {
+            for (int position : found) {
+                long other = hashes[position];
+                matches.add(new Match<T>(other, values.get(position), Long.bitCount(other ^ hash)));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the positions of the hashes within the distance of the hash,
+     * by probing the buckets of the substrings within <code>distance / m</code>
+     * of the substrings of the hash. All the hashes are compared when
+     * probing the buckets would cost more.
+     * @return the sorted positions
+     */
+    private static int[] find(Tables tables, long[] hashes, long hash, int distance) {
+        int substrings = tables.getSubstrings();
+        int radius = distance / substrings;
+        long probes = 0;
+        for (int s = 0; s < substrings; s++) {
+            probes += countVariants(tables.getBits(s), radius);
+        }
+        int[] found = new int[16];
+        int size = 0;
+        if (probes >= tables.m_count) {
+            for (int i = 0; i < tables.m_count; i++) {
+                if (Long.bitCount(hashes[i] ^ hash) <= distance) {
+                    if (size == found.length) {
+                        found = Arrays.copyOf(found, size * 2);
+                    }
+                    found[size++] = i;
+                }
+            }
+            return Arrays.copyOf(found, size);
+        }
+        for (int s = 0; s < substrings; s++) {
+            int key = tables.getKey(hash, s);
+            int[] variants = new int[(int) countVariants(tables.getBits(s), radius)];
+            int count = addVariants(key, tables.getBits(s), radius, 0, variants, 0);
+            int[] offsets = tables.m_offsets[s];
+            int[] positions = tables.m_positions[s];
+            long[] bucketHashes = tables.m_hashes[s];
+            for (int v = 0; v < count; v++) {
+                for (int i = offsets[variants[v]], end = offsets[variants[v] + 1]; i < end; i++) {
+                    if (Long.bitCount(bucketHashes[i] ^ hash) <= distance) {
+                        if (size == found.length) {
+                            found = Arrays.copyOf(found, size * 2);
+                        }
+                        found[size++] = positions[i];
+                    }
+                }
+            }
+        }
+        // A hash may be found through several substrings
+        Arrays.sort(found, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || found[unique - 1] != found[i]) {
+                found[unique++] = found[i];
+            }
+        }
+        return Arrays.copyOf(found, unique);
+    }
+
+    /**
+     * Counts the values of <code>bits</code> bits within the given distance of a value.
+     */
+    private static long countVariants(int bits, int radius) {
+        long count = 0;
+        long combinations = 1;
+        for (int i = 0; i <= Math.min(radius, bits); i++) {
+            count += combinations;
+            combinations = combinations * (bits - i) / (i + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Enumerates the values within the given distance of a value, flipping
+     * the bits from the given one.
+     * @return the number of values in the array
+     */
+    private static int addVariants(int key, int bits, int radius, int first, int[] variants, int count) {
+        variants[count++] = key;
+        if (radius > 0) {
+            for (int bit = first; bit < bits; bit++) {
+                count = addVariants(key ^ (1 << bit), bits, radius - 1, bit + 1, variants, count);
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,168 @@
+package de.akquinet.commons.image.io;
+
+/**
+ * The inner loops of the pixel operations working on the raster arrays.
+ * This class implements them with plain scalar code. When the library is
+ * built with the <code>vector</code> profile and runs on a Java 17+ VM
+ * started with <code>--add-modules jdk.incubator.vector</code>,
+ * {@link PixelKernels#getInstance()} returns an implementation using the
+ * SIMD instructions of the CPU instead. Both implementations give exactly
+ * the same results.
+ * <p/>
+ * The vector implementation can be disabled by setting the
+ * {@link PixelKernels#DISABLE_VECTOR_PROPERTY} system property to
+ * <code>true</code>.
+ */
+class PixelKernels {
+
+    /**
+     * The system property disabling the vector implementation.
+     */
+    static final String DISABLE_VECTOR_PROPERTY = "de.akquinet.commons.image.io.disableVector";
+
+    /**
+     * The class of the vector implementation, only available when the
+     * library is built with the <code>vector</code> profile.
+     */
+    private static final String VECTOR_IMPLEMENTATION = "de.akquinet.commons.image.io.VectorPixelKernels";
+
+    /**
+     * The kernels in use.
+     */
+    private static PixelKernels m_instance;
+
+    /**
+     * Gets the kernels to use: the vector implementation if available,
+     * the scalar one otherwise.
+     * @return the kernels
+     */
+    static synchronized PixelKernels getInstance() {
+        if (m_instance == null) {
+            m_instance = load();
+        }
+        return m_instance;
+    }
+
+    /**
+     * Loads the vector implementation, falling back to the scalar one.
+     * @return the kernels
+     */
+    private static PixelKernels load() {
+        if (!Boolean.getBoolean(DISABLE_VECTOR_PROPERTY)) {
+            try {
+                return (PixelKernels) Class.forName(VECTOR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                // Ignore, the vector implementation is not available
+            } catch (LinkageError e) {
+                // Ignore, the VM is too old or the incubator module is not enabled
+            }
+        }
+        return new PixelKernels();
+    }
+
+    /**
+     * Checks whether the kernels use SIMD instructions.
+     * @return <code>true</code> for the vector implementation
+     */
+    boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Adds the weighted values to the accumulator:
+     * <code>accumulator[i] += values[offset + i] * weight</code>.
+     * @param values the values
+     * @param offset the index of the first value
+     * @param weight the weight
+     * @param accumulator the accumulator
+     * @param length the number of values
+     */
+    void multiplyAdd(float[] values, int offset, float weight, float[] accumulator, int length) {
+        for (int i = 0; i < length; i++) {
+            accumulator[i] += values[offset + i] * weight;
+        }
+    }
+
+    /**
+     * Adds the weighted values to the accumulator:
+     * <code>accumulator[i] += values[i] * weight</code>.
+     * @param values the values
+     * @param weight the weight
+     * @param accumulator the accumulator
+     * @param length the number of values
+     */
+    void multiplyAdd(int[] values, int weight, int[] accumulator, int length) {
+        for (int i = 0; i < length; i++) {
+            accumulator[i] += values[i] * weight;
+        }
+    }
+
+    /**
+     * Makes transparent the pixels whose red, green and blue components all
+     * differ by at most the given tolerance from the ones of the key color.
+     * The alpha component of these pixels is cleared, their color is kept.
+     * @param pixels the packed ARGB pixels
+     * @param offset the index of the first pixel
+     * @param length the number of pixels
+     * @param rgb the key color, its alpha component is ignored
+     * @param tolerance the maximum difference of each component, from 0 to 255
+     */
+    void keyColor(int[] pixels, int offset, int length, int rgb, int tolerance) {
+        int red = (rgb >> 16) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int blue = rgb & 0xFF;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int p = pixels[i];
+            if (Math.abs(((p >> 16) & 0xFF) - red) <= tolerance
+                    && Math.abs(((p >> 8) & 0xFF) - green) <= tolerance
+                    && Math.abs((p & 0xFF) - blue) <= tolerance) {
+                pixels[i] = p & 0x00FFFFFF;
+            }
+        }
+    }
+
+    /**
+     * Composites premultiplied pixels over other pixels (source over
+     * destination): <code>target = source + target * (1 - source alpha)</code>,
+     * on each component, rounded to the nearest integer. The target pixels
+     * are premultiplied ARGB pixels, or RGB pixels whose alpha component is
+     * ignored. The source pixels with alpha 0 leave the target pixels
+     * unchanged, even if their color components are not 0.
+     * @param source the premultiplied ARGB pixels to composite
+     * @param sourceOffset the index of the first source pixel
+     * @param target the pixels to composite onto
+     * @param targetOffset the index of the first target pixel
+     * @param length the number of pixels
+     */
+    void blend(int[] source, int sourceOffset, int[] target, int targetOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int s = source[sourceOffset + i];
+            int alpha = s >>> 24;
+            if (alpha == 0) {
+                continue;
+            }
+            if (alpha == 255) {
+                target[targetOffset + i] = s;
+                continue;
+            }
+            target[targetOffset + i] = s + scale(target[targetOffset + i], 255 - alpha);
+        }
+    }
+
+    /**
+     * Multiplies the 4 components of a pixel by a factor, as if they were
+     * between 0 and 1, the red and blue then alpha and green components
+     * being computed at once.
+     * @param p the pixel
+     * @param factor the factor, from 0 to 255
+     * @return the pixel
+     */
+    static int scale(int p, int factor) {
+        int rb = (p & 0xFF00FF) * factor + 0x800080;
+        rb = ((rb + ((rb >>> 8) & 0xFF00FF)) >>> 8) & 0xFF00FF;
+        int ag = ((p >>> 8) & 0xFF00FF) * factor + 0x800080;
+        ag = (ag + ((ag >>> 8) & 0xFF00FF)) & 0xFF00FF00;
+        return ag | rb;
+    }
+
+}
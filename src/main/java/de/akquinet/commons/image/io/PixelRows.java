@@ -0,0 +1,265 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reads and writes the rows of a {@link BufferedImage} as interleaved 8 bits
+ * channel values, working directly on the data buffer of the image.
+ * Colors are always exchanged premultiplied by the alpha channel, so they
+ * can be interpolated. Only the standard 8 bits per channel image types are
+ * supported, see {@link PixelRows#isSupported(BufferedImage)}.
+ * <p/>
+ * Instances are not thread safe, but several instances can work on distinct
+ * rows of the same image concurrently.
+ */
+final class PixelRows {
+
+    /**
+     * The int data, <code>null</code> for byte images.
+     */
+    private final int[] m_ints;
+
+    /**
+     * The byte data, <code>null</code> for int images.
+     */
+    private final byte[] m_bytes;
+
+    /**
+     * The index of the first pixel of the image in the data.
+     */
+    private final int m_offset;
+
+    /**
+     * The distance between two rows in the data.
+     */
+    private final int m_scanlineStride;
+
+    /**
+     * The number of channels.
+     */
+    private final int m_channels;
+
+    /**
+     * The index of the alpha channel, <code>-1</code> if the image is opaque.
+     */
+    private final int m_alpha;
+
+    /**
+     * Whether the image stores colors not premultiplied by the alpha channel,
+     * in which case they are converted on read and write.
+     */
+    private final boolean m_convertAlpha;
+
+    /**
+     * The image width.
+     */
+    private final int m_width;
+
+    /**
+     * The image height.
+     */
+    private final int m_height;
+
+    /**
+     * Creates a PixelRows for the given image.
+     * @param image the image, must be supported
+     * @see PixelRows#isSupported(BufferedImage)
+     */
+    PixelRows(BufferedImage image) {
+        if (!isSupported(image)) {
+            throw new IllegalArgumentException("Unsupported image type : " + image.getType());
+        }
+        WritableRaster raster = image.getRaster();
+        SampleModel model = raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        m_width = image.getWidth();
+        m_height = image.getHeight();
+
+        if (buffer instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) model;
+            m_ints = ((DataBufferInt) buffer).getData();
+            m_bytes = null;
+            m_scanlineStride = packed.getScanlineStride();
+            m_offset = buffer.getOffset() - ty * m_scanlineStride - tx;
+            // Channels are read from the most significant byte, the alpha comes first
+            if (image.getColorModel().hasAlpha()) {
+                m_channels = 4;
+                m_alpha = 0;
+            } else {
+                m_channels = 3;
+                m_alpha = -1;
+            }
+        } else {
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) model;
+            m_ints = null;
+            m_bytes = ((DataBufferByte) buffer).getData();
+            m_channels = interleaved.getPixelStride();
+            m_scanlineStride = interleaved.getScanlineStride();
+            int[] offsets = interleaved.getBandOffsets();
+            int first = offsets[0];
+            for (int offset : offsets) {
+                first = Math.min(first, offset);
+            }
+            m_offset = buffer.getOffset() - ty * m_scanlineStride - tx * m_channels + first;
+            // The alpha band is the last one, channels are read in memory order
+            m_alpha = image.getColorModel().hasAlpha() ? offsets[offsets.length - 1] - first : -1;
+        }
+        m_convertAlpha = m_alpha >= 0 && !image.isAlphaPremultiplied();
+    }
+
+    /**
+     * Checks whether the rows of the given image can be read and written.
+     * Supported types are <code>TYPE_INT_RGB</code>, <code>TYPE_INT_BGR</code>,
+     * <code>TYPE_INT_ARGB</code>, <code>TYPE_INT_ARGB_PRE</code>,
+     * <code>TYPE_3BYTE_BGR</code>, <code>TYPE_4BYTE_ABGR</code>,
+     * <code>TYPE_4BYTE_ABGR_PRE</code> and <code>TYPE_BYTE_GRAY</code>.
+     * @param image the image
+     * @return <code>true</code> if the image is supported
+     */
+    static boolean isSupported(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gets the number of channels of a pixel.
+     * @return the number of channels, 1, 3 or 4
+     */
+    int getChannels() {
+        return m_channels;
+    }
+
+    /**
+     * Gets the index of the alpha channel.
+     * @return the index of the alpha channel, <code>-1</code> if the image is opaque
+     */
+    int getAlphaChannel() {
+        return m_alpha;
+    }
+
+    int getWidth() {
+        return m_width;
+    }
+
+    int getHeight() {
+        return m_height;
+    }
+
+    /**
+     * Reads a row.
+     * @param y the row index
+     * @param row the channel values, at least <code>width * channels</code> long
+     */
+    void read(int y, int[] row) {
+        int index = m_offset + y * m_scanlineStride;
+        int length = m_width * m_channels;
+        if (m_ints != null) {
+            int[] ints = m_ints;
+            if (m_channels == 3) {
+                for (int i = 0; i < length; i += 3, index++) {
+                    int pixel = ints[index];
+                    row[i] = (pixel >> 16) & 0xFF;
+                    row[i + 1] = (pixel >> 8) & 0xFF;
+                    row[i + 2] = pixel & 0xFF;
+                }
+            } else {
+                for (int i = 0; i < length; i += 4, index++) {
+                    int pixel = ints[index];
+                    row[i] = pixel >>> 24;
+                    row[i + 1] = (pixel >> 16) & 0xFF;
+                    row[i + 2] = (pixel >> 8) & 0xFF;
+                    row[i + 3] = pixel & 0xFF;
+                }
+            }
+        } else {
+            byte[] bytes = m_bytes;
+            for (int i = 0; i < length; i++) {
+                row[i] = bytes[index + i] & 0xFF;
+            }
+        }
+        if (m_convertAlpha) {
+            premultiply(row, length);
+        }
+    }
+
+    /**
+     * Writes a row. The given values are modified if the image does not store
+     * premultiplied colors.
+     * @param y the row index
+     * @param row the channel values, at least <code>width * channels</code> long
+     */
+    void write(int y, int[] row) {
+        int index = m_offset + y * m_scanlineStride;
+        int length = m_width * m_channels;
+        if (m_convertAlpha) {
+            unpremultiply(row, length);
+        }
+        if (m_ints != null) {
+            int[] ints = m_ints;
+            if (m_channels == 3) {
+                for (int i = 0; i < length; i += 3, index++) {
+                    ints[index] = (row[i] << 16) | (row[i + 1] << 8) | row[i + 2];
+                }
+            } else {
+                for (int i = 0; i < length; i += 4, index++) {
+                    ints[index] = (row[i] << 24) | (row[i + 1] << 16) | (row[i + 2] << 8) | row[i + 3];
+                }
+            }
+        } else {
+            byte[] bytes = m_bytes;
+            for (int i = 0; i < length; i++) {
+                bytes[index + i] = (byte) row[i];
+            }
+        }
+    }
+
+    private void premultiply(int[] row, int length) {
+        int channels = m_channels;
+        for (int i = 0; i < length; i += channels) {
+            int a = row[i + m_alpha];
+            if (a == 0xFF) {
+                continue;
+            }
+            for (int c = 0; c < channels; c++) {
+                if (c != m_alpha) {
+                    row[i + c] = (row[i + c] * a + 127) / 255;
+                }
+            }
+        }
+    }
+
+    private void unpremultiply(int[] row, int length) {
+        int channels = m_channels;
+        for (int i = 0; i < length; i += channels) {
+            int a = row[i + m_alpha];
+            if (a == 0xFF) {
+                continue;
+            }
+            for (int c = 0; c < channels; c++) {
+                if (c != m_alpha) {
+                    row[i + c] = a == 0 ? 0 : Math.min(0xFF, (row[i + c] * 255 + a / 2) / a);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.util.Arrays;
+
+/**
+ * Converts images to a small set of image types for which Java2D provides
+ * native rendering loops. Images of other types, such as
+ * <code>TYPE_CUSTOM</code> images decoded from PNG or CMYK JPEG files, or
+ * indexed images, are drawn through the generic rendering loop, which is
+ * one order of magnitude slower, and cannot be used to create new images of
+ * the same type. Helpers normalize their input once, so all the following
+ * drawing operations use the fast loops.
+ * <p/>
+ * Instances are immutable and can be shared between helpers.
+ */
+public final class RasterNormalizer {
+
+    /**
+     * The image types accepted as they are by {@link RasterNormalizer#DEFAULT}.
+     */
+    private static final int[] STANDARD_TYPES = new int[] {
+        BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_INT_BGR,
+        BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_INT_ARGB_PRE,
+        BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_4BYTE_ABGR_PRE,
+        BufferedImage.TYPE_BYTE_GRAY
+    };
+
+    /**
+     * Keeps the standard 8 bits per channel RGB, ARGB and gray images as they
+     * are, and converts the other images to <code>TYPE_INT_RGB</code>,
+     * <code>TYPE_INT_ARGB_PRE</code> or <code>TYPE_BYTE_GRAY</code>.
+     * This is the default normalizer of the helpers.
+     */
+    public static final RasterNormalizer DEFAULT = new RasterNormalizer(BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_BYTE_GRAY, STANDARD_TYPES);
+
+    /**
+     * Converts all the images to <code>TYPE_INT_RGB</code>,
+     * <code>TYPE_INT_ARGB_PRE</code> or <code>TYPE_BYTE_GRAY</code>, except
+     * the <code>TYPE_3BYTE_BGR</code> images. The result of a pipeline only
+     * depends on the colors of its input, not on the way they are stored.
+     */
+    public static final RasterNormalizer STRICT = new RasterNormalizer(BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_BYTE_GRAY,
+            BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB_PRE,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY);
+
+    /**
+     * The type of the converted opaque color images.
+     */
+    private final int m_opaqueType;
+
+    /**
+     * The type of the converted images with an alpha channel.
+     */
+    private final int m_alphaType;
+
+    /**
+     * The type of the converted opaque gray images.
+     */
+    private final int m_grayType;
+
+    /**
+     * The types kept as they are, sorted.
+     */
+    private final int[] m_acceptedTypes;
+
+    /**
+     * Creates a RasterNormalizer.
+     * @param opaqueType the type of the converted opaque color images
+     * @param alphaType the type of the converted images having an alpha channel
+     * @param grayType the type of the converted opaque gray images
+     * @param acceptedTypes the types of the images kept as they are
+     * @throws IllegalArgumentException if one of the types is <code>TYPE_CUSTOM</code>
+     */
+    public RasterNormalizer(int opaqueType, int alphaType, int grayType, int... acceptedTypes) {
+        if (opaqueType == BufferedImage.TYPE_CUSTOM || alphaType == BufferedImage.TYPE_CUSTOM
+                || grayType == BufferedImage.TYPE_CUSTOM) {
+            throw new IllegalArgumentException("Images cannot be converted to TYPE_CUSTOM");
+        }
+        m_opaqueType = opaqueType;
+        m_alphaType = alphaType;
+        m_grayType = grayType;
+        m_acceptedTypes = acceptedTypes.clone();
+        Arrays.sort(m_acceptedTypes);
+        if (isAccepted(BufferedImage.TYPE_CUSTOM)) {
+            throw new IllegalArgumentException("TYPE_CUSTOM images cannot be accepted");
+        }
+    }
+
+    /**
+     * Checks whether images of the given type are kept as they are.
+     * @param type the image type
+     * @return <code>true</code> if the type is accepted
+     */
+    public boolean isAccepted(int type) {
+        return Arrays.binarySearch(m_acceptedTypes, type) >= 0;
+    }
+
+    /**
+     * Gets the type of the given image once normalized.
+     * @param image the image
+     * @return the image type if it's accepted, the type the image would be converted to otherwise
+     */
+    public int getNormalizedType(BufferedImage image) {
+        if (isAccepted(image.getType())) {
+            return image.getType();
+        }
+        ColorModel model = image.getColorModel();
+        if (model.hasAlpha()) {
+            return m_alphaType;
+        }
+        if (model.getColorSpace().getType() == ColorSpace.TYPE_GRAY) {
+            return m_grayType;
+        }
+        return m_opaqueType;
+    }
+
+    /**
+     * Normalizes the given image.
+     * @param image the image
+     * @return the given image if its type is accepted, a converted copy otherwise
+     */
+    public BufferedImage normalize(BufferedImage image) {
+        int type = getNormalizedType(image);
+        if (type == image.getType()) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D graphics = converted.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return converted;
+    }
+
+}
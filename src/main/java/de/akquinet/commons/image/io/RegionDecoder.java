@@ -0,0 +1,97 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.color.CMMException;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes a region of an image, subsampled by the decoder, with Image-IO.
+ * Only the needed pixels are converted and stored, which is much faster and
+ * uses much less memory than decoding the whole image when producing small
+ * images from large ones. CMYK and YCCK JPEG streams, and JPEG streams with
+ * an embedded color profile, are converted by the {@link JPEGColorDecoder}.
+ * The images decoded in another color space than sRGB are converted by
+ * {@link ColorProfiles#toSRGB(BufferedImage)}.
+ */
+final class RegionDecoder {
+
+    /**
+     * Configures the decoding once the size of the image is known.
+     */
+    interface Plan {
+        /**
+         * Sets the source region and the subsampling to use.
+         * @param width the width of the image, as stored
+         * @param height the height of the image, as stored
+         * @param param the parameters to configure
+         */
+        void configure(int width, int height, ImageReadParam param);
+    }
+
+    private RegionDecoder() {
+        // Utility class
+    }
+
+    /**
+     * Decodes the image.
+     * @param input the image stream, may be <code>null</code>
+     * @param plan the decoding plan
+     * @param pool the pool converting the colors of the managed images in
+     * parallel, <code>null</code> to convert them in the current thread
+     * @return the image, <code>null</code> if Image-IO cannot read it
+     * @throws IOException if the stream cannot be read
+     */
+    static BufferedImage read(ImageInputStream input, Plan plan, ForkJoinPool pool) throws IOException {
+        if (input == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            JPEGColorDecoder.Header header = JPEGColorDecoder.readHeader(input);
+            ColorProfiles.Table table = JPEGColorDecoder.getTable(header);
+            reader.setInput(input, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            plan.configure(reader.getWidth(0), reader.getHeight(0), param);
+            if (table != null) {
+                // The region and the subsampling also apply to the raw samples
+                return JPEGColorDecoder.convert(reader.readRaster(0, param), header, table, pool);
+            }
+            return ColorProfiles.toSRGB(reader.read(0, param), pool);
+        } catch (IOException e) {
+            // Ignore, the caller falls back to IOHelper
+            return null;
+        } catch (CMMException e) {
+            // Ignore, the caller falls back to IOHelper
+            return null;
+        } catch (IllegalArgumentException e) {
+            // Ignore, the caller falls back to IOHelper
+            return null;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Computes the subsampling factor to use so the decoded image stays at
+     * least twice as large as the desired size, which limits the quality
+     * loss of the subsampling.
+     * @param size the size of the decoded region
+     * @param target the desired size
+     * @return the subsampling factor, at least 1
+     */
+    static int getSubsampling(int size, int target) {
+        return Math.max(1, size / (Math.max(target, 1) * 2));
+    }
+
+}
@@ -0,0 +1,355 @@
+package de.akquinet.commons.image.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of encoded images (renditions), bounded by the total number of
+ * bytes it stores. A rendition is identified by a {@link Key}: the source
+ * image, the operations applied to it and the output format and quality.
+ * On a cache hit, the stored bytes are returned without decoding, scaling
+ * or encoding anything.
+ * <p/>
+ * When the budget is exceeded, the least recently used renditions are
+ * evicted. Renditions larger than the budget are never stored. The cache
+ * counts the hits, misses and evictions, so its efficiency can be
+ * monitored.
+ * <p/>
+ * The cache is thread safe. When several threads miss the same rendition
+ * at the same time, each of them produces it and the last one is kept.
+ */
+public class RenditionCache {
+
+    /**
+     * The default budget: 64 MB.
+     */
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * The quality used in the keys of renditions encoded with the default
+     * quality of their format.
+     */
+    public static final float DEFAULT_QUALITY = -1f;
+
+    /**
+     * Identifies a rendition.
+     */
+    public static final class Key {
+
+        /**
+         * The identity of the source image.
+         */
+        private final String m_source;
+
+        /**
+         * The description of the operations applied to the source image.
+         */
+        private final String m_operations;
+
+        /**
+         * The output format.
+         */
+        private final Format m_format;
+
+        /**
+         * The output quality, {@link RenditionCache#DEFAULT_QUALITY} for
+         * the default quality.
+         */
+        private final float m_quality;
+
+        /**
+         * Creates a Key.
+         * @param source the identity of the source image, see
+         * {@link RenditionCache#getSourceIdentity(File)} and
+         * {@link RenditionCache#getSourceIdentity(byte[])}
+         * @param operations the description of the operations applied to the
+         * source image, the same operations must always have the same
+         * description
+         * @param format the output format
+         * @param quality the output quality, {@link RenditionCache#DEFAULT_QUALITY}
+         * for the default quality of the format
+         */
+        public Key(String source, String operations, Format format, float quality) {
+            if (source == null || operations == null || format == null) {
+                throw new IllegalArgumentException(
+                        "Cannot create the key : the source, the operations and the format cannot be null");
+            }
+            m_source = source;
+            m_operations = operations;
+            m_format = format;
+            m_quality = quality;
+        }
+
+        /**
+         * Gets the identity of the source image.
+         * @return the source identity
+         */
+        public String getSource() {
+            return m_source;
+        }
+
+        /**
+         * Gets the description of the operations applied to the source image.
+         * @return the operations
+         */
+        public String getOperations() {
+            return m_operations;
+        }
+
+        /**
+         * Gets the output format.
+         * @return the format
+         */
+        public Format getFormat() {
+            return m_format;
+        }
+
+        /**
+         * Gets the output quality.
+         * @return the quality, {@link RenditionCache#DEFAULT_QUALITY} for the
+         * default quality of the format
+         */
+        public float getQuality() {
+            return m_quality;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return m_source.equals(other.m_source)
+                    && m_operations.equals(other.m_operations)
+                    && m_format == other.m_format
+                    && Float.floatToIntBits(m_quality) == Float.floatToIntBits(other.m_quality);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = m_source.hashCode();
+            hash = 31 * hash + m_operations.hashCode();
+            hash = 31 * hash + m_format.hashCode();
+            return 31 * hash + Float.floatToIntBits(m_quality);
+        }
+
+        @Override
+        public String toString() {
+            return m_source + " " + m_operations + " " + m_format
+                    + (m_quality == DEFAULT_QUALITY ? "" : " " + m_quality);
+        }
+    }
+
+    /**
+     * Produces a rendition missing from the cache.
+     */
+    public interface Producer {
+        /**
+         * Decodes, processes and encodes the image.
+         * @return the encoded rendition
+         * @throws IOException if the rendition cannot be produced
+         */
+        byte[] produce() throws IOException;
+    }
+
+    /**
+     * The renditions, from the least recently used to the most recently used.
+     */
+    private final LinkedHashMap<Key, byte[]> m_entries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+    /**
+     * The maximum number of bytes to store.
+     */
+    private final long m_budget;
+
+    /**
+     * The number of bytes stored.
+     */
+    private long m_size;
+
+    /**
+     * The number of hits.
+     */
+    private long m_hits;
+
+    /**
+     * The number of misses.
+     */
+    private long m_misses;
+
+    /**
+     * The number of evicted renditions.
+     */
+    private long m_evictions;
+
+    /**
+     * Creates a RenditionCache storing at most the given number of bytes.
+     * @param budget the maximum number of bytes to store
+     */
+    public RenditionCache(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("The budget must be positive : " + budget);
+        }
+        m_budget = budget;
+    }
+
+    /**
+     * Creates a RenditionCache using the {@link RenditionCache#DEFAULT_BUDGET}.
+     */
+    public RenditionCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Computes the identity of an image file from its canonical path, its
+     * length and its last modification date, so the renditions of a file
+     * are not served anymore once it's modified. The file is not read.
+     * @param file the image file
+     * @return the identity of the file
+     * @throws IOException if the canonical path cannot be computed
+     */
+    public static String getSourceIdentity(File file) throws IOException {
+        return "file:" + file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * Computes the identity of an image stream from its SHA-1 hash.
+     * @param bytes the image stream
+     * @return the identity of the stream
+     */
+    public static String getSourceIdentity(byte[] bytes) {
+        return "sha1:" + IOHelper.sha1(bytes);
+    }
+
+    /**
+     * Gets a rendition from the cache. The returned array is a copy, it can
+     * be modified by the caller.
+     * @param key the key of the rendition
+     * @return the encoded rendition, <code>null</code> if not cached
+     */
+    public synchronized byte[] get(Key key) {
+        byte[] bytes = m_entries.get(key);
+        if (bytes == null) {
+            m_misses++;
+            return null;
+        }
+        m_hits++;
+        return bytes.clone();
+    }
+
+    /**
+     * Gets a rendition from the cache, or produces and stores it if not cached.
+     * @param key the key of the rendition
+     * @param producer produces the rendition on cache misses
+     * @return the encoded rendition
+     * @throws IOException if the rendition cannot be produced
+     */
+    public byte[] get(Key key, Producer producer) throws IOException {
+        byte[] bytes = get(key);
+        if (bytes == null) {
+            // The lock is not held while producing, other renditions can be served meanwhile
+            bytes = producer.produce();
+            put(key, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Stores a rendition, evicting the least recently used renditions if the
+     * budget is exceeded. The array is copied. Renditions larger than the
+     * budget are ignored.
+     * @param key the key of the rendition
+     * @param bytes the encoded rendition
+     */
+    public synchronized void put(Key key, byte[] bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("Cannot cache the rendition " + key + " : the bytes are null");
+        }
+        if (bytes.length > m_budget) {
+            return;
+        }
+        byte[] previous = m_entries.put(key, bytes.clone());
+        if (previous != null) {
+            m_size -= previous.length;
+        }
+        m_size += bytes.length;
+        Iterator<Map.Entry<Key, byte[]>> eldest = m_entries.entrySet().iterator();
+        while (m_size > m_budget) {
+            m_size -= eldest.next().getValue().length;
+            eldest.remove();
+            m_evictions++;
+        }
+    }
+
+    /**
+     * Removes all the renditions. The statistics are kept.
+     */
+    public synchronized void clear() {
+        m_entries.clear();
+        m_size = 0;
+    }
+
+    /**
+     * Gets the maximum number of bytes stored.
+     * @return the budget
+     */
+    public long getBudget() {
+        return m_budget;
+    }
+
+    /**
+     * Gets the number of bytes stored.
+     * @return the size of the cached renditions
+     */
+    public synchronized long getSize() {
+        return m_size;
+    }
+
+    /**
+     * Gets the number of renditions stored.
+     * @return the number of cached renditions
+     */
+    public synchronized int getCount() {
+        return m_entries.size();
+    }
+
+    /**
+     * Gets the number of lookups served from the cache.
+     * @return the number of hits
+     */
+    public synchronized long getHitCount() {
+        return m_hits;
+    }
+
+    /**
+     * Gets the number of lookups not served from the cache.
+     * @return the number of misses
+     */
+    public synchronized long getMissCount() {
+        return m_misses;
+    }
+
+    /**
+     * Gets the number of renditions evicted to stay within the budget.
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return m_evictions;
+    }
+
+    /**
+     * Gets the ratio of lookups served from the cache.
+     * @return the hit ratio, between 0 and 1, 0 if the cache was never used
+     */
+    public synchronized double getHitRatio() {
+        long lookups = m_hits + m_misses;
+        return lookups == 0 ? 0 : (double) m_hits / lookups;
+    }
+
+}
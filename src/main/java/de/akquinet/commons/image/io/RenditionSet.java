@@ -0,0 +1,424 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
+
+import de.akquinet.commons.image.io.JPEGTransformer.Transform;
+import de.akquinet.commons.image.io.ScaleHelper.Interpolation;
+
+/**
+ * Generates several renditions (sizes) of the same image.
+ * The image is decoded once, subsampled by the decoder when it is much
+ * larger than the largest rendition. The largest rendition is scaled from
+ * the decoded image, then each rendition is scaled from the next larger
+ * one, so only the first step works on the full resolution pixels.
+ * Renditions are encoded in parallel, each with its own format and quality,
+ * while the smaller ones are being scaled.
+ * <p/>
+ * The EXIF orientation of JPEG images is applied, so the rendition widths
+ * are the widths of the displayed images. Renditions are never larger than
+ * the decoded image. Once configured, a RenditionSet can be used
+ * concurrently.
+ */
+public class RenditionSet {
+
+    /**
+     * The JPEG quality used when none is given.
+     */
+    public static final float DEFAULT_JPEG_QUALITY = 0.85f;
+
+    /**
+     * The renditions, in the order they were added.
+     */
+    private final List<Rendition> m_renditions = new ArrayList<Rendition>();
+
+    /**
+     * The helper scaling the renditions.
+     */
+    private ScaleHelper m_scaler = new ScaleHelper(Interpolation.AREA_AVERAGING);
+
+    /**
+     * The pool encoding the renditions and converting the colors of the decoded images.
+     */
+    private ForkJoinPool m_pool = ImageIOUtils.getForkJoinPool();
+
+    /**
+     * Describes a rendition.
+     */
+    public static final class Rendition {
+
+        /**
+         * The width.
+         */
+        private final int m_width;
+
+        /**
+         * The format.
+         */
+        private final Format m_format;
+
+        /**
+         * The compression quality, used for JPEG only.
+         */
+        private final float m_quality;
+
+        private Rendition(int width, Format format, float quality) {
+            m_width = width;
+            m_format = format;
+            m_quality = quality;
+        }
+
+        /**
+         * Gets the requested width.
+         * @return the width
+         */
+        public int getWidth() {
+            return m_width;
+        }
+
+        /**
+         * Gets the format.
+         * @return the format
+         */
+        public Format getFormat() {
+            return m_format;
+        }
+
+        /**
+         * Gets the compression quality.
+         * @return the quality, between 0 and 1
+         */
+        public float getQuality() {
+            return m_quality;
+        }
+
+        @Override
+        public String toString() {
+            return m_width + "px " + m_format;
+        }
+    }
+
+    /**
+     * Adds a rendition.
+     * @param width the width of the rendition, the height is computed to
+     * keep the aspect ratio
+     * @param format the format of the rendition
+     * @param quality the compression quality between 0 and 1, only used by JPEG
+     * @return the added rendition
+     */
+    public synchronized Rendition add(int width, Format format, float quality) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("Cannot add the rendition : invalid width " + width);
+        }
+        if (format == null) {
+            throw new IllegalArgumentException("Cannot add the rendition : the format cannot be null");
+        }
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("Cannot add the rendition : invalid quality " + quality);
+        }
+        Rendition rendition = new Rendition(width, format, quality);
+        m_renditions.add(rendition);
+        return rendition;
+    }
+
+    /**
+     * Adds a rendition. JPEG renditions use the {@link RenditionSet#DEFAULT_JPEG_QUALITY}.
+     * @param width the width of the rendition
+     * @param format the format of the rendition
+     * @return the added rendition
+     */
+    public Rendition add(int width, Format format) {
+        return add(width, format, DEFAULT_JPEG_QUALITY);
+    }
+
+    /**
+     * Gets the renditions.
+     * @return the renditions, in the order they were added
+     */
+    public synchronized List<Rendition> getRenditions() {
+        return new ArrayList<Rendition>(m_renditions);
+    }
+
+    /**
+     * Sets the helper used to scale the renditions. By default, the
+     * {@link Interpolation#AREA_AVERAGING} algorithm is used.
+     * @param scaler the scale helper
+     */
+    public synchronized void setScaleHelper(ScaleHelper scaler) {
+        if (scaler == null) {
+            throw new IllegalArgumentException("The scale helper cannot be null");
+        }
+        m_scaler = scaler;
+    }
+
+    /**
+     * Sets the pool encoding the renditions and converting the colors of the
+     * decoded images. By default, the pool returned by
+     * {@link ImageIOUtils#getForkJoinPool()} is used.
+     * @param pool the pool, <code>null</code> to decode and encode the renditions in the current thread
+     */
+    public synchronized void setForkJoinPool(ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
+    /**
+     * Generates the renditions of the given image file.
+     * @param file the image file
+     * @return the encoded renditions, in the order they were added
+     * @throws IOException if the image cannot be read, or a rendition cannot be encoded
+     */
+    public Map<Rendition, byte[]> render(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            throw new IOException("Cannot render the image : the file is null or does not exist : " + file);
+        }
+        int orientation = ImageIOUtils.getIOHelper().getFormat(file) == Format.JPEG
+                ? ExifOrientation.read(file) : -1;
+        BufferedImage image = null;
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        try {
+            image = decode(input, orientation);
+        } finally {
+            IOHelper.closeQuietly(input);
+        }
+        if (image == null) {
+            image = getIOHelper().read(file);
+        }
+        return render(image, orientation);
+    }
+
+    /**
+     * Generates the renditions of the given image.
+     * @param bytes the image stream
+     * @return the encoded renditions, in the order they were added
+     * @throws IOException if the image cannot be read, or a rendition cannot be encoded
+     */
+    public Map<Rendition, byte[]> render(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            throw new IOException("Cannot render the image : the byte array is null");
+        }
+        int orientation = ImageIOUtils.getIOHelper().getFormat(bytes) == Format.JPEG
+                ? ExifOrientation.read(bytes) : -1;
+        BufferedImage image = null;
+        ImageInputStream input = IOHelper.createImageInputStream(bytes);
+        try {
+            image = decode(input, orientation);
+        } finally {
+            IOHelper.closeQuietly(input);
+        }
+        if (image == null) {
+            image = getIOHelper().read(bytes);
+        }
+        return render(image, orientation);
+    }
+
+    /**
+     * Generates the renditions of the given image.
+     * @param image the image
+     * @return the encoded renditions, in the order they were added
+     * @throws IOException if a rendition cannot be encoded
+     */
+    public Map<Rendition, byte[]> render(BufferedImage image) throws IOException {
+        return render(image, -1);
+    }
+
+    /**
+     * Generates the renditions of the given image. The EXIF orientation is
+     * applied on the largest rendition, rather than on the decoded image.
+     * @param image the image, as stored in the file
+     * @param orientation the EXIF orientation code
+     * @return the encoded renditions, in the order they were added
+     * @throws IOException if a rendition cannot be encoded
+     */
+    private Map<Rendition, byte[]> render(BufferedImage image, int orientation) throws IOException {
+        List<Rendition> renditions;
+        ScaleHelper scaler;
+        ForkJoinPool pool;
+        synchronized (this) {
+            renditions = new ArrayList<Rendition>(m_renditions);
+            scaler = m_scaler;
+            pool = m_pool;
+        }
+
+        // The results are put in the order of the renditions, whatever the encoding order
+        Map<Rendition, byte[]> results = new LinkedHashMap<Rendition, byte[]>();
+        for (Rendition rendition : renditions) {
+            results.put(rendition, null);
+        }
+        Map<Rendition, Future<byte[]>> futures = new LinkedHashMap<Rendition, Future<byte[]>>();
+        try {
+            Transform transform = Transform.getTransformForExifOrientation(orientation);
+            boolean transpose = transform != null && transform.isTransposing();
+            int width = transpose ? image.getHeight() : image.getWidth();
+            int height = transpose ? image.getWidth() : image.getHeight();
+            BufferedImage current = null;
+            for (Rendition rendition : sortByWidth(renditions)) {
+                int w = Math.min(rendition.getWidth(), width);
+                // The height is computed from the decoded image, so rounding errors don't accumulate
+                int h = (int) Math.max(1, Math.round((double) height * w / width));
+                if (current == null) {
+                    current = transpose ? scale(scaler, image, h, w) : scale(scaler, image, w, h);
+                    if (transform != null) {
+                        current = ImageIOUtils.getManipulationHelper().transform(current, transform);
+                    }
+                } else {
+                    current = scale(scaler, current, w, h);
+                }
+                if (pool == null) {
+                    results.put(rendition, encode(current, rendition));
+                } else {
+                    final BufferedImage scaled = current;
+                    final Rendition r = rendition;
+                    futures.put(rendition, pool.submit(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return encode(scaled, r);
+                        }
+                    }));
+                }
+            }
+            for (Map.Entry<Rendition, Future<byte[]>> entry : futures.entrySet()) {
+                try {
+                    results.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Cannot encode the rendition " + entry.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while encoding the rendition " + entry.getKey(), e);
+                }
+            }
+            return results;
+        } finally {
+            // Stops the pending encodings on failure
+            for (Future<byte[]> future : futures.values()) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Sorts the renditions from the largest to the smallest.
+     * @param renditions the renditions
+     * @return the sorted renditions
+     */
+    private static List<Rendition> sortByWidth(List<Rendition> renditions) {
+        List<Rendition> sorted = new ArrayList<Rendition>(renditions);
+        Collections.sort(sorted, new Comparator<Rendition>() {
+            public int compare(Rendition r1, Rendition r2) {
+                return r2.getWidth() - r1.getWidth();
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Scales the given image, unless it already has the given size.
+     * @param scaler the scale helper
+     * @param image the image to scale
+     * @param width the desired width
+     * @param height the desired height
+     * @return the scaled image
+     */
+    private static BufferedImage scale(ScaleHelper scaler, BufferedImage image, int width, int height) {
+        if (width == image.getWidth() && height == image.getHeight()) {
+            return image;
+        }
+        return scaler.scaleImage(image, width, height, scaler.getInterpolation());
+    }
+
+    /**
+     * Encodes a rendition.
+     * @param image the scaled image
+     * @param rendition the rendition
+     * @return the encoded image
+     * @throws IOException if the image cannot be encoded
+     */
+    private static byte[] encode(BufferedImage image, Rendition rendition) throws IOException {
+        return encode(image, rendition.getFormat(), rendition.getQuality());
+    }
+
+    /**
+     * Encodes an image in the given format. Images having an alpha channel
+     * are drawn on a white background when encoded to JPEG.
+     * @param image the image
+     * @param format the output format
+     * @param quality the JPEG quality, ignored by the other formats
+     * @return the encoded image
+     * @throws IOException if the image cannot be encoded
+     */
+    static byte[] encode(BufferedImage image, Format format, float quality) throws IOException {
+        if (format == Format.JPEG) {
+            if (image.getColorModel().hasAlpha()) {
+                // JPEG has no alpha channel, transparent pixels become white
+                BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(),
+                        BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = opaque.createGraphics();
+                graphics.drawImage(image, 0, 0, Color.WHITE, null);
+                graphics.dispose();
+                image = opaque;
+            }
+            return ImageIOUtils.getConversionHelper().convertImageToJPEGBytes(image, quality);
+        }
+        return ImageIOUtils.getIOHelper().getBytes(image, format);
+    }
+
+    /**
+     * Gets a helper reading the images that the {@link RegionDecoder} cannot
+     * decode, with the pool of the set.
+     * @return the helper
+     */
+    private synchronized IOHelper getIOHelper() {
+        IOHelper helper = new IOHelper();
+        helper.setForkJoinPool(m_pool);
+        return helper;
+    }
+
+    /**
+     * Decodes the image with Image-IO, subsampled so it stays at least twice
+     * as large as the largest rendition.
+     * @param input the image stream
+     * @param orientation the EXIF orientation code
+     * @return the image, <code>null</code> if Image-IO cannot read it
+     * @throws IOException if the stream cannot be read
+     */
+    private BufferedImage decode(ImageInputStream input, int orientation) throws IOException {
+        int largest = 0;
+        ForkJoinPool pool;
+        synchronized (this) {
+            pool = m_pool;
+            for (Rendition rendition : m_renditions) {
+                largest = Math.max(largest, rendition.getWidth());
+            }
+        }
+        final int target = largest;
+        final Transform transform = Transform.getTransformForExifOrientation(orientation);
+        return RegionDecoder.read(input, new RegionDecoder.Plan() {
+            public void configure(int width, int height, ImageReadParam param) {
+                int displayed = transform != null && transform.isTransposing() ? height : width;
+                int factor = target == 0 ? 1 : RegionDecoder.getSubsampling(displayed, target);
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+            }
+        }, pool);
+    }
+
+}
@@ -0,0 +1,334 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Resamples images with a separable filter: the source rows are first
+ * resampled horizontally into an intermediate buffer, then the columns of
+ * this buffer are resampled vertically. The filter weights are computed once
+ * per destination column and per destination row, and reused for all the
+ * rows (respectively columns). Both passes are split in bands of rows
+ * processed in parallel.
+ * <p/>
+ * When downscaling, the filter is stretched to cover all the source pixels
+ * of a destination pixel, so the result doesn't alias.
+ */
+final class Resampler {
+
+    /**
+     * The resampling filters.
+     */
+    enum Filter {
+        /**
+         * Lanczos windowed sinc, with 3 lobes. The sharpest filter,
+         * with a slight ringing on hard edges.
+         */
+        LANCZOS3(3) {
+            double weight(double x) {
+                if (x < 0) {
+                    x = -x;
+                }
+                if (x < 1e-8) {
+                    return 1;
+                }
+                if (x >= 3) {
+                    return 0;
+                }
+                double px = Math.PI * x;
+                return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+            }
+        },
+        /**
+         * Mitchell-Netravali cubic filter (B = C = 1/3). A good compromise
+         * between sharpness, ringing and blur.
+         */
+        MITCHELL(2) {
+            double weight(double x) {
+                return cubic(x, 1.0 / 3, 1.0 / 3);
+            }
+        },
+        /**
+         * Catmull-Rom cubic spline (B = 0, C = 1/2). Sharper than Mitchell.
+         */
+        CATMULL_ROM(2) {
+            double weight(double x) {
+                return cubic(x, 0, 0.5);
+            }
+        };
+
+        /**
+         * The radius of the filter, in pixels.
+         */
+        private final double m_support;
+
+        private Filter(double support) {
+            m_support = support;
+        }
+
+        /**
+         * Computes the filter value.
+         * @param x the distance to the center, in pixels
+         * @return the filter value
+         */
+        abstract double weight(double x);
+
+        /**
+         * Computes the Mitchell-Netravali cubic filter value.
+         */
+        private static double cubic(double x, double b, double c) {
+            if (x < 0) {
+                x = -x;
+            }
+            double x2 = x * x;
+            if (x < 1) {
+                return ((12 - 9 * b - 6 * c) * x * x2 + (-18 + 12 * b + 6 * c) * x2 + (6 - 2 * b)) / 6;
+            }
+            if (x < 2) {
+                return ((-b - 6 * c) * x * x2 + (6 * b + 30 * c) * x2 + (-12 * b - 48 * c) * x
+                        + (8 * b + 24 * c)) / 6;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * The minimum number of rows of a band processed in parallel.
+     */
+    private static final int MIN_ROWS = 16;
+
+    /**
+     * The filter.
+     */
+    private final Filter m_filter;
+
+    /**
+     * Creates a Resampler.
+     * @param filter the filter
+     */
+    Resampler(Filter filter) {
+        m_filter = filter;
+    }
+
+    /**
+     * Resamples the given image. The image must be supported by {@link PixelRows}.
+     * @param image the image
+     * @param width the destination width
+     * @param height the destination height
+     * @param pool the pool used to process the rows in parallel, <code>null</code>
+     * to process them in the current thread
+     * @param images the pool of the resampled image, <code>null</code> to allocate it
+     * @return the resampled image, of the same type
+     */
+    BufferedImage scale(BufferedImage image, int width, int height, ForkJoinPool pool, ImagePool images) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Cannot scale the image : invalid size "
+                    + width + "x" + height);
+        }
+        final PixelRows source = new PixelRows(image);
+        BufferedImage result = ImagePool.allocate(images, width, height, image.getType());
+        final PixelRows destination = new PixelRows(result);
+        final int channels = source.getChannels();
+        final int alpha = source.getAlphaChannel();
+        final Weights horizontal = new Weights(m_filter, image.getWidth(), width);
+        final Weights vertical = new Weights(m_filter, image.getHeight(), height);
+        final int length = width * channels;
+        final PixelKernels kernels = PixelKernels.getInstance();
+
+        // Only the source rows used by the vertical pass are resampled horizontally
+        final int first = vertical.m_start[0];
+        int last = 0;
+        for (int y = 0; y < height; y++) {
+            last = Math.max(last, vertical.m_start[y] + vertical.m_offset[y + 1] - vertical.m_offset[y]);
+        }
+        final float[] intermediate = new float[(last - first) * length];
+
+        ParallelRows.process(pool, last - first, MIN_ROWS, new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                int[] row = new int[source.getWidth() * channels];
+                for (int y = from; y < to; y++) {
+                    source.read(first + y, row);
+                    resampleRow(row, intermediate, y * length, horizontal, channels);
+                }
+            }
+        });
+
+        ParallelRows.process(pool, height, MIN_ROWS, new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                float[] accumulator = new float[length];
+                int[] row = new int[length];
+                for (int y = from; y < to; y++) {
+                    for (int i = 0; i < length; i++) {
+                        accumulator[i] = 0;
+                    }
+                    int start = vertical.m_start[y] - first;
+                    for (int k = vertical.m_offset[y], end = vertical.m_offset[y + 1]; k < end; k++, start++) {
+                        kernels.multiplyAdd(intermediate, start * length, vertical.m_weights[k], accumulator, length);
+                    }
+                    toChannels(accumulator, row, channels, alpha);
+                    destination.write(y, row);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Resamples a row horizontally.
+     * @param row the source row
+     * @param out the output buffer
+     * @param offset the index of the output row in the buffer
+     * @param weights the horizontal weights
+     * @param channels the number of channels
+     */
+    private static void resampleRow(int[] row, float[] out, int offset, Weights weights, int channels) {
+        int[] starts = weights.m_start;
+        int[] offsets = weights.m_offset;
+        float[] values = weights.m_weights;
+        int width = starts.length;
+        if (channels == 3) {
+            for (int x = 0, i = offset; x < width; x++, i += 3) {
+                int s = starts[x] * 3;
+                float v0 = 0;
+                float v1 = 0;
+                float v2 = 0;
+                for (int k = offsets[x], end = offsets[x + 1]; k < end; k++, s += 3) {
+                    float w = values[k];
+                    v0 += row[s] * w;
+                    v1 += row[s + 1] * w;
+                    v2 += row[s + 2] * w;
+                }
+                out[i] = v0;
+                out[i + 1] = v1;
+                out[i + 2] = v2;
+            }
+        } else if (channels == 4) {
+            for (int x = 0, i = offset; x < width; x++, i += 4) {
+                int s = starts[x] * 4;
+                float v0 = 0;
+                float v1 = 0;
+                float v2 = 0;
+                float v3 = 0;
+                for (int k = offsets[x], end = offsets[x + 1]; k < end; k++, s += 4) {
+                    float w = values[k];
+                    v0 += row[s] * w;
+                    v1 += row[s + 1] * w;
+                    v2 += row[s + 2] * w;
+                    v3 += row[s + 3] * w;
+                }
+                out[i] = v0;
+                out[i + 1] = v1;
+                out[i + 2] = v2;
+                out[i + 3] = v3;
+            }
+        } else {
+            for (int x = 0, i = offset; x < width; x++, i += channels) {
+                for (int c = 0; c < channels; c++) {
+                    int s = starts[x] * channels + c;
+                    float v = 0;
+                    for (int k = offsets[x], end = offsets[x + 1]; k < end; k++, s += channels) {
+                        v += row[s] * values[k];
+                    }
+                    out[i + c] = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rounds and clamps the resampled values. The filters having negative
+     * lobes, the values can overshoot. Premultiplied colors are also clamped
+     * to the alpha value.
+     * @param values the resampled values
+     * @param row the channel values
+     * @param channels the number of channels
+     * @param alpha the alpha channel, <code>-1</code> if none
+     */
+    private static void toChannels(float[] values, int[] row, int channels, int alpha) {
+        int length = values.length;
+        for (int i = 0; i < length; i++) {
+            int value = (int) (values[i] + 0.5f);
+            row[i] = value < 0 ? 0 : (value > 0xFF ? 0xFF : value);
+        }
+        if (alpha >= 0) {
+            for (int i = 0; i < length; i += channels) {
+                int a = row[i + alpha];
+                for (int c = 0; c < channels; c++) {
+                    if (row[i + c] > a) {
+                        row[i + c] = a;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The filter weights of the source pixels for each destination pixel,
+     * along one axis.
+     */
+    private static final class Weights {
+
+        /**
+         * The first source pixel of each destination pixel.
+         */
+        final int[] m_start;
+
+        /**
+         * The index of the first weight of each destination pixel in
+         * {@link Weights#m_weights}, plus a last entry for the end.
+         */
+        final int[] m_offset;
+
+        /**
+         * The normalized weights.
+         */
+        final float[] m_weights;
+
+        /**
+         * Computes the weights.
+         * @param filter the filter
+         * @param source the source size
+         * @param size the destination size
+         */
+        Weights(Filter filter, int source, int size) {
+            double scale = (double) source / size;
+            // When downscaling, the filter is stretched over the covered source pixels
+            double stretch = Math.max(scale, 1);
+            double support = filter.m_support * stretch;
+            int taps = (int) Math.ceil(support * 2) + 2;
+            m_start = new int[size];
+            m_offset = new int[size + 1];
+            float[] weights = new float[size * taps];
+            double[] values = new double[taps];
+            int count = 0;
+            for (int x = 0; x < size; x++) {
+                double center = (x + 0.5) * scale;
+                int from = Math.max(0, (int) Math.floor(center - support));
+                int to = Math.min(source, (int) Math.ceil(center + support));
+                double total = 0;
+                for (int i = from; i < to; i++) {
+                    double value = filter.weight((i + 0.5 - center) / stretch);
+                    values[i - from] = value;
+                    total += value;
+                }
+                // Drop the null weights at both ends
+                while (to > from + 1 && values[to - 1 - from] == 0) {
+                    to--;
+                }
+                int skip = 0;
+                while (from + skip < to - 1 && values[skip] == 0) {
+                    skip++;
+                }
+                m_start[x] = from + skip;
+                m_offset[x] = count;
+                for (int i = from + skip; i < to; i++) {
+                    // Weights are normalized, the pixels outside of the image are ignored
+                    weights[count++] = (float) (values[i - from] / total);
+                }
+            }
+            m_offset[size] = count;
+            m_weights = new float[count];
+            System.arraycopy(weights, 0, m_weights, 0, count);
+        }
+    }
+}
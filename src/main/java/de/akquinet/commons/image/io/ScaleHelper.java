@@ -1,22 +1,99 @@
 package de.akquinet.commons.image.io;
 
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
+
+import de.akquinet.commons.image.io.JPEGTransformer.Transform;
 
 /**
  * Class helping to scale images.
  */
 public class ScaleHelper {
 
+    /**
+     * The number of destination pixels of the bands drawn in parallel with
+     * Java2D. Smaller images are drawn at once.
+     */
+    private static final int BAND_PIXELS = 1 << 18;
+
     /**
      * Interpolation algorithm
      */
     public enum Interpolation {
         BILINEAR,
         BICUBIC,
-        NEAREST_NEIGHBOR
+        NEAREST_NEIGHBOR,
+        /**
+         * Downscales by halving the image repeatedly with the bilinear
+         * algorithm until the image is within twice the desired size, then
+         * scales to the desired size. The quality is close to the bicubic
+         * algorithm for large reductions, at a fraction of its cost.
+         */
+        PROGRESSIVE_BILINEAR,
+        /**
+         * Averages the source pixels covered by each destination pixel,
+         * weighted by the covered area (box filter). Computed with integer
+         * arithmetic on the image data, it is fast and doesn't alias when
+         * downscaling.
+         */
+        AREA_AVERAGING,
+        /**
+         * Separable Lanczos filter with 3 lobes. The sharpest of the
+         * high quality algorithms, for print-ready renditions.
+         */
+        LANCZOS3,
+        /**
+         * Separable Mitchell-Netravali cubic filter, balancing sharpness,
+         * ringing and blur.
+         */
+        MITCHELL,
+        /**
+         * Separable Catmull-Rom cubic filter.
+         */
+        CATMULL_ROM
+    }
+
+    /**
+     * Ways to fit an image in a box.
+     * @see ScaleHelper#resize(BufferedImage, int, int, ResizeMode)
+     */
+    public enum ResizeMode {
+        /**
+         * The image is scaled to fit in the box, keeping its aspect ratio.
+         * The resulting image is smaller than the box along one dimension.
+         */
+        FIT,
+        /**
+         * The image is scaled to cover the box, keeping its aspect ratio.
+         * The resulting image is larger than the box along one dimension.
+         */
+        COVER,
+        /**
+         * The image is scaled to cover the box, keeping its aspect ratio,
+         * and the parts outside of the box are cropped, equally on both
+         * sides. The resulting image has the size of the box.
+         */
+        CROP_CENTER,
+        /**
+         * The image is scaled to fit in the box, keeping its aspect ratio,
+         * and centered in the box. The resulting image has the size of the
+         * box, the uncovered parts being filled with the pad color.
+         * @see ScaleHelper#setPadColor(Color)
+         */
+        PAD
     }
 
     /**
@@ -25,16 +102,58 @@ public class ScaleHelper {
      */
     private Object m_interpolation;
 
+    /**
+     * The scaling algorithm to use.
+     */
+    private Interpolation m_algorithm;
+
+    /**
+     * The pool used to scale large images in parallel, <code>null</code>
+     * (the default) to scale in the current thread.
+     */
+    private ForkJoinPool m_pool;
+
+    /**
+     * The normalizer converting the images to scale to fast image types.
+     */
+    private RasterNormalizer m_normalizer = RasterNormalizer.DEFAULT;
+
+    /**
+     * The color of the borders added by {@link ResizeMode#PAD}, <code>null</code>
+     * for transparent borders on images having an alpha channel and white
+     * borders on the other images.
+     */
+    private Color m_padColor;
+
+    /**
+     * The cache of the images resized and encoded by
+     * {@link ScaleHelper#resize(File, int, int, ResizeMode, Format, float)},
+     * <code>null</code> if not cached.
+     */
+    private RenditionCache m_cache;
+
+    /**
+     * The pool of the scaled and intermediate images, <code>null</code> to
+     * allocate them.
+     */
+    private ImagePool m_imagePool;
+
     /**
      * Creates a ScaleHelper.
      * @param interpolation the interpolation algorithm to use
      */
     public ScaleHelper(Interpolation interpolation) {
+        m_algorithm = interpolation;
         switch (interpolation) {
         case BILINEAR:
+        case PROGRESSIVE_BILINEAR:
+        case AREA_AVERAGING:
             m_interpolation = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
             break;
         case BICUBIC:
+        case LANCZOS3:
+        case MITCHELL:
+        case CATMULL_ROM:
             m_interpolation = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
             break;
         case NEAREST_NEIGHBOR:
@@ -48,6 +167,81 @@ public class ScaleHelper {
      */
     public ScaleHelper() {
         m_interpolation = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+        m_algorithm = Interpolation.BILINEAR;
+    }
+
+    /**
+     * Sets the color of the borders added by {@link ResizeMode#PAD}. By
+     * default, the borders are transparent on images having an alpha channel,
+     * and white on the other images.
+     * @param color the color, <code>null</code> to restore the default
+     */
+    public void setPadColor(Color color) {
+        m_padColor = color;
+    }
+
+    /**
+     * Sets the cache of the images resized and encoded by
+     * {@link ScaleHelper#resize(File, int, int, ResizeMode, Format, float)}.
+     * By default, nothing is cached.
+     * @param cache the cache, <code>null</code> to disable caching
+     */
+    public void setRenditionCache(RenditionCache cache) {
+        m_cache = cache;
+    }
+
+    /**
+     * Sets the pool providing the scaled images and the intermediate images.
+     * The intermediate images are released once the scaled image is
+     * computed. The scaled images can be released by the caller, see
+     * {@link ImagePool#wrap(BufferedImage)}. By default, images are
+     * allocated.
+     * @param pool the pool, <code>null</code> to allocate the images
+     */
+    public void setImagePool(ImagePool pool) {
+        m_imagePool = pool;
+    }
+
+    /**
+     * Gets the algorithm selected when creating the helper.
+     * @return the scaling algorithm
+     */
+    public Interpolation getInterpolation() {
+        return m_algorithm;
+    }
+
+    /**
+     * Gets the Java2D interpolation hint matching the algorithm selected when
+     * creating the helper.
+     * @return the value of the {@link RenderingHints#KEY_INTERPOLATION} hint
+     */
+    Object getRenderingHint() {
+        return m_interpolation;
+    }
+
+    /**
+     * Sets the pool used to scale large images in parallel. The destination
+     * image is split in bands of rows computed concurrently, except for the
+     * nearest neighbor algorithm drawn at once by Java2D. The images are the
+     * same with and without pool. By default, no pool is used.
+     * @param pool the pool, <code>null</code> to scale images in the current thread
+     * @see ImageIOUtils#getForkJoinPool()
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
+    /**
+     * Sets the normalizer converting the images before scaling them. The
+     * scaled images have the type of the normalized images. By default,
+     * {@link RasterNormalizer#DEFAULT} is used.
+     * @param normalizer the normalizer
+     */
+    public void setRasterNormalizer(RasterNormalizer normalizer) {
+        if (normalizer == null) {
+            throw new IllegalArgumentException("The normalizer cannot be null");
+        }
+        m_normalizer = normalizer;
     }
 
     /**
@@ -134,6 +328,430 @@ public class ScaleHelper {
        return scaleImage(image, width, height, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
     }
 
+    /**
+     * Scales the image to the given width and height using the
+     * {@link Interpolation#PROGRESSIVE_BILINEAR} algorithm.
+     * @param image the image
+     * @param width the desired width
+     * @param height the height
+     * @return the scaled image
+     * @throws IOException if the image cannot be scaled
+     */
+    public Image scaleImageProgressive(Image image, int width, int height) throws IOException {
+        BufferedImage bi = scaleImageProgressive(image.getBufferedImage(), width, height);
+        return new Image(bi, image.getFormat());
+    }
+
+    /**
+     * Scales the image to the given width and height using the
+     * {@link Interpolation#PROGRESSIVE_BILINEAR} algorithm.
+     * Each dimension is halved while it stays larger than twice the
+     * desired size. Only two intermediate images are allocated, and are
+     * reused for all the steps.
+     * @param image the image
+     * @param width the desired width
+     * @param height the height
+     * @return the scaled image
+     */
+    public BufferedImage scaleImageProgressive(BufferedImage image, int width, int height) {
+        image = m_normalizer.normalize(image);
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (w < width * 2 && h < height * 2) {
+            // Nothing to halve
+            return scaleImage(image, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+
+        // Intermediate images use a type supported by the Java2D native loops, the
+        // alpha is premultiplied so transparent pixels don't bleed their color
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE
+                : BufferedImage.TYPE_INT_RGB;
+        BufferedImage[] buffers = new BufferedImage[2];
+        BufferedImage current = image;
+        int step = 0;
+        while (w >= width * 2 || h >= height * 2) {
+            int neww = w >= width * 2 ? w / 2 : w;
+            int newh = h >= height * 2 ? h / 2 : h;
+            // The two buffers are used alternately, the first steps are the largest
+            BufferedImage buffer = buffers[step % 2];
+            if (buffer == null) {
+                buffer = ImagePool.allocate(m_imagePool, neww, newh, type);
+                buffers[step % 2] = buffer;
+            }
+            drawScaled(current, w, h, buffer, neww, newh, RenderingHints.VALUE_INTERPOLATION_BILINEAR,
+                    AlphaComposite.Src);
+            current = buffer;
+            w = neww;
+            h = newh;
+            step++;
+        }
+
+        BufferedImage newImage = ImagePool.allocate(m_imagePool, width, height, image.getType());
+        drawScaled(current, w, h, newImage, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR,
+                AlphaComposite.Src);
+        for (BufferedImage buffer : buffers) {
+            ImagePool.recycle(m_imagePool, buffer);
+        }
+        return newImage;
+    }
+
+    /**
+     * Scales the image to the given width and height using the
+     * {@link Interpolation#AREA_AVERAGING} algorithm.
+     * @param image the image
+     * @param width the desired width
+     * @param height the height
+     * @return the scaled image
+     * @throws IOException if the image cannot be scaled
+     */
+    public Image scaleImageAreaAveraging(Image image, int width, int height) throws IOException {
+        BufferedImage bi = scaleImageAreaAveraging(image.getBufferedImage(), width, height);
+        return new Image(bi, image.getFormat());
+    }
+
+    /**
+     * Scales the image to the given width and height using the
+     * {@link Interpolation#AREA_AVERAGING} algorithm.
+     * The image is normalized first, and the scaled image has the type of
+     * the normalized image. Images normalized to types other than the
+     * standard 8 bits RGB, ARGB and gray types are converted using
+     * {@link RasterNormalizer#DEFAULT}.
+     * @param image the image
+     * @param width the desired width
+     * @param height the height
+     * @return the scaled image
+     */
+    public BufferedImage scaleImageAreaAveraging(BufferedImage image, int width, int height) {
+        return AreaAveragingScaler.scale(toSupportedType(image), width, height, m_pool, m_imagePool);
+    }
+
+    /**
+     * Scales the image to the given width and height using the given
+     * algorithm, whatever the algorithm selected when creating the helper.
+     * The {@link Interpolation#LANCZOS3}, {@link Interpolation#MITCHELL} and
+     * {@link Interpolation#CATMULL_ROM} algorithms process the rows of large
+     * images in parallel. They convert the images like
+     * {@link Interpolation#AREA_AVERAGING}.
+     * @param image the image
+     * @param width the desired width
+     * @param height the desired height
+     * @param interpolation the algorithm
+     * @return the scaled image
+     */
+    public BufferedImage scaleImage(BufferedImage image, int width, int height, Interpolation interpolation) {
+        switch (interpolation) {
+            case BILINEAR:
+                return scaleImage(image, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            case BICUBIC:
+                return scaleImage(image, width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            case NEAREST_NEIGHBOR:
+                return scaleImage(image, width, height, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            case PROGRESSIVE_BILINEAR:
+                return scaleImageProgressive(image, width, height);
+            case AREA_AVERAGING:
+                return scaleImageAreaAveraging(image, width, height);
+            case LANCZOS3:
+                return new Resampler(Resampler.Filter.LANCZOS3).scale(toSupportedType(image), width, height,
+                        m_pool, m_imagePool);
+            case MITCHELL:
+                return new Resampler(Resampler.Filter.MITCHELL).scale(toSupportedType(image), width, height,
+                        m_pool, m_imagePool);
+            default:
+                return new Resampler(Resampler.Filter.CATMULL_ROM).scale(toSupportedType(image), width, height,
+                        m_pool, m_imagePool);
+        }
+    }
+
+    /**
+     * Scales the image to the given width and height using the given algorithm.
+     * @param image the image
+     * @param width the desired width
+     * @param height the desired height
+     * @param interpolation the algorithm
+     * @return the scaled image
+     * @throws IOException if the image cannot be scaled
+     * @see ScaleHelper#scaleImage(BufferedImage, int, int, Interpolation)
+     */
+    public Image scaleImage(Image image, int width, int height, Interpolation interpolation) throws IOException {
+        BufferedImage bi = scaleImage(image.getBufferedImage(), width, height, interpolation);
+        return new Image(bi, image.getFormat());
+    }
+
+    /**
+     * Resizes the image to fit the given box as described by the given mode,
+     * using the algorithm selected when creating the helper. The image is
+     * sampled once: the cropped region is scaled directly from the pixels of
+     * the image, without copying them first. Only the {@link ResizeMode#PAD}
+     * mode copies the scaled image, in the box.
+     * @param image the image
+     * @param width the width of the box
+     * @param height the height of the box
+     * @param mode the way to fit the image in the box
+     * @return the resized image
+     */
+    public BufferedImage resize(BufferedImage image, int width, int height, ResizeMode mode) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Cannot resize the image : invalid size "
+                    + width + "x" + height);
+        }
+        Layout layout = new Layout(image.getWidth(), image.getHeight(), width, height, mode);
+        BufferedImage source = image;
+        if (layout.m_region.width != image.getWidth() || layout.m_region.height != image.getHeight()) {
+            // A view sharing the pixels of the image
+            source = image.getSubimage(layout.m_region.x, layout.m_region.y,
+                    layout.m_region.width, layout.m_region.height);
+        }
+        return pad(resize(source, layout.m_width, layout.m_height), width, height, mode);
+    }
+
+    /**
+     * Adds the borders of the {@link ResizeMode#PAD} mode to the given scaled image.
+     * @param scaled the scaled image
+     * @param width the width of the box
+     * @param height the height of the box
+     * @param mode the resize mode
+     * @return the padded image, the scaled image if the mode is not {@link ResizeMode#PAD}
+     */
+    private BufferedImage pad(BufferedImage scaled, int width, int height, ResizeMode mode) {
+        if (mode != ResizeMode.PAD) {
+            return scaled;
+        }
+        BufferedImage padded = ImagePool.allocate(m_imagePool, width, height, scaled.getType());
+        Graphics2D graphics = padded.createGraphics();
+        Color color = m_padColor;
+        if (color == null) {
+            color = padded.getColorModel().hasAlpha() ? new Color(0, 0, 0, 0) : Color.WHITE;
+        }
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, height);
+        graphics.drawImage(scaled, (width - scaled.getWidth()) / 2, (height - scaled.getHeight()) / 2, null);
+        graphics.dispose();
+        ImagePool.recycle(m_imagePool, scaled);
+        return padded;
+    }
+
+    /**
+     * Resizes the image to fit the given box as described by the given mode.
+     * @param image the image
+     * @param width the width of the box
+     * @param height the height of the box
+     * @param mode the way to fit the image in the box
+     * @return the resized image
+     * @throws IOException if the image cannot be resized
+     * @see ScaleHelper#resize(BufferedImage, int, int, ResizeMode)
+     */
+    public Image resize(Image image, int width, int height, ResizeMode mode) throws IOException {
+        BufferedImage bi = resize(image.getBufferedImage(), width, height, mode);
+        return new Image(bi, image.getFormat());
+    }
+
+    /**
+     * Reads the given image file and resizes it to fit the given box as
+     * described by the given mode. When the image can be read by Image-IO,
+     * only the region to keep is decoded, subsampled by the decoder when it
+     * is much larger than the box. The EXIF orientation of JPEG files is
+     * applied, the box being the box of the displayed image.
+     * @param file the image file
+     * @param width the width of the box
+     * @param height the height of the box
+     * @param mode the way to fit the image in the box
+     * @return the resized image
+     * @throws IOException if the image cannot be read
+     * @see ScaleHelper#resize(BufferedImage, int, int, ResizeMode)
+     */
+    public BufferedImage resize(File file, int width, int height, final ResizeMode mode) throws IOException {
+        if (file == null || !file.exists()) {
+            throw new IOException("Cannot resize the image : the file is null or does not exist : " + file);
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Cannot resize the image : invalid size "
+                    + width + "x" + height);
+        }
+        ManipulationHelper manipulation = ImageIOUtils.getManipulationHelper();
+        int orientation = ImageIOUtils.getIOHelper().getFormat(file) == Format.JPEG
+                ? ExifOrientation.read(file) : -1;
+        Transform transform = Transform.getTransformForExifOrientation(orientation);
+        // The image is resized as stored, then oriented
+        final boolean transpose = transform != null && transform.isTransposing();
+        final int boxWidth = transpose ? height : width;
+        final int boxHeight = transpose ? width : height;
+
+        // The layout is computed from the size of the stored image, not from the decoded region
+        final Layout[] layout = new Layout[1];
+        BufferedImage image;
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        try {
+            image = RegionDecoder.read(input, new RegionDecoder.Plan() {
+                public void configure(int w, int h, ImageReadParam param) {
+                    layout[0] = new Layout(w, h, boxWidth, boxHeight, mode);
+                    Rectangle region = layout[0].m_region;
+                    param.setSourceRegion(region);
+                    param.setSourceSubsampling(
+                            RegionDecoder.getSubsampling(region.width, layout[0].m_width),
+                            RegionDecoder.getSubsampling(region.height, layout[0].m_height), 0, 0);
+                }
+            }, m_pool);
+        } finally {
+            IOHelper.closeQuietly(input);
+        }
+        if (image == null) {
+            IOHelper reader = new IOHelper();
+            reader.setForkJoinPool(m_pool);
+            image = manipulation.applyExifOrientation(reader.read(file), orientation);
+            return resize(image, width, height, mode);
+        }
+        BufferedImage resized = pad(resize(image, layout[0].m_width, layout[0].m_height),
+                boxWidth, boxHeight, mode);
+        return transform == null ? resized : manipulation.transform(resized, transform);
+    }
+
+    /**
+     * Reads the given image file, resizes it to fit the given box as
+     * described by the given mode and encodes the result with the default
+     * quality.
+     * @param file the image file
+     * @param width the width of the box
+     * @param height the height of the box
+     * @param mode the way to fit the image in the box
+     * @param format the output format
+     * @return the encoded image
+     * @throws IOException if the image cannot be read or encoded
+     * @see ScaleHelper#resize(File, int, int, ResizeMode, Format, float)
+     */
+    public byte[] resize(File file, int width, int height, ResizeMode mode, Format format) throws IOException {
+        return resize(file, width, height, mode, format, RenditionCache.DEFAULT_QUALITY);
+    }
+
+    /**
+     * Reads the given image file, resizes it to fit the given box as
+     * described by the given mode and encodes the result. Images having an
+     * alpha channel are drawn on a white background when encoded to JPEG.
+     * <p/>
+     * If a {@link RenditionCache} is set, the result is looked up in the
+     * cache first, using the path, length and modification date of the file
+     * as source identity. On a cache hit, the file is neither read nor
+     * decoded.
+     * @param file the image file
+     * @param width the width of the box
+     * @param height the height of the box
+     * @param mode the way to fit the image in the box
+     * @param format the output format
+     * @param quality the JPEG quality, {@link RenditionCache#DEFAULT_QUALITY}
+     * for {@link RenditionSet#DEFAULT_JPEG_QUALITY}
+     * @return the encoded image
+     * @throws IOException if the image cannot be read or encoded
+     * @see ScaleHelper#resize(File, int, int, ResizeMode)
+     * @see ScaleHelper#setRenditionCache(RenditionCache)
+     */
+    public byte[] resize(final File file, final int width, final int height, final ResizeMode mode,
+            final Format format, float quality) throws IOException {
+        if (file == null || !file.exists()) {
+            throw new IOException("Cannot resize the image : the file is null or does not exist : " + file);
+        }
+        if (format == null) {
+            throw new IllegalArgumentException("Cannot resize the image : the format cannot be null");
+        }
+        final float jpegQuality = quality == RenditionCache.DEFAULT_QUALITY
+                ? RenditionSet.DEFAULT_JPEG_QUALITY : quality;
+        RenditionCache.Producer producer = new RenditionCache.Producer() {
+            public byte[] produce() throws IOException {
+                return RenditionSet.encode(resize(file, width, height, mode), format, jpegQuality);
+            }
+        };
+        RenditionCache cache = m_cache;
+        if (cache == null) {
+            return producer.produce();
+        }
+        Color pad = m_padColor;
+        String operations = "resize(" + width + "x" + height + "," + mode + "," + m_algorithm
+                + (pad == null ? "" : ",#" + Integer.toHexString(pad.getRGB())) + ")";
+        return cache.get(new RenditionCache.Key(RenditionCache.getSourceIdentity(file), operations,
+                format, format == Format.JPEG ? jpegQuality : RenditionCache.DEFAULT_QUALITY), producer);
+    }
+
+    /**
+     * Computes the source region and the scaled size of a resize operation.
+     */
+    private static final class Layout {
+
+        /**
+         * The region of the source image to scale.
+         */
+        final Rectangle m_region;
+
+        /**
+         * The width of the scaled region.
+         */
+        final int m_width;
+
+        /**
+         * The height of the scaled region.
+         */
+        final int m_height;
+
+        /**
+         * Computes the layout.
+         * @param sourceWidth the source width
+         * @param sourceHeight the source height
+         * @param width the width of the box
+         * @param height the height of the box
+         * @param mode the resize mode
+         */
+        Layout(int sourceWidth, int sourceHeight, int width, int height, ResizeMode mode) {
+            double scaleX = (double) width / sourceWidth;
+            double scaleY = (double) height / sourceHeight;
+            double scale;
+            switch (mode) {
+                case COVER:
+                case CROP_CENTER:
+                    scale = Math.max(scaleX, scaleY);
+                    break;
+                default:
+                    scale = Math.min(scaleX, scaleY);
+                    break;
+            }
+            if (mode == ResizeMode.CROP_CENTER) {
+                int w = (int) Math.min(sourceWidth, Math.max(1, Math.round(width / scale)));
+                int h = (int) Math.min(sourceHeight, Math.max(1, Math.round(height / scale)));
+                m_region = new Rectangle((sourceWidth - w) / 2, (sourceHeight - h) / 2, w, h);
+                m_width = width;
+                m_height = height;
+            } else {
+                m_region = new Rectangle(0, 0, sourceWidth, sourceHeight);
+                // The dimension matching the box is kept exact
+                m_width = scale == scaleX ? width : (int) Math.max(1, Math.round(sourceWidth * scale));
+                m_height = scale == scaleY ? height : (int) Math.max(1, Math.round(sourceHeight * scale));
+            }
+        }
+    }
+
+    /**
+     * Normalizes the given image, and converts it to a type supported by
+     * {@link PixelRows} if needed.
+     * @param image the image
+     * @return the image, or the converted image
+     */
+    private BufferedImage toSupportedType(BufferedImage image) {
+        image = m_normalizer.normalize(image);
+        if (PixelRows.isSupported(image)) {
+            return image;
+        }
+        return RasterNormalizer.DEFAULT.normalize(image);
+    }
+
+    /**
+     * Scales the given image to the desired size using the algorithm
+     * selected when creating the helper.
+     * @param image the image
+     * @param width the desired width
+     * @param height the desired height
+     * @return the scaled image
+     */
+    private BufferedImage resize(BufferedImage image, int width, int height) {
+        return scaleImage(image, width, height, m_algorithm);
+    }
+
     /**
      * Utility method scaling the given image to the desired size using the given
      * interpolation algorithm.
@@ -144,15 +762,126 @@ public class ScaleHelper {
      * @return the scaled image
      */
     private BufferedImage scaleImage(BufferedImage image, int width, int height, Object interpolation) {
-        BufferedImage newImage = new BufferedImage(width, height, image.getType());
-        Graphics2D graphics = newImage.createGraphics();
-        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                                  interpolation);
-        graphics.drawImage (image, 0, 0, width, height, null);
-        graphics.dispose();
+        image = m_normalizer.normalize(image);
+        BufferedImage newImage = ImagePool.allocate(m_imagePool, width, height, image.getType());
+        drawScaled(image, image.getWidth(), image.getHeight(), newImage, width, height, interpolation, null);
         return newImage;
     }
 
+    /**
+     * Draws the top left region of the source image scaled on the top left
+     * region of the target image. Without pool, the image is drawn at once.
+     * With a pool, large targets are split in bands of rows drawn in
+     * parallel with {@link #drawBand}, giving the same image. The nearest
+     * neighbor images are always drawn at once: Java2D draws them with
+     * scaling loops whose rounding can't be reproduced on a band. The bands
+     * only depend on the target size, so the result doesn't depend on the
+     * number of threads.
+     * @param source the source image
+     * @param sourceWidth the width of the source region
+     * @param sourceHeight the height of the source region
+     * @param target the target image
+     * @param width the width of the target region
+     * @param height the height of the target region
+     * @param interpolation the interpolation hint
+     * @param composite the composite, <code>null</code> to keep the default one
+     */
+    private void drawScaled(final BufferedImage source, final int sourceWidth, final int sourceHeight,
+            final BufferedImage target, final int width, final int height, final Object interpolation,
+            final Composite composite) {
+        int bandRows = Math.max(BAND_PIXELS / Math.max(width, 1), 1);
+        // The sub-pixel offsets of the bands are exact up to reductions by 2^20
+        if (m_pool == null || interpolation == RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+                || height <= bandRows || sourceHeight / height >= 1 << 20) {
+            Graphics2D graphics = createGraphics(target, interpolation, composite);
+            graphics.drawImage(source, 0, 0, width, height, 0, 0, sourceWidth, sourceHeight, null);
+            graphics.dispose();
+            return;
+        }
+        ParallelRows.processBands(m_pool, height, bandRows, new ParallelRows.Processor() {
+            public void process(int from, int to) {
+                drawBand(source, sourceWidth, sourceHeight, target, width, height, interpolation, composite,
+                        from, to);
+            }
+        });
+    }
+
+    /**
+     * Draws the rows <code>from</code> to <code>to</code> of the top left
+     * target region of {@link #drawScaled}, exactly as the region drawn at
+     * once. Java2D maps the center of the first drawn row to a source
+     * position in 32.32 fixed point, then adds the fixed point step of the
+     * inverse scale for each following row. A band clipped from the whole
+     * drawing starts from its own rounded position, so a few rows may
+     * differ. Instead, the band is drawn from the source rows it overlaps,
+     * with two rows of margin beyond the bicubic neighbors, on a subimage of
+     * the target, and translated by the sub-pixel offset giving the exact
+     * fixed point position of the first row in the whole drawing.
+     * @param source the source image
+     * @param sourceWidth the width of the source region
+     * @param sourceHeight the height of the source region
+     * @param target the target image
+     * @param width the width of the target region
+     * @param height the height of the target region
+     * @param interpolation the interpolation hint, bilinear or bicubic
+     * @param composite the composite, <code>null</code> to keep the default one
+     * @param from the first row of the band
+     * @param to the row following the band
+     */
+    private static void drawBand(BufferedImage source, int sourceWidth, int sourceHeight, BufferedImage target,
+            int width, int height, Object interpolation, Composite composite, int from, int to) {
+        double scaleX = (double) width / sourceWidth;
+        double scaleY = (double) height / sourceHeight;
+        // Fixed point source positions of the centers of the band rows
+        double inverse = 1.0 / scaleY;
+        long step = toFixed(inverse);
+        long first = toFixed(inverse * 0.5) + from * step;
+        long last = first + (to - 1 - from) * step;
+        int top = Math.max(0, (int) (first >> 32) - 3);
+        int bottom = Math.min(sourceHeight, (int) (last >> 32) + 4);
+
+        // Java2D computes the first position as toFixed(inverse * 0.5 - translation / scaleY)
+        long start = first - ((long) top << 32);
+        double translation = (inverse * 0.5 - start / 4294967296.0) * scaleY;
+        long actual = toFixed(inverse * 0.5 + -translation / scaleY);
+        while (actual != start) {
+            translation = actual < start ? Math.nextDown(translation) : Math.nextUp(translation);
+            actual = toFixed(inverse * 0.5 + -translation / scaleY);
+        }
+
+        Graphics2D graphics = createGraphics(target.getSubimage(0, from, width, to - from), interpolation,
+                composite);
+        graphics.drawImage(source.getSubimage(0, top, sourceWidth, bottom - top),
+                new AffineTransform(scaleX, 0, 0, scaleY, 0, translation), null);
+        graphics.dispose();
+    }
+
+    /**
+     * Converts the given value to the 32.32 fixed point format of the
+     * Java2D transform loops.
+     * @param value the value
+     * @return the fixed point value
+     */
+    private static long toFixed(double value) {
+        return (long) (value * 4294967296.0);
+    }
+
+    /**
+     * Creates the graphics drawing the scaled images on the given image.
+     * @param image the image
+     * @param interpolation the interpolation hint
+     * @param composite the composite, <code>null</code> to keep the default one
+     * @return the graphics
+     */
+    private static Graphics2D createGraphics(BufferedImage image, Object interpolation, Composite composite) {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        if (composite != null) {
+            graphics.setComposite(composite);
+        }
+        return graphics;
+    }
+
     /**
      * Reduces the image size an image by 50%.
      * @param image the image
@@ -212,8 +941,7 @@ public class ScaleHelper {
     public BufferedImage scale(BufferedImage image, float ratio) {
         int width = image.getWidth();
         int height = image.getHeight();
-        BufferedImage newImage = scaleImage(image, (int) (width * ratio), (int) (height * ratio),
-                m_interpolation);
+        BufferedImage newImage = resize(image, (int) (width * ratio), (int) (height * ratio));
         return newImage;
     }
 
@@ -0,0 +1,242 @@
+package de.akquinet.commons.image.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A watermark applied with {@link ManipulationHelper#applyWatermark(BufferedImage, Watermark)}.
+ * The watermark image is made translucent, premultiplied and scaled once
+ * per size of the watermarked images, with the pools of the helper applying
+ * the watermark, and the results are cached, so
+ * watermarking many renditions of the same sizes only blends the cached
+ * pixels. The cache keeps the pixels of the {@link #CACHE_SIZE} most
+ * recently used sizes.
+ * <p/>
+ * The watermark is either placed once, in a corner or at the center of the
+ * image, or tiled over the whole image. It keeps its size, or is scaled to
+ * a fraction of the width of the image.
+ * <p/>
+ * The watermarks are thread safe.
+ */
+public final class Watermark {
+
+    /**
+     * The number of sizes whose pixels are cached.
+     */
+    public static final int CACHE_SIZE = 8;
+
+    /**
+     * The placement of the watermark.
+     */
+    public enum Position {
+        TOP_LEFT, TOP_RIGHT, BOTTOM_LEFT, BOTTOM_RIGHT, CENTER,
+        /**
+         * The watermark is repeated over the whole image, from its top
+         * left corner, separated by the margin.
+         */
+        TILED
+    }
+
+    /**
+     * The premultiplied pixels of the watermark for a size of image.
+     */
+    static final class Scaled {
+
+        private final int m_width;
+
+        private final int m_height;
+
+        private final int[] m_pixels;
+
+        private Scaled(BufferedImage image) {
+            m_width = image.getWidth();
+            m_height = image.getHeight();
+            m_pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        int getWidth() {
+            return m_width;
+        }
+
+        int getHeight() {
+            return m_height;
+        }
+
+        /**
+         * Gets the pixels, row by row.
+         * @return the premultiplied ARGB pixels
+         */
+        int[] getPixels() {
+            return m_pixels;
+        }
+    }
+
+    private final BufferedImage m_image;
+
+    private final float m_opacity;
+
+    private final Position m_position;
+
+    private final float m_scale;
+
+    private final int m_margin;
+
+    /**
+     * The scaled pixels, by size of the watermark, the least recently used first.
+     */
+    private final LinkedHashMap<Long, Scaled> m_cache = new LinkedHashMap<Long, Scaled>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Scaled> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Creates a watermark keeping its size.
+     * @param image the watermark image, its transparent pixels leave the image unchanged
+     * @param opacity the opacity of the watermark, between 0 and 1
+     * @param position the placement of the watermark
+     */
+    public Watermark(BufferedImage image, float opacity, Position position) {
+        this(image, opacity, position, 0, 0);
+    }
+
+    /**
+     * Creates a watermark.
+     * @param image the watermark image, its transparent pixels leave the image unchanged
+     * @param opacity the opacity of the watermark, between 0 and 1
+     * @param position the placement of the watermark
+     * @param scale the width of the watermark as a fraction of the width of
+     * the image, 0 to keep the size of the watermark image
+     * @param margin the distance in pixels between the watermark and the
+     * edges of the image, or between the tiles
+     */
+    public Watermark(BufferedImage image, float opacity, Position position, float scale, int margin) {
+        if (image == null) {
+            throw new IllegalArgumentException("The watermark image cannot be null");
+        }
+        if (opacity < 0 || opacity > 1) {
+            throw new IllegalArgumentException("The opacity must be between 0 and 1 : " + opacity);
+        }
+        if (position == null) {
+            throw new IllegalArgumentException("The position cannot be null");
+        }
+        if (scale < 0 || margin < 0) {
+            throw new IllegalArgumentException("Invalid scale or margin : " + scale + ", " + margin);
+        }
+        m_image = image;
+        m_opacity = opacity;
+        m_position = position;
+        m_scale = scale;
+        m_margin = margin;
+    }
+
+    /**
+     * Gets the placement of the watermark.
+     * @return the position
+     */
+    public Position getPosition() {
+        return m_position;
+    }
+
+    /**
+     * Gets the opacity of the watermark.
+     * @return the opacity, between 0 and 1
+     */
+    public float getOpacity() {
+        return m_opacity;
+    }
+
+    /**
+     * Gets the pixels of the watermark for the given size of image,
+     * computing them if they're not cached.
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param helper the helper applying the watermark, whose pools are used
+     * to compute the pixels
+     * @return the pixels
+     */
+    Scaled getScaled(int width, int height, ManipulationHelper helper) {
+        int w = m_image.getWidth();
+        int h = m_image.getHeight();
+        if (m_scale > 0) {
+            w = Math.max(1, Math.round(width * m_scale));
+            h = Math.max(1, (int) ((long) w * m_image.getHeight() / m_image.getWidth()));
+        }
+        Long key = Long.valueOf((long) w << 32 | h);
+        synchronized (m_cache) {
+            Scaled scaled = m_cache.get(key);
+            if (scaled != null) {
+                return scaled;
+            }
+        }
+        // Scaled after being premultiplied, so the transparent pixels don't bleed their color
+        ImagePool pool = helper.getImagePool();
+        BufferedImage image = helper.makeTranslucent(m_image, m_opacity);
+        if (w != image.getWidth() || h != image.getHeight()) {
+            ScaleHelper scaler = new ScaleHelper();
+            scaler.setForkJoinPool(helper.getForkJoinPool());
+            scaler.setImagePool(pool);
+            BufferedImage resized = scaler.scaleImageProgressive(image, w, h);
+            ImagePool.recycle(pool, image);
+            image = resized;
+        }
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB_PRE) {
+            BufferedImage converted = PackedRows.apply(image, BufferedImage.TYPE_INT_ARGB_PRE,
+                    helper.getForkJoinPool(), pool, null);
+            ImagePool.recycle(pool, image);
+            image = converted;
+        }
+        Scaled scaled = new Scaled(image);
+        synchronized (m_cache) {
+            m_cache.put(key, scaled);
+        }
+        return scaled;
+    }
+
+    /**
+     * Computes the positions of the top left corners of the watermarks on
+     * an image. The watermarks may be partially outside of the image.
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param scaled the pixels of the watermark
+     * @return the x and y coordinates of the corners
+     */
+    List<int[]> getPlacements(int width, int height, Scaled scaled) {
+        List<int[]> placements = new ArrayList<int[]>();
+        int w = scaled.m_width;
+        int h = scaled.m_height;
+        switch (m_position) {
+            case TOP_LEFT:
+                placements.add(new int[] {m_margin, m_margin});
+                break;
+            case TOP_RIGHT:
+                placements.add(new int[] {width - w - m_margin, m_margin});
+                break;
+            case BOTTOM_LEFT:
+                placements.add(new int[] {m_margin, height - h - m_margin});
+                break;
+            case BOTTOM_RIGHT:
+                placements.add(new int[] {width - w - m_margin, height - h - m_margin});
+                break;
+            case CENTER:
+                placements.add(new int[] {(width - w) / 2, (height - h) / 2});
+                break;
+            default:
+                for (int y = 0; y < height; y += h + m_margin) {
+                    for (int x = 0; x < width; x += w + m_margin) {
+                        placements.add(new int[] {x, y});
+                    }
+                }
+                break;
+        }
+        return placements;
+    }
+
+}
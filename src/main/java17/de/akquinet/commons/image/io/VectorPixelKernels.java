@@ -0,0 +1,105 @@
+package de.akquinet.commons.image.io;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementation of the {@link PixelKernels} using the Java 17 incubating
+ * vector API. The loops process as many values as the preferred vector size
+ * of the CPU allows (8 ints or floats with AVX2, 16 with AVX-512), the
+ * remaining values being processed by the scalar code. Multiplications and
+ * additions are not fused, so the results are the same as the scalar ones.
+ * <p/>
+ * This class is only compiled by the <code>vector</code> profile, and
+ * loaded by {@link PixelKernels#getInstance()} when the
+ * <code>jdk.incubator.vector</code> module is available.
+ */
+final class VectorPixelKernels extends PixelKernels {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    boolean isVectorized() {
+        return true;
+    }
+
+    @Override
+    void multiplyAdd(float[] values, int offset, float weight, float[] accumulator, int length) {
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector v = FloatVector.fromArray(FLOATS, values, offset + i);
+            FloatVector.fromArray(FLOATS, accumulator, i).add(v.mul(weight)).intoArray(accumulator, i);
+        }
+        for (; i < length; i++) {
+            accumulator[i] += values[offset + i] * weight;
+        }
+    }
+
+    @Override
+    void multiplyAdd(int[] values, int weight, int[] accumulator, int length) {
+        int bound = INTS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += INTS.length()) {
+            IntVector v = IntVector.fromArray(INTS, values, i);
+            IntVector.fromArray(INTS, accumulator, i).add(v.mul(weight)).intoArray(accumulator, i);
+        }
+        for (; i < length; i++) {
+            accumulator[i] += values[i] * weight;
+        }
+    }
+
+    @Override
+    void keyColor(int[] pixels, int offset, int length, int rgb, int tolerance) {
+        int red = (rgb >> 16) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int blue = rgb & 0xFF;
+        int bound = INTS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += INTS.length()) {
+            IntVector v = IntVector.fromArray(INTS, pixels, offset + i);
+            VectorMask<Integer> matches = v.lanewise(VectorOperators.LSHR, 16).and(0xFF).sub(red).abs()
+                    .compare(VectorOperators.LE, tolerance)
+                    .and(v.lanewise(VectorOperators.LSHR, 8).and(0xFF).sub(green).abs()
+                            .compare(VectorOperators.LE, tolerance))
+                    .and(v.and(0xFF).sub(blue).abs().compare(VectorOperators.LE, tolerance));
+            if (matches.anyTrue()) {
+                v.and(0x00FFFFFF).intoArray(pixels, offset + i, matches);
+            }
+        }
+        super.keyColor(pixels, offset + i, length - i, rgb, tolerance);
+    }
+
+    @Override
+    void blend(int[] source, int sourceOffset, int[] target, int targetOffset, int length) {
+        int bound = INTS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += INTS.length()) {
+            IntVector s = IntVector.fromArray(INTS, source, sourceOffset + i);
+            IntVector alpha = s.lanewise(VectorOperators.LSHR, 24);
+            VectorMask<Integer> visible = alpha.compare(VectorOperators.NE, 0);
+            if (!visible.anyTrue()) {
+                // Transparent part of the watermark
+                continue;
+            }
+            // The opaque pixels need no special case: the rounded division by
+            // 255 is exact for the factor 0. The transparent pixels are not
+            // stored, whatever their color components, as in the scalar kernel
+            IntVector factor = alpha.neg().add(255);
+            IntVector d = IntVector.fromArray(INTS, target, targetOffset + i);
+            IntVector rb = d.and(0xFF00FF).mul(factor).add(0x800080);
+            rb = rb.add(rb.lanewise(VectorOperators.LSHR, 8).and(0xFF00FF))
+                    .lanewise(VectorOperators.LSHR, 8).and(0xFF00FF);
+            IntVector ag = d.lanewise(VectorOperators.LSHR, 8).and(0xFF00FF).mul(factor).add(0x800080);
+            ag = ag.add(ag.lanewise(VectorOperators.LSHR, 8).and(0xFF00FF)).and(0xFF00FF00);
+            s.add(ag.or(rb)).intoArray(target, targetOffset + i, visible);
+        }
+        super.blend(source, sourceOffset + i, target, targetOffset + i, length - i);
+    }
+
+}
@@ -0,0 +1,90 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.BulkMetadataEditor;
+import de.akquinet.commons.image.io.ExtendedImageMetadata;
+import de.akquinet.commons.image.io.Image;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BulkMetadataEditorTest {
+
+    public static final File JPG_WITH_METADATA = new File("src/test/resources/jpg/IMG_0467.jpg");
+    public static final File JPG = new File("src/test/resources/jpg/keepout-security-restricted-access.jpg");
+    public static final File GIF = new File("src/test/resources/gif/PIC-iCarta-Small.gif");
+
+    File m_tmp = new File("target/tmp/bulk");
+
+    @Before
+    public void setUp() throws IOException {
+        if (m_tmp.exists()) {
+            FileUtils.cleanDirectory(m_tmp);
+        }
+        m_tmp.mkdirs();
+    }
+
+    @Test
+    public void testBulkEdition() throws Exception {
+        File f1 = new File(m_tmp, "with-metadata.jpg");
+        File f2 = new File(m_tmp, "without-metadata.jpg");
+        FileUtils.copyFile(JPG_WITH_METADATA, f1);
+        FileUtils.copyFile(JPG, f2);
+        long length = f2.length();
+
+        ExtendedImageMetadata edits = new ExtendedImageMetadata();
+        edits.setCopyright("akquinet");
+        edits.setCity("Berlin");
+        edits.setKeywords(new ArrayList<String>(Arrays.asList("bulk", "edit")));
+
+        List<BulkMetadataEditor.Result> results = new BulkMetadataEditor(2).edit(edits, Arrays.asList(f1, f2));
+        assertEquals(2, results.size());
+        assertEquals(f1, results.get(0).getFile());
+        assertTrue(results.get(0).toString(), results.get(0).isSuccessful());
+        assertTrue(results.get(1).toString(), results.get(1).isSuccessful());
+
+        Image image = new Image(f1);
+        assertEquals("akquinet", image.getMetadata().getCopyright());
+        assertEquals("Berlin", image.getMetadata().getCity());
+        // Not edited
+        assertEquals("Clement Escoffier", image.getMetadata().getByLine());
+        assertTrue(image.getMetadata().getKeywords().contains("bulk"));
+
+        image = new Image(f2);
+        assertEquals("akquinet", image.getMetadata().getExtendedMetadata().getCopyright());
+        assertTrue(image.getMetadata().getExtendedMetadata().getKeywords().contains("edit"));
+        // Pixels are copied, not re-encoded: only the metadata were added
+        assertTrue(f2.length() > length);
+
+        // No temporary file left
+        assertEquals(2, m_tmp.listFiles().length);
+    }
+
+    @Test
+    public void testFailuresAreReportedPerFile() throws Exception {
+        File f1 = new File(m_tmp, "image.jpg");
+        File f2 = new File(m_tmp, "missing.jpg");
+        File f3 = new File(m_tmp, "image.gif");
+        FileUtils.copyFile(JPG, f1);
+        FileUtils.copyFile(GIF, f3);
+
+        ExtendedImageMetadata edits = new ExtendedImageMetadata();
+        edits.setAuthor("Commons image io");
+
+        List<BulkMetadataEditor.Result> results = new BulkMetadataEditor().edit(edits, Arrays.asList(f1, f2, f3));
+        assertTrue(results.get(0).isSuccessful());
+        assertFalse(results.get(1).isSuccessful());
+        assertNotNull(results.get(1).getError());
+        // GIF does not support extended metadata, the file is left untouched
+        assertFalse(results.get(2).isSuccessful());
+        assertTrue(FileUtils.contentEquals(GIF, f3));
+    }
+
+}
@@ -0,0 +1,329 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.IOHelper;
+import de.akquinet.commons.image.io.ScaleHelper;
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CmykReadTest {
+
+    /**
+     * The ink of the 4 vertical stripes of the test images, and their sRGB colors.
+     */
+    private static final int[][] INKS = { {0, 0, 0, 0}, {255, 0, 0, 0}, {0, 255, 255, 0}, {0, 0, 0, 255} };
+
+    private static final int[] COLORS = { 0xFFFFFF, 0x00FFFF, 0xFF0000, 0x000000 };
+
+    private IOHelper m_helper = new IOHelper();
+
+    /**
+     * Creates a JPEG stream with 4 components.
+     * @param adobe the Adobe color transform, -1 to omit the Adobe segment
+     * @return the stream
+     * @throws IOException if the stream cannot be written
+     */
+    private static byte[] createJpeg(int adobe) throws IOException {
+        WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 64, 32, 4, null);
+        for (int y = 0; y < raster.getHeight(); y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                raster.setPixel(x, y, INKS[x / 16]);
+            }
+        }
+        return createJpeg(raster, adobe, null, null);
+    }
+
+    /**
+     * Creates a JPEG stream with 4 components.
+     * @param inks the C, M, Y, K inks of the pixels
+     * @param adobe the Adobe color transform, -1 to omit the Adobe segment
+     * @param profile the ICC profile to embed, <code>null</code> if none
+     * @param param the parameters of the writer, <code>null</code> for the default ones
+     * @return the stream
+     * @throws IOException if the stream cannot be written
+     */
+    private static byte[] createJpeg(Raster inks, int adobe, byte[] profile, ImageWriteParam param)
+            throws IOException {
+        WritableRaster raster = inks.createCompatibleWritableRaster();
+        for (int y = 0; y < raster.getHeight(); y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                int[] ink = inks.getPixel(x, y, (int[]) null);
+                int[] samples = new int[4];
+                for (int i = 0; i < 4; i++) {
+                    // Adobe streams are inverted
+                    samples[i] = adobe < 0 ? ink[i] : 255 - ink[i];
+                }
+                if (adobe == 2) {
+                    // The complement of the C, M, Y samples are stored as YCbCr
+                    int r = 255 - samples[0];
+                    int g = 255 - samples[1];
+                    int b = 255 - samples[2];
+                    samples[0] = (int) Math.round(0.299 * r + 0.587 * g + 0.114 * b);
+                    samples[1] = (int) Math.round(128 - 0.168736 * r - 0.331264 * g + 0.5 * b);
+                    samples[2] = (int) Math.round(128 + 0.5 * r - 0.418688 * g - 0.081312 * b);
+                    for (int i = 0; i < 3; i++) {
+                        samples[i] = Math.min(samples[i], 255);
+                    }
+                }
+                raster.setPixel(x, y, samples);
+            }
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(raster, null, null), param);
+        } finally {
+            stream.close();
+            writer.dispose();
+        }
+        byte[] jpeg = out.toByteArray();
+        ByteArrayOutputStream segments = new ByteArrayOutputStream();
+        if (adobe >= 0) {
+            segments.write(new byte[] { (byte) 0xFF, (byte) 0xEE, 0, 14, 'A', 'd', 'o', 'b', 'e', 0, 100, 0, 0, 0,
+                0, (byte) adobe });
+        }
+        if (profile != null) {
+            DataOutputStream segment = new DataOutputStream(segments);
+            segment.writeShort(0xFFE2);
+            segment.writeShort(2 + 14 + profile.length);
+            segment.writeBytes("ICC_PROFILE");
+            segment.write(new byte[] { 0, 1, 1 });
+            segment.write(profile);
+        }
+        // Inserts the segments after the SOI marker
+        byte[] inserted = segments.toByteArray();
+        byte[] result = new byte[jpeg.length + inserted.length];
+        System.arraycopy(jpeg, 0, result, 0, 2);
+        System.arraycopy(inserted, 0, result, 2, inserted.length);
+        System.arraycopy(jpeg, 2, result, 2 + inserted.length, jpeg.length - 2);
+        return result;
+    }
+
+    /**
+     * Creates an ICC output profile converting CMYK to Lab with a 5x5x5x5
+     * table. The inks are purposely not the naive ones: the cyan ink only
+     * absorbs 80% of the red light, the magenta ink 90% of the green light.
+     * @return the profile data
+     * @throws IOException if the profile cannot be written
+     */
+    private static byte[] createCmykProfile() throws IOException {
+        int grid = 5;
+        ByteArrayOutputStream lut = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(lut);
+        data.writeBytes("mft2");
+        data.writeInt(0);
+        data.write(new byte[] {4, 3, (byte) grid, 0});
+        for (int i = 0; i < 9; i++) {
+            // Identity matrix
+            data.writeInt(i % 4 == 0 ? 0x10000 : 0);
+        }
+        data.writeShort(2);
+        data.writeShort(2);
+        for (int i = 0; i < 4; i++) {
+            data.writeShort(0);
+            data.writeShort(0xFFFF);
+        }
+        ColorSpace srgb = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+        for (int i = 0; i < grid * grid * grid * grid; i++) {
+            float[] ink = new float[4];
+            for (int c = 3, index = i; c >= 0; c--, index /= grid) {
+                ink[c] = (index % grid) / (float) (grid - 1);
+            }
+            float[] rgb = {(1 - 0.8f * ink[0]) * (1 - ink[3]), (1 - 0.9f * ink[1]) * (1 - ink[3]),
+                (1 - ink[2]) * (1 - ink[3])};
+            float[] xyz = srgb.toCIEXYZ(rgb);
+            double fx = labFunction(xyz[0] / 0.9642);
+            double fy = labFunction(xyz[1]);
+            double fz = labFunction(xyz[2] / 0.8249);
+            // Lab v2 encoding of the 16 bits tables
+            data.writeShort((int) Math.round((116 * fy - 16) * 0xFF00 / 100));
+            data.writeShort((int) Math.round((500 * (fx - fy) + 128) * 256));
+            data.writeShort((int) Math.round((200 * (fy - fz) + 128) * 256));
+        }
+        for (int i = 0; i < 3; i++) {
+            data.writeShort(0);
+            data.writeShort(0xFFFF);
+        }
+        byte[] a2b0 = lut.toByteArray();
+
+        ByteArrayOutputStream white = new ByteArrayOutputStream();
+        data = new DataOutputStream(white);
+        data.writeBytes("XYZ ");
+        data.writeInt(0);
+        data.writeInt(0xF6D6);
+        data.writeInt(0x10000);
+        data.writeInt(0xD32D);
+        byte[] wtpt = white.toByteArray();
+
+        ByteArrayOutputStream description = new ByteArrayOutputStream();
+        data = new DataOutputStream(description);
+        data.writeBytes("desc");
+        data.writeInt(0);
+        data.writeInt(5);
+        data.writeBytes("Test\0");
+        data.write(new byte[4 + 4 + 2 + 1 + 67]);
+        byte[] desc = description.toByteArray();
+
+        byte[] cprt = "text\0\0\0\0None\0".getBytes("US-ASCII");
+
+        String[] signatures = {"desc", "cprt", "wtpt", "A2B0"};
+        byte[][] tags = {desc, cprt, wtpt, a2b0};
+        int offset = 128 + 4 + 12 * tags.length;
+        int[] offsets = new int[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            offsets[i] = offset;
+            offset += (tags[i].length + 3) & ~3;
+        }
+        ByteArrayOutputStream profile = new ByteArrayOutputStream();
+        data = new DataOutputStream(profile);
+        data.writeInt(offset);
+        data.writeInt(0);
+        data.writeInt(0x02100000);
+        data.writeBytes("prtrCMYKLab ");
+        data.write(new byte[12]);
+        data.writeBytes("acsp");
+        data.write(new byte[24]);
+        data.writeInt(0);
+        data.writeInt(0xF6D6);
+        data.writeInt(0x10000);
+        data.writeInt(0xD32D);
+        data.write(new byte[48]);
+        data.writeInt(tags.length);
+        for (int i = 0; i < tags.length; i++) {
+            data.writeBytes(signatures[i]);
+            data.writeInt(offsets[i]);
+            data.writeInt(tags[i].length);
+        }
+        for (byte[] tag : tags) {
+            data.write(tag);
+            data.write(new byte[((tag.length + 3) & ~3) - tag.length]);
+        }
+        return profile.toByteArray();
+    }
+
+    private static double labFunction(double t) {
+        return t > 216.0 / 24389 ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116;
+    }
+
+    private static void assertStripes(BufferedImage image) {
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+        for (int i = 0; i < COLORS.length; i++) {
+            int rgb = image.getRGB(i * image.getWidth() / 4 + image.getWidth() / 8, image.getHeight() / 2);
+            for (int shift = 0; shift < 24; shift += 8) {
+                int expected = (COLORS[i] >> shift) & 0xFF;
+                int actual = (rgb >> shift) & 0xFF;
+                Assert.assertTrue("Stripe " + i + " : " + Integer.toHexString(rgb), Math.abs(expected - actual) <= 8);
+            }
+        }
+    }
+
+    @Test
+    public void testCmyk() throws IOException {
+        BufferedImage image = m_helper.read(createJpeg(-1));
+        Assert.assertEquals(64, image.getWidth());
+        Assert.assertEquals(32, image.getHeight());
+        assertStripes(image);
+    }
+
+    @Test
+    public void testAdobeCmyk() throws IOException {
+        assertStripes(m_helper.read(createJpeg(0)));
+    }
+
+    @Test
+    public void testAdobeYcck() throws IOException {
+        File file = File.createTempFile("image-io", "ycck.jpg");
+        try {
+            FileUtils.writeByteArrayToFile(file, createJpeg(2));
+            assertStripes(m_helper.read(file));
+
+            // The decoder reads the subsampled region directly
+            BufferedImage scaled = new ScaleHelper().resize(file, 32, 16, ScaleHelper.ResizeMode.FIT);
+            Assert.assertEquals(32, scaled.getWidth());
+            Assert.assertEquals(16, scaled.getHeight());
+            assertStripes(scaled);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedJpeg() throws IOException {
+        byte[] jpeg = createJpeg(0);
+        // The missing rows of a truncated scan are left gray
+        BufferedImage image = m_helper.read(Arrays.copyOf(jpeg, jpeg.length - 100));
+        Assert.assertEquals(64, image.getWidth());
+        Assert.assertEquals(32, image.getHeight());
+
+        // Truncated in the Adobe segment, the stream goes through the other decoders
+        File file = File.createTempFile("image-io", "truncated.jpg");
+        try {
+            FileUtils.writeByteArrayToFile(file, Arrays.copyOf(jpeg, 12));
+            m_helper.read(file);
+            Assert.fail("The image cannot be read");
+        } catch (EOFException e) {
+            Assert.fail("The header parsing failure must not escape");
+        } catch (IOException e) {
+            Assert.assertEquals("Cannot read image " + file.getAbsolutePath(), e.getMessage());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmbeddedProfile() throws IOException {
+        // Smooth gradients of the 4 inks
+        WritableRaster inks = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 64, 64, 4, null);
+        for (int y = 0; y < inks.getHeight(); y++) {
+            for (int x = 0; x < inks.getWidth(); x++) {
+                inks.setPixel(x, y, new int[] {x * 4, y * 4, (x + y) * 2, x * y / 32});
+            }
+        }
+        byte[] profile = createCmykProfile();
+        WritableRaster expected = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 64, 64, 3, null);
+        new ColorConvertOp(new ICC_Profile[] {ICC_Profile.getInstance(profile),
+            ICC_Profile.getInstance(ColorSpace.CS_sRGB)}, null).filter(inks, expected);
+
+        ImageWriteParam param = ImageIO.getImageWritersByFormatName("jpeg").next().getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(1);
+        for (int adobe : new int[] {0, 2}) {
+            BufferedImage image = m_helper.read(createJpeg(inks, adobe, profile, param));
+            Assert.assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int rgb = image.getRGB(x, y);
+                    for (int c = 0; c < 3; c++) {
+                        int difference = Math.abs(expected.getSample(x, y, c) - ((rgb >> (16 - 8 * c)) & 0xFF));
+                        Assert.assertTrue("Pixel " + x + ", " + y + " : " + Integer.toHexString(rgb), difference <= 6);
+                    }
+                }
+            }
+            // The cyan ink of the profile only absorbs 80% of the red light
+            int cyan = image.getRGB(63, 0) >> 16 & 0xFF;
+            Assert.assertTrue(Integer.toString(cyan), cyan > 40);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.IOHelper;
+import de.akquinet.commons.image.io.ScaleHelper;
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+public class ColorProfileReadTest {
+
+    private IOHelper m_helper = new IOHelper();
+
+    /**
+     * Creates a JPEG stream with a gradient, and the given embedded profile.
+     * @param profile the profile
+     * @return the stream
+     * @throws IOException if the stream cannot be written
+     */
+    private static byte[] createJpeg(ICC_Profile profile) throws IOException {
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 5) << 8 | 128);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        byte[] jpeg = out.toByteArray();
+
+        // Image-IO drops the profiles, inserts an APP2 segment after the SOI marker
+        byte[] data = profile.getData();
+        int length = 2 + 14 + data.length;
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.write(jpeg, 0, 2);
+        result.write(0xFF);
+        result.write(0xE2);
+        result.write(length >> 8);
+        result.write(length & 0xFF);
+        result.write("ICC_PROFILE\0".getBytes("US-ASCII"));
+        result.write(1);
+        result.write(1);
+        result.write(data, 0, data.length);
+        result.write(jpeg, 2, jpeg.length - 2);
+        return result.toByteArray();
+    }
+
+    private static void assertSimilar(BufferedImage expected, BufferedImage actual) {
+        Assert.assertEquals(expected.getWidth(), actual.getWidth());
+        Assert.assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    Assert.assertTrue(x + "," + y + " : " + Integer.toHexString(a) + " instead of "
+                            + Integer.toHexString(e), Math.abs(((e >> shift) & 0xFF) - ((a >> shift) & 0xFF)) <= 3);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmbeddedProfile() throws IOException {
+        byte[] jpeg = createJpeg(ICC_Profile.getInstance(ColorSpace.CS_LINEAR_RGB));
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(jpeg));
+        BufferedImage image = m_helper.read(jpeg);
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+        assertSimilar(expected, image);
+        // The linear colors are brighter in sRGB
+        Assert.assertTrue((image.getRGB(0, 0) & 0xFF) > 180);
+
+        // The cached table gives the same result
+        assertSimilar(image, m_helper.read(jpeg));
+    }
+
+    @Test
+    public void testSRGBProfile() throws IOException {
+        byte[] jpeg = createJpeg(ICC_Profile.getInstance(ColorSpace.CS_sRGB));
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertSimilar(expected, m_helper.read(jpeg));
+    }
+
+    @Test
+    public void testScaledEmbeddedProfile() throws IOException {
+        File file = File.createTempFile("image-io", "linear.jpg");
+        try {
+            FileUtils.writeByteArrayToFile(file, createJpeg(ICC_Profile.getInstance(ColorSpace.CS_LINEAR_RGB)));
+            BufferedImage image = m_helper.read(file);
+            assertSimilar(ImageIO.read(file), image);
+
+            // The decoder reads the subsampled region directly
+            BufferedImage scaled = new ScaleHelper().resize(file, 32, 24, ScaleHelper.ResizeMode.FIT);
+            Assert.assertEquals(32, scaled.getWidth());
+            Assert.assertEquals(24, scaled.getHeight());
+            Assert.assertTrue(Math.abs((scaled.getRGB(16, 12) & 0xFF) - (image.getRGB(32, 24) & 0xFF)) <= 3);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testForkJoinPool() throws IOException {
+        byte[] jpeg = createJpeg(ICC_Profile.getInstance(ColorSpace.CS_LINEAR_RGB));
+        IOHelper sequential = new IOHelper();
+        sequential.setForkJoinPool(null);
+        BufferedImage expected = sequential.read(jpeg);
+
+        IOHelper parallel = new IOHelper();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            parallel.setForkJoinPool(pool);
+            BufferedImage image = parallel.read(jpeg);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    Assert.assertEquals(expected.getRGB(x, y), image.getRGB(x, y));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.Format;
+import de.akquinet.commons.image.io.Image;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+public class DeferredOperationsTest {
+
+    /**
+     * 1080x902 PNG with alpha channel.
+     */
+    public static final File PNG = new File("src/test/resources/png/wilber-huge-alpha.png");
+
+    @Test
+    public void testRightAngleChainIsRenderedOnce() throws IOException {
+        Image eager = new Image(PNG);
+        eager.scale(0.5f);
+        eager.rotate(90);
+        eager.horizontalflip();
+        eager.rotate(-180);
+
+        Image deferred = new Image(PNG);
+        BufferedImage source = deferred.getBufferedImage();
+        deferred.setDeferred(true);
+        deferred.scale(0.5f);
+        deferred.rotate(90);
+        deferred.horizontalflip();
+        deferred.rotate(-180);
+        // The size is known without rendering
+        Assert.assertEquals(451, deferred.getWidth());
+        Assert.assertEquals(540, deferred.getHeight());
+
+        // One scale followed by an exact move gives the same pixels
+        BufferedImage result = deferred.getBufferedImage();
+        Assert.assertNotSame(source, result);
+        Assert.assertSame(result, deferred.getBufferedImage());
+        BufferedImage expected = eager.getBufferedImage();
+        Assert.assertEquals(expected.getWidth(), result.getWidth());
+        Assert.assertEquals(expected.getHeight(), result.getHeight());
+        for (int y = 0; y < result.getHeight(); y++) {
+            for (int x = 0; x < result.getWidth(); x++) {
+                Assert.assertEquals(expected.getRGB(x, y), result.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testFreeAngleChain() throws IOException {
+        Image eager = new Image(PNG);
+        eager.scale(0.5f);
+        eager.rotate(30);
+        eager.translate(10, -5);
+
+        Image deferred = new Image(PNG);
+        deferred.setDeferred(true);
+        deferred.scale(0.5f);
+        deferred.rotate(30);
+        deferred.translate(10, -5);
+        Assert.assertEquals(eager.getWidth(), deferred.getWidth());
+        Assert.assertEquals(eager.getHeight(), deferred.getHeight());
+
+        // Disabling the deferred mode renders the image
+        deferred.setDeferred(false);
+        Assert.assertFalse(deferred.isDeferred());
+        BufferedImage result = deferred.getBufferedImage();
+        Assert.assertEquals(eager.getWidth(), result.getWidth());
+        Assert.assertEquals(eager.getHeight(), result.getHeight());
+        // The corners are uncovered by the rotation
+        Assert.assertEquals(0, result.getRGB(0, 0) >>> 24);
+        // The center is covered, with colors close to the ones rendered in several steps
+        int x = result.getWidth() / 2;
+        int y = result.getHeight() / 2;
+        int expected = eager.getBufferedImage().getRGB(x, y);
+        int actual = result.getRGB(x, y);
+        for (int shift = 0; shift < 32; shift += 8) {
+            Assert.assertTrue(Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF)) <= 48);
+        }
+
+        // Operations done after disabling the deferred mode are applied right away
+        BufferedImage before = deferred.getBufferedImage();
+        deferred.verticalflip();
+        Assert.assertNotSame(before, deferred.getBufferedImage());
+    }
+
+    @Test
+    public void testTranslate() throws IOException {
+        BufferedImage image = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, x << 16 | y << 8 | 0xFF);
+            }
+        }
+        Image img = new Image(image, Format.PNG);
+        img.translate(3, -2);
+        BufferedImage result = img.getBufferedImage();
+        Assert.assertEquals(20, result.getWidth());
+        Assert.assertEquals(10, result.getHeight());
+        for (int y = 0; y < result.getHeight(); y++) {
+            for (int x = 0; x < result.getWidth(); x++) {
+                int expected = x < 3 || y >= 8 ? 0xFF000000 : image.getRGB(x - 3, y + 2);
+                Assert.assertEquals(expected, result.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testRawBytesRenderDeferredOperations() throws IOException {
+        BufferedImage image = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, x * 12 << 16 | y * 25 << 8);
+            }
+        }
+        byte[] original = new Image(image, Format.PNG).getRawBytes();
+        Image img = new Image(original);
+        Assert.assertSame(original, img.getRawBytes());
+
+        img.setDeferred(true);
+        img.horizontalflip();
+        byte[] bytes = img.getRawBytes();
+        Assert.assertFalse(Arrays.equals(original, bytes));
+        // The flip is rendered in the bytes
+        BufferedImage result = ImageIO.read(new ByteArrayInputStream(bytes));
+        for (int y = 0; y < result.getHeight(); y++) {
+            for (int x = 0; x < result.getWidth(); x++) {
+                Assert.assertEquals(image.getRGB(19 - x, y), result.getRGB(x, y));
+            }
+        }
+    }
+
+}
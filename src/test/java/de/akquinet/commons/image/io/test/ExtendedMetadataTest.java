@@ -619,6 +619,34 @@ public class ExtendedMetadataTest {
         assertFalse(copy.getMetadata().getExtendedMetadata().getKeywords().contains("noir"));
     }
 
+    /**
+     * Checks that an in-memory JPEG image is written with its metadata segments
+     * emitted by the encoder, right after the JFIF header.
+     * @throws IOException
+     */
+    @Test
+    public void testWritingInMemoryJPEGWithMetadata() throws IOException {
+        File file = new File("src/test/resources/jpg/keepout-security-restricted-access.jpg");
+        Image origin = new Image(ImageIOUtils.getIOHelper().read(file), Format.JPEG);
+        origin.getMetadata().getExtendedMetadata().setAuthor("Commons image io");
+        origin.getMetadata().getExtendedMetadata().setCity("Berlin");
+
+        byte[] bytes = origin.getBytes();
+        // SOI, then APP0 (JFIF)
+        assertEquals((byte) 0xFF, bytes[0]);
+        assertEquals((byte) 0xD8, bytes[1]);
+        assertEquals((byte) 0xE0, bytes[3]);
+        // The next segment is the APP13 (IPTC) segment
+        int next = 4 + (((bytes[4] & 0xFF) << 8) | (bytes[5] & 0xFF));
+        assertEquals((byte) 0xFF, bytes[next]);
+        assertEquals((byte) 0xED, bytes[next + 1]);
+
+        Image copy = new Image(bytes);
+        assertEquals(origin.getWidth(), copy.getWidth());
+        assertEquals("Commons image io", copy.getMetadata().getByLine());
+        assertEquals("Berlin", copy.getMetadata().getExtendedMetadata().getCity());
+    }
+
     /**
      * Checks that we're copying XMP when copying a PNG file.
      * @throws IOException
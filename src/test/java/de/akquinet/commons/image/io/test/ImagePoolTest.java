@@ -0,0 +1,125 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.ImagePool;
+import de.akquinet.commons.image.io.JPEGTransformer;
+import de.akquinet.commons.image.io.ManipulationHelper;
+import de.akquinet.commons.image.io.ScaleHelper;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+public class ImagePoolTest {
+
+    @Test
+    public void testReuse() {
+        ImagePool pool = new ImagePool();
+        ImagePool.Handle handle = pool.acquire(100, 50, BufferedImage.TYPE_INT_RGB);
+        BufferedImage image = handle.getImage();
+        image.setRGB(10, 10, 0xFF0000);
+        handle.close();
+        // Closing twice has no effect
+        handle.close();
+        Assert.assertEquals(1, pool.getCount());
+        Assert.assertEquals(100 * 50 * 4, pool.getSize());
+        try {
+            handle.getImage();
+            Assert.fail("The image was released");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Another size or type is allocated
+        Assert.assertNotSame(image, pool.acquire(100, 50, BufferedImage.TYPE_INT_ARGB).getImage());
+        Assert.assertNotSame(image, pool.acquire(50, 100, BufferedImage.TYPE_INT_RGB).getImage());
+
+        // The same size and type is reused, and cleared
+        BufferedImage reused = pool.acquire(100, 50, BufferedImage.TYPE_INT_RGB).getImage();
+        Assert.assertSame(image, reused);
+        Assert.assertEquals(0xFF000000, reused.getRGB(10, 10));
+        Assert.assertEquals(1, pool.getHitCount());
+        Assert.assertEquals(3, pool.getMissCount());
+        Assert.assertEquals(0, pool.getCount());
+        Assert.assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void testBudget() {
+        // Room for two 100x100 RGB images
+        ImagePool pool = new ImagePool(100 * 100 * 3 * 2);
+        BufferedImage first = new BufferedImage(100, 100, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage second = new BufferedImage(100, 100, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage third = new BufferedImage(100, 100, BufferedImage.TYPE_3BYTE_BGR);
+        pool.release(first);
+        pool.release(second);
+        pool.release(second);
+        Assert.assertEquals(2, pool.getCount());
+        pool.release(third);
+        Assert.assertEquals(2, pool.getCount());
+
+        // The least recently released image was dropped
+        BufferedImage a = pool.acquire(100, 100, BufferedImage.TYPE_3BYTE_BGR).getImage();
+        BufferedImage b = pool.acquire(100, 100, BufferedImage.TYPE_3BYTE_BGR).getImage();
+        BufferedImage c = pool.acquire(100, 100, BufferedImage.TYPE_3BYTE_BGR).getImage();
+        Assert.assertSame(third, a);
+        Assert.assertSame(second, b);
+        Assert.assertNotSame(first, c);
+        Assert.assertEquals(2, pool.getHitCount());
+
+        // Images larger than the budget are not kept
+        pool.release(new BufferedImage(1000, 1000, BufferedImage.TYPE_3BYTE_BGR));
+        Assert.assertEquals(0, pool.getCount());
+    }
+
+    @Test
+    public void testUnpoolableImages() {
+        ImagePool pool = new ImagePool();
+        BufferedImage image = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+        pool.release(image.getSubimage(10, 10, 50, 50));
+        pool.release(new BufferedImage(100, 100, BufferedImage.TYPE_BYTE_INDEXED));
+        pool.release(null);
+        Assert.assertEquals(0, pool.getCount());
+        try {
+            pool.acquire(100, 100, BufferedImage.TYPE_CUSTOM);
+            Assert.fail("Custom images cannot be pooled");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testHelpersRecycleIntermediateImages() throws IOException {
+        ImagePool pool = new ImagePool();
+        BufferedImage source = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, x << 16 | y << 8 | (x + y) & 0xFF);
+            }
+        }
+        ScaleHelper scaler = new ScaleHelper();
+        scaler.setImagePool(pool);
+        BufferedImage expected = new ScaleHelper().scaleImageProgressive(source, 80, 60);
+        BufferedImage scaled = scaler.scaleImageProgressive(source, 80, 60);
+        Assert.assertEquals(expected.getWidth(), scaled.getWidth());
+        // The intermediate halved images were given back
+        Assert.assertTrue(pool.getCount() > 0);
+        for (int y = 0; y < scaled.getHeight(); y++) {
+            for (int x = 0; x < scaled.getWidth(); x++) {
+                Assert.assertEquals(expected.getRGB(x, y), scaled.getRGB(x, y));
+            }
+        }
+
+        // Released results are reused by the next operations
+        ManipulationHelper manipulation = new ManipulationHelper();
+        manipulation.setImagePool(pool);
+        BufferedImage rotated = manipulation.transform(scaled, JPEGTransformer.Transform.ROTATE_180);
+        pool.wrap(rotated).close();
+        long hits = pool.getHitCount();
+        BufferedImage again = manipulation.transform(scaled, JPEGTransformer.Transform.ROTATE_180);
+        Assert.assertSame(rotated, again);
+        Assert.assertEquals(hits + 1, pool.getHitCount());
+        Assert.assertEquals(scaled.getRGB(0, 0), again.getRGB(again.getWidth() - 1, again.getHeight() - 1));
+    }
+
+}
@@ -0,0 +1,101 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.ImageStatistics;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+public class ImageStatisticsTest {
+
+    public static final File JPG = new File("src/test/resources/jpg/photo.JPG");
+
+    @Test
+    public void testHistograms() {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(42);
+        int[] red = new int[256];
+        double sum = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = random.nextInt(0x1000000);
+                image.setRGB(x, y, rgb);
+                red[rgb >> 16]++;
+                sum += rgb >> 16;
+            }
+        }
+        double mean = sum / (300 * 200);
+        double variance = 0;
+        for (int v = 0; v < 256; v++) {
+            variance += red[v] * (v - mean) * (v - mean);
+        }
+        variance /= 300 * 200;
+
+        ImageStatistics statistics = ImageStatistics.compute(image);
+        Assert.assertEquals(300 * 200, statistics.getPixelCount());
+        int[] histogram = statistics.getHistogram(ImageStatistics.Channel.RED);
+        for (int v = 0; v < 256; v++) {
+            Assert.assertEquals(red[v], histogram[v]);
+        }
+        Assert.assertEquals(mean, statistics.getMean(ImageStatistics.Channel.RED), 1e-9);
+        Assert.assertEquals(variance, statistics.getVariance(ImageStatistics.Channel.RED), 1e-6);
+
+        // The same statistics are computed whatever the layout of the pixels
+        BufferedImage packed = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        packed.createGraphics().drawImage(image, 0, 0, null);
+        ImageStatistics other = ImageStatistics.compute(packed);
+        for (ImageStatistics.Channel channel : ImageStatistics.Channel.values()) {
+            Assert.assertEquals(statistics.getMean(channel), other.getMean(channel), 1e-9);
+        }
+    }
+
+    @Test
+    public void testDominantColors() {
+        BufferedImage image = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if (y < 10) {
+                    // Transparent pixels are ignored
+                    image.setRGB(x, y, 0x00FFFFFF);
+                } else if (x < 60) {
+                    image.setRGB(x, y, 0xFFC01010 + (x & 3));
+                } else {
+                    image.setRGB(x, y, 0xFF1020E0 - (y & 3));
+                }
+            }
+        }
+        ImageStatistics statistics = ImageStatistics.compute(image, 3);
+        Assert.assertEquals(9000, statistics.getPixelCount());
+        List<ImageStatistics.Swatch> colors = statistics.getDominantColors();
+        Assert.assertEquals(3, colors.size());
+        Assert.assertEquals(0.6, colors.get(0).getShare(), 0.01);
+        Assert.assertTrue(Math.abs((colors.get(0).getRGB() >> 16) - 0xC0) <= 2);
+        Assert.assertTrue(Math.abs((colors.get(1).getRGB() & 0xFF) - 0xDF) <= 2);
+        int total = 0;
+        for (ImageStatistics.Swatch color : colors) {
+            total += color.getPopulation();
+        }
+        Assert.assertEquals(9000, total);
+
+        // A uniform image has a single color
+        BufferedImage uniform = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        Assert.assertEquals(1, ImageStatistics.compute(uniform).getDominantColors().size());
+        Assert.assertEquals(0.0, ImageStatistics.compute(uniform).getVariance(ImageStatistics.Channel.LUMINANCE));
+    }
+
+    @Test
+    public void testSubsampledDecode() throws IOException {
+        ImageStatistics full = ImageStatistics.compute(JPG, 0, 4);
+        ImageStatistics subsampled = ImageStatistics.compute(JPG, 100, 4);
+        Assert.assertTrue(subsampled.getPixelCount() < full.getPixelCount());
+        Assert.assertTrue(subsampled.getPixelCount() >= 100 * 100 / 4);
+        Assert.assertEquals(full.getMean(ImageStatistics.Channel.LUMINANCE),
+                subsampled.getMean(ImageStatistics.Channel.LUMINANCE), 5);
+        Assert.assertEquals(full.getDominantColors().size(), subsampled.getDominantColors().size());
+    }
+
+}
@@ -0,0 +1,137 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.ConversionHelper;
+import de.akquinet.commons.image.io.ImageIOUtils;
+import de.akquinet.commons.image.io.JPEGEncoder;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class JPEGEncoderTest {
+
+    public static final File JPG = new File("src/test/resources/jpg/photo.JPG");
+
+    private static IIOMetadataNode readMetadata(byte[] bytes) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        try {
+            reader.setInput(input);
+            return (IIOMetadataNode) reader.getImageMetadata(0).getAsTree("javax_imageio_jpeg_image_1.0");
+        } finally {
+            reader.dispose();
+            input.close();
+        }
+    }
+
+    private static BufferedImage readThumbnail() throws IOException {
+        BufferedImage image = ImageIOUtils.getIOHelper().read(JPG);
+        return ImageIOUtils.getScaleHelper().scaleImageProgressive(image, 320, 240);
+    }
+
+    @Test
+    public void testOptions() throws IOException {
+        BufferedImage image = readThumbnail();
+        int[][] factors = {{2, 2}, {1, 1}, {2, 1}, {2, 2}};
+        for (JPEGEncoder.Subsampling subsampling : JPEGEncoder.Subsampling.values()) {
+            JPEGEncoder encoder = new JPEGEncoder(0.8f, subsampling, true, true);
+            byte[] bytes = encoder.encode(image);
+            // The session is reused
+            Assert.assertTrue(Arrays.equals(bytes, encoder.encode(image)));
+
+            IIOMetadataNode metadata = readMetadata(bytes);
+            IIOMetadataNode luminance = (IIOMetadataNode) metadata.getElementsByTagName("componentSpec").item(0);
+            Assert.assertEquals(factors[subsampling.ordinal()][0],
+                    Integer.parseInt(luminance.getAttribute("HsamplingFactor")));
+            Assert.assertEquals(factors[subsampling.ordinal()][1],
+                    Integer.parseInt(luminance.getAttribute("VsamplingFactor")));
+            // A progressive image has several scans
+            Assert.assertTrue(metadata.getElementsByTagName("sos").getLength() > 1);
+        }
+        byte[] baseline = new JPEGEncoder(0.8f).encode(image);
+        Assert.assertEquals(1, readMetadata(baseline).getElementsByTagName("sos").getLength());
+    }
+
+    @Test
+    public void testOutputs() throws IOException {
+        BufferedImage image = readThumbnail();
+        ConversionHelper helper = ImageIOUtils.getConversionHelper();
+        JPEGEncoder encoder = helper.getJPEGEncoder(0.7f);
+        Assert.assertSame(encoder, helper.getJPEGEncoder(0.7f));
+        byte[] bytes = helper.convertImageToJPEGBytes(image, 0.7f);
+        Assert.assertEquals(0xFF, bytes[0] & 0xFF);
+        Assert.assertEquals(0xD8, bytes[1] & 0xFF);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(image, out);
+        Assert.assertTrue(Arrays.equals(bytes, out.toByteArray()));
+
+        byte[] buffer = new byte[bytes.length + 10];
+        Assert.assertEquals(bytes.length, encoder.encode(image, buffer, 10));
+        Assert.assertTrue(Arrays.equals(bytes, Arrays.copyOfRange(buffer, 10, buffer.length)));
+        try {
+            encoder.encode(image, buffer, 11);
+            Assert.fail("The buffer is too small");
+        } catch (IOException e) {
+            // Expected
+        }
+        // The encoder can still be used after a failure or being cleared
+        encoder.clear();
+        Assert.assertTrue(Arrays.equals(bytes, encoder.encode(image)));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        BufferedImage image = readThumbnail();
+        ConversionHelper helper = new ConversionHelper();
+        JPEGEncoder encoder = helper.getJPEGEncoder(0.5f);
+        byte[] bytes = encoder.encode(image);
+        for (int i = 0; i < ConversionHelper.ENCODERS; i++) {
+            helper.getJPEGEncoder(0.9f - i * 0.01f);
+        }
+        // The least recently used encoder was evicted and closed
+        Assert.assertNotSame(encoder, helper.getJPEGEncoder(0.5f));
+        // A closed encoder still encodes, with its own sessions
+        Assert.assertTrue(Arrays.equals(bytes, encoder.encode(image)));
+        Assert.assertTrue(Arrays.equals(bytes, helper.getJPEGEncoder(0.5f).encode(image)));
+    }
+
+    @Test
+    public void testConcurrentEncodings() throws Exception {
+        final BufferedImage image = readThumbnail();
+        final JPEGEncoder encoder = new JPEGEncoder(0.9f, JPEGEncoder.Subsampling.S444, false, true);
+        final byte[] expected = encoder.encode(image);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        return Arrays.equals(expected, encoder.encode(image));
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.JPEGTransformer;
+import de.akquinet.commons.image.io.JPEGTransformer.Transform;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class JPEGTransformerTest {
+
+    /**
+     * 576x434, 4:2:0, the MCU is 16x16 so the bottom edge is trimmed when moved to the top or left.
+     */
+    public static final File JPEG = new File("src/test/resources/jpg/andyexploded.jpg");
+
+    /**
+     * 500x300, no chroma subsampling, the MCU is 8x8.
+     */
+    public static final File JPEG_444 = new File("src/test/resources/jpg/keepout-security-restricted-access.jpg");
+
+    File m_tmp = new File("target/tmp/transform");
+
+    @Before
+    public void setUp() throws IOException {
+        if (m_tmp.exists()) {
+            FileUtils.cleanDirectory(m_tmp);
+        }
+        m_tmp.mkdirs();
+    }
+
+    @Test
+    public void testRotate90() throws IOException {
+        byte[] original = FileUtils.readFileToByteArray(JPEG);
+        byte[] rotated = new JPEGTransformer().transform(original, Transform.ROTATE_90);
+
+        BufferedImage source = read(original);
+        BufferedImage result = read(rotated);
+        // The left edge of the rotated image comes from the bottom edge, trimmed to 432 lines
+        assertEquals(432, result.getWidth());
+        assertEquals(576, result.getHeight());
+        for (int y = 0; y < result.getHeight(); y += 7) {
+            for (int x = 0; x < result.getWidth(); x += 7) {
+                assertSimilar(source.getRGB(y, result.getWidth() - 1 - x), result.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testAllTransformsAreLossless() throws IOException {
+        byte[] original = FileUtils.readFileToByteArray(JPEG_444);
+        BufferedImage source = read(original);
+        JPEGTransformer transformer = new JPEGTransformer();
+        // A transformation followed by its inverse gives back the original image, trimmed
+        assertSamePixels(source, read(transformer.transform(
+                transformer.transform(original, Transform.ROTATE_90), Transform.ROTATE_270)));
+        assertSamePixels(source, read(transformer.transform(
+                transformer.transform(original, Transform.ROTATE_180), Transform.ROTATE_180)));
+        assertSamePixels(source, read(transformer.transform(
+                transformer.transform(original, Transform.TRANSPOSE), Transform.TRANSPOSE)));
+        assertSamePixels(source, read(transformer.transform(
+                transformer.transform(original, Transform.TRANSVERSE), Transform.TRANSVERSE)));
+        assertSamePixels(source, read(transformer.transform(
+                transformer.transform(original, Transform.FLIP_HORIZONTAL), Transform.FLIP_HORIZONTAL)));
+        assertSamePixels(source, read(transformer.transform(
+                transformer.transform(original, Transform.FLIP_VERTICAL), Transform.FLIP_VERTICAL)));
+    }
+
+    @Test
+    public void testTransformInPlaceKeepsMetadata() throws IOException {
+        File out = new File(m_tmp, "andy.jpg");
+        FileUtils.copyFile(JPEG, out);
+        new JPEGTransformer().transform(out, out, Transform.ROTATE_180);
+
+        byte[] original = FileUtils.readFileToByteArray(JPEG);
+        byte[] rotated = FileUtils.readFileToByteArray(out);
+        // The APP0 segment is copied as it is
+        int length = ((original[4] & 0xFF) << 8) | (original[5] & 0xFF);
+        for (int i = 0; i < length + 4; i++) {
+            assertEquals(original[i], rotated[i]);
+        }
+        assertEquals(576, read(rotated).getWidth());
+        // No temporary file left
+        assertEquals(1, m_tmp.listFiles().length);
+    }
+
+    @Test
+    public void testTransformForExifOrientation() {
+        assertNull(Transform.getTransformForExifOrientation(1));
+        assertEquals(Transform.ROTATE_90, Transform.getTransformForExifOrientation(6));
+        assertEquals(Transform.ROTATE_270, Transform.getTransformForExifOrientation(8));
+        assertEquals(Transform.ROTATE_90, Transform.getRotation(-270));
+        assertNull(Transform.getRotation(360));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAJPEG() throws IOException {
+        new JPEGTransformer().transform(FileUtils.readFileToByteArray(
+                new File("src/test/resources/png/beastie.png")), Transform.ROTATE_90);
+    }
+
+    private static BufferedImage read(byte[] bytes) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    private static void assertSimilar(int expected, int actual) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            assertTrue(Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF)) <= 8);
+        }
+    }
+}
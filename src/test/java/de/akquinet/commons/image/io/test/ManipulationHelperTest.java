@@ -1,11 +1,18 @@
 package de.akquinet.commons.image.io.test;
 
 import de.akquinet.commons.image.io.Image;
+import de.akquinet.commons.image.io.JPEGTransformer;
+import de.akquinet.commons.image.io.JPEGTransformer.Transform;
 import de.akquinet.commons.image.io.ManipulationHelper;
+import de.akquinet.commons.image.io.RasterNormalizer;
 import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
 import java.io.File;
 import java.io.IOException;
 
@@ -23,6 +30,11 @@ public class ManipulationHelperTest {
     private static final Object JPG_HEIGHT = 300;
     public static final File JPG = new File("src/test/resources/jpg/keepout-security-restricted-access.jpg");
 
+    /**
+     * 2592x1936 picture with the EXIF orientation 6 (rotated by 90 degrees).
+     */
+    public static final File JPG_ROTATED = new File("src/test/resources/jpg/flore.JPG");
+
 
     private ManipulationHelper m_manipulation = new ManipulationHelper();
 
@@ -131,4 +143,323 @@ public class ManipulationHelperTest {
         System.out.println(tmp.getAbsolutePath());
     }
 
+    @Test
+    public void testTransforms() throws IOException {
+        BufferedImage image = new Image(PNG).getBufferedImage();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        for (Transform transform : Transform.values()) {
+            BufferedImage result = m_manipulation.transform(image, transform);
+            Assert.assertEquals(image.getType(), result.getType());
+            boolean transpose = transform.isTransposing();
+            Assert.assertEquals(transpose ? h : w, result.getWidth());
+            Assert.assertEquals(transpose ? w : h, result.getHeight());
+            for (int y = 0; y < result.getHeight(); y += 5) {
+                for (int x = 0; x < result.getWidth(); x += 5) {
+                    int tx = transform.isMirroringX() ? result.getWidth() - 1 - x : x;
+                    int ty = transform.isMirroringY() ? result.getHeight() - 1 - y : y;
+                    int expected = transpose ? image.getRGB(ty, tx) : image.getRGB(tx, ty);
+                    Assert.assertEquals(expected, result.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNormalizeOrientationOnLoad() throws IOException {
+        Image image = new Image(JPG_ROTATED, true);
+        Assert.assertTrue(image.isOrientationNormalized());
+        Assert.assertEquals(1936, image.getWidth());
+        Assert.assertEquals(2592, image.getHeight());
+
+        // Same pixels as the lossless rotation of the JPEG stream
+        byte[] bytes = new JPEGTransformer().normalizeOrientation(FileUtils.readFileToByteArray(JPG_ROTATED));
+        Image expected = new Image(bytes);
+        for (int y = 0; y < image.getHeight(); y += 17) {
+            for (int x = 0; x < image.getWidth(); x += 17) {
+                int p = expected.getBufferedImage().getRGB(x, y);
+                int q = image.getBufferedImage().getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    Assert.assertTrue(Math.abs(((p >> shift) & 0xFF) - ((q >> shift) & 0xFF)) <= 8);
+                }
+            }
+        }
+        // The orientation tag of the rotated stream was reset, so it's not applied again
+        Assert.assertSame(bytes, new JPEGTransformer().normalizeOrientation(bytes));
+        Assert.assertEquals(1936, new Image(bytes, true).getWidth());
+
+        Image unchanged = new Image(JPG_ROTATED);
+        Assert.assertFalse(unchanged.isOrientationNormalized());
+        Assert.assertEquals(2592, unchanged.getWidth());
+    }
+
+    @Test
+    public void testMakeColorTransparentOnPixels() throws IOException {
+        BufferedImage image = new BufferedImage(37, 5, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            image.setRGB(x, 2, x % 3 == 0 ? 0xFF0000 : 0x00FF00);
+        }
+        BufferedImage result = m_manipulation.makeColorTransparent(image, Color.RED);
+        for (int x = 0; x < image.getWidth(); x++) {
+            if (x % 3 == 0) {
+                Assert.assertEquals(0, result.getRGB(x, 2) >>> 24);
+            } else {
+                Assert.assertEquals(0xFF00FF00, result.getRGB(x, 2));
+            }
+        }
+        Assert.assertEquals(0xFF000000, result.getRGB(36, 4));
+    }
+
+    @Test
+    public void testMakeColorTransparentWithTolerance() throws IOException {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                // Shades of blue, from 0x0000FF to 0x1E1EFF
+                int shade = (x + y) % 31;
+                image.setRGB(x, y, x % 2 == 0 ? 0xFF0000FF | shade << 16 | shade << 8 : 0xFFFF8000);
+            }
+        }
+        BufferedImage result = m_manipulation.makeColorTransparent(image, new Color(0x0A0AFF), 10);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y);
+                if (x % 2 == 0 && (x + y) % 31 <= 20) {
+                    Assert.assertEquals(rgb & 0xFFFFFF, result.getRGB(x, y));
+                } else {
+                    Assert.assertEquals(rgb, result.getRGB(x, y));
+                }
+            }
+        }
+
+        // Same result in the current thread, from a sub-image
+        ManipulationHelper sequential = new ManipulationHelper();
+        sequential.setForkJoinPool(null);
+        BufferedImage sub = sequential.makeColorTransparent(image.getSubimage(10, 20, 100, 50),
+                new Color(0x0A0AFF), 10);
+        for (int y = 0; y < sub.getHeight(); y++) {
+            for (int x = 0; x < sub.getWidth(); x++) {
+                Assert.assertEquals(result.getRGB(x + 10, y + 20), sub.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testMakeTranslucentOnPixels() throws IOException {
+        BufferedImage image = new BufferedImage(40, 40, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(200, 100, 50));
+        graphics.fillRect(0, 0, 40, 40);
+        graphics.dispose();
+        BufferedImage result = m_manipulation.makeTranslucent(image, 0.5f);
+        Assert.assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, result.getType());
+        int argb = result.getRGB(20, 20);
+        Assert.assertEquals(128, argb >>> 24);
+        Assert.assertTrue(Math.abs(((argb >> 16) & 0xFF) - 200) <= 2);
+        Assert.assertTrue(Math.abs(((argb >> 8) & 0xFF) - 100) <= 2);
+        Assert.assertTrue(Math.abs((argb & 0xFF) - 50) <= 2);
+    }
+
+    @Test
+    public void testRightAngleRotations() throws IOException {
+        int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY,
+                BufferedImage.TYPE_USHORT_565_RGB };
+        // The 16 bits images are kept, and rotated through arrays of data elements
+        ManipulationHelper manipulation = new ManipulationHelper();
+        RasterNormalizer normalizer = new RasterNormalizer(BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_BYTE_GRAY, types);
+        manipulation.setRasterNormalizer(normalizer);
+        ManipulationHelper sequential = new ManipulationHelper();
+        sequential.setRasterNormalizer(normalizer);
+        sequential.setForkJoinPool(null);
+        for (int type : types) {
+            BufferedImage image = new BufferedImage(331, 517, type);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, 0xFF000000 | (x * 7919 + y * 104729) & 0xFFFFFF);
+                }
+            }
+            // A sub-image, so the raster doesn't start at the beginning of the data buffer
+            image = image.getSubimage(3, 5, 320, 500);
+            int w = image.getWidth();
+            int h = image.getHeight();
+            for (int angle = -90; angle <= 450; angle += 90) {
+                BufferedImage result = manipulation.rotate(image, angle);
+                Assert.assertEquals(type, result.getType());
+                int quarters = ((angle / 90) % 4 + 4) % 4;
+                Assert.assertEquals(quarters % 2 == 0 ? w : h, result.getWidth());
+                Assert.assertEquals(quarters % 2 == 0 ? h : w, result.getHeight());
+                for (int y = 0; y < result.getHeight(); y++) {
+                    for (int x = 0; x < result.getWidth(); x++) {
+                        int expected;
+                        switch (quarters) {
+                            case 1:
+                                expected = image.getRGB(y, h - 1 - x);
+                                break;
+                            case 2:
+                                expected = image.getRGB(w - 1 - x, h - 1 - y);
+                                break;
+                            case 3:
+                                expected = image.getRGB(w - 1 - y, x);
+                                break;
+                            default:
+                                expected = image.getRGB(x, y);
+                                break;
+                        }
+                        Assert.assertEquals(expected, result.getRGB(x, y));
+                    }
+                }
+                BufferedImage other = sequential.rotate(image, angle);
+                for (int y = 0; y < result.getHeight(); y += 7) {
+                    for (int x = 0; x < result.getWidth(); x += 7) {
+                        Assert.assertEquals(result.getRGB(x, y), other.getRGB(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an opaque image with varied pixels.
+     * @param width the width
+     * @param height the height
+     * @return the image
+     */
+    private static BufferedImage createNoise(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 7919 + y * 104729) * 31 & 0xFFFFFF);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Gets the component of a pixel.
+     * @param rgb the pixel
+     * @param shift the shift of the component
+     * @return the component
+     */
+    private static int component(int rgb, int shift) {
+        return (rgb >> shift) & 0xFF;
+    }
+
+    @Test
+    public void testBoxBlur() throws IOException {
+        BufferedImage image = createNoise(101, 67);
+        int radius = 3;
+        BufferedImage result = m_manipulation.boxBlur(image, radius);
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, result.getType());
+        // Each pixel is the average of its neighbours, the edges being extended
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int sum = 0;
+                    for (int j = -radius; j <= radius; j++) {
+                        for (int i = -radius; i <= radius; i++) {
+                            int sx = Math.min(Math.max(x + i, 0), image.getWidth() - 1);
+                            int sy = Math.min(Math.max(y + j, 0), image.getHeight() - 1);
+                            sum += component(image.getRGB(sx, sy), shift);
+                        }
+                    }
+                    double expected = sum / 49.0;
+                    // Each pass rounds
+                    Assert.assertTrue(Math.abs(expected - component(result.getRGB(x, y), shift)) <= 1);
+                }
+            }
+        }
+        // A radius of 0 copies the image
+        BufferedImage copy = m_manipulation.boxBlur(image, 0);
+        Assert.assertEquals(image.getRGB(50, 50), copy.getRGB(50, 50));
+    }
+
+    @Test
+    public void testGaussianBlur() throws IOException {
+        BufferedImage image = createNoise(120, 80);
+        float sigma = 1.5f;
+        int radius = 5;
+        float[] weights = new float[2 * radius + 1];
+        float total = 0;
+        for (int k = -radius; k <= radius; k++) {
+            weights[k + radius] = (float) Math.exp(-(k * k) / (2.0 * sigma * sigma));
+            total += weights[k + radius];
+        }
+        float[] kernel = new float[weights.length * weights.length];
+        for (int j = 0; j < weights.length; j++) {
+            for (int i = 0; i < weights.length; i++) {
+                kernel[j * weights.length + i] = weights[i] * weights[j] / (total * total);
+            }
+        }
+        ConvolveOp op = new ConvolveOp(
+                new Kernel(weights.length, weights.length, kernel));
+        BufferedImage expected = op.filter(image, null);
+
+        ManipulationHelper sequential = new ManipulationHelper();
+        sequential.setForkJoinPool(null);
+        BufferedImage result = m_manipulation.gaussianBlur(image, sigma);
+        BufferedImage other = sequential.gaussianBlur(image, sigma);
+        // ConvolveOp doesn't compute the edges
+        for (int y = radius; y < image.getHeight() - radius; y++) {
+            for (int x = radius; x < image.getWidth() - radius; x++) {
+                for (int shift = 0; shift < 24; shift += 8) {
+                    Assert.assertTrue(Math.abs(component(expected.getRGB(x, y), shift)
+                            - component(result.getRGB(x, y), shift)) <= 2);
+                }
+            }
+        }
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                Assert.assertEquals(other.getRGB(x, y), result.getRGB(x, y));
+            }
+        }
+
+        // Transparent pixels don't darken their neighbours
+        BufferedImage alpha = new BufferedImage(40, 40, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 40; y++) {
+            for (int x = 20; x < 40; x++) {
+                alpha.setRGB(x, y, 0xFFFF8000);
+            }
+        }
+        BufferedImage blurred = m_manipulation.gaussianBlur(alpha, 2f);
+        Assert.assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, blurred.getType());
+        int edge = blurred.getRGB(19, 20);
+        Assert.assertTrue((edge >>> 24) > 0 && (edge >>> 24) < 255);
+        Assert.assertTrue(Math.abs(component(edge, 16) - 0xFF) <= 2);
+        Assert.assertTrue(Math.abs(component(edge, 8) - 0x80) <= 2);
+    }
+
+    @Test
+    public void testUnsharpMask() throws IOException {
+        BufferedImage image = new BufferedImage(60, 40, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(100, 100, 100));
+        graphics.fillRect(0, 0, 30, 40);
+        graphics.setColor(new Color(150, 150, 150));
+        graphics.fillRect(30, 0, 30, 40);
+        graphics.dispose();
+
+        BufferedImage result = m_manipulation.unsharpMask(image, 1f, 1f, 0);
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, result.getType());
+        // Uniform areas are kept, the edge contrast is increased
+        Assert.assertEquals(0xFF646464, result.getRGB(5, 20));
+        Assert.assertEquals(0xFF969696, result.getRGB(55, 20));
+        Assert.assertTrue(component(result.getRGB(29, 20), 0) < 100);
+        Assert.assertTrue(component(result.getRGB(30, 20), 0) > 150);
+
+        // Differences under the threshold are kept
+        BufferedImage kept = m_manipulation.unsharpMask(image, 1f, 1f, 60);
+        for (int x = 0; x < 60; x++) {
+            Assert.assertEquals(image.getRGB(x, 20), kept.getRGB(x, 20));
+        }
+
+        try {
+            m_manipulation.unsharpMask(image, 0f, 1f, 0);
+            Assert.fail("The standard deviation must be positive");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
 }
@@ -0,0 +1,97 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.Format;
+import de.akquinet.commons.image.io.Image;
+import de.akquinet.commons.image.io.PNGWriter;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PNGWriterTest {
+
+    public static final File PNG = new File("src/test/resources/png/beastie.png");
+
+    public static final File PNG_WITH_XMP = new File("src/test/resources/png/XMP-Logo-with-XMP_Metadata.png");
+
+    private static final String XMP = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">%s</x:xmpmeta>";
+
+    File m_tmp = new File("target/tmp/png");
+
+    @Before
+    public void setUp() throws IOException {
+        if (m_tmp.exists()) {
+            FileUtils.cleanDirectory(m_tmp);
+        }
+        m_tmp.mkdirs();
+    }
+
+    @Test
+    public void testAddingXMPKeepsPixels() throws IOException {
+        File out = new File(m_tmp, "beastie.png");
+        PNGWriter writer = new PNGWriter();
+        writer.load(PNG);
+        writer.setXmp(String.format(XMP, "first"));
+        writer.setText("Title", "Beastie");
+        writer.write(out);
+
+        String content = FileUtils.readFileToString(out, "ISO-8859-1");
+        assertEquals(1, count(content, PNGWriter.XMP_KEYWORD));
+        assertTrue(content.contains("first"));
+        assertEquals(1, count(content, "Title\0Beastie"));
+        assertSamePixels(PNG, out);
+    }
+
+    @Test
+    public void testReplacingXMPInPlace() throws IOException {
+        File out = new File(m_tmp, "xmp.png");
+        FileUtils.copyFile(PNG_WITH_XMP, out);
+
+        PNGWriter writer = new PNGWriter();
+        writer.load(out);
+        writer.setXmp(String.format(XMP, "replaced"));
+        writer.write(out);
+
+        String content = FileUtils.readFileToString(out, "ISO-8859-1");
+        assertEquals(1, count(content, PNGWriter.XMP_KEYWORD));
+        assertTrue(content.contains("replaced"));
+        assertSamePixels(PNG_WITH_XMP, out);
+        // No temporary file left
+        assertEquals(1, m_tmp.listFiles().length);
+    }
+
+    @Test
+    public void testWritingAnImageWithXMP() throws IOException {
+        Image image = new Image(PNG_WITH_XMP);
+        image.getMetadata().getExtendedMetadata().setAuthor("Commons image io");
+        File out = new File(m_tmp, "copy.png");
+        image.write(out, Format.PNG);
+
+        Image copy = new Image(out);
+        assertEquals("Commons image io", copy.getMetadata().getExtendedMetadata().getAuthor());
+        assertSamePixels(PNG_WITH_XMP, out);
+    }
+
+    private static int count(String content, String pattern) {
+        return content.split(pattern, -1).length - 1;
+    }
+
+    private static void assertSamePixels(File expected, File actual) throws IOException {
+        BufferedImage img1 = ImageIO.read(expected);
+        BufferedImage img2 = ImageIO.read(actual);
+        assertEquals(img1.getWidth(), img2.getWidth());
+        assertEquals(img1.getHeight(), img2.getHeight());
+        for (int y = 0; y < img1.getHeight(); y++) {
+            for (int x = 0; x < img1.getWidth(); x++) {
+                assertEquals(img1.getRGB(x, y), img2.getRGB(x, y));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.ImageIOUtils;
+import de.akquinet.commons.image.io.PerceptualHash;
+import de.akquinet.commons.image.io.PerceptualHashIndex;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class PerceptualHashTest {
+
+    public static final File JPG = new File("src/test/resources/jpg/photo.JPG");
+
+    public static final File OTHER = new File("src/test/resources/jpg/clement.jpg");
+
+    @Test
+    public void testNearDuplicates() throws IOException {
+        BufferedImage image = ImageIOUtils.getIOHelper().read(JPG);
+        BufferedImage resized = ImageIOUtils.getScaleHelper().scaleImageProgressive(image, image.getWidth() / 3,
+                image.getHeight() / 3);
+        byte[] resaved = ImageIOUtils.getConversionHelper().convertImageToJPEGBytes(resized, 0.5f);
+        for (PerceptualHash.Algorithm algorithm : PerceptualHash.Algorithm.values()) {
+            long hash = PerceptualHash.compute(JPG, algorithm);
+            // The subsampled decode gives about the same hash as the full image
+            Assert.assertTrue(algorithm.name(), PerceptualHash.distance(hash,
+                    PerceptualHash.compute(image, algorithm)) <= 4);
+            Assert.assertTrue(algorithm.name(), PerceptualHash.distance(hash,
+                    PerceptualHash.compute(resaved, algorithm)) <= 6);
+            Assert.assertTrue(algorithm.name(), PerceptualHash.distance(hash,
+                    PerceptualHash.compute(OTHER, algorithm)) > 12);
+        }
+    }
+
+    @Test
+    public void testIndex() {
+        Random random = new Random(7);
+        PerceptualHashIndex<Integer> index = new PerceptualHashIndex<Integer>();
+        List<Long> hashes = new ArrayList<Long>();
+        for (int i = 0; i < 20000; i++) {
+            long hash = random.nextLong();
+            if (i % 10 == 1) {
+                // A near duplicate of the previous hash
+                hash = hashes.get(i - 1) ^ (1L << random.nextInt(64)) ^ (1L << random.nextInt(64));
+            }
+            hashes.add(hash);
+            index.add(hash, i);
+        }
+        Assert.assertEquals(20000, index.size());
+        for (int distance = 0; distance <= 12; distance += 4) {
+            for (int i = 0; i < 200; i++) {
+                long hash = hashes.get(i);
+                List<PerceptualHashIndex.Match<Integer>> matches = index.search(hash, distance);
+                int expected = 0;
+                for (long other : hashes) {
+                    if (PerceptualHash.distance(hash, other) <= distance) {
+                        expected++;
+                    }
+                }
+                Assert.assertEquals(expected, matches.size());
+                for (PerceptualHashIndex.Match<Integer> match : matches) {
+                    Assert.assertEquals(hashes.get(match.getValue()).longValue(), match.getHash());
+                    Assert.assertEquals(PerceptualHash.distance(hash, match.getHash()), match.getDistance());
+                }
+            }
+        }
+        // The near duplicates are found
+        Assert.assertEquals(2, index.search(hashes.get(0), 2).size());
+
+        // The tables are rebuilt after an addition
+        index.add(hashes.get(0) ^ 1, -1);
+        Assert.assertEquals(3, index.search(hashes.get(0), 2).size());
+    }
+
+}
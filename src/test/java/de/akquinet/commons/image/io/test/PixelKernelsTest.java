@@ -0,0 +1,95 @@
+package de.akquinet.commons.image.io.test;
+
+import junit.framework.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the scalar and the vector pixel kernels. The kernels are package
+ * private, they're created by reflection. The vector kernels are only tested
+ * when the <code>vector</code> profile is active.
+ */
+public class PixelKernelsTest {
+
+    private static final String PACKAGE = "de.akquinet.commons.image.io.";
+
+    private static Object createKernels(String name) throws Exception {
+        Constructor<?> constructor = Class.forName(PACKAGE + name).getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private static Object createVectorKernels() throws Exception {
+        try {
+            return createKernels("VectorPixelKernels");
+        } catch (ClassNotFoundException e) {
+            // Not built with the vector profile
+            return null;
+        } catch (LinkageError e) {
+            // The incubator module is not enabled
+            return null;
+        }
+    }
+
+    private static void blend(Object kernels, int[] source, int[] target) throws Exception {
+        Method blend = Class.forName(PACKAGE + "PixelKernels").getDeclaredMethod("blend", int[].class, int.class,
+                int[].class, int.class, int.class);
+        blend.setAccessible(true);
+        // The pixels are offset, and their number is not a multiple of the vector sizes
+        blend.invoke(kernels, source, 1, target, 2, source.length - 3);
+    }
+
+    @Test
+    public void testBlend() throws Exception {
+        Random random = new Random(1);
+        int[] source = new int[1003];
+        int[] target = new int[source.length];
+        for (int i = 0; i < source.length; i++) {
+            int alpha;
+            switch (random.nextInt(4)) {
+                case 0:
+                    alpha = 0;
+                    break;
+                case 1:
+                    alpha = 255;
+                    break;
+                default:
+                    alpha = random.nextInt(256);
+                    break;
+            }
+            // The transparent pixels may have colors, which must be ignored
+            int r = alpha == 0 ? random.nextInt(256) : random.nextInt(alpha + 1);
+            int g = alpha == 0 ? random.nextInt(256) : random.nextInt(alpha + 1);
+            int b = alpha == 0 ? random.nextInt(256) : random.nextInt(alpha + 1);
+            source[i] = alpha << 24 | r << 16 | g << 8 | b;
+            target[i] = random.nextInt();
+        }
+        // Long transparent runs are skipped at once by the vector kernels
+        Arrays.fill(source, 100, 300, 0x00123456);
+
+        int[] scalar = target.clone();
+        blend(createKernels("PixelKernels"), source, scalar);
+        for (int i = 0; i < source.length - 3; i++) {
+            if (source[i + 1] >>> 24 == 0) {
+                Assert.assertEquals("Pixel " + i, target[i + 2], scalar[i + 2]);
+            }
+        }
+        Assert.assertEquals(target[0], scalar[0]);
+        Assert.assertEquals(target[1], scalar[1]);
+        Assert.assertEquals(target[target.length - 1], scalar[target.length - 1]);
+
+        Object vector = createVectorKernels();
+        Assume.assumeNotNull(vector);
+        int[] vectorized = target.clone();
+        blend(vector, source, vectorized);
+        for (int i = 0; i < target.length; i++) {
+            Assert.assertEquals("Pixel " + i, scalar[i], vectorized[i]);
+        }
+    }
+
+}
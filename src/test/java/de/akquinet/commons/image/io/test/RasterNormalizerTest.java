@@ -0,0 +1,116 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.IOHelper;
+import de.akquinet.commons.image.io.ManipulationHelper;
+import de.akquinet.commons.image.io.RasterNormalizer;
+import de.akquinet.commons.image.io.ScaleHelper;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+
+public class RasterNormalizerTest {
+
+    public static final File GIF = new File("src/test/resources/gif/PIC-iCarta-Small.gif");
+
+    public static final File PNG = new File("src/test/resources/png/beastie.png");
+
+    IOHelper m_img = new IOHelper();
+
+    /**
+     * Creates a <code>TYPE_CUSTOM</code> image storing its samples in RGB(A) order.
+     */
+    private BufferedImage createCustomImage(int width, int height, boolean alpha) {
+        ColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), alpha, false,
+                alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        BufferedImage image = new BufferedImage(model, model.createCompatibleWritableRaster(width, height),
+                false, null);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, alpha ? 0x80000000 | (x << 16) | y : 0xFF000000 | (x << 16) | y);
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void testDefault() throws IOException {
+        BufferedImage png = m_img.read(PNG);
+        Assert.assertSame(png, RasterNormalizer.DEFAULT.normalize(png));
+
+        BufferedImage custom = createCustomImage(40, 30, false);
+        Assert.assertEquals(BufferedImage.TYPE_CUSTOM, custom.getType());
+        BufferedImage image = RasterNormalizer.DEFAULT.normalize(custom);
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+        Assert.assertEquals(custom.getRGB(33, 22), image.getRGB(33, 22));
+
+        image = RasterNormalizer.DEFAULT.normalize(createCustomImage(40, 30, true));
+        Assert.assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, image.getType());
+
+        BufferedImage gray = new BufferedImage(10, 10, BufferedImage.TYPE_USHORT_GRAY);
+        Assert.assertEquals(BufferedImage.TYPE_BYTE_GRAY, RasterNormalizer.DEFAULT.getNormalizedType(gray));
+
+        BufferedImage gif = m_img.read(GIF);
+        Assert.assertFalse(RasterNormalizer.DEFAULT.isAccepted(gif.getType()));
+        image = RasterNormalizer.DEFAULT.normalize(gif);
+        for (int x = 0; x < gif.getWidth(); x++) {
+            int rgb = gif.getRGB(x, gif.getHeight() / 2);
+            // The color of the transparent pixels is lost
+            Assert.assertEquals(rgb >>> 24 == 0 ? 0 : rgb, image.getRGB(x, gif.getHeight() / 2));
+        }
+    }
+
+    @Test
+    public void testStrictAndCustom() throws IOException {
+        BufferedImage argb = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+        Assert.assertSame(argb, RasterNormalizer.DEFAULT.normalize(argb));
+        Assert.assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, RasterNormalizer.STRICT.normalize(argb).getType());
+
+        RasterNormalizer normalizer = new RasterNormalizer(BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB);
+        Assert.assertEquals(BufferedImage.TYPE_4BYTE_ABGR, normalizer.normalize(argb).getType());
+        BufferedImage rgb = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        Assert.assertSame(rgb, normalizer.normalize(rgb));
+
+        try {
+            new RasterNormalizer(BufferedImage.TYPE_CUSTOM, BufferedImage.TYPE_INT_ARGB,
+                    BufferedImage.TYPE_BYTE_GRAY);
+            Assert.fail("TYPE_CUSTOM is not a valid target type");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+
+    @Test
+    public void testHelpersAcceptCustomImages() throws IOException {
+        BufferedImage custom = createCustomImage(64, 48, false);
+
+        ScaleHelper scaler = new ScaleHelper();
+        BufferedImage img = scaler.scaleImageBilinear(custom, 32, 24);
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, img.getType());
+        img = scaler.scaleImageProgressive(custom, 8, 6);
+        Assert.assertEquals(8, img.getWidth());
+
+        ManipulationHelper manipulation = new ManipulationHelper();
+        img = manipulation.horizontalflip(custom);
+        Assert.assertEquals(custom.getRGB(0, 5), img.getRGB(63, 5));
+        img = manipulation.verticalflip(custom);
+        Assert.assertEquals(custom.getRGB(3, 0), img.getRGB(3, 47));
+        img = manipulation.rotate(custom, 45);
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, img.getType());
+
+        // The pipeline type can be changed
+        scaler.setRasterNormalizer(new RasterNormalizer(BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY));
+        img = scaler.scaleImageBicubic(custom, 32, 24);
+        Assert.assertEquals(BufferedImage.TYPE_3BYTE_BGR, img.getType());
+    }
+
+}
@@ -0,0 +1,140 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.Format;
+import de.akquinet.commons.image.io.IOHelper;
+import de.akquinet.commons.image.io.Image;
+import de.akquinet.commons.image.io.ImageIOUtils;
+import de.akquinet.commons.image.io.RenditionCache;
+import de.akquinet.commons.image.io.RenditionCache.Key;
+import de.akquinet.commons.image.io.ScaleHelper;
+import de.akquinet.commons.image.io.ScaleHelper.Interpolation;
+import de.akquinet.commons.image.io.ScaleHelper.ResizeMode;
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class RenditionCacheTest {
+
+    public static final File JPG = new File("src/test/resources/jpg/flore.JPG");
+
+    public static final File PNG = new File("src/test/resources/png/beastie.png");
+
+    IOHelper m_img = new IOHelper();
+
+    @After
+    public void tearDown() {
+        ImageIOUtils.setRenditionCache(null);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        RenditionCache cache = new RenditionCache(100);
+        Key k1 = new Key("a", "scale(0.5)", Format.PNG, RenditionCache.DEFAULT_QUALITY);
+        Key k2 = new Key("b", "scale(0.5)", Format.PNG, RenditionCache.DEFAULT_QUALITY);
+        Key k3 = new Key("a", "scale(0.5)", Format.JPEG, 0.8f);
+        cache.put(k1, new byte[40]);
+        cache.put(k2, new byte[40]);
+        // k1 becomes the most recently used
+        Assert.assertNotNull(cache.get(k1));
+        cache.put(k3, new byte[40]);
+
+        Assert.assertEquals(2, cache.getCount());
+        Assert.assertEquals(80, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertNull(cache.get(k2));
+        Assert.assertNotNull(cache.get(k1));
+        Assert.assertNotNull(cache.get(k3));
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(0.75, cache.getHitRatio(), 0.001);
+
+        // Too large to be cached
+        cache.put(k2, new byte[101]);
+        Assert.assertNull(cache.get(k2));
+        Assert.assertEquals(80, cache.getSize());
+
+        // The keys are compared by value
+        Assert.assertNotNull(cache.get(new Key("a", "scale(0.5)", Format.JPEG, 0.8f)));
+        Assert.assertNull(cache.get(new Key("a", "scale(0.5)", Format.JPEG, 0.9f)));
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getCount());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testSourceIdentity() throws IOException {
+        byte[] bytes = FileUtils.readFileToByteArray(PNG);
+        Assert.assertEquals(RenditionCache.getSourceIdentity(bytes),
+                RenditionCache.getSourceIdentity(bytes.clone()));
+        bytes[bytes.length - 1]++;
+        Assert.assertFalse(RenditionCache.getSourceIdentity(bytes).equals(
+                RenditionCache.getSourceIdentity(FileUtils.readFileToByteArray(PNG))));
+        Assert.assertEquals(RenditionCache.getSourceIdentity(PNG),
+                RenditionCache.getSourceIdentity(new File(PNG.getAbsolutePath())));
+    }
+
+    @Test
+    public void testCachedResize() throws IOException {
+        RenditionCache cache = new RenditionCache();
+        ScaleHelper helper = new ScaleHelper(Interpolation.AREA_AVERAGING);
+        helper.setRenditionCache(cache);
+
+        byte[] first = helper.resize(JPG, 200, 200, ResizeMode.CROP_CENTER, Format.JPEG);
+        Assert.assertEquals(1, cache.getMissCount());
+        BufferedImage img = m_img.read(first);
+        Assert.assertEquals(200, img.getWidth());
+        Assert.assertEquals(200, img.getHeight());
+
+        byte[] second = helper.resize(JPG, 200, 200, ResizeMode.CROP_CENTER, Format.JPEG);
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertTrue(Arrays.equals(first, second));
+
+        // Other operations, formats and qualities are other renditions
+        helper.resize(JPG, 200, 200, ResizeMode.FIT, Format.JPEG);
+        helper.resize(JPG, 200, 200, ResizeMode.CROP_CENTER, Format.PNG);
+        helper.resize(JPG, 200, 200, ResizeMode.CROP_CENTER, Format.JPEG, 0.5f);
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(4, cache.getMissCount());
+        // The default quality is the explicit one
+        helper.resize(JPG, 200, 200, ResizeMode.CROP_CENTER, Format.JPEG, 0.85f);
+        Assert.assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testCachedImageBytes() throws IOException {
+        RenditionCache cache = new RenditionCache();
+        ImageIOUtils.setRenditionCache(cache);
+
+        Image image = new Image(FileUtils.readFileToByteArray(PNG));
+        image.scale(0.5f);
+        byte[] first = image.getBytes(Format.PNG);
+        Assert.assertEquals(1, cache.getMissCount());
+
+        image = new Image(FileUtils.readFileToByteArray(PNG));
+        image.scale(0.5f);
+        byte[] second = image.getBytes(Format.PNG);
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertTrue(Arrays.equals(first, second));
+        Assert.assertEquals(image.getWidth(), m_img.read(second).getWidth());
+
+        // Rotated, it's another rendition
+        image.rotate(90);
+        BufferedImage img = m_img.read(image.getBytes(Format.PNG));
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(image.getWidth(), img.getWidth());
+        Assert.assertEquals(image.getHeight(), img.getHeight());
+
+        // Images without source are not cached
+        new Image(image.getBufferedImage(), Format.PNG).getBytes(Format.PNG);
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+}
@@ -0,0 +1,89 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.Format;
+import de.akquinet.commons.image.io.IOHelper;
+import de.akquinet.commons.image.io.RenditionSet;
+import de.akquinet.commons.image.io.RenditionSet.Rendition;
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+
+public class RenditionSetTest {
+
+    /**
+     * 2592x1936 picture with the EXIF orientation 6 (rotated by 90 degrees).
+     */
+    public static final File JPG_ROTATED = new File("src/test/resources/jpg/flore.JPG");
+
+    public static final File PNG_ALPHA = new File("src/test/resources/png/wilber-huge-alpha.png");
+
+    IOHelper m_img = new IOHelper();
+
+    @Test
+    public void testRenderJPEG() throws IOException {
+        RenditionSet set = new RenditionSet();
+        Rendition r800 = set.add(800, Format.JPEG);
+        Rendition r100 = set.add(100, Format.JPEG, 0.5f);
+        Rendition r1280 = set.add(1280, Format.JPEG, 0.9f);
+        Rendition r200 = set.add(200, Format.PNG);
+
+        Map<Rendition, byte[]> renditions = set.render(JPG_ROTATED);
+        Assert.assertEquals(4, renditions.size());
+        // Results are in the order of the renditions
+        Assert.assertEquals(set.getRenditions(), new ArrayList<Rendition>(renditions.keySet()));
+
+        // The image is displayed rotated, so it's 1936x2592
+        BufferedImage img = m_img.read(renditions.get(r1280));
+        Assert.assertEquals(1280, img.getWidth());
+        Assert.assertEquals(1714, img.getHeight());
+        img = m_img.read(renditions.get(r800));
+        Assert.assertEquals(800, img.getWidth());
+        Assert.assertEquals(1071, img.getHeight());
+        img = m_img.read(renditions.get(r100));
+        Assert.assertEquals(100, img.getWidth());
+        Assert.assertEquals(Format.PNG, m_img.getFormat(renditions.get(r200)));
+        img = m_img.read(renditions.get(r200));
+        Assert.assertEquals(200, img.getWidth());
+
+        // The same renditions are generated from the bytes
+        renditions = set.render(FileUtils.readFileToByteArray(JPG_ROTATED));
+        img = m_img.read(renditions.get(r800));
+        Assert.assertEquals(800, img.getWidth());
+        Assert.assertEquals(1071, img.getHeight());
+    }
+
+    @Test
+    public void testRenderSequentially() throws IOException {
+        BufferedImage image = m_img.read(PNG_ALPHA);
+        RenditionSet set = new RenditionSet();
+        set.setForkJoinPool(null);
+        Rendition small = set.add(270, Format.PNG);
+        Rendition jpeg = set.add(540, Format.JPEG);
+        // Renditions are never enlarged
+        Rendition large = set.add(4000, Format.PNG);
+
+        Map<Rendition, byte[]> renditions = set.render(image);
+        BufferedImage img = m_img.read(renditions.get(large));
+        Assert.assertEquals(image.getWidth(), img.getWidth());
+        Assert.assertEquals(image.getHeight(), img.getHeight());
+        img = m_img.read(renditions.get(small));
+        Assert.assertEquals(270, img.getWidth());
+        Assert.assertTrue(img.getColorModel().hasAlpha());
+        // JPEG has no alpha
+        img = m_img.read(renditions.get(jpeg));
+        Assert.assertEquals(540, img.getWidth());
+        Assert.assertFalse(img.getColorModel().hasAlpha());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQuality() {
+        new RenditionSet().add(100, Format.JPEG, 2f);
+    }
+
+}
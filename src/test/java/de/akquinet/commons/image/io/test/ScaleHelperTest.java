@@ -2,15 +2,23 @@ package de.akquinet.commons.image.io.test;
 
 import de.akquinet.commons.image.io.Format;
 import de.akquinet.commons.image.io.IOHelper;
+import de.akquinet.commons.image.io.ImageIOUtils;
 import de.akquinet.commons.image.io.ScaleHelper;
+import de.akquinet.commons.image.io.ScaleHelper.Interpolation;
+import de.akquinet.commons.image.io.ScaleHelper.ResizeMode;
 import junit.framework.Assert;
 import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 public class ScaleHelperTest {
 
@@ -22,6 +30,8 @@ public class ScaleHelperTest {
     private static final int JPG_HEIGHT = 300;
     public static final File JPG = new File("src/test/resources/jpg/keepout-security-restricted-access.jpg");
 
+    public static final File PNG_ALPHA = new File("src/test/resources/png/wilber-huge-alpha.png");
+
 
     File m_tmp = new File("target/tmp");
 
@@ -131,4 +141,265 @@ public class ScaleHelperTest {
         m_img.write(img, new File(m_tmp, "JPG_w_1000.jpg"), Format.JPEG);
     }
 
+    @Test
+    public void testScaleProgressive() throws IOException {
+        BufferedImage img = m_scaler.scaleImageProgressive(m_img.read(JPG), JPG_WIDTH / 10, JPG_HEIGHT / 10);
+        Assert.assertEquals(JPG_WIDTH / 10, img.getWidth());
+        Assert.assertEquals(JPG_HEIGHT / 10, img.getHeight());
+        m_img.write(img, new File(m_tmp, "JPG_div_10.jpg"), Format.JPEG);
+
+        // Only one dimension halved
+        img = m_scaler.scaleImageProgressive(m_img.read(JPG), JPG_WIDTH / 5, JPG_HEIGHT);
+        Assert.assertEquals(JPG_WIDTH / 5, img.getWidth());
+        Assert.assertEquals(JPG_HEIGHT, img.getHeight());
+
+        ScaleHelper scaler = new ScaleHelper(Interpolation.PROGRESSIVE_BILINEAR);
+        BufferedImage alpha = m_img.read(PNG_ALPHA);
+        img = scaler.scale(alpha, 0.1f);
+        Assert.assertEquals((int) (alpha.getWidth() * 0.1f), img.getWidth());
+        Assert.assertEquals((int) (alpha.getHeight() * 0.1f), img.getHeight());
+        Assert.assertEquals(alpha.getType(), img.getType());
+        Assert.assertTrue(img.getColorModel().hasAlpha());
+        m_img.write(img, new File(m_tmp, "PNG_alpha_div_10.png"), Format.PNG);
+
+        // Upscaling is a single bilinear step
+        img = scaler.scale(m_img.read(PNG), 2);
+        Assert.assertEquals(PNG_WIDTH * 2, img.getWidth());
+        Assert.assertEquals(PNG_HEIGHT * 2, img.getHeight());
+    }
+
+    @Test
+    public void testScaleAreaAveraging() throws IOException {
+        ScaleHelper scaler = new ScaleHelper(Interpolation.AREA_AVERAGING);
+        BufferedImage jpg = m_img.read(JPG);
+        BufferedImage img = scaler.scale(jpg, 0.1f);
+        Assert.assertEquals(JPG_WIDTH / 10, img.getWidth());
+        Assert.assertEquals(JPG_HEIGHT / 10, img.getHeight());
+        Assert.assertEquals(jpg.getType(), img.getType());
+        m_img.write(img, new File(m_tmp, "JPG_area_div_10.jpg"), Format.JPEG);
+
+        // A checkerboard is averaged to a uniform gray, without aliasing
+        BufferedImage checkerboard = new BufferedImage(90, 60, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < checkerboard.getHeight(); y++) {
+            for (int x = 0; x < checkerboard.getWidth(); x++) {
+                checkerboard.setRGB(x, y, (x + y) % 2 == 0 ? 0xFFFFFF : 0x000000);
+            }
+        }
+        img = scaler.scaleImageAreaAveraging(checkerboard, 30, 20);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                int gray = img.getRGB(x, y) & 0xFF;
+                Assert.assertTrue(Math.abs(gray - 128) <= 29);
+            }
+        }
+        img = scaler.scaleImageAreaAveraging(checkerboard, 45, 30);
+        Assert.assertEquals(0xFF808080, img.getRGB(10, 10));
+    }
+
+    @Test
+    public void testScaleAreaAveragingWithAlpha() throws IOException {
+        // Transparent red next to opaque blue: the red must not bleed into the result
+        BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 0x00FF0000);
+        image.setRGB(1, 0, 0xFF0000FF);
+        BufferedImage img = m_scaler.scaleImageAreaAveraging(image, 1, 1);
+        Assert.assertEquals(BufferedImage.TYPE_INT_ARGB, img.getType());
+        Assert.assertEquals(0x800000FF, img.getRGB(0, 0));
+
+        BufferedImage alpha = m_img.read(PNG_ALPHA);
+        img = m_scaler.scaleImageAreaAveraging(alpha, alpha.getWidth() / 4, alpha.getHeight() / 4);
+        Assert.assertEquals(alpha.getWidth() / 4, img.getWidth());
+        Assert.assertEquals(alpha.getType(), img.getType());
+        m_img.write(img, new File(m_tmp, "PNG_alpha_area_div_4.png"), Format.PNG);
+
+        // Images of other types are converted
+        BufferedImage gif = m_img.read(new File("src/test/resources/gif/PIC-iCarta-Small.gif"));
+        img = m_scaler.scaleImageAreaAveraging(gif, gif.getWidth() / 2, gif.getHeight() / 2);
+        Assert.assertEquals(gif.getHeight() / 2, img.getHeight());
+        Assert.assertTrue(img.getType() == BufferedImage.TYPE_INT_RGB
+                || img.getType() == BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+
+    @Test
+    public void testScaleWithSeparableFilters() throws IOException {
+        BufferedImage jpg = m_img.read(JPG);
+        BufferedImage alpha = m_img.read(PNG_ALPHA);
+        Interpolation[] filters = new Interpolation[] {
+            Interpolation.LANCZOS3, Interpolation.MITCHELL, Interpolation.CATMULL_ROM
+        };
+        for (Interpolation filter : filters) {
+            ScaleHelper scaler = new ScaleHelper(filter);
+            scaler.setForkJoinPool(ImageIOUtils.getForkJoinPool());
+            BufferedImage img = scaler.scaleToWidth(jpg, JPG_WIDTH / 4);
+            Assert.assertEquals(JPG_WIDTH / 4, img.getWidth());
+            Assert.assertEquals(JPG_HEIGHT / 4, img.getHeight());
+            Assert.assertEquals(jpg.getType(), img.getType());
+            m_img.write(img, new File(m_tmp, "JPG_" + filter + "_div_4.jpg"), Format.JPEG);
+
+            // The rows processed in parallel give the same result
+            ScaleHelper sequential = new ScaleHelper(filter);
+            BufferedImage expected = sequential.scaleToWidth(jpg, JPG_WIDTH / 4);
+            for (int y = 0; y < img.getHeight(); y++) {
+                for (int x = 0; x < img.getWidth(); x++) {
+                    Assert.assertEquals(expected.getRGB(x, y), img.getRGB(x, y));
+                }
+            }
+
+            // Enlarging
+            img = m_scaler.scaleImage(jpg, JPG_WIDTH * 2, JPG_HEIGHT * 2, filter);
+            Assert.assertEquals(JPG_HEIGHT * 2, img.getHeight());
+
+            // Premultiplied colors stay lower than the alpha despite the negative lobes
+            img = m_scaler.scaleImage(alpha, alpha.getWidth() / 3, alpha.getHeight() / 3, filter);
+            Assert.assertEquals(alpha.getType(), img.getType());
+            m_img.write(img, new File(m_tmp, "PNG_alpha_" + filter + "_div_3.png"), Format.PNG);
+        }
+
+        // A uniform image stays uniform
+        BufferedImage gray = new BufferedImage(50, 40, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < gray.getHeight(); y++) {
+            for (int x = 0; x < gray.getWidth(); x++) {
+                gray.getRaster().setSample(x, y, 0, 77);
+            }
+        }
+        BufferedImage img = m_scaler.scaleImage(gray, 17, 13, Interpolation.LANCZOS3);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                Assert.assertEquals(77, img.getRaster().getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelScalingGivesSameResult() throws IOException {
+        BufferedImage png = m_img.read(PNG_ALPHA);
+        BufferedImage jpg = m_img.read(JPG);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (Interpolation interpolation : Interpolation.values()) {
+                ScaleHelper parallel = new ScaleHelper(interpolation);
+                parallel.setForkJoinPool(pool);
+                ScaleHelper sequential = new ScaleHelper(interpolation);
+                assertSameImage(sequential.scale(png, 1.5f), parallel.scale(png, 1.5f));
+                assertSameImage(sequential.scaleImage(jpg, 1200, 1100, interpolation),
+                        parallel.scaleImage(jpg, 1200, 1100, interpolation));
+                assertSameImage(sequential.scaleImage(png, 401, 333, interpolation),
+                        parallel.scaleImage(png, 401, 333, interpolation));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testScalingWithoutPoolGivesSameResultAsSingleDraw() {
+        Random random = new Random(3);
+        BufferedImage source = new BufferedImage(1003, 777, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, random.nextInt());
+            }
+        }
+        Object[] hints = {RenderingHints.VALUE_INTERPOLATION_BILINEAR, RenderingHints.VALUE_INTERPOLATION_BICUBIC,
+                RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR};
+        Interpolation[] interpolations = {Interpolation.BILINEAR, Interpolation.BICUBIC,
+                Interpolation.NEAREST_NEIGHBOR};
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int i = 0; i < hints.length; i++) {
+                // Large enough to be split in bands with a pool
+                for (int[] size : new int[][] {{1777, 1301}, {517, 1213}}) {
+                    BufferedImage expected = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+                    Graphics2D graphics = expected.createGraphics();
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, hints[i]);
+                    graphics.drawImage(source, 0, 0, size[0], size[1], 0, 0, source.getWidth(),
+                            source.getHeight(), null);
+                    graphics.dispose();
+
+                    ScaleHelper helper = new ScaleHelper(interpolations[i]);
+                    helper.setForkJoinPool(null);
+                    assertSameImage(expected, helper.scaleImage(source, size[0], size[1], interpolations[i]));
+                    helper.setForkJoinPool(pool);
+                    assertSameImage(expected, helper.scaleImage(source, size[0], size[1], interpolations[i]));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void assertSameImage(BufferedImage expected, BufferedImage actual) {
+        Assert.assertEquals(expected.getWidth(), actual.getWidth());
+        Assert.assertEquals(expected.getHeight(), actual.getHeight());
+        Assert.assertEquals(expected.getType(), actual.getType());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                Assert.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testResizeModes() throws IOException {
+        BufferedImage jpg = m_img.read(JPG);
+        BufferedImage img = m_scaler.resize(jpg, 100, 100, ResizeMode.FIT);
+        Assert.assertEquals(100, img.getWidth());
+        Assert.assertEquals(60, img.getHeight());
+        img = m_scaler.resize(jpg, 100, 100, ResizeMode.COVER);
+        Assert.assertEquals(167, img.getWidth());
+        Assert.assertEquals(100, img.getHeight());
+        img = m_scaler.resize(jpg, 100, 100, ResizeMode.CROP_CENTER);
+        Assert.assertEquals(100, img.getWidth());
+        Assert.assertEquals(100, img.getHeight());
+        Assert.assertEquals(jpg.getType(), img.getType());
+        m_img.write(img, new File(m_tmp, "JPG_crop_100.jpg"), Format.JPEG);
+
+        // The borders of opaque images are white by default
+        img = m_scaler.resize(jpg, 100, 100, ResizeMode.PAD);
+        Assert.assertEquals(100, img.getHeight());
+        Assert.assertEquals(0xFFFFFFFF, img.getRGB(50, 0));
+        Assert.assertEquals(0xFFFFFFFF, img.getRGB(50, 99));
+        m_scaler.setPadColor(Color.BLACK);
+        img = m_scaler.resize(jpg, 100, 100, ResizeMode.PAD);
+        Assert.assertEquals(0xFF000000, img.getRGB(50, 0));
+
+        // The borders of images having an alpha channel are transparent
+        BufferedImage png = m_img.read(PNG_ALPHA);
+        m_scaler.setPadColor(null);
+        img = m_scaler.resize(png, 200, 100, ResizeMode.PAD);
+        Assert.assertEquals(0, img.getRGB(0, 50) >>> 24);
+
+        // The crop keeps the center of the image
+        BufferedImage stripes = new BufferedImage(300, 100, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < stripes.getWidth(); x++) {
+            for (int y = 0; y < stripes.getHeight(); y++) {
+                stripes.setRGB(x, y, x < 100 ? 0xFF0000 : (x < 200 ? 0x00FF00 : 0x0000FF));
+            }
+        }
+        img = new ScaleHelper(Interpolation.AREA_AVERAGING).resize(stripes, 50, 50, ResizeMode.CROP_CENTER);
+        for (int x = 0; x < img.getWidth(); x++) {
+            Assert.assertEquals(0xFF00FF00, img.getRGB(x, 25));
+        }
+    }
+
+    @Test
+    public void testResizeFile() throws IOException {
+        // 2592x1936 displayed rotated by 90 degrees
+        File rotated = new File("src/test/resources/jpg/flore.JPG");
+        BufferedImage img = m_scaler.resize(rotated, 200, 200, ResizeMode.FIT);
+        Assert.assertEquals(149, img.getWidth());
+        Assert.assertEquals(200, img.getHeight());
+        img = m_scaler.resize(rotated, 300, 100, ResizeMode.CROP_CENTER);
+        Assert.assertEquals(300, img.getWidth());
+        Assert.assertEquals(100, img.getHeight());
+        m_img.write(img, new File(m_tmp, "JPG_crop_300_100.jpg"), Format.JPEG);
+
+        img = m_scaler.resize(JPG, 100, 100, ResizeMode.COVER);
+        Assert.assertEquals(167, img.getWidth());
+        Assert.assertEquals(100, img.getHeight());
+        img = m_scaler.resize(PNG_ALPHA, 100, 100, ResizeMode.PAD);
+        Assert.assertEquals(100, img.getWidth());
+        Assert.assertEquals(100, img.getHeight());
+    }
+
 }
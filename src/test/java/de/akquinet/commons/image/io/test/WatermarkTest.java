@@ -0,0 +1,149 @@
+package de.akquinet.commons.image.io.test;
+
+import de.akquinet.commons.image.io.ImageIOUtils;
+import de.akquinet.commons.image.io.ImagePool;
+import de.akquinet.commons.image.io.ManipulationHelper;
+import de.akquinet.commons.image.io.Watermark;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+public class WatermarkTest {
+
+    private static BufferedImage createImage(int width, int height, int type, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static void assertClose(BufferedImage expected, BufferedImage actual, int tolerance) {
+        Assert.assertEquals(expected.getWidth(), actual.getWidth());
+        Assert.assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int difference = Math.abs(((e >> shift) & 0xFF) - ((a >> shift) & 0xFF));
+                    Assert.assertTrue("Pixel " + x + ", " + y, difference <= tolerance);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBlend() {
+        ManipulationHelper helper = ImageIOUtils.getManipulationHelper();
+        BufferedImage mark = createImage(40, 30, BufferedImage.TYPE_INT_ARGB, 1);
+        Watermark watermark = new Watermark(mark, 0.5f, Watermark.Position.BOTTOM_RIGHT, 0, 10);
+        BufferedImage image = createImage(200, 150, BufferedImage.TYPE_INT_RGB, 2);
+
+        BufferedImage expected = createImage(200, 150, BufferedImage.TYPE_INT_RGB, 2);
+        Graphics2D graphics = expected.createGraphics();
+        graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+        graphics.drawImage(mark, 150, 110, null);
+        graphics.dispose();
+
+        // The pixels are blended on a copy, the image is left unchanged
+        BufferedImage result = helper.applyWatermark(image, watermark);
+        Assert.assertNotSame(image, result);
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, result.getType());
+        assertClose(expected, result, 2);
+        BufferedImage original = createImage(200, 150, BufferedImage.TYPE_INT_RGB, 2);
+        for (int y = 0; y < 150; y++) {
+            for (int x = 0; x < 200; x++) {
+                Assert.assertEquals(original.getRGB(x, y), image.getRGB(x, y));
+            }
+        }
+
+        // The cached pixels give the same result
+        BufferedImage again = helper.applyWatermark(createImage(200, 150, BufferedImage.TYPE_INT_RGB, 2), watermark);
+        for (int y = 0; y < 150; y++) {
+            for (int x = 0; x < 200; x++) {
+                Assert.assertEquals(result.getRGB(x, y), again.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testTiledAndScaled() {
+        BufferedImage mark = new BufferedImage(10, 5, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 10; x++) {
+                mark.setRGB(x, y, 0xFFFF0000);
+            }
+        }
+        // 20x10 watermarks, separated by 5 pixels
+        Watermark watermark = new Watermark(mark, 1, Watermark.Position.TILED, 0.1f, 5);
+        BufferedImage image = new BufferedImage(200, 100, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage result = ImageIOUtils.getManipulationHelper().applyWatermark(image, watermark);
+        Assert.assertNotSame(image, result);
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, result.getType());
+        Assert.assertEquals(0, image.getRGB(0, 0) & 0xFFFFFF);
+
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 200; x++) {
+                boolean covered = x % 25 < 20 && y % 15 < 10;
+                Assert.assertEquals("Pixel " + x + ", " + y, covered ? 0xFF0000 : 0, result.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    @Test
+    public void testTranslucentImage() {
+        BufferedImage mark = createImage(30, 30, BufferedImage.TYPE_INT_ARGB, 3);
+        Watermark watermark = new Watermark(mark, 0.8f, Watermark.Position.CENTER);
+        BufferedImage image = createImage(64, 48, BufferedImage.TYPE_INT_ARGB, 4);
+
+        BufferedImage expected = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D graphics = expected.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.8f));
+        graphics.drawImage(mark, 17, 9, null);
+        graphics.dispose();
+
+        BufferedImage result = ImageIOUtils.getManipulationHelper().applyWatermark(image, watermark);
+        Assert.assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, result.getType());
+        // Compares the premultiplied components, the unpremultiplied ones
+        // of the almost transparent pixels being imprecise
+        int[] e = expected.getRaster().getPixels(0, 0, 64, 48, (int[]) null);
+        int[] a = result.getRaster().getPixels(0, 0, 64, 48, (int[]) null);
+        for (int i = 0; i < e.length; i++) {
+            Assert.assertTrue("Sample " + i, Math.abs(e[i] - a[i]) <= 2);
+        }
+    }
+
+    @Test
+    public void testHelperPools() {
+        BufferedImage mark = createImage(40, 20, BufferedImage.TYPE_INT_ARGB, 5);
+        Watermark watermark = new Watermark(mark, 0.6f, Watermark.Position.TOP_LEFT, 0.1f, 0);
+        BufferedImage expected = ImageIOUtils.getManipulationHelper().applyWatermark(
+                createImage(100, 80, BufferedImage.TYPE_INT_RGB, 6), new Watermark(mark, 0.6f,
+                Watermark.Position.TOP_LEFT, 0.1f, 0));
+
+        // The watermark pixels are computed with the pools of the helper
+        ManipulationHelper helper = ImageIOUtils.getFreshManipulationHelper();
+        ImagePool pool = new ImagePool();
+        helper.setForkJoinPool(null);
+        helper.setImagePool(pool);
+        BufferedImage result = helper.applyWatermark(createImage(100, 80, BufferedImage.TYPE_INT_RGB, 6), watermark);
+        // The translucent image and the intermediate images of its scaling to 10x5 pixels were given back
+        Assert.assertEquals(3, pool.getCount());
+        Assert.assertTrue(pool.getMissCount() > 0);
+        for (int y = 0; y < 80; y++) {
+            for (int x = 0; x < 100; x++) {
+                Assert.assertEquals(expected.getRGB(x, y), result.getRGB(x, y));
+            }
+        }
+    }
+
+}